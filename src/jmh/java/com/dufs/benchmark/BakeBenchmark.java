@@ -0,0 +1,76 @@
+package com.dufs.benchmark;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * baking of a lightly fragmented volume: every HOLE_STEP-th file of the fill is deleted, then TAIL_FILES files
+ * are written behind the fill, so a few clusters sit behind the used part of the volume.
+ * bake() moves only them (see ResizeUtility), defragmentationAndBake() is what bake() did before: full
+ * defragmentation, then cutting of the volume. the volume is built again before every iteration
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BakeBenchmark {
+    private static final int FILL_DIRECTORY_SIZE = 64;     // as BenchmarkVolume fills the volume
+    private static final int HOLE_STEP = 16;
+    private static final int TAIL_FILES = 4;
+    private static final int TAIL_FILE_CLUSTERS = 16;
+
+    @Param({"4096", "65536"})
+    public int clusterSize;
+
+    @Param({"0.5", "0.8"})
+    public double fillLevel;
+
+    private Path directory;
+    private Dufs dufs;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, DufsException {
+        directory = Files.createTempDirectory("dufs-bench");
+        dufs = BenchmarkVolume.mount(directory, clusterSize);
+        BenchmarkVolume.fill(dufs, directory, fillLevel);
+        for (int file = 0; ; file += HOLE_STEP) {
+            String fillDirectory = "d" + (file / FILL_DIRECTORY_SIZE);
+            if (!dufs.listDirectory(BenchmarkVolume.path("fill")).contains(fillDirectory)
+                    || !dufs.listDirectory(BenchmarkVolume.path("fill", fillDirectory)).contains("f" + file)) {
+                break;
+            }
+            dufs.deleteRecord(BenchmarkVolume.path("fill", fillDirectory, "f" + file), (byte) 1);
+        }
+        File tail = BenchmarkVolume.createHostFile(directory, "tail.tmp", (long) TAIL_FILE_CLUSTERS * clusterSize);
+        dufs.createRecord(BenchmarkVolume.path(), "tail", (byte) 0);
+        for (int i = 0; i < TAIL_FILES; ++i) {
+            dufs.createRecord(BenchmarkVolume.path("tail"), "t" + i, (byte) 1);
+            dufs.writeFile(BenchmarkVolume.path("tail", "t" + i), tail);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, DufsException {
+        BenchmarkVolume.delete(dufs, directory);
+    }
+
+    @Benchmark
+    public void bake() throws IOException, DufsException {
+        dufs.bake();
+    }
+
+    @Benchmark
+    public void defragmentationAndBake() throws IOException, DufsException {
+        dufs.defragmentation();
+        dufs.bake();
+    }
+}
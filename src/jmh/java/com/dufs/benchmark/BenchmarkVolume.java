@@ -0,0 +1,100 @@
+package com.dufs.benchmark;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import com.dufs.model.ReservedSpace;
+import com.dufs.utility.VolumeIO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/*
+ * volumes the benchmarks run against: every volume is mounted in its own temporary directory
+ * and filled with files of FILL_FILE_CLUSTERS clusters until the given part of its clusters is taken
+ */
+public class BenchmarkVolume {
+    public static final String VOLUME_NAME = "b.DUFS";
+    public static final long VOLUME_SIZE = 256L * 1024 * 1024;
+    public static final String SEPARATOR = FileSystems.getDefault().getSeparator();
+    private static final int FILL_FILE_CLUSTERS = 64;
+    private static final int FILL_DIRECTORY_SIZE = 64;
+
+    public static Dufs mount(Path directory, int clusterSize, long size, DufsOptions options) throws IOException, DufsException {
+        Dufs dufs = new Dufs(options);
+        dufs.mountVolume(directory.resolve(VOLUME_NAME).toString(), clusterSize, size);
+        return dufs;
+    }
+
+    public static Dufs mount(Path directory, int clusterSize) throws IOException, DufsException {
+        return mount(directory, clusterSize, VOLUME_SIZE, new DufsOptions());
+    }
+
+    /*
+     * joins names into the path inside the volume, starting with the root
+     */
+    public static String path(String... names) {
+        return (names.length == 0) ? VOLUME_NAME : VOLUME_NAME + SEPARATOR + String.join(SEPARATOR, names);
+    }
+
+    public static File createHostFile(Path directory, String name, long size) throws IOException {
+        File file = directory.resolve(name).toFile();
+        byte[] buffer = new byte[64 * 1024];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            long written = 0;
+            while (written < size) {
+                int bytes = (int) Math.min(buffer.length, size - written);
+                for (int i = 0; i < bytes; ++i) {
+                    buffer[i] = (byte) (((written + i) * 31) ^ ((written + i) >>> 8));
+                }
+                raf.write(buffer, 0, bytes);
+                written += bytes;
+            }
+        }
+        return file;
+    }
+
+    /*
+     * takes fillLevel (0..1) of the volume's clusters by files in directory "fill"
+     */
+    public static void fill(Dufs dufs, Path directory, double fillLevel) throws IOException, DufsException {
+        ReservedSpace reservedSpace = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume());
+        long targetClusters = (long) (reservedSpace.getReservedClusters() * fillLevel);
+        if (targetClusters == 0) {
+            return;
+        }
+        File hostFile = createHostFile(directory, "fill.tmp", (long) FILL_FILE_CLUSTERS * reservedSpace.getClusterSize());
+        dufs.createRecord(path(), "fill", (byte) 0);
+        int files = 0;
+        while (reservedSpace.getReservedClusters() - reservedSpace.getFreeClusters() + FILL_FILE_CLUSTERS <= targetClusters) {
+            String fillDirectory = "d" + (files / FILL_DIRECTORY_SIZE);
+            if (files % FILL_DIRECTORY_SIZE == 0) {
+                dufs.createRecord(path("fill"), fillDirectory, (byte) 0);
+            }
+            dufs.createRecord(path("fill", fillDirectory), "f" + files, (byte) 1);
+            dufs.writeFile(path("fill", fillDirectory, "f" + files), hostFile);
+            files++;
+            reservedSpace = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume());
+        }
+        hostFile.delete();
+    }
+
+    /*
+     * closes the volume and removes the directory with everything in it
+     */
+    public static void delete(Dufs dufs, Path directory) throws IOException, DufsException {
+        if (dufs != null) {
+            dufs.closeVolume();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.dufs.benchmark;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * defragmentation of a volume, where FRAGMENTED_FILES files were appended cluster by cluster in turn,
+ * so their cluster chains are interleaved; the volume is built again before every iteration
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DefragmentationBenchmark {
+    private static final int FRAGMENTED_FILES = 16;
+    private static final int APPEND_ROUNDS = 32;
+
+    @Param({"4096", "65536"})
+    public int clusterSize;
+
+    @Param({"0.0", "0.5", "0.8"})
+    public double fillLevel;
+
+    private Path directory;
+    private Dufs dufs;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, DufsException {
+        directory = Files.createTempDirectory("dufs-bench");
+        dufs = BenchmarkVolume.mount(directory, clusterSize);
+        BenchmarkVolume.fill(dufs, directory, fillLevel);
+        File cluster = BenchmarkVolume.createHostFile(directory, "cluster.tmp", clusterSize);
+        dufs.createRecord(BenchmarkVolume.path(), "frag", (byte) 0);
+        for (int i = 0; i < FRAGMENTED_FILES; ++i) {
+            dufs.createRecord(BenchmarkVolume.path("frag"), "f" + i, (byte) 1);
+        }
+        for (int round = 0; round < APPEND_ROUNDS; ++round) {
+            for (int i = 0; i < FRAGMENTED_FILES; ++i) {
+                dufs.appendFile(BenchmarkVolume.path("frag", "f" + i), cluster);
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, DufsException {
+        BenchmarkVolume.delete(dufs, directory);
+    }
+
+    @Benchmark
+    public void defragmentation() throws IOException, DufsException {
+        dufs.defragmentation();
+    }
+}
@@ -0,0 +1,108 @@
+package com.dufs.benchmark;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * transfer of the file content between the host and the volume
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+    @Param({"4096", "65536"})
+    public int clusterSize;
+
+    @Param({"0.0", "0.5", "0.8"})
+    public double fillLevel;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int fileSize;
+
+    private Path directory;
+    private Dufs dufs;
+    private File content;
+    private File tail;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, DufsException {
+        directory = Files.createTempDirectory("dufs-bench");
+        dufs = BenchmarkVolume.mount(directory, clusterSize);
+        BenchmarkVolume.fill(dufs, directory, fillLevel);
+        content = BenchmarkVolume.createHostFile(directory, "content.tmp", fileSize);
+        tail = BenchmarkVolume.createHostFile(directory, "tail.tmp", clusterSize / 2);
+        output = directory.resolve("output.tmp").toFile();
+        dufs.createRecord(BenchmarkVolume.path(), "read", (byte) 1);
+        dufs.writeFile(BenchmarkVolume.path("read"), content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, DufsException {
+        BenchmarkVolume.delete(dufs, directory);
+    }
+
+    @Benchmark
+    public void readFile() throws IOException, DufsException {
+        dufs.readFile(BenchmarkVolume.path("read"), output);
+    }
+
+    /*
+     * written file is created empty before and deleted after every invocation
+     */
+    @State(Scope.Thread)
+    public static class WrittenFile {
+        private FileBenchmark benchmark;
+
+        @Setup(Level.Invocation)
+        public void setUp(FileBenchmark benchmark) throws IOException, DufsException {
+            this.benchmark = benchmark;
+            benchmark.dufs.createRecord(BenchmarkVolume.path(), "written", (byte) 1);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException, DufsException {
+            benchmark.dufs.deleteRecord(BenchmarkVolume.path("written"), (byte) 1);
+        }
+    }
+
+    @Benchmark
+    public void writeFile(WrittenFile writtenFile) throws IOException, DufsException {
+        dufs.writeFile(BenchmarkVolume.path("written"), content);
+    }
+
+    /*
+     * appended file ends in the middle of a cluster; it is deleted after every invocation
+     */
+    @State(Scope.Thread)
+    public static class AppendedFile {
+        private FileBenchmark benchmark;
+
+        @Setup(Level.Invocation)
+        public void setUp(FileBenchmark benchmark) throws IOException, DufsException {
+            this.benchmark = benchmark;
+            benchmark.dufs.createRecord(BenchmarkVolume.path(), "appended", (byte) 1);
+            benchmark.dufs.writeFile(BenchmarkVolume.path("appended"), benchmark.tail);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException, DufsException {
+            benchmark.dufs.deleteRecord(BenchmarkVolume.path("appended"), (byte) 1);
+        }
+    }
+
+    @Benchmark
+    public void appendFile(AppendedFile appendedFile) throws IOException, DufsException {
+        dufs.appendFile(BenchmarkVolume.path("appended"), content);
+    }
+}
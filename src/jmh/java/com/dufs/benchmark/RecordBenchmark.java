@@ -0,0 +1,126 @@
+package com.dufs.benchmark;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.utility.VolumeIO;
+import com.dufs.utility.VolumeUtility;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * operations on records: lookup of the file by path, reading of the record, creation and deletion.
+ * looked up directory is `depth` directories deep and contains `directorySize` files
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBenchmark {
+    @Param({"4096", "65536"})
+    public int clusterSize;
+
+    @Param({"0.0", "0.5", "0.8"})
+    public double fillLevel;
+
+    @Param({"16", "1024"})
+    public int directorySize;
+
+    @Param({"1", "8"})
+    public int depth;
+
+    private Path directory;
+    private Dufs dufs;
+    private ReservedSpace reservedSpace;
+    private String[] directoryNames;
+    private String lastFilePath;
+    private int[] recordIndexes;
+    private int nextRecord;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, DufsException {
+        directory = Files.createTempDirectory("dufs-bench");
+        dufs = BenchmarkVolume.mount(directory, clusterSize);
+        BenchmarkVolume.fill(dufs, directory, fillLevel);
+        directoryNames = new String[depth];
+        for (int i = 0; i < depth; ++i) {
+            directoryNames[i] = "level" + i;
+            dufs.createRecord(BenchmarkVolume.path(Arrays.copyOf(directoryNames, i)), directoryNames[i], (byte) 0);
+        }
+        String directoryPath = BenchmarkVolume.path(directoryNames);
+        for (int i = 0; i < directorySize; ++i) {
+            dufs.createRecord(directoryPath, "file" + i, (byte) 1);
+        }
+        lastFilePath = directoryPath + BenchmarkVolume.SEPARATOR + "file" + (directorySize - 1);
+        reservedSpace = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume());
+        recordIndexes = VolumeUtility.readDirectoryRecordIndexes(dufs.getVolume(), reservedSpace,
+                VolumeUtility.findDirectoryIndex(dufs.getVolume(), reservedSpace, directoryPath));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, DufsException {
+        BenchmarkVolume.delete(dufs, directory);
+    }
+
+    /*
+     * the last file of the directory is the worst case of the linear search
+     */
+    @Benchmark
+    public int findFileIndex() throws IOException, DufsException {
+        return VolumeUtility.findFileIndex(dufs.getVolume(), reservedSpace, lastFilePath);
+    }
+
+    @Benchmark
+    public Record readRecordFromVolume() throws IOException {
+        nextRecord = (nextRecord + 1) % recordIndexes.length;
+        return VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace, recordIndexes[nextRecord]);
+    }
+
+    /*
+     * created record is deleted after every invocation, so the directory keeps its size
+     */
+    @State(Scope.Thread)
+    public static class CreatedRecord {
+        private RecordBenchmark benchmark;
+
+        @Setup(Level.Invocation)
+        public void setUp(RecordBenchmark benchmark) {
+            this.benchmark = benchmark;
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException, DufsException {
+            benchmark.dufs.deleteRecord(benchmark.lastFilePath + "x", (byte) 1);
+        }
+    }
+
+    @Benchmark
+    public void createRecord(CreatedRecord createdRecord) throws IOException, DufsException {
+        dufs.createRecord(BenchmarkVolume.path(directoryNames), "file" + (directorySize - 1) + "x", (byte) 1);
+    }
+
+    /*
+     * deleted record is created before every invocation
+     */
+    @State(Scope.Thread)
+    public static class DeletedRecord {
+        @Setup(Level.Invocation)
+        public void setUp(RecordBenchmark benchmark) throws IOException, DufsException {
+            benchmark.dufs.createRecord(BenchmarkVolume.path(benchmark.directoryNames),
+                    "file" + (benchmark.directorySize - 1) + "x", (byte) 1);
+        }
+    }
+
+    @Benchmark
+    public void deleteRecord(DeletedRecord deletedRecord) throws IOException, DufsException {
+        dufs.deleteRecord(lastFilePath + "x", (byte) 1);
+    }
+}
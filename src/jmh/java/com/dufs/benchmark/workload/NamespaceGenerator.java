@@ -0,0 +1,57 @@
+package com.dufs.benchmark.workload;
+
+import com.dufs.benchmark.BenchmarkVolume;
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * directory tree of the workload: every directory above `depth` has `fanOut` subdirectories,
+ * files are spread uniformly over the leaf directories and get unique names
+ */
+public class NamespaceGenerator {
+    private final WorkloadProfile profile;
+    private final Random random;
+    private final List<String> leafDirectories = new ArrayList<>();
+    private int nameCounter;
+
+    public NamespaceGenerator(WorkloadProfile profile, Random random) {
+        this.profile = profile;
+        this.random = random;
+    }
+
+    /*
+     * creates the directory tree in breadth-first order
+     */
+    public void createDirectories(Dufs dufs) throws IOException, DufsException {
+        List<String> level = new ArrayList<>();
+        level.add(BenchmarkVolume.path());
+        for (int depth = 0; depth < profile.getDepth(); ++depth) {
+            List<String> nextLevel = new ArrayList<>();
+            for (String directory : level) {
+                for (int i = 0; i < profile.getFanOut(); ++i) {
+                    dufs.createRecord(directory, "d" + i, (byte) 0);
+                    nextLevel.add(directory + BenchmarkVolume.SEPARATOR + "d" + i);
+                }
+            }
+            level = nextLevel;
+        }
+        leafDirectories.addAll(level);
+    }
+
+    public String randomDirectory() {
+        return leafDirectories.get(random.nextInt(leafDirectories.size()));
+    }
+
+    public String nextName(String prefix) {
+        return prefix + (nameCounter++);
+    }
+
+    public long nextSize() {
+        return profile.getSizeDistribution().sample(random, profile.getMinSize(), profile.getMaxSize());
+    }
+}
@@ -0,0 +1,25 @@
+package com.dufs.benchmark.workload;
+
+import java.util.Random;
+
+/*
+ * distribution of the file sizes, bounded by [minSize, maxSize]
+ */
+public enum SizeDistribution {
+    FIXED,          // every file has maxSize bytes
+    UNIFORM,
+    LOGNORMAL;      // most files are small, few are large: median is the geometric mean of the bounds
+
+    public long sample(Random random, long minSize, long maxSize) {
+        return switch (this) {
+            case FIXED -> maxSize;
+            case UNIFORM -> minSize + (long) (random.nextDouble() * (maxSize - minSize + 1));
+            case LOGNORMAL -> {
+                double logMin = Math.log(Math.max(1, minSize));
+                double logMax = Math.log(Math.max(1, maxSize));
+                double logSize = (logMin + logMax) / 2 + random.nextGaussian() * (logMax - logMin) / 6;
+                yield Math.max(minSize, Math.min(maxSize, (long) Math.exp(logSize)));
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+package com.dufs.benchmark.workload;
+
+import com.dufs.benchmark.BenchmarkVolume;
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import com.dufs.utility.Parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * end-to-end workload: the namespace is grown by `step` files up to `files` files, and at every namespace size
+ * `operations` operations of the create/read/append/delete/rename mix are measured.
+ * prints CSV: files,operation,count,ops_per_sec,p50_us,p99_us (one row per operation and one for the whole mix).
+ * usage: java -cp target/benchmarks.jar com.dufs.benchmark.workload.WorkloadDriver files=20000 depth=2 mix=10:70:10:5:5
+ */
+public class WorkloadDriver {
+    private static final int HOST_FILES = 16;
+
+    private enum Operation { CREATE, READ, APPEND, DELETE, RENAME }
+
+    private final WorkloadProfile profile;
+    private final Random random;
+    private final NamespaceGenerator namespace;
+    private final List<String> liveFiles = new ArrayList<>();
+    private final File[] hostFiles = new File[HOST_FILES];
+    private File appendedContent;
+    private File readContent;
+    private Dufs dufs;
+
+    public WorkloadDriver(WorkloadProfile profile) {
+        this.profile = profile;
+        this.random = new Random(profile.getSeed());
+        this.namespace = new NamespaceGenerator(profile, random);
+    }
+
+    public static void main(String[] args) throws IOException, DufsException {
+        WorkloadProfile profile = WorkloadProfile.parse(args);
+        if (profile.getOut() == null) {
+            new WorkloadDriver(profile).run(System.out);
+        } else {
+            try (PrintStream out = new PrintStream(new FileOutputStream(profile.getOut()))) {
+                new WorkloadDriver(profile).run(out);
+            }
+        }
+    }
+
+    public void run(PrintStream out) throws IOException, DufsException {
+        Path directory = Files.createTempDirectory("dufs-workload");
+        try {
+            dufs = BenchmarkVolume.mount(directory, profile.getClusterSize(), profile.getVolumeSize(), new DufsOptions());
+            namespace.createDirectories(dufs);
+            for (int i = 0; i < HOST_FILES; ++i) {
+                hostFiles[i] = BenchmarkVolume.createHostFile(directory, "host" + i + ".tmp", namespace.nextSize());
+            }
+            appendedContent = BenchmarkVolume.createHostFile(directory, "append.tmp", profile.getAppendSize());
+            readContent = directory.resolve("read.tmp").toFile();
+            out.println("files,operation,count,ops_per_sec,p50_us,p99_us");
+            while (liveFiles.size() < profile.getFiles()) {
+                int target = Math.min(profile.getFiles(), liveFiles.size() + profile.getStep());
+                while (liveFiles.size() < target) {
+                    perform(Operation.CREATE);
+                }
+                measure(out);
+            }
+        } finally {
+            BenchmarkVolume.delete(dufs, directory);
+        }
+    }
+
+    /*
+     * runs the mix once at the current namespace size and prints its rows
+     */
+    private void measure(PrintStream out) throws IOException, DufsException {
+        int namespaceSize = liveFiles.size();
+        Operation[] operations = Operation.values();
+        long[][] latencies = new long[operations.length][profile.getOperations()];
+        int[] counts = new int[operations.length];
+        long[] all = new long[profile.getOperations()];
+        long totalNanos = 0;
+        for (int i = 0; i < profile.getOperations(); ++i) {
+            Operation operation = pickOperation();
+            long nanos = perform(operation);
+            latencies[operation.ordinal()][counts[operation.ordinal()]++] = nanos;
+            all[i] = nanos;
+            totalNanos += nanos;
+        }
+        for (Operation operation : operations) {
+            int count = counts[operation.ordinal()];
+            if (count > 0) {
+                printRow(out, namespaceSize, operation.name().toLowerCase(), Arrays.copyOf(latencies[operation.ordinal()], count));
+            }
+        }
+        printRow(out, namespaceSize, "mix", all);
+        out.flush();
+    }
+
+    private static void printRow(PrintStream out, int namespaceSize, String operation, long[] latencies) {
+        long sum = 0;
+        for (long latency : latencies) {
+            sum += latency;
+        }
+        Arrays.sort(latencies);
+        double opsPerSecond = (sum == 0) ? 0 : latencies.length * 1e9 / sum;
+        out.printf("%d,%s,%d,%.1f,%.1f,%.1f%n", namespaceSize, operation, latencies.length, opsPerSecond,
+                percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3);
+    }
+
+    private static long percentile(long[] sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)];
+    }
+
+    private Operation pickOperation() {
+        int total = profile.getCreate() + profile.getRead() + profile.getAppend() + profile.getDelete() + profile.getRename();
+        int value = random.nextInt(total);
+        if ((value -= profile.getCreate()) < 0) {
+            return Operation.CREATE;
+        }
+        if ((value -= profile.getRead()) < 0) {
+            return Operation.READ;
+        }
+        if ((value -= profile.getAppend()) < 0) {
+            return Operation.APPEND;
+        }
+        if ((value -= profile.getDelete()) < 0) {
+            return Operation.DELETE;
+        }
+        return Operation.RENAME;
+    }
+
+    /*
+     * returns time of the operation in nanoseconds; operations on files fall back to create in an empty namespace
+     */
+    private long perform(Operation operation) throws IOException, DufsException {
+        if (liveFiles.isEmpty()) {
+            operation = Operation.CREATE;
+        }
+        int fileNumber = random.nextInt(Math.max(1, liveFiles.size()));
+        long start = System.nanoTime();
+        switch (operation) {
+            case CREATE -> {
+                String directory = namespace.randomDirectory();
+                String name = namespace.nextName("f");
+                String path = directory + BenchmarkVolume.SEPARATOR + name;
+                dufs.createRecord(directory, name, (byte) 1);
+                dufs.writeFile(path, hostFiles[random.nextInt(HOST_FILES)]);
+                liveFiles.add(path);
+            }
+            case READ -> dufs.readFile(liveFiles.get(fileNumber), readContent);
+            case APPEND -> dufs.appendFile(liveFiles.get(fileNumber), appendedContent);
+            case DELETE -> {
+                dufs.deleteRecord(liveFiles.get(fileNumber), (byte) 1);
+                // the last file takes the place of the deleted one
+                liveFiles.set(fileNumber, liveFiles.get(liveFiles.size() - 1));
+                liveFiles.remove(liveFiles.size() - 1);
+            }
+            case RENAME -> {
+                String path = liveFiles.get(fileNumber);
+                String name = namespace.nextName("r");
+                dufs.renameRecord(path, name, (byte) 1);
+                liveFiles.set(fileNumber, Parser.joinPath(Parser.parsePathBeforeFile(path)) + BenchmarkVolume.SEPARATOR + name);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
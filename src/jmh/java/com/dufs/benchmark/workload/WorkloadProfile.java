@@ -0,0 +1,145 @@
+package com.dufs.benchmark.workload;
+
+/*
+ * parameters of the workload, given as key=value arguments of WorkloadDriver
+ */
+public class WorkloadProfile {
+    private int clusterSize = 4096;
+    private long volumeSize = 1024L * 1024 * 1024;
+    private int files = 10000;                      // namespace size in the end of the run
+    private int step = 1000;                        // files added between two measurements
+    private int operations = 1000;                  // operations measured at every namespace size
+    private int depth = 3;
+    private int fanOut = 8;                         // subdirectories of every directory above the leaves
+    private SizeDistribution sizeDistribution = SizeDistribution.LOGNORMAL;
+    private long minSize = 512;
+    private long maxSize = 256 * 1024;
+    private long appendSize = 4096;
+    // weights of the operations in the mix
+    private int create = 20;
+    private int read = 40;
+    private int append = 20;
+    private int delete = 10;
+    private int rename = 10;
+    private long seed = 42;
+    private String out;                             // CSV is printed to stdout when it is not set
+
+    public static WorkloadProfile parse(String[] args) {
+        WorkloadProfile profile = new WorkloadProfile();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Argument has to be key=value: " + arg);
+            }
+            profile.set(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return profile;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "clusterSize" -> clusterSize = Integer.parseInt(value);
+            case "volumeSize" -> volumeSize = Long.parseLong(value);
+            case "files" -> files = Integer.parseInt(value);
+            case "step" -> step = Integer.parseInt(value);
+            case "operations" -> operations = Integer.parseInt(value);
+            case "depth" -> depth = Integer.parseInt(value);
+            case "fanOut" -> fanOut = Integer.parseInt(value);
+            case "sizeDistribution" -> sizeDistribution = SizeDistribution.valueOf(value.toUpperCase());
+            case "minSize" -> minSize = Long.parseLong(value);
+            case "maxSize" -> maxSize = Long.parseLong(value);
+            case "appendSize" -> appendSize = Long.parseLong(value);
+            case "mix" -> setMix(value);
+            case "seed" -> seed = Long.parseLong(value);
+            case "out" -> out = value;
+            default -> throw new IllegalArgumentException("Unknown argument: " + key);
+        }
+    }
+
+    /*
+     * mix is given as create:read:append:delete:rename weights, e.g. 20:40:20:10:10
+     */
+    private void setMix(String value) {
+        String[] weights = value.split(":");
+        if (weights.length != 5) {
+            throw new IllegalArgumentException("Mix has to be create:read:append:delete:rename: " + value);
+        }
+        create = Integer.parseInt(weights[0]);
+        read = Integer.parseInt(weights[1]);
+        append = Integer.parseInt(weights[2]);
+        delete = Integer.parseInt(weights[3]);
+        rename = Integer.parseInt(weights[4]);
+    }
+
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    public long getVolumeSize() {
+        return volumeSize;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public int getOperations() {
+        return operations;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    public SizeDistribution getSizeDistribution() {
+        return sizeDistribution;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getAppendSize() {
+        return appendSize;
+    }
+
+    public int getCreate() {
+        return create;
+    }
+
+    public int getRead() {
+        return read;
+    }
+
+    public int getAppend() {
+        return append;
+    }
+
+    public int getDelete() {
+        return delete;
+    }
+
+    public int getRename() {
+        return rename;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getOut() {
+        return out;
+    }
+}
@@ -0,0 +1,155 @@
+package com.dufs.filesystem;
+
+import com.dufs.exceptions.DufsException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * asynchronous facade of Dufs: every call returns at once with a CompletableFuture.
+ * Dufs is not thread-safe, so operations are queued in one lane and run one by one in order of the calls,
+ * on threads of the given executor (a bounded pool or an executor of virtual threads): queued operations
+ * run back to back by one task, so the caller's threads never wait for the volume.
+ * sync() calls which are made one after another are coalesced into one sync of the volume.
+ */
+public class AsyncDufs {
+    @FunctionalInterface
+    private interface VolumeOperation<T> {
+        T run() throws IOException, DufsException;
+    }
+
+    private final Dufs dufs;
+    private final Executor executor;
+    private final Queue<Runnable> lane = new ArrayDeque<>();
+    private boolean draining;
+    private CompletableFuture<Void> pendingSync;
+
+    public AsyncDufs(Dufs dufs, Executor executor) {
+        this.dufs = dufs;
+        this.executor = executor;
+    }
+
+    public Dufs getDufs() {
+        return dufs;
+    }
+
+    public CompletableFuture<Void> createRecord(String path, String name, byte isFile) {
+        return submit(() -> {
+            dufs.createRecord(path, name, isFile);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> writeFile(String path, File file) {
+        return submit(() -> {
+            dufs.writeFile(path, file);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> appendFile(String path, File file) {
+        return submit(() -> {
+            dufs.appendFile(path, file);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> readFile(String path, File file) {
+        return submit(() -> {
+            dufs.readFile(path, file);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteRecord(String path, byte isFile) {
+        return submit(() -> {
+            dufs.deleteRecord(path, isFile);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<String>> listDirectory(String path) {
+        return submit(() -> dufs.listDirectory(path));
+    }
+
+    /*
+     * completes when every operation called before is durable;
+     * sync which is still queued, with no operation queued after it, is shared
+     */
+    public synchronized CompletableFuture<Void> sync() {
+        if (pendingSync != null) {
+            return pendingSync;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueue(() -> {
+            synchronized (this) {
+                if (pendingSync == future) {
+                    pendingSync = null;
+                }
+            }
+            complete(future, () -> {
+                dufs.sync();
+                return null;
+            });
+        });
+        // shared only once it is queued: a rejected sync must not be returned to later callers
+        pendingSync = future;
+        return future;
+    }
+
+    private synchronized <T> CompletableFuture<T> submit(VolumeOperation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pendingSync = null;     // queued sync does not cover this operation
+        enqueue(() -> complete(future, operation));
+        return future;
+    }
+
+    /*
+     * errors are caught too: the future must complete and the task must not break out of drain(),
+     * which would leave the lane marked as draining with nobody to run it
+     */
+    private static <T> void complete(CompletableFuture<T> future, VolumeOperation<T> operation) {
+        try {
+            future.complete(operation.run());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void enqueue(Runnable task) {
+        lane.add(task);
+        if (!draining) {
+            draining = true;
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                lane.remove(task);
+                draining = false;
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * runs queued operations until the lane is empty
+     */
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = lane.poll();
+                if (task == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+}
@@ -1,340 +1,1177 @@
 package com.dufs.filesystem;
 
 import com.dufs.exceptions.DufsException;
-import com.dufs.model.ClusterIndexList;
+import com.dufs.metrics.DufsMetrics;
+import com.dufs.metrics.DufsOperation;
+import com.dufs.model.DirEntry;
 import com.dufs.model.Record;
-import com.dufs.model.RecordList;
 import com.dufs.model.ReservedSpace;
 import com.dufs.offsets.ClusterIndexListOffsets;
-import com.dufs.offsets.RecordListOffsets;
-import com.dufs.offsets.ReservedSpaceOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
+import com.dufs.trace.TraceLevel;
+import com.dufs.trace.TraceRecorder;
 import com.dufs.utility.*;
+import com.dufs.volume.ClusterCache;
+import com.dufs.volume.ClusterIndexCache;
+import com.dufs.volume.MetadataJournal;
+import com.dufs.volume.SnapshotFile;
+import com.dufs.volume.VolumeCheckpoint;
+import com.dufs.volume.VolumeFile;
+import com.dufs.volume.VolumeSnapshot;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Dufs {
-    private RandomAccessFile volume;
+    private static final String SNAPSHOT_SUFFIX = ".snapshot.";
+    private final DufsOptions options;
+    private final DufsMetrics metrics;
+    private TraceRecorder trace;
+    private int operationDepth;
+    private VolumeFile volume;
+    private File volumeFile;
     private ReservedSpace reservedSpace;
 
     public RandomAccessFile getVolume() {
         return volume;
     }
 
+    public Dufs() {
+        this(new DufsOptions());
+    }
+
+    public Dufs(DufsOptions options) {
+        this.options = options;
+        this.metrics = options.isMetricsEnabled() ? new DufsMetrics() : null;
+    }
+
     public void closeVolume() throws IOException, DufsException {
         if (volume == null) {
             throw new DufsException("Volume has not found.");
         }
         volume.close();
+        if (options.isCheckpointEnabled()) {
+            VolumeCheckpoint.write(checkpointFile(volumeFile), volumeFile, reservedSpace,
+                    volume.getFragmentIndex(), volume.getDedupIndex());
+        }
+        if (metrics != null) {
+            metrics.unregisterMBean();
+        }
+        if (trace != null) {
+            trace.close();
+            trace = null;
+        }
     }
 
     public void mountVolume(String path, int clusterSize, long nettoVolumeSize) throws DufsException, IOException {
+        long started = beginOperation();
+        try {
+            openTrace();
+            traceCall(DufsOperation.MOUNT_VOLUME, new long[] {clusterSize, nettoVolumeSize}, new File(path).getName());
+            File file = new File(path);
+            if (file.exists()) {
+                throw new DufsException("Volume with such name already exists in this directory.");
+            }
+            String name = file.getName();
+            // root's record of the format 2 keeps the name of the volume in itself
+            if (name.length() > 8 || (options.getRecordFormat() == ReservedSpace.FORMAT_V2
+                    && NameHeapUtility.encode(name).length > RecordOffsetsV2.INLINE_NAME_CAPACITY)) {
+                throw new DufsException("Volume name length has exceeded the limit.");
+            }
+            if (!Parser.isRecordNameOk(name)) {
+                throw new DufsException("Volume name contains prohibited symbols.");
+            }
+            if (!VolumeHelper.isVolumeSizeOk(clusterSize, nettoVolumeSize)) {
+                throw new DufsException("Volume size is too big.");
+            }
+            long bruttoVolumeSize = VolumeHelper.calculateVolumeSize(clusterSize, nettoVolumeSize, options.getRecordFormat());
+            if (file.getAbsoluteFile().getParentFile().getUsableSpace() < bruttoVolumeSize) {
+                throw new DufsException("There is not enough space on disk.");
+            }
+            if (clusterSize % 4 != 0) {
+                throw new DufsException("Cluster size cannot be divided by 4 directly.");
+            }
+            // left by a deleted volume
+            Files.deleteIfExists(checkpointFile(file).toPath());
+            for (File snapshot : snapshotFiles(file)) {
+                Files.delete(snapshot.toPath());
+            }
+            volume = new VolumeFile(file, "rw");
+            volumeFile = file;
+            openMetrics(file);
+            openVolumeTrace();
+            volume.setLength(bruttoVolumeSize);
+            reservedSpace = new ReservedSpace(name.toCharArray(), clusterSize, nettoVolumeSize, options.getRecordFormat());
+            volume.write(reservedSpace.serialize());
+            VolumeIO.initializeClusterIndexList(volume, reservedSpace);
+            VolumeIO.initializeRootClusterIndexElement(volume);
+            // empty records are zeros in both formats, so the record list is left as setLength() zeroed it
+            VolumeIO.initializeRootRecord(volume, reservedSpace);
+            openJournal(file);
+            openClusterCache();
+            openClusterIndexCache();
+        } finally {
+            endOperation(DufsOperation.MOUNT_VOLUME, started);
+        }
+    }
+
+    public void attachVolume(String path) throws DufsException, IOException {
+        long started = beginOperation();
+        try {
+            openTrace();
+            traceCall(DufsOperation.ATTACH_VOLUME, new long[0], new File(path).getName());
+            File file = new File(path);
+            if (!file.exists() || file.isDirectory()) {
+                throw new DufsException("There is no volume with such name in this directory.");
+            }
+            volume = new VolumeFile(file, "rw");
+            volumeFile = file;
+            openMetrics(file);
+            openVolumeTrace();
+            // snapshots are opened first, so blocks overwritten by the replay are preserved
+            openSnapshots(file);
+            MetadataJournal.replay(volume, journalFile(file));
+            reservedSpace = VolumeIO.readReservedSpaceFromVolume(volume);
+            if (reservedSpace.getDufsNoseSignature() != 0x44554653
+                    || (reservedSpace.getDufsTailSignature() != ReservedSpace.TAIL_SIGNATURE_V1
+                    && reservedSpace.getDufsTailSignature() != ReservedSpace.TAIL_SIGNATURE_V2)) {
+                throw new DufsException("Volume signature does not match.");
+            }
+            // indexes are built by a scan when they are needed first, if the volume has not been closed cleanly
+            VolumeCheckpoint.load(checkpointFile(file), file, reservedSpace, volume);
+            openJournal(file);
+            openClusterCache();
+            openClusterIndexCache();
+        } finally {
+            endOperation(DufsOperation.ATTACH_VOLUME, started);
+        }
+    }
+
+    /*
+     * rewrites the volume of the format 1 at the given path in the format 2 (see MigrationUtility);
+     * the volume must not be attached. new volume is written next to the old one and replaces it
+     * only when it is complete, so the old volume is left as it was if the migration fails
+     */
+    public static void migrateVolume(String path) throws DufsException, IOException {
         File file = new File(path);
-        if (file.exists()) {
-            throw new DufsException("Volume with such name already exists in this directory.");
+        if (!file.exists() || file.isDirectory()) {
+            throw new DufsException("There is no volume with such name in this directory.");
         }
-        String name = file.getName();
-        if (name.length() > 8) {
-            throw new DufsException("Volume name length has exceeded the limit.");
+        if (snapshotFiles(file).length > 0) {
+            // every block of the volume is rewritten, so snapshots would take the whole volume
+            throw new DufsException("Volume with snapshots cannot be migrated.");
         }
-        if (!Parser.isRecordNameOk(name)) {
-            throw new DufsException("Volume name contains prohibited symbols.");
+        File migrated = new File(path + ".migrating");
+        try {
+            try (VolumeFile source = new VolumeFile(file, "rw"); VolumeFile target = new VolumeFile(migrated, "rw")) {
+                MetadataJournal.replay(source, journalFile(file));
+                ReservedSpace reservedSpace = VolumeIO.readReservedSpaceFromVolume(source);
+                if (reservedSpace.getDufsNoseSignature() != 0x44554653
+                        || reservedSpace.getDufsTailSignature() != ReservedSpace.TAIL_SIGNATURE_V1) {
+                    throw new DufsException("Volume signature does not match.");
+                }
+                MigrationUtility.migrateToV2(source, target);
+            }
+            Files.move(migrated.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(checkpointFile(file).toPath());
+        } finally {
+            Files.deleteIfExists(migrated.toPath());
         }
-        if (nettoVolumeSize > 1.1e12) {  // 1.1e12 == 1TiB == 1024GiB
-            throw new DufsException("Volume size is too big.");
+    }
+
+    /*
+     * makes every finished operation durable (when journal is enabled, operations are forced in groups)
+     */
+    public void sync() throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.SYNC, new long[0]);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            volume.sync();
+            if (trace != null) {
+                trace.flush();
+            }
+        } finally {
+            endOperation(DufsOperation.SYNC, started);
         }
-        long bruttoVolumeSize = VolumeHelper.calculateVolumeSize(clusterSize, nettoVolumeSize);
-        if (new File("/").getUsableSpace() < bruttoVolumeSize) {
-            throw new DufsException("There is not enough space on disk.");
+    }
+
+    /*
+     * writes every cached and journaled change in place
+     */
+    public void flush() throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.FLUSH, new long[0]);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            volume.flush();
+        } finally {
+            endOperation(DufsOperation.FLUSH, started);
         }
-        if (clusterSize % 4 != 0) {
-            throw new DufsException("Cluster size cannot be divided by 4 directly.");
+    }
+
+    /*
+     * checks consistency of the metadata of the volume (see FsckUtility), repairing what can be repaired
+     * without loss of content if `repair` is true; returns the problems found, an empty list for a consistent volume
+     */
+    public List<String> checkVolume(boolean repair) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.CHECK_VOLUME, new long[] {repair ? 1 : 0});
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            volume.flush();     // metadata is read through the channel of the volume
+            List<String> problems = FsckUtility.checkVolume(volume, reservedSpace, repair);
+            if (repair && !problems.isEmpty()) {
+                volume.commit();
+            }
+            return problems;
+        } finally {
+            endOperation(DufsOperation.CHECK_VOLUME, started);
         }
-        volume = new RandomAccessFile(file, "rw");
-        volume.setLength(bruttoVolumeSize);
-        reservedSpace = new ReservedSpace(name.toCharArray(), clusterSize, nettoVolumeSize);
-        volume.write(reservedSpace.serialize());
-        ClusterIndexList clusterIndexList = new ClusterIndexList(clusterSize, nettoVolumeSize);
-        volume.write(clusterIndexList.serialize());
-        VolumeIO.initializeRootClusterIndexElement(volume);
-        RecordList recordList = new RecordList(clusterSize, nettoVolumeSize);
-        volume.write(recordList.serialize());
-        VolumeIO.initializeRootRecord(volume, reservedSpace);
     }
 
-    public void attachVolume(String path) throws DufsException, IOException {
-        File file = new File(path);
-        if (!file.exists() || file.isDirectory()) {
-            throw new DufsException("There is no volume with such name in this directory.");
+    /*
+     * creates the snapshot of the volume as it is now (see VolumeSnapshot), which is kept till it is deleted;
+     * creation only flushes the volume, blocks are copied into the snapshot when they are overwritten
+     */
+    public void createSnapshot(String name) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.CREATE_SNAPSHOT, new long[0], name);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (volume instanceof SnapshotFile) {
+                throw new DufsException("Snapshot of the volume is read-only.");
+            }
+            if (name.isEmpty() || !Parser.isRecordNameOk(name)) {
+                throw new DufsException("Snapshot name contains prohibited symbols.");
+            }
+            File file = snapshotFile(volumeFile, name);
+            if (file.exists()) {
+                throw new DufsException("Snapshot with such name already exists.");
+            }
+            volume.flush();     // the snapshot is taken from the volume file
+            volume.getSnapshots().add(VolumeSnapshot.create(name, file, volume.getSnapshotLock(),
+                    reservedSpace.getClusterSize(), volume.length()));
+        } finally {
+            endOperation(DufsOperation.CREATE_SNAPSHOT, started);
         }
-        volume = new RandomAccessFile(file, "rw");
-        reservedSpace = VolumeIO.readReservedSpaceFromVolume(volume);
-        if (reservedSpace.getDufsNoseSignature() != 0x44554653 || reservedSpace.getDufsTailSignature() != 0x4A455442) {
-            throw new DufsException("Volume signature does not match.");
+    }
+
+    /*
+     * returns read-only Dufs of the snapshot, which is readable while this volume is attached
+     * and the snapshot is not deleted; it is closed by closeVolume()
+     */
+    public Dufs openSnapshot(String name) throws IOException, DufsException {
+        VolumeSnapshot snapshot = findSnapshot(name);
+        Dufs image = new Dufs();
+        image.volume = new SnapshotFile(volumeFile, snapshot);
+        image.volumeFile = volumeFile;
+        image.reservedSpace = VolumeIO.readReservedSpaceFromVolume(image.volume);
+        return image;
+    }
+
+    public void deleteSnapshot(String name) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.DELETE_SNAPSHOT, new long[0], name);
+            VolumeSnapshot snapshot = findSnapshot(name);
+            volume.getSnapshots().remove(snapshot);
+            snapshot.delete();
+        } finally {
+            endOperation(DufsOperation.DELETE_SNAPSHOT, started);
         }
     }
 
-    public void createRecord(String path, String name, byte isFile) throws IOException, DufsException {
+    public List<String> listSnapshots() throws DufsException {
         if (volume == null) {
             throw new DufsException("Volume has not found.");
         }
-        String recordType = "";
-        if (isFile == 1) {
-            recordType += "File";
-        } else {
-            recordType += "Directory";
+        List<String> names = new ArrayList<>();
+        for (VolumeSnapshot snapshot : volume.getSnapshots()) {
+            names.add(snapshot.getName());
         }
-        if (name.length() > 32) {
-            throw new DufsException(recordType + " name length has exceeded the limit.");
+        return names;
+    }
+
+    private VolumeSnapshot findSnapshot(String name) throws DufsException {
+        if (volume == null) {
+            throw new DufsException("Volume has not found.");
         }
-        if (!Parser.isRecordNameOk(name)) {
-            throw new DufsException(recordType + " name contains prohibited symbols.");
+        for (VolumeSnapshot snapshot : volume.getSnapshots()) {
+            if (snapshot.getName().equals(name)) {
+                return snapshot;
+            }
         }
-        reservedSpace = VolumeIO.readReservedSpaceFromVolume(volume);
-        int directoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
-        Record directory = VolumeIO.readRecordFromVolume(volume, reservedSpace, directoryIndex);
-        if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, directoryIndex, name.toCharArray(), isFile)) {
-            throw new DufsException(recordType + " with such name already contains in this path.");
-        }
-        if (!VolumeHelper.enoughSpace(reservedSpace, 0)) {
-            throw new DufsException("Not enough space in the volume to create new " + recordType + ".");
-        }
-        int firstClusterIndex = reservedSpace.getNextClusterIndex();
-        VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
-        int recordIndex = reservedSpace.getNextRecordIndex();
-        int directoryOrderNumber = VolumeUtility.addRecordIndexInDirectoryCluster(volume, reservedSpace,
-                recordIndex, directory.getFirstClusterIndex());
-        Record file = new Record(name.toCharArray(), firstClusterIndex, directoryIndex, directoryOrderNumber, isFile);
-        VolumeIO.writeRecordToVolume(volume, reservedSpace, recordIndex, file);
-        reservedSpace.setNextRecordIndex(VolumeUtility.findNextFreeRecordIndex(volume, reservedSpace));
-        VolumeIO.updateVolumeNextRecordIndex(volume, reservedSpace.getNextRecordIndex());
-        VolumeUtility.createClusterIndexChain(volume, reservedSpace, firstClusterIndex, recordIndex);
-        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
-        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+        throw new DufsException("There is no snapshot with such name.");
     }
 
     /*
-     * deletes current content in Dufs::file, then
-     * writes data from `java.io.File` into the clusters in DUFS
-     * currently it supports only writing data from the external file
+     * null when metrics are disabled
      */
-    public void writeFile(String path, File file) throws DufsException, IOException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+    public DufsMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void openMetrics(File file) {
+        if (metrics != null) {
+            volume.setMetrics(metrics);
+            metrics.registerMBean(file.getAbsolutePath());
         }
-        if (!VolumeHelper.enoughSpace(reservedSpace, file.length())) {
-            throw new DufsException("Not enough space in the volume to write this content in file.");
-        }
-        int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
-        Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
-        if (!VolumeHelper.recordExists(volume, dufsFile.getFirstClusterIndex()) && (dufsFile.getIsFile() == 1)) {
-            throw new DufsException("File does not exist.");
-        }
-        VolumeIO.cleanFileData(volume, reservedSpace, dufsFileIndex);
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-        byte[] buffer = new byte[reservedSpace.getClusterSize()];
-        int clusterIndex = dufsFile.getFirstClusterIndex();
-        int prevClusterIndex = 0xFFFFFFFF;
-        int bytes;
-        while ((bytes = bis.read(buffer)) != -1) {
-            if (bytes != reservedSpace.getClusterSize()) {
-                byte[] slicedBuffer = Arrays.copyOfRange(buffer, 0, bytes);
-                VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, slicedBuffer, 0);
-            } else {
-                VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, buffer, 0);
-            }
-            if (bytes == reservedSpace.getClusterSize()) {
-                int tmpClusterIndex = clusterIndex;
-                clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusterIndex, prevClusterIndex);
-                prevClusterIndex = tmpClusterIndex;
-                VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
-                VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
-                reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
-            }
-            Arrays.fill(buffer, (byte) 0);
+    }
+
+    private long beginOperation() {
+        operationDepth++;
+        return (metrics != null) ? metrics.begin() : 0;
+    }
+
+    private void endOperation(DufsOperation operation, long started) {
+        operationDepth--;
+        if (metrics != null) {
+            metrics.end(operation, started);
         }
-        VolumeIO.updateRecordSize(volume, reservedSpace, dufsFileIndex, file.length() + dufsFile.getSize());
-        VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsFileIndex);
-        bis.close();
     }
 
     /*
-     * appends data to the file which already contains some data
+     * trace is recorded from mounting (or attaching) of the volume till its closing
      */
-    public void appendFile(String path, File file) throws  DufsException, IOException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+    private void openTrace() throws IOException {
+        if (options.getTraceFile() != null && trace == null) {
+            trace = new TraceRecorder(new File(options.getTraceFile()), options.getTraceLevel());
         }
-        if (!VolumeHelper.enoughSpace(reservedSpace, file.length())) {
-            throw new DufsException("Not enough space in the volume to write this content in file.");
-        }
-        int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
-        Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
-        if (!VolumeHelper.recordExists(volume, dufsFile.getFirstClusterIndex()) && (dufsFile.getIsFile() == 1)) {
-            throw new DufsException("File does not exist.");
-        }
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-        int bytesLeftInCluster = reservedSpace.getClusterSize() - (int) (dufsFile.getSize() % reservedSpace.getClusterSize());
-        int firstClusterIndex = dufsFile.getFirstClusterIndex();
-        byte[] buffer = new byte[reservedSpace.getClusterSize()];
-        int lastClusterIndex = VolumeUtility.findLastClusterIndexInChain(volume, firstClusterIndex);
-        byte[] lastClusterBuffer = new byte [bytesLeftInCluster];
-        int clusterIndex = lastClusterIndex;
-        int preLastClusterIndex = VolumeUtility.findPrevClusterIndexInChain(volume, lastClusterIndex);
-        int bytes;
-        // initially allocate content in the end of the last cluster
-        if ((bytes = bis.read(lastClusterBuffer)) != -1) {
-            if (bytes != reservedSpace.getClusterSize()) {
-                byte[] slicedBuffer = Arrays.copyOfRange(lastClusterBuffer, 0, bytes);
-                VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, slicedBuffer, 0);
-            } else {
-                VolumeUtility.allocateInCluster(volume, reservedSpace, lastClusterIndex, lastClusterBuffer,
-                        reservedSpace.getClusterSize() - bytesLeftInCluster);
-            }
-            if (bytes == bytesLeftInCluster) {
-                int tmpClusterIndex = clusterIndex;
-                clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusterIndex, preLastClusterIndex);
-                preLastClusterIndex = tmpClusterIndex;
-                VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
-                VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
-                reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
-            }
-            Arrays.fill(buffer, (byte) 0);
+    }
+
+    /*
+     * records the call into the API trace; operations called by other operations are not recorded
+     */
+    private void traceCall(DufsOperation operation, long[] numbers, String... arguments) throws IOException {
+        if (trace != null && trace.getLevel() == TraceLevel.API && operationDepth == 1) {
+            trace.call(operation, numbers, arguments);
+        }
+    }
+
+    private void openVolumeTrace() {
+        if (trace != null && trace.getLevel() == TraceLevel.VOLUME) {
+            volume.setTrace(trace);
+        }
+    }
+
+    private void openJournal(File file) throws IOException {
+        if (options.isJournalEnabled()) {
+            volume.sync();
+            volume.setJournal(new MetadataJournal(volume, journalFile(file), reservedSpace.getClusterSize(),
+                    options.getGroupCommitSize(), options.getCheckpointSize()));
+        }
+    }
+
+    private void openClusterCache() {
+        if (options.getClusterCacheSize() > 0) {
+            volume.setClusterCache(new ClusterCache(volume, VolumePointerUtility.calculateClustersAreaOffset(reservedSpace),
+                    reservedSpace.getClusterSize(), options.getClusterCacheSize()));
+        }
+    }
+
+    private void openClusterIndexCache() throws IOException {
+        if (options.isClusterIndexCacheEnabled()) {
+            ClusterIndexCache clusterIndexCache = new ClusterIndexCache(reservedSpace.getReservedClusters());
+            clusterIndexCache.load(volume);
+            volume.setClusterIndexCache(clusterIndexCache);
         }
-        // then allocate content in new clusters
-        while ((bytes = bis.read(buffer)) != -1) {
-            if (bytes != reservedSpace.getClusterSize()) {
-                byte[] slicedBuffer = Arrays.copyOfRange(buffer, 0, bytes);
-                VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, slicedBuffer, 0);
+    }
+
+    private static File journalFile(File file) {
+        return new File(file.getPath() + ".journal");
+    }
+
+    private static File checkpointFile(File file) {
+        return new File(file.getPath() + ".checkpoint");
+    }
+
+    private static File snapshotFile(File file, String name) {
+        return new File(file.getPath() + SNAPSHOT_SUFFIX + name);
+    }
+
+    private static File[] snapshotFiles(File file) {
+        File[] files = file.getAbsoluteFile().getParentFile()
+                .listFiles((directory, name) -> name.startsWith(file.getName() + SNAPSHOT_SUFFIX));
+        return (files != null) ? files : new File[0];
+    }
+
+    private void openSnapshots(File file) throws IOException {
+        String prefix = file.getName() + SNAPSHOT_SUFFIX;
+        for (File snapshot : snapshotFiles(file)) {
+            String name = snapshot.getName().substring(prefix.length());
+            volume.getSnapshots().add(VolumeSnapshot.open(name, snapshot, volume.getSnapshotLock()));
+        }
+    }
+
+    public void createRecord(String path, String name, byte isFile) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.CREATE_RECORD, new long[] {isFile}, path, name);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            String recordType = "";
+            if (isFile == 1) {
+                recordType += "File";
             } else {
-                VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, buffer, 0);
+                recordType += "Directory";
+            }
+            if (!VolumeHelper.isNameLengthOk(reservedSpace, name)) {
+                throw new DufsException(recordType + " name length has exceeded the limit.");
+            }
+            if (!Parser.isRecordNameOk(name)) {
+                throw new DufsException(recordType + " name contains prohibited symbols.");
+            }
+            reservedSpace = VolumeIO.readReservedSpaceFromVolume(volume);
+            int directoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            Record directory = VolumeIO.readRecordFromVolume(volume, reservedSpace, directoryIndex);
+            if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, directoryIndex, name.toCharArray(), isFile)) {
+                throw new DufsException(recordType + " with such name already contains in this path.");
+            }
+            if (!VolumeHelper.enoughSpace(reservedSpace, 0)) {
+                throw new DufsException("Not enough space in the volume to create new " + recordType + ".");
+            }
+            int recordIndex = reservedSpace.getNextRecordIndex();
+            if (recordIndex == 0) {     // record list is full of inline files
+                throw new DufsException("Not enough space in the volume to create new " + recordType + ".");
             }
-            if (bytes == reservedSpace.getClusterSize()) {
-                int tmpClusterIndex = clusterIndex;
-                clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusterIndex, preLastClusterIndex);
-                preLastClusterIndex = tmpClusterIndex;
-                VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+            byte type = (isFile == 1) ? fileType() : isFile;
+            // inline and packed files take the next slot of the record list (for the content or the address of its tail)
+            // instead of a cluster; when that slot is taken, the file is created as a plain one
+            boolean extended = isFile == 1 && (options.isInlineEnabled() || (type & Record.PACKED) != 0)
+                    && InlineUtility.reserveExtensionSlot(volume, reservedSpace, recordIndex);
+            if (extended && options.isInlineEnabled()) {
+                type = (byte) (isFile | Record.INLINE);
+            } else if (!extended) {
+                type = (byte) (type & ~Record.PACKED);
+            }
+            int firstClusterIndex = extended ? ClusterIndexListOffsets.NO_CLUSTER : reservedSpace.getNextClusterIndex();
+            VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+            int directoryOrderNumber = VolumeUtility.addRecordIndexInDirectoryCluster(volume, reservedSpace,
+                    recordIndex, directory.getFirstClusterIndex());
+            // the chain is created first, so a long name of the format 2 is put into the heap after its cluster is taken
+            if (!extended) {
+                VolumeUtility.createClusterIndexChain(volume, reservedSpace, firstClusterIndex, recordIndex);
                 VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
                 reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
             }
-            Arrays.fill(buffer, (byte) 0);
+            Record file = new Record(name.toCharArray(), firstClusterIndex, directoryIndex, directoryOrderNumber, type);
+            VolumeIO.writeRecordToVolume(volume, reservedSpace, recordIndex, file);
+            reservedSpace.setNextRecordIndex(VolumeUtility.findNextFreeRecordIndex(volume, reservedSpace));
+            VolumeIO.updateVolumeNextRecordIndex(volume, reservedSpace.getNextRecordIndex());
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.CREATE_RECORD, started);
         }
-        VolumeIO.updateRecordSize(volume, reservedSpace, dufsFileIndex, file.length() + dufsFile.getSize());
-        VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsFileIndex);
-        bis.close();
     }
 
-    public void readFile(String path, File file) throws IOException, DufsException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+    /*
+     * type of the new file which content is kept in clusters: the first enabled mode in order of precedence (see DufsOptions)
+     */
+    private byte fileType() {
+        if (options.isDeduplicationEnabled()) {
+            return (byte) (1 | Record.DEDUPLICATED);
+        }
+        if (options.isSparseEnabled()) {
+            return (byte) (1 | Record.SPARSE);
         }
-        int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
-        Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
-        if (!VolumeHelper.recordExists(volume, dufsFile.getFirstClusterIndex()) && (dufsFile.getIsFile() == 1)) {
-            throw new DufsException("File does not exist.");
+        if (options.isCompressionEnabled()) {
+            return (byte) (1 | Record.COMPRESSED);
         }
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
-        byte[] buffer = new byte[reservedSpace.getClusterSize()];
-        // read bytes from every cluster in the chain but the last
-        int clusterIndex = dufsFile.getFirstClusterIndex();
-        int prevClusterIndex = clusterIndex;
-        while ((clusterIndex = VolumeUtility.findNextClusterIndexInChain(volume, clusterIndex)) != -1) {
-            VolumeIO.readClusterFromVolume(volume, reservedSpace, prevClusterIndex, buffer);
-            bos.write(buffer);
-            prevClusterIndex = clusterIndex;
+        if (options.isTailPackingEnabled()) {
+            return (byte) (1 | Record.PACKED);
         }
-        // read bytes from the last cluster in the chain
-        byte[] lastClusterBuffer = new byte[(int) (dufsFile.getSize() % reservedSpace.getClusterSize())];
-        VolumeIO.readClusterFromVolume(volume, reservedSpace, prevClusterIndex, lastClusterBuffer);
-        bos.write(lastClusterBuffer);
-        bos.close();
+        return 1;
     }
 
-    public void deleteRecord(String path, byte isFile) throws IOException, DufsException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+    /*
+     * moves content of the inline file, which has outgrown the record list, into clusters
+     */
+    private Record moveInlineFileToClusters(int recordIndex, byte[] content) throws IOException, DufsException {
+        if ((fileType() & Record.PACKED) != 0) {
+            // packed file keeps the extension slot, the address of its tail is written there
+            InlineUtility.writeExtensionSlot(volume, reservedSpace, recordIndex, new byte[0]);
+            VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, 0);
+            VolumeIO.updateRecordIsFile(volume, reservedSpace, recordIndex, fileType());
+            TailPackingUtility.appendFile(volume, reservedSpace, recordIndex, new ByteArrayInputStream(content));
+            return VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        }
+        Record file = InlineUtility.moveToClusters(volume, reservedSpace, recordIndex, fileType());
+        if (content.length == 0) {
+            return file;
         }
-        int dufsRecordIndex;
-        if (isFile == 1) {
-            dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+        if (file.isCompressed()) {
+            CompressionUtility.appendFile(volume, reservedSpace, recordIndex, new ByteArrayInputStream(content),
+                    options.getCompressionBlockSize());
+        } else if (file.isDeduplicated()) {
+            DedupUtility.appendFile(volume, reservedSpace, recordIndex, new ByteArrayInputStream(content));
+        } else if (file.isSparse()) {
+            SparseUtility.appendFile(volume, reservedSpace, recordIndex, new ByteArrayInputStream(content));
         } else {
-            dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
-            if (!VolumeHelper.isDirectoryEmpty(volume, reservedSpace, dufsRecordIndex)) {
-                throw new DufsException("Directory is not empty");
+            ClusterChain chain = new ClusterChain(volume, reservedSpace, file.getFirstClusterIndex());
+            chain.write(0, content, 0, content.length);
+            chain.trim(content.length);
+            VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, content.length);
+        }
+        return VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+    }
+
+    /*
+     * deletes current content in Dufs::file, then
+     * writes data from `java.io.File` into the clusters in DUFS
+     * currently it supports only writing data from the external file
+     */
+    public void writeFile(String path, File file) throws DufsException, IOException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.WRITE_FILE, new long[] {file.length()}, path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (!VolumeHelper.enoughSpace(reservedSpace, file.length())) {
+                throw new DufsException("Not enough space in the volume to write this content in file.");
+            }
+            int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
+            if (!VolumeHelper.recordExists(volume, dufsFile, (byte) 1)) {
+                throw new DufsException("File does not exist.");
+            }
+            if (dufsFile.isInline()) {
+                if (file.length() <= InlineUtility.inlineCapacity(reservedSpace)) {
+                    InlineUtility.writeContent(volume, reservedSpace, dufsFileIndex, Files.readAllBytes(file.toPath()));
+                    volume.commit();
+                    return;
+                }
+                dufsFile = moveInlineFileToClusters(dufsFileIndex, new byte[0]);
+            }
+            if (dufsFile.isPacked()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    TailPackingUtility.writeFile(volume, reservedSpace, dufsFileIndex, in);
+                }
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isCompressed()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    CompressionUtility.writeFile(volume, reservedSpace, dufsFileIndex, in, options.getCompressionBlockSize());
+                }
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isDeduplicated()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    DedupUtility.writeFile(volume, reservedSpace, dufsFileIndex, in);
+                }
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isSparse()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    SparseUtility.writeFile(volume, reservedSpace, dufsFileIndex, in);
+                }
+                volume.commit();
+                return;
             }
+            VolumeIO.cleanFileData(volume, reservedSpace, dufsFileIndex);
+            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[reservedSpace.getClusterSize()];
+            int clusterIndex = dufsFile.getFirstClusterIndex();
+            int prevClusterIndex = ClusterIndexListOffsets.NO_CLUSTER;
+            int bytes;
+            while ((bytes = bis.read(buffer)) != -1) {
+                if (bytes != reservedSpace.getClusterSize()) {
+                    byte[] slicedBuffer = Arrays.copyOfRange(buffer, 0, bytes);
+                    VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, slicedBuffer, 0);
+                } else {
+                    VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, buffer, 0);
+                }
+                if (bytes == reservedSpace.getClusterSize()) {
+                    int tmpClusterIndex = clusterIndex;
+                    clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusterIndex, prevClusterIndex);
+                    prevClusterIndex = tmpClusterIndex;
+                    VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+                    VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
+                    reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+                }
+                Arrays.fill(buffer, (byte) 0);
+            }
+            VolumeIO.updateRecordSize(volume, reservedSpace, dufsFileIndex, file.length() + dufsFile.getSize());
+            VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsFileIndex);
+            bis.close();
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.WRITE_FILE, started);
         }
-        Record dufsRecord = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
-        if (!VolumeHelper.recordExists(volume, dufsRecord.getFirstClusterIndex()) && (dufsRecord.getIsFile() == isFile)) {
-            throw new DufsException("Record does not exist.");
+    }
+
+    /*
+     * appends data to the file which already contains some data
+     */
+    public void appendFile(String path, File file) throws  DufsException, IOException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.APPEND_FILE, new long[] {file.length()}, path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (!VolumeHelper.enoughSpace(reservedSpace, file.length())) {
+                throw new DufsException("Not enough space in the volume to write this content in file.");
+            }
+            int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
+            if (!VolumeHelper.recordExists(volume, dufsFile, (byte) 1)) {
+                throw new DufsException("File does not exist.");
+            }
+            if (dufsFile.isInline()) {
+                byte[] content = InlineUtility.readContent(volume, reservedSpace, dufsFile, dufsFileIndex);
+                if (content.length + file.length() <= InlineUtility.inlineCapacity(reservedSpace)) {
+                    byte[] appended = Files.readAllBytes(file.toPath());
+                    byte[] newContent = Arrays.copyOf(content, content.length + appended.length);
+                    System.arraycopy(appended, 0, newContent, content.length, appended.length);
+                    InlineUtility.writeContent(volume, reservedSpace, dufsFileIndex, newContent);
+                    volume.commit();
+                    return;
+                }
+                dufsFile = moveInlineFileToClusters(dufsFileIndex, content);
+            }
+            if (dufsFile.isPacked()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    TailPackingUtility.appendFile(volume, reservedSpace, dufsFileIndex, in);
+                }
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isCompressed()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    CompressionUtility.appendFile(volume, reservedSpace, dufsFileIndex, in, options.getCompressionBlockSize());
+                }
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isDeduplicated()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    DedupUtility.appendFile(volume, reservedSpace, dufsFileIndex, in);
+                }
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isSparse()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    SparseUtility.appendFile(volume, reservedSpace, dufsFileIndex, in);
+                }
+                volume.commit();
+                return;
+            }
+            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+            int bytesLeftInCluster = reservedSpace.getClusterSize() - (int) (dufsFile.getSize() % reservedSpace.getClusterSize());
+            int firstClusterIndex = dufsFile.getFirstClusterIndex();
+            byte[] buffer = new byte[reservedSpace.getClusterSize()];
+            int lastClusterIndex = VolumeUtility.findLastClusterIndexInChain(volume, firstClusterIndex);
+            byte[] lastClusterBuffer = new byte [bytesLeftInCluster];
+            int clusterIndex = lastClusterIndex;
+            int preLastClusterIndex = VolumeUtility.findPrevClusterIndexInChain(volume, lastClusterIndex);
+            int bytes;
+            // initially allocate content in the end of the last cluster
+            if ((bytes = bis.read(lastClusterBuffer)) != -1) {
+                if (bytes != reservedSpace.getClusterSize()) {
+                    byte[] slicedBuffer = Arrays.copyOfRange(lastClusterBuffer, 0, bytes);
+                    VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, slicedBuffer,
+                            reservedSpace.getClusterSize() - bytesLeftInCluster);
+                } else {
+                    VolumeUtility.allocateInCluster(volume, reservedSpace, lastClusterIndex, lastClusterBuffer,
+                            reservedSpace.getClusterSize() - bytesLeftInCluster);
+                }
+                if (bytes == bytesLeftInCluster) {
+                    int tmpClusterIndex = clusterIndex;
+                    clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusterIndex, preLastClusterIndex);
+                    preLastClusterIndex = tmpClusterIndex;
+                    VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+                    VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
+                    reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+                }
+                Arrays.fill(buffer, (byte) 0);
+            }
+            // then allocate content in new clusters
+            while ((bytes = bis.read(buffer)) != -1) {
+                if (bytes != reservedSpace.getClusterSize()) {
+                    byte[] slicedBuffer = Arrays.copyOfRange(buffer, 0, bytes);
+                    VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, slicedBuffer, 0);
+                } else {
+                    VolumeUtility.allocateInCluster(volume, reservedSpace, clusterIndex, buffer, 0);
+                }
+                if (bytes == reservedSpace.getClusterSize()) {
+                    int tmpClusterIndex = clusterIndex;
+                    clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusterIndex, preLastClusterIndex);
+                    preLastClusterIndex = tmpClusterIndex;
+                    VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+                    VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters() - 1);
+                    reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+                }
+                Arrays.fill(buffer, (byte) 0);
+            }
+            VolumeIO.updateRecordSize(volume, reservedSpace, dufsFileIndex, file.length() + dufsFile.getSize());
+            VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsFileIndex);
+            bis.close();
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.APPEND_FILE, started);
         }
-        VolumeUtility.deleteRecord(volume, reservedSpace, dufsRecord, dufsRecordIndex);
-        int freeClusters;
-        if (isFile == 1) {
-            freeClusters = reservedSpace.getFreeClusters()
-                    + Math.max(1, VolumeHelper.howMuchClustersNeeds(reservedSpace, dufsRecord.getSize()));
-        } else {
-            freeClusters = reservedSpace.getFreeClusters()
-                    + Math.max(1, VolumeHelper.howMuchClustersDirectoryTakes(volume, reservedSpace, dufsRecordIndex));
+    }
+
+    public void readFile(String path, File file) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.READ_FILE, new long[0], path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
+            if (!VolumeHelper.recordExists(volume, dufsFile, (byte) 1)) {
+                throw new DufsException("File does not exist.");
+            }
+            if (dufsFile.isInline()) {
+                Files.write(file.toPath(), InlineUtility.readContent(volume, reservedSpace, dufsFile, dufsFileIndex));
+                return;
+            }
+            if (dufsFile.isPacked()) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    TailPackingUtility.readFile(volume, reservedSpace, dufsFile, dufsFileIndex, out);
+                }
+                return;
+            }
+            if (dufsFile.isCompressed()) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    CompressionUtility.readFile(volume, reservedSpace, dufsFile, out);
+                }
+                return;
+            }
+            if (dufsFile.isDeduplicated()) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    DedupUtility.readFile(volume, reservedSpace, dufsFile, out);
+                }
+                return;
+            }
+            if (dufsFile.isSparse()) {
+                try (RandomAccessFile host = new RandomAccessFile(file, "rw")) {
+                    SparseUtility.readFile(volume, reservedSpace, dufsFile, host);
+                }
+                return;
+            }
+            BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
+            byte[] buffer = new byte[reservedSpace.getClusterSize()];
+            // read bytes from every cluster in the chain but the last
+            int clusterIndex = dufsFile.getFirstClusterIndex();
+            int prevClusterIndex = clusterIndex;
+            while ((clusterIndex = VolumeUtility.findNextClusterIndexInChain(volume, clusterIndex)) != -1) {
+                VolumeIO.readClusterFromVolume(volume, reservedSpace, prevClusterIndex, buffer);
+                bos.write(buffer);
+                prevClusterIndex = clusterIndex;
+            }
+            // read bytes from the last cluster in the chain
+            byte[] lastClusterBuffer = new byte[(int) (dufsFile.getSize() % reservedSpace.getClusterSize())];
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, prevClusterIndex, lastClusterBuffer);
+            bos.write(lastClusterBuffer);
+            bos.close();
+        } finally {
+            endOperation(DufsOperation.READ_FILE, started);
         }
-        reservedSpace.setFreeClusters(freeClusters);
-        VolumeIO.updateVolumeFreeClusters(volume, freeClusters);
     }
 
-    public void renameRecord(String path, String newName, byte isFile) throws IOException, DufsException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+    /*
+     * reads content of the file starting from the given position into the buffer;
+     * returns number of bytes read, -1 if the position is at the end of the file
+     */
+    public int readFile(String path, long position, byte[] buffer) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.READ_RANGE, new long[] {position, buffer.length}, path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (position < 0) {
+                throw new DufsException("Position is negative.");
+            }
+            int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
+            if (dufsFile.isInline()) {
+                return InlineUtility.read(volume, reservedSpace, dufsFile, dufsFileIndex, position, buffer, 0, buffer.length);
+            }
+            if (dufsFile.isPacked()) {
+                return TailPackingUtility.read(volume, reservedSpace, dufsFile, dufsFileIndex, position, buffer, 0, buffer.length);
+            }
+            if (dufsFile.isCompressed()) {
+                return CompressionUtility.read(volume, reservedSpace, dufsFile, position, buffer, 0, buffer.length);
+            }
+            if (dufsFile.isDeduplicated()) {
+                return DedupUtility.read(volume, reservedSpace, dufsFile, position, buffer, 0, buffer.length);
+            }
+            if (dufsFile.isSparse()) {
+                return SparseUtility.read(volume, reservedSpace, dufsFile, position, buffer, 0, buffer.length);
+            }
+            if (position >= dufsFile.getSize()) {
+                return -1;
+            }
+            int bytes = (int) Math.min(buffer.length, dufsFile.getSize() - position);
+            new ClusterChain(volume, reservedSpace, dufsFile.getFirstClusterIndex()).read(position, buffer, 0, bytes);
+            return bytes;
+        } finally {
+            endOperation(DufsOperation.READ_RANGE, started);
         }
-        if (newName.length() > 32) {
-            throw new DufsException("New name length has exceeded the limit.");
+    }
+
+    /*
+     * writes the buffer into the file starting from the given position, the file grows if the buffer ends beyond it;
+     * a sparse file keeps the part between its end and the position as a hole, other files are filled with zeros there
+     */
+    public void writeFile(String path, long position, byte[] buffer) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.WRITE_RANGE, new long[] {position, buffer.length}, path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (position < 0) {
+                throw new DufsException("Position is negative.");
+            }
+            int dufsFileIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsFileIndex);
+            if (dufsFile.isInline()) {
+                byte[] content = InlineUtility.readContent(volume, reservedSpace, dufsFile, dufsFileIndex);
+                long length = Math.max(content.length, position + buffer.length);
+                if (length <= InlineUtility.inlineCapacity(reservedSpace)) {
+                    byte[] newContent = Arrays.copyOf(content, (int) length);
+                    System.arraycopy(buffer, 0, newContent, (int) position, buffer.length);
+                    InlineUtility.writeContent(volume, reservedSpace, dufsFileIndex, newContent);
+                    volume.commit();
+                    return;
+                }
+                dufsFile = moveInlineFileToClusters(dufsFileIndex, content);
+            }
+            if (dufsFile.isSparse()) {
+                SparseUtility.write(volume, reservedSpace, dufsFileIndex, position, buffer, 0, buffer.length);
+                VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsFileIndex);
+                volume.commit();
+                return;
+            }
+            if (dufsFile.isCompressed() || dufsFile.isDeduplicated() || dufsFile.isPacked()) {
+                throw new DufsException("File is compressed, deduplicated or packed, so it cannot be written at a position.");
+            }
+            if (!VolumeHelper.enoughSpace(reservedSpace, Math.max(0, position + buffer.length - dufsFile.getSize()))) {
+                throw new DufsException("Not enough space in the volume to write this content in file.");
+            }
+            ClusterChain chain = new ClusterChain(volume, reservedSpace, dufsFile.getFirstClusterIndex());
+            if (position > dufsFile.getSize()) {
+                // the last cluster may keep old bytes after the end of the file
+                byte[] zeros = new byte[reservedSpace.getClusterSize()];
+                for (long gap = dufsFile.getSize(); gap < position; gap += zeros.length) {
+                    chain.write(gap, zeros, 0, (int) Math.min(zeros.length, position - gap));
+                }
+            }
+            chain.write(position, buffer, 0, buffer.length);
+            long size = Math.max(dufsFile.getSize(), position + buffer.length);
+            chain.trim(size);
+            VolumeIO.updateRecordSize(volume, reservedSpace, dufsFileIndex, size);
+            VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsFileIndex);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.WRITE_RANGE, started);
         }
-        if (!Parser.isRecordNameOk(newName)) {
-            throw new DufsException("New name contains prohibited symbols.");
+    }
+
+    /*
+     * returns names of the records contained in the directory
+     */
+    public List<String> listDirectory(String path) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.LIST_DIRECTORY, new long[0], path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int directoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            int[] recordIndexes = VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, directoryIndex);
+            List<String> names = new ArrayList<>(recordIndexes.length);
+            for (int recordIndex : recordIndexes) {
+                Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+                names.add(new String(record.getName()).replace("\u0000", ""));
+            }
+            return names;
+        } finally {
+            endOperation(DufsOperation.LIST_DIRECTORY, started);
         }
-        int parentDirectoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, Parser.joinPath(Parser.parsePathBeforeFile(path)));
-        if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, parentDirectoryIndex, newName.toCharArray(), isFile)) {
-            throw new DufsException("Record with such name and type already contains in this path.");
+    }
+
+    /*
+     * entries of the directory, which are read from the volume as the stream is consumed (see ListUtility).
+     * the reading is accounted to LIST in metrics, but happens after the call: it is recorded into a volume trace
+     * between the calls which are made meanwhile. the stream fails with UncheckedIOException
+     * if the volume is closed before it is consumed
+     */
+    public Stream<DirEntry> list(String path) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.LIST, new long[0], path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int directoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            Spliterator<DirEntry> entries = ListUtility.list(volume, reservedSpace, directoryIndex).spliterator();
+            return StreamSupport.stream(new ListSpliterator(volume, entries), false);
+        } finally {
+            endOperation(DufsOperation.LIST, started);
         }
-        int dufsRecordIndex;
-        if (isFile == 1) {
-            dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
-        } else {
-            dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+    }
+
+    /*
+     * reads the entries of list(): every read is a deferred part of LIST (see DufsMetrics.endDeferred),
+     * the action of the consumer, which may call Dufs too, is run apart from it
+     */
+    private class ListSpliterator extends Spliterators.AbstractSpliterator<DirEntry> {
+        private final VolumeFile listedVolume;
+        private final Spliterator<DirEntry> entries;
+        private DirEntry entry;
+
+        private ListSpliterator(VolumeFile listedVolume, Spliterator<DirEntry> entries) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.listedVolume = listedVolume;
+            this.entries = entries;
         }
-        Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
-        if (!VolumeHelper.recordExists(volume, dufsFile.getFirstClusterIndex()) && (dufsFile.getIsFile() == isFile)) {
-            throw new DufsException("Record does not exist.");
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DirEntry> action) {
+            // volume is kept by closeVolume(), but its channel is closed
+            if (volume != listedVolume || !listedVolume.getChannel().isOpen()) {
+                DufsException e = new DufsException("Volume has not found.");
+                throw new UncheckedIOException(new IOException(e.getMessage(), e));
+            }
+            long started = beginOperation();
+            boolean advanced;
+            try {
+                advanced = entries.tryAdvance(next -> entry = next);
+            } finally {
+                operationDepth--;
+                if (metrics != null) {
+                    metrics.endDeferred(DufsOperation.LIST, started);
+                }
+            }
+            if (advanced) {
+                action.accept(entry);
+            }
+            return advanced;
         }
-        VolumeIO.updateRecordName(volume, reservedSpace, dufsRecordIndex, Arrays.copyOf(newName.toCharArray(), 32));
-        VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsRecordIndex);
     }
 
-    public void moveRecord(String path, String newPath, byte isFile) throws IOException, DufsException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+    /*
+     * exports content of the directory into the host directory, walking the directory structure only once
+     */
+    public void exportTree(String dufsPath, Path hostDir) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.EXPORT_TREE, new long[0], dufsPath);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int directoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, dufsPath);
+            volume.flush();     // files are read through the channel of the volume
+            ExportUtility.exportTree(volume, reservedSpace, directoryIndex, hostDir);
+        } finally {
+            endOperation(DufsOperation.EXPORT_TREE, started);
         }
-        int dufsRecordIndex;
-        if (isFile == 1) {
-            dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
-        } else {
-            dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+    }
+
+    public void deleteRecord(String path, byte isFile) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.DELETE_RECORD, new long[] {isFile}, path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int dufsRecordIndex;
+            if (isFile == 1) {
+                dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            } else {
+                dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+                if (!VolumeHelper.isDirectoryEmpty(volume, reservedSpace, dufsRecordIndex)) {
+                    throw new DufsException("Directory is not empty");
+                }
+            }
+            Record dufsRecord = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
+            if (!VolumeHelper.recordExists(volume, dufsRecord, isFile)) {
+                throw new DufsException("Record does not exist.");
+            }
+            if (dufsRecord.isDeduplicated()) {
+                DedupUtility.releaseFile(volume, reservedSpace, dufsRecord);
+            }
+            if (dufsRecord.isSparse()) {
+                SparseUtility.releaseFile(volume, reservedSpace, dufsRecord);
+            }
+            if (dufsRecord.isPacked()) {
+                TailPackingUtility.releaseFile(volume, reservedSpace, dufsRecordIndex);
+                dufsRecord = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
+            }
+            if (dufsRecord.isInline() || dufsRecord.isPacked()) {
+                InlineUtility.releaseExtensionSlot(volume, reservedSpace, dufsRecordIndex);
+            }
+            VolumeUtility.deleteRecord(volume, reservedSpace, dufsRecord, dufsRecordIndex);
+            int freeClusters;
+            if (dufsRecord.getFirstClusterIndex() == ClusterIndexListOffsets.NO_CLUSTER) {
+                freeClusters = reservedSpace.getFreeClusters();
+            } else if (isFile == 1) {
+                freeClusters = reservedSpace.getFreeClusters()
+                        + Math.max(1, VolumeHelper.howMuchClustersNeeds(reservedSpace, dufsRecord.getSize()));
+            } else {
+                freeClusters = reservedSpace.getFreeClusters()
+                        + Math.max(1, VolumeHelper.howMuchClustersDirectoryTakes(volume, reservedSpace, dufsRecordIndex));
+            }
+            reservedSpace.setFreeClusters(freeClusters);
+            VolumeIO.updateVolumeFreeClusters(volume, freeClusters);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.DELETE_RECORD, started);
+        }
+    }
+
+    /*
+     * deletes the directory at the path with all its content (see VolumeUtility.deleteTree())
+     */
+    public void deleteTree(String path) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.DELETE_TREE, new long[0], path);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int directoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            VolumeUtility.deleteTree(volume, reservedSpace, directoryIndex);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.DELETE_TREE, started);
         }
-        Record dufsRecord = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
-        if (!VolumeHelper.recordExists(volume, dufsRecord.getFirstClusterIndex()) && (dufsRecord.getIsFile() == isFile)) {
-            throw new DufsException("Record does not exist.");
+    }
+
+    public void renameRecord(String path, String newName, byte isFile) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.RENAME_RECORD, new long[] {isFile}, path, newName);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (!VolumeHelper.isNameLengthOk(reservedSpace, newName)) {
+                throw new DufsException("New name length has exceeded the limit.");
+            }
+            if (!Parser.isRecordNameOk(newName)) {
+                throw new DufsException("New name contains prohibited symbols.");
+            }
+            int parentDirectoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, Parser.joinPath(Parser.parsePathBeforeFile(path)));
+            if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, parentDirectoryIndex, newName.toCharArray(), isFile)) {
+                throw new DufsException("Record with such name and type already contains in this path.");
+            }
+            int dufsRecordIndex;
+            if (isFile == 1) {
+                dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            } else {
+                dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            }
+            Record dufsFile = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
+            if (!VolumeHelper.recordExists(volume, dufsFile, isFile)) {
+                throw new DufsException("Record does not exist.");
+            }
+            VolumeIO.updateRecordName(volume, reservedSpace, dufsRecordIndex, newName.toCharArray());
+            VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsRecordIndex);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.RENAME_RECORD, started);
         }
-        int newDirectoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, newPath);
-        if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, newDirectoryIndex, dufsRecord.getName(), isFile)) {
-            throw new DufsException("Record with such name and type already contains in this path.");
+    }
+
+    public void moveRecord(String path, String newPath, byte isFile) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.MOVE_RECORD, new long[] {isFile}, path, newPath);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int dufsRecordIndex;
+            if (isFile == 1) {
+                dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            } else {
+                dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            }
+            Record dufsRecord = VolumeIO.readRecordFromVolume(volume, reservedSpace, dufsRecordIndex);
+            if (!VolumeHelper.recordExists(volume, dufsRecord, isFile)) {
+                throw new DufsException("Record does not exist.");
+            }
+            int newDirectoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, newPath);
+            if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, newDirectoryIndex, dufsRecord.getName(), isFile)) {
+                throw new DufsException("Record with such name and type already contains in this path.");
+            }
+            Record newDirectory = VolumeIO.readRecordFromVolume(volume, reservedSpace, newDirectoryIndex);
+            int newDirectoryIndexOrderNumber = VolumeUtility.addRecordIndexInDirectoryCluster(volume, reservedSpace,
+                    dufsRecordIndex, newDirectory.getFirstClusterIndex());
+            VolumeUtility.removeRecordIndexFromDirectoryCluster(volume, reservedSpace,
+                    dufsRecord.getParentDirectoryIndex(), dufsRecord.getParentDirectoryIndexOrderNumber());
+            VolumeIO.updateRecordParentDirectory(volume, reservedSpace, dufsRecordIndex, newDirectoryIndex, newDirectoryIndexOrderNumber);
+            VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsRecordIndex);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.MOVE_RECORD, started);
         }
-        Record newDirectory = VolumeIO.readRecordFromVolume(volume, reservedSpace, newDirectoryIndex);
-        int newDirectoryIndexOrderNumber = VolumeUtility.addRecordIndexInDirectoryCluster(volume, reservedSpace,
-                dufsRecordIndex, newDirectory.getFirstClusterIndex());
-        VolumeUtility.removeRecordIndexFromDirectoryCluster(volume, reservedSpace,
-                dufsRecord.getParentDirectoryIndex(), dufsRecord.getParentDirectoryIndexOrderNumber());
-        VolumeIO.updateRecordParentDirectory(volume, reservedSpace, dufsRecordIndex, newDirectoryIndex, newDirectoryIndexOrderNumber);
-        VolumeIO.updateRecordLastEdit(volume, reservedSpace, dufsRecordIndex);
     }
-    
+
+    /*
+     * copies the record with all its content to newPath, which ends with the name of the copy (see CopyUtility)
+     */
+    public void copyRecord(String path, String newPath, byte isFile) throws IOException, DufsException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.COPY_RECORD, new long[] {isFile}, path, newPath);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            String newName = Parser.parseFileNameInPath(newPath);
+            if (!VolumeHelper.isNameLengthOk(reservedSpace, newName)) {
+                throw new DufsException("New name length has exceeded the limit.");
+            }
+            if (!Parser.isRecordNameOk(newName)) {
+                throw new DufsException("New name contains prohibited symbols.");
+            }
+            int dufsRecordIndex;
+            if (isFile == 1) {
+                dufsRecordIndex = VolumeUtility.findFileIndex(volume, reservedSpace, path);
+            } else {
+                dufsRecordIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, path);
+            }
+            int newDirectoryIndex = VolumeUtility.findDirectoryIndex(volume, reservedSpace, Parser.joinPath(Parser.parsePathBeforeFile(newPath)));
+            if (!VolumeHelper.isNameUniqueInDirectory(volume, reservedSpace, newDirectoryIndex, newName.toCharArray(), isFile)) {
+                throw new DufsException("Record with such name and type already contains in this path.");
+            }
+            CopyUtility.copy(volume, reservedSpace, dufsRecordIndex, newDirectoryIndex, newName);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.COPY_RECORD, started);
+        }
+    }
+
     public void printDirectoryContent(String path) throws IOException, DufsException {
         if (volume == null) {
             throw new DufsException("Volume has not found.");
@@ -363,6 +1200,17 @@ public class Dufs {
                 + "." + lastDefragmentationDate[1] + "." + lastDefragmentationDate[0]);
         System.out.println("Last defragmentation time: " + lastDefragmentationTime[0]
                 + ":" + lastDefragmentationTime[1] + ":" + lastDefragmentationTime[2]);
+        System.out.println("Deduplication ratio: " + DedupUtility.readDeduplicationRatio(volume, volumeReservedSpace));
+    }
+
+    /*
+     * references to shared clusters per shared cluster of the deduplicated files, 1.0 when nothing is shared
+     */
+    public double getDeduplicationRatio() throws IOException, DufsException {
+        if (volume == null) {
+            throw new DufsException("Volume has not found.");
+        }
+        return DedupUtility.readDeduplicationRatio(volume, reservedSpace);
     }
 
     public void printVolumeRecords() throws IOException, DufsException {
@@ -383,39 +1231,98 @@ public class Dufs {
     }
     
     public void defragmentation() throws DufsException, IOException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
-        }
-        int reallocationStartCluster = 0;
-        for (int recordIndex = 0; recordIndex < reservedSpace.getReservedClusters(); ++recordIndex) {
-            if (VolumeHelper.recordExists(volume, reservedSpace, recordIndex)) {
-                reallocationStartCluster = VolumeUtility.reallocateRecordContentSequentially(volume,
-                        reservedSpace, recordIndex, reallocationStartCluster);
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.DEFRAGMENTATION, new long[0]);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            int reallocationStartCluster = 0;
+            for (int recordIndex = 0; recordIndex < reservedSpace.getReservedClusters(); ++recordIndex) {
+                if (InlineUtility.hasClusters(volume, reservedSpace, recordIndex)) {
+                    reallocationStartCluster = VolumeUtility.reallocateRecordContentSequentially(volume,
+                            reservedSpace, recordIndex, reallocationStartCluster);
+                }
             }
+            VolumeIO.updateVolumeLastDefragmentation(volume);
+            volume.commit();
+        } finally {
+            endOperation(DufsOperation.DEFRAGMENTATION, started);
         }
-        VolumeIO.updateVolumeLastDefragmentation(volume);
     }
 
     public void bake() throws DufsException, IOException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.BAKE, new long[0]);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            // only clusters behind the used part are moved (see ResizeUtility), the volume is not defragmented
+            int usedClusters = ResizeUtility.relocateTail(volume, reservedSpace);
+            volume.commit();
+            long bakedVolumeSize = VolumePointerUtility.calculateClustersAreaOffset(reservedSpace)
+                    + (long) reservedSpace.getClusterSize() * usedClusters;
+            volume.setLength(bakedVolumeSize);
+        } finally {
+            endOperation(DufsOperation.BAKE, started);
         }
-        defragmentation();
-        long bakedVolumeSize = ReservedSpaceOffsets.RESERVED_SPACE_SIZE
-                + (long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * reservedSpace.getReservedClusters()
-                + (long) RecordListOffsets.RECORD_SIZE * reservedSpace.getReservedClusters()
-                + (long) reservedSpace.getClusterSize() * (reservedSpace.getReservedClusters() - reservedSpace.getFreeClusters());
-        volume.setLength(bakedVolumeSize);
     }
 
     public void unbake() throws DufsException, IOException {
-        if (volume == null) {
-            throw new DufsException("Volume has not found.");
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.UNBAKE, new long[0]);
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            long unbakedVolumeSize = VolumePointerUtility.calculateClustersAreaOffset(reservedSpace)
+                    + (long) reservedSpace.getClusterSize() * reservedSpace.getReservedClusters();
+            volume.setLength(unbakedVolumeSize);
+        } finally {
+            endOperation(DufsOperation.UNBAKE, started);
+        }
+    }
+
+    /*
+     * grows the volume in place to at least `nettoVolumeSize` bytes of clusters (see ResizeUtility);
+     * the size is rounded up, so the clusters area of the volume moves by whole clusters
+     */
+    public void growVolume(long nettoVolumeSize) throws DufsException, IOException {
+        long started = beginOperation();
+        try {
+            traceCall(DufsOperation.GROW_VOLUME, new long[] {nettoVolumeSize});
+            if (volume == null) {
+                throw new DufsException("Volume has not found.");
+            }
+            if (volume instanceof SnapshotFile) {
+                throw new DufsException("Snapshot of the volume is read-only.");
+            }
+            if (nettoVolumeSize <= (long) reservedSpace.getClusterSize() * reservedSpace.getReservedClusters()) {
+                throw new DufsException("New volume size is not bigger than the current one.");
+            }
+            int clusters = VolumeHelper.isVolumeSizeOk(reservedSpace.getClusterSize(), nettoVolumeSize)
+                    ? ResizeUtility.calculateGrownClusters(reservedSpace, nettoVolumeSize) : -1;
+            if (clusters < 0) {
+                throw new DufsException("Volume size is too big.");
+            }
+            long bruttoVolumeSize = VolumeHelper.calculateVolumeSize(reservedSpace.getClusterSize(),
+                    (long) reservedSpace.getClusterSize() * clusters, reservedSpace.getFormatVersion());
+            if (volumeFile.getAbsoluteFile().getParentFile().getUsableSpace() < bruttoVolumeSize - volume.length()) {
+                throw new DufsException("There is not enough space on disk.");
+            }
+            // caches and indexes refer to the old layout, they are made again for the grown one
+            volume.flush();
+            volume.setClusterCache(null);
+            volume.setClusterIndexCache(null);
+            volume.setDedupIndex(null);
+            volume.setFragmentIndex(null);
+            reservedSpace = ResizeUtility.grow(volume, reservedSpace, clusters);
+            volume.commit();
+            openClusterCache();
+            openClusterIndexCache();
+        } finally {
+            endOperation(DufsOperation.GROW_VOLUME, started);
         }
-        long unbakedVolumeSize = ReservedSpaceOffsets.RESERVED_SPACE_SIZE
-                + (long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * reservedSpace.getReservedClusters()
-                + (long) RecordListOffsets.RECORD_SIZE * reservedSpace.getReservedClusters()
-                + (long) reservedSpace.getClusterSize() * reservedSpace.getReservedClusters();
-        volume.setLength(unbakedVolumeSize);
     }
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+package com.dufs.filesystem;
+
+import com.dufs.model.ReservedSpace;
+import com.dufs.trace.TraceLevel;
+
+/*
+ * options of the volume which are not stored in it; every option is disabled by default.
+ * a new file gets one storage mode, which is kept per file: when several modes are enabled, the first one of
+ * deduplication, sparse files, compression and tail packing is taken, the others are ignored.
+ * inline files are stored in the record list first and take the mode when they outgrow it
+ */
+public class DufsOptions {
+    private boolean journalEnabled = false;
+    private int groupCommitSize = 32;                    // operations per one force() of the journal
+    private long checkpointSize = 4L * 1024 * 1024;      // size of the journal (in bytes) which triggers checkpoint
+    private long clusterCacheSize = 0;                   // memory (in bytes) for cached clusters, 0 disables the cache
+    private boolean clusterIndexCacheEnabled = false;    // cluster index list is kept in memory
+    private boolean checkpointEnabled = false;           // derived state is saved on closing to speed up attaching (see VolumeCheckpoint)
+    private boolean metricsEnabled = false;              // I/O and time of operations are measured (and exposed by JMX)
+    private boolean compressionEnabled = false;          // files are created compressed (see the precedence above)
+    private int compressionBlockSize = 64 * 1024;        // logical bytes per independently deflated block
+    private boolean deduplicationEnabled = false;        // files are created deduplicated (takes precedence over the other modes)
+    private boolean inlineEnabled = false;               // files are created inline, until they outgrow InlineUtility.inlineCapacity()
+    private boolean tailPackingEnabled = false;          // small files and tails of files share fragment clusters (the mode taken last)
+    private boolean sparseEnabled = false;               // files are created sparse (takes precedence over compression)
+    private int recordFormat = ReservedSpace.FORMAT_V1;  // format of the record list of mounted volumes (see ReservedSpace)
+    private String traceFile = null;                     // file the trace is recorded into, null disables tracing
+    private TraceLevel traceLevel = TraceLevel.API;      // calls of Dufs or reads and writes of the volume are traced
+
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public long getCheckpointSize() {
+        return checkpointSize;
+    }
+
+    public long getClusterCacheSize() {
+        return clusterCacheSize;
+    }
+
+    public boolean isClusterIndexCacheEnabled() {
+        return clusterIndexCacheEnabled;
+    }
+
+    public boolean isCheckpointEnabled() {
+        return checkpointEnabled;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    public boolean isDeduplicationEnabled() {
+        return deduplicationEnabled;
+    }
+
+    public boolean isInlineEnabled() {
+        return inlineEnabled;
+    }
+
+    public boolean isTailPackingEnabled() {
+        return tailPackingEnabled;
+    }
+
+    public boolean isSparseEnabled() {
+        return sparseEnabled;
+    }
+
+    public int getRecordFormat() {
+        return recordFormat;
+    }
+
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public TraceLevel getTraceLevel() {
+        return traceLevel;
+    }
+
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+
+    public void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public void setCheckpointSize(long checkpointSize) {
+        this.checkpointSize = checkpointSize;
+    }
+
+    public void setClusterCacheSize(long clusterCacheSize) {
+        this.clusterCacheSize = clusterCacheSize;
+    }
+
+    public void setClusterIndexCacheEnabled(boolean clusterIndexCacheEnabled) {
+        this.clusterIndexCacheEnabled = clusterIndexCacheEnabled;
+    }
+
+    public void setCheckpointEnabled(boolean checkpointEnabled) {
+        this.checkpointEnabled = checkpointEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /*
+     * ignored while deduplication or sparse files are enabled
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    /*
+     * takes precedence over sparse files, compression and tail packing
+     */
+    public void setDeduplicationEnabled(boolean deduplicationEnabled) {
+        this.deduplicationEnabled = deduplicationEnabled;
+    }
+
+    public void setInlineEnabled(boolean inlineEnabled) {
+        this.inlineEnabled = inlineEnabled;
+    }
+
+    /*
+     * ignored while deduplication, sparse files or compression are enabled
+     */
+    public void setTailPackingEnabled(boolean tailPackingEnabled) {
+        this.tailPackingEnabled = tailPackingEnabled;
+    }
+
+    /*
+     * ignored while deduplication is enabled; takes precedence over compression and tail packing
+     */
+    public void setSparseEnabled(boolean sparseEnabled) {
+        this.sparseEnabled = sparseEnabled;
+    }
+
+    public void setRecordFormat(int recordFormat) {
+        this.recordFormat = recordFormat;
+    }
+
+    public void setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    public void setTraceLevel(TraceLevel traceLevel) {
+        this.traceLevel = traceLevel;
+    }
+}
@@ -0,0 +1,195 @@
+package com.dufs.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.*;
+
+/*
+ * per-operation metrics of one Dufs: counters of I/O are incremented by the volume,
+ * and every outermost public operation adds their increase, its time and its calls to its totals.
+ * latency of every call is recorded into the histogram of its operation, and of the hot paths -- into theirs.
+ * operations run in the thread of Dufs, snapshots may be taken from any thread (e.g. by JMX).
+ */
+public class DufsMetrics implements DufsMetricsMXBean {
+    private final IoCounters counters = new IoCounters();
+    private final EnumMap<DufsOperation, OperationMetrics> operations = new EnumMap<>(DufsOperation.class);
+    private final EnumMap<DufsOperation, LatencyHistogram> operationHistograms = new EnumMap<>(DufsOperation.class);
+    private final EnumMap<HotPath, LatencyHistogram> hotPathHistograms = new EnumMap<>(HotPath.class);
+    private final long[] start = new long[6];
+    private int depth;
+    private ObjectName objectName;
+
+    public DufsMetrics() {
+        for (DufsOperation operation : DufsOperation.values()) {
+            operationHistograms.put(operation, new LatencyHistogram());
+        }
+        for (HotPath hotPath : HotPath.values()) {
+            hotPathHistograms.put(hotPath, new LatencyHistogram());
+        }
+    }
+
+    public IoCounters getCounters() {
+        return counters;
+    }
+
+    public LatencyHistogram getHistogram(DufsOperation operation) {
+        return operationHistograms.get(operation);
+    }
+
+    public LatencyHistogram getHistogram(HotPath hotPath) {
+        return hotPathHistograms.get(hotPath);
+    }
+
+    public void recordHotPath(HotPath hotPath, long nanos) {
+        hotPathHistograms.get(hotPath).record(nanos);
+    }
+
+    /*
+     * returns start time of the operation
+     */
+    public long begin() {
+        if (depth++ == 0) {
+            start[0] = counters.getReads();
+            start[1] = counters.getWrites();
+            start[2] = counters.getSeeks();
+            start[3] = counters.getBytesRead();
+            start[4] = counters.getBytesWritten();
+            start[5] = counters.getSyscalls();
+        }
+        return System.nanoTime();
+    }
+
+    public void end(DufsOperation operation, long started) {
+        if (--depth > 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - started;
+        operationHistograms.get(operation).record(nanos);
+        synchronized (this) {
+            operations.computeIfAbsent(operation, key -> new OperationMetrics()).add(nanos, counters, start);
+        }
+    }
+
+    /*
+     * adds I/O and time of work which the operation left to be done after it returned
+     * (entries of list() are read as its stream is consumed), without counting one more call
+     */
+    public void endDeferred(DufsOperation operation, long started) {
+        if (--depth > 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - started;
+        synchronized (this) {
+            operations.computeIfAbsent(operation, key -> new OperationMetrics()).addDeferred(nanos, counters, start);
+        }
+    }
+
+    /*
+     * copy of the totals of every operation which has been called since the last reset
+     */
+    public synchronized Map<DufsOperation, OperationMetrics> snapshot() {
+        Map<DufsOperation, OperationMetrics> snapshot = new EnumMap<>(DufsOperation.class);
+        for (Map.Entry<DufsOperation, OperationMetrics> entry : operations.entrySet()) {
+            snapshot.put(entry.getKey(), new OperationMetrics(entry.getValue()));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public synchronized void reset() {
+        operations.clear();
+        for (LatencyHistogram histogram : operationHistograms.values()) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : hotPathHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /*
+     * snapshots of the histograms which are not empty, by names of the operations and the hot paths
+     */
+    @Override
+    public Map<String, LatencyHistogram> getHistograms() {
+        Map<String, LatencyHistogram> view = new LinkedHashMap<>();
+        for (Map.Entry<DufsOperation, LatencyHistogram> entry : operationHistograms.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                view.put(entry.getKey().name(), entry.getValue().snapshot());
+            }
+        }
+        for (Map.Entry<HotPath, LatencyHistogram> entry : hotPathHistograms.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                view.put(entry.getKey().name(), entry.getValue().snapshot());
+            }
+        }
+        return view;
+    }
+
+    @Override
+    public Map<String, OperationMetrics> getOperations() {
+        Map<String, OperationMetrics> view = new LinkedHashMap<>();
+        for (Map.Entry<DufsOperation, OperationMetrics> entry : snapshot().entrySet()) {
+            view.put(entry.getKey().name(), entry.getValue());
+        }
+        return view;
+    }
+
+    @Override
+    public long getReads() {
+        return counters.getReads();
+    }
+
+    @Override
+    public long getWrites() {
+        return counters.getWrites();
+    }
+
+    @Override
+    public long getSeeks() {
+        return counters.getSeeks();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return counters.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return counters.getBytesWritten();
+    }
+
+    @Override
+    public long getSyscalls() {
+        return counters.getSyscalls();
+    }
+
+    public void registerMBean(String volumePath) {
+        try {
+            ObjectName name = new ObjectName("com.dufs:type=DufsMetrics,volume=" + ObjectName.quote(volumePath));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.dufs.metrics;
+
+import java.util.Map;
+
+/*
+ * JMX view of DufsMetrics, registered as com.dufs:type=DufsMetrics,volume=<path of the volume>
+ */
+public interface DufsMetricsMXBean {
+    Map<String, OperationMetrics> getOperations();
+
+    Map<String, LatencyHistogram> getHistograms();
+
+    long getReads();
+
+    long getWrites();
+
+    long getSeeks();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getSyscalls();
+
+    void reset();
+}
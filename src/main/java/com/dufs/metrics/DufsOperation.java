@@ -0,0 +1,59 @@
+package com.dufs.metrics;
+
+/*
+ * public operations of Dufs which are measured.
+ * code is the stable number of the operation written into traces (see TraceRecorder): it must never be changed
+ * or reused, new operations get the next free one
+ */
+public enum DufsOperation {
+    MOUNT_VOLUME(0),
+    ATTACH_VOLUME(1),
+    CREATE_RECORD(2),
+    WRITE_FILE(3),
+    APPEND_FILE(4),
+    READ_FILE(5),
+    EXPORT_TREE(6),
+    LIST_DIRECTORY(7),
+    DELETE_RECORD(8),
+    RENAME_RECORD(9),
+    MOVE_RECORD(10),
+    DEFRAGMENTATION(11),
+    BAKE(12),
+    UNBAKE(13),
+    SYNC(14),
+    FLUSH(15),
+    CHECK_VOLUME(16),
+    CREATE_SNAPSHOT(17),
+    DELETE_SNAPSHOT(18),
+    WRITE_RANGE(19),
+    GROW_VOLUME(20),
+    DELETE_TREE(21),
+    COPY_RECORD(22),
+    LIST(23),
+    READ_RANGE(24);
+
+    private static final DufsOperation[] byCode = new DufsOperation[values().length];
+
+    static {
+        for (DufsOperation operation : values()) {
+            byCode[operation.code] = operation;
+        }
+    }
+
+    private final int code;
+
+    DufsOperation(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /*
+     * null if there is no operation with such code
+     */
+    public static DufsOperation fromCode(int code) {
+        return (code >= 0 && code < byCode.length) ? byCode[code] : null;
+    }
+}
@@ -0,0 +1,10 @@
+package com.dufs.metrics;
+
+/*
+ * internal searches of the utilities which are measured by histograms
+ */
+public enum HotPath {
+    FIND_DIRECTORY_INDEX,
+    FIND_NEXT_FREE_CLUSTER_INDEX,
+    FIND_NEXT_FREE_RECORD_INDEX
+}
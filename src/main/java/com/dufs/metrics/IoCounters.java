@@ -0,0 +1,69 @@
+package com.dufs.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * running totals of the volume I/O: reads, writes and seeks are calls made to the volume by the utilities
+ * (readInt() makes 4 reads of 1 byte), syscalls are reads, writes and seeks which reached the file descriptor.
+ * counters are written by the thread of Dufs only (one at a time) and read by any thread (snapshots, JMX):
+ * they are published with opaque writes, which cost as much as plain ones but are never torn or left unseen
+ */
+public class IoCounters {
+    private static final int READS = 0;
+    private static final int WRITES = 1;
+    private static final int SEEKS = 2;
+    private static final int BYTES_READ = 3;
+    private static final int BYTES_WRITTEN = 4;
+    private static final int SYSCALLS = 5;
+
+    private final AtomicLongArray counters = new AtomicLongArray(6);
+
+    public void read(int bytes) {
+        add(READS, 1);
+        add(BYTES_READ, Math.max(bytes, 0));
+    }
+
+    public void write(int bytes) {
+        add(WRITES, 1);
+        add(BYTES_WRITTEN, bytes);
+    }
+
+    public void seek() {
+        add(SEEKS, 1);
+    }
+
+    public void syscall() {
+        add(SYSCALLS, 1);
+    }
+
+    public long getReads() {
+        return counters.getOpaque(READS);
+    }
+
+    public long getWrites() {
+        return counters.getOpaque(WRITES);
+    }
+
+    public long getSeeks() {
+        return counters.getOpaque(SEEKS);
+    }
+
+    public long getBytesRead() {
+        return counters.getOpaque(BYTES_READ);
+    }
+
+    public long getBytesWritten() {
+        return counters.getOpaque(BYTES_WRITTEN);
+    }
+
+    public long getSyscalls() {
+        return counters.getOpaque(SYSCALLS);
+    }
+
+    /*
+     * the only writer reads its own value plainly, no atomic read-modify-write is needed
+     */
+    private void add(int counter, long value) {
+        counters.setOpaque(counter, counters.getPlain(counter) + value);
+    }
+}
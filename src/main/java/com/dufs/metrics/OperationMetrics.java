@@ -0,0 +1,89 @@
+package com.dufs.metrics;
+
+/*
+ * totals of one Dufs operation: number of calls, wall time and I/O made by them
+ */
+public class OperationMetrics {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    private long reads;
+    private long writes;
+    private long seeks;
+    private long bytesRead;
+    private long bytesWritten;
+    private long syscalls;
+
+    public OperationMetrics() {
+    }
+
+    public OperationMetrics(OperationMetrics other) {
+        this.count = other.count;
+        this.totalNanos = other.totalNanos;
+        this.maxNanos = other.maxNanos;
+        this.reads = other.reads;
+        this.writes = other.writes;
+        this.seeks = other.seeks;
+        this.bytesRead = other.bytesRead;
+        this.bytesWritten = other.bytesWritten;
+        this.syscalls = other.syscalls;
+    }
+
+    /*
+     * `start` holds values of the counters when the operation started
+     */
+    void add(long nanos, IoCounters counters, long[] start) {
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+        addDeferred(nanos, counters, start);
+    }
+
+    /*
+     * work of a call which has already been counted
+     */
+    void addDeferred(long nanos, IoCounters counters, long[] start) {
+        totalNanos += nanos;
+        reads += counters.getReads() - start[0];
+        writes += counters.getWrites() - start[1];
+        seeks += counters.getSeeks() - start[2];
+        bytesRead += counters.getBytesRead() - start[3];
+        bytesWritten += counters.getBytesWritten() - start[4];
+        syscalls += counters.getSyscalls() - start[5];
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getSeeks() {
+        return seeks;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getSyscalls() {
+        return syscalls;
+    }
+}
@@ -7,7 +7,7 @@ import java.nio.ByteBuffer;
 public class ClusterIndexElement {
     private int nextClusterIndex;
     private int prevClusterIndex;
-    private final int recordIndex = 0xFFFFFFFF;
+    private final int recordIndex = ClusterIndexListOffsets.NO_RECORD;
 
     public int getNextClusterIndex() {
         return nextClusterIndex;
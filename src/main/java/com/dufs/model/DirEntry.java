@@ -0,0 +1,46 @@
+package com.dufs.model;
+
+/*
+ * record of a directory as it is listed (see ListUtility): size is the one of the content of a file
+ * (the logical size of compressed, deduplicated and sparse files), 0 for a directory;
+ * timestamps are milliseconds since the epoch
+ */
+public class DirEntry {
+    private final String name;
+    private final boolean isFile;
+    private final long size;
+    private final long createTimestamp;
+    private final long lastEditTimestamp;
+
+    public DirEntry(String name, boolean isFile, long size, long createTimestamp, long lastEditTimestamp) {
+        this.name = name;
+        this.isFile = isFile;
+        this.size = size;
+        this.createTimestamp = createTimestamp;
+        this.lastEditTimestamp = lastEditTimestamp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFile() {
+        return isFile;
+    }
+
+    public boolean isDirectory() {
+        return !isFile;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCreateTimestamp() {
+        return createTimestamp;
+    }
+
+    public long getLastEditTimestamp() {
+        return lastEditTimestamp;
+    }
+}
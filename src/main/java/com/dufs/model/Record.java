@@ -4,17 +4,27 @@ import com.dufs.offsets.RecordListOffsets;
 import com.dufs.utility.DateUtility;
 
 import java.nio.ByteBuffer;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.util.Arrays;
 
 public class Record {
+    /*
+     * lowest bit of isFile is the type of the record (1 -- file, 0 -- directory), upper bits are flags of the file
+     */
+    public static final byte TYPE_MASK = 0x01;
+    public static final byte COMPRESSED = 0x02;     // content is stored as deflated blocks (see CompressionUtility)
+    public static final byte DEDUPLICATED = 0x04;   // content is stored in shared clusters (see DedupUtility)
+    public static final byte INLINE = 0x08;         // content is stored in the record list, not in clusters (see InlineUtility)
+    public static final byte PACKED = 0x10;         // last partial cluster is stored in a fragment cluster (see TailPackingUtility)
+    public static final byte SPARSE = 0x20;         // zero clusters of the content take no clusters (see SparseUtility)
+
     private final char[] name;
     private final short createDate;
     private final short createTime;
+    private final long createTimestamp;
     private final int firstClusterIndex;
     private final short lastEditDate;
     private final short lastEditTime;
+    private final long lastEditTimestamp;
     private final long size;
     private final int parentDirectoryIndex;
     private final int parentDirectoryIndexOrderNumber;
@@ -32,6 +42,13 @@ public class Record {
         return createTime;
     }
 
+    /*
+     * milliseconds since the epoch; a record of the format 1 keeps only the short encoding, which is accurate to 2 seconds
+     */
+    public long getCreateTimestamp() {
+        return createTimestamp;
+    }
+
     public int getFirstClusterIndex() {
         return firstClusterIndex;
     }
@@ -44,6 +61,10 @@ public class Record {
         return lastEditTime;
     }
 
+    public long getLastEditTimestamp() {
+        return lastEditTimestamp;
+    }
+
     public long getSize() {
         return size;
     }
@@ -56,6 +77,30 @@ public class Record {
         return isFile;
     }
 
+    public byte getType() {
+        return (byte) (isFile & TYPE_MASK);
+    }
+
+    public boolean isCompressed() {
+        return (isFile & COMPRESSED) != 0;
+    }
+
+    public boolean isDeduplicated() {
+        return (isFile & DEDUPLICATED) != 0;
+    }
+
+    public boolean isInline() {
+        return (isFile & INLINE) != 0;
+    }
+
+    public boolean isPacked() {
+        return (isFile & PACKED) != 0;
+    }
+
+    public boolean isSparse() {
+        return (isFile & SPARSE) != 0;
+    }
+
     public int getParentDirectoryIndexOrderNumber() {
         return parentDirectoryIndexOrderNumber;
     }
@@ -64,9 +109,11 @@ public class Record {
         this.name = new char[32];
         this.createDate = 0;
         this.createTime = 0;
+        this.createTimestamp = 0;
         this.firstClusterIndex = 0;
         this.lastEditDate = 0;
         this.lastEditTime = 0;
+        this.lastEditTimestamp = 0;
         this.size = 0;
         this.parentDirectoryIndex = 0;
         this.parentDirectoryIndexOrderNumber = 0;
@@ -75,12 +122,14 @@ public class Record {
 
     public Record(char[] name, int firstClusterIndex, int parentDirectoryIndex,
                   int parentDirectoryIndexOrderNumber, byte isFile) {
-        this.name = Arrays.copyOf(name, 32);
-        this.createDate = DateUtility.dateToShort(LocalDate.now());
-        this.createTime = DateUtility.timeToShort(LocalDateTime.now());
+        this.name = Arrays.copyOf(name, Math.max(name.length, 32));
+        this.createTimestamp = System.currentTimeMillis();
+        this.createDate = DateUtility.dateToShort(createTimestamp);
+        this.createTime = DateUtility.timeToShort(createTimestamp);
         this.firstClusterIndex = firstClusterIndex;
         this.lastEditDate = this.createDate;
         this.lastEditTime = this.createTime;
+        this.lastEditTimestamp = this.createTimestamp;
         this.size = 0;
         this.parentDirectoryIndex = parentDirectoryIndex;
         this.parentDirectoryIndexOrderNumber = parentDirectoryIndexOrderNumber;
@@ -92,15 +141,43 @@ public class Record {
         this.name = Arrays.copyOf(name, 32);
         this.createDate = createDate;
         this.createTime = createTime;
+        this.createTimestamp = DateUtility.toEpochMilli(createDate, createTime);
         this.firstClusterIndex = firstClusterIndex;
         this.lastEditDate = lastEditDate;
         this.lastEditTime = lastEditTime;
+        this.lastEditTimestamp = DateUtility.toEpochMilli(lastEditDate, lastEditTime);
         this.size = size;
         this.parentDirectoryIndex = parentDirectoryIndex;
         this.parentDirectoryIndexOrderNumber = parentDirectoryIndexOrderNumber;
         this.isFile = isFile;
     }
 
+    /*
+     * record of the format 2, its name is not limited to 32 chars
+     */
+    public Record(char[] name, long createTimestamp, int firstClusterIndex, long lastEditTimestamp, long size,
+                  int parentDirectoryIndex, int parentDirectoryIndexOrderNumber, byte isFile) {
+        this.name = Arrays.copyOf(name, Math.max(name.length, 32));
+        this.createDate = DateUtility.dateToShort(createTimestamp);
+        this.createTime = DateUtility.timeToShort(createTimestamp);
+        this.createTimestamp = createTimestamp;
+        this.firstClusterIndex = firstClusterIndex;
+        this.lastEditDate = DateUtility.dateToShort(lastEditTimestamp);
+        this.lastEditTime = DateUtility.timeToShort(lastEditTimestamp);
+        this.lastEditTimestamp = lastEditTimestamp;
+        this.size = size;
+        this.parentDirectoryIndex = parentDirectoryIndex;
+        this.parentDirectoryIndexOrderNumber = parentDirectoryIndexOrderNumber;
+        this.isFile = isFile;
+    }
+
+    /*
+     * name without the trailing zero chars of the format 1
+     */
+    public String getNameString() {
+        return new String(name).replace("\u0000", "");
+    }
+
     public byte[] serialize() {
         final int bytesCount = RecordListOffsets.RECORD_SIZE;
         ByteBuffer buffer = ByteBuffer.allocateDirect(bytesCount);
@@ -1,5 +1,6 @@
 package com.dufs.model;
 
+import com.dufs.offsets.RecordListOffsets;
 import com.dufs.utility.DateUtility;
 import com.dufs.utility.VolumeHelper;
 
@@ -7,7 +8,18 @@ import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 
+/*
+ * format of the volume is told by its tail signature, so volumes of a newer format are refused
+ * by the code which knows only the older one:
+ *   format 1 ("JETB") -- 93-byte records with UTF-16 names and dates in DateUtility short encoding
+ *   format 2 ("JET2") -- 64-byte aligned records with UTF-8 names and epoch timestamps (see NameHeapUtility)
+ */
 public class ReservedSpace {
+    public static final int FORMAT_V1 = 1;
+    public static final int FORMAT_V2 = 2;
+    public static final int TAIL_SIGNATURE_V1 = 0x4A455442; // "JETB"
+    public static final int TAIL_SIGNATURE_V2 = 0x4A455432; // "JET2"
+
     private int dufsNoseSignature = 0x44554653; // "DUFS"
     private final char[] volumeName;
     private final int clusterSize;
@@ -20,7 +32,7 @@ public class ReservedSpace {
     private int nextClusterIndex;
     private int freeClusters;
     private int nextRecordIndex;
-    private int dufsTailSignature = 0x4A455442; // "JETB"
+    private int dufsTailSignature;
 
     public int getDufsNoseSignature() {
         return dufsNoseSignature;
@@ -74,6 +86,14 @@ public class ReservedSpace {
         return dufsTailSignature;
     }
 
+    public int getFormatVersion() {
+        return (dufsTailSignature == TAIL_SIGNATURE_V2) ? FORMAT_V2 : FORMAT_V1;
+    }
+
+    public int getRecordSize() {
+        return (getFormatVersion() == FORMAT_V2) ? RecordListOffsets.RECORD_SIZE_V2 : RecordListOffsets.RECORD_SIZE;
+    }
+
     public void setLastDefragmentationDate(short lastDefragmentationDate) {
         this.lastDefragmentationDate = lastDefragmentationDate;
     }
@@ -95,9 +115,13 @@ public class ReservedSpace {
     }
 
     public ReservedSpace(char[] volumeName, int clusterSize, long volumeSize) {
+        this(volumeName, clusterSize, volumeSize, FORMAT_V1);
+    }
+
+    public ReservedSpace(char[] volumeName, int clusterSize, long volumeSize, int formatVersion) {
         this.volumeName = volumeName;
         this.clusterSize = clusterSize;
-        this.volumeSize = VolumeHelper.calculateVolumeSize(clusterSize, volumeSize);
+        this.volumeSize = VolumeHelper.calculateVolumeSize(clusterSize, volumeSize, formatVersion);
         this.reservedClusters = VolumeHelper.clustersAmount(clusterSize, volumeSize);
         this.createDate = DateUtility.dateToShort(LocalDate.now());
         this.createTime = DateUtility.timeToShort(LocalDateTime.now());
@@ -106,6 +130,7 @@ public class ReservedSpace {
         this.nextClusterIndex = 1;
         this.freeClusters = reservedClusters - 1;
         this.nextRecordIndex = 1;
+        this.dufsTailSignature = (formatVersion == FORMAT_V2) ? TAIL_SIGNATURE_V2 : TAIL_SIGNATURE_V1;
     }
 
     public ReservedSpace(int noseSignature, char[] volumeName, int clusterSize, long volumeSize, int reservedClusters,
@@ -3,4 +3,8 @@ package com.dufs.offsets;
 public class ClusterIndexListOffsets {
     public static final int CLUSTER_INDEX_LIST_OFFSET = 60;
     public static final int CLUSTER_INDEX_ELEMENT_SIZE = 12;
-}
\ No newline at end of file
+    public static final int NO_CLUSTER = 0xFFFFFFFF;            // no next (or previous) cluster, file without cluster chain
+    public static final int NO_RECORD = 0xFFFFFFFF;             // record index of a free cluster, parent of the root
+    // indexes are signed ints and the sentinels are negative, so every index below MAX_CLUSTERS is a valid one
+    public static final int MAX_CLUSTERS = Integer.MAX_VALUE;
+}
@@ -2,4 +2,6 @@ package com.dufs.offsets;
 
 public class RecordListOffsets {
     public static final int RECORD_SIZE = 93;
-}
\ No newline at end of file
+    public static final int RECORD_SIZE_V2 = 64;
+    public static final int RECORD_LIST_ALIGNMENT_V2 = 64;     // record list of the format 2 starts on a 64-byte boundary
+}
@@ -0,0 +1,15 @@
+package com.dufs.offsets;
+
+public class RecordOffsetsV2 {
+    public static final int NAME_HASH_OFFSET = 0;
+    public static final int CREATE_TIME_OFFSET = 4;
+    public static final int LAST_EDIT_TIME_OFFSET = 12;
+    public static final int SIZE_OFFSET = 20;
+    public static final int FIRST_CLUSTER_INDEX_OFFSET = 28;
+    public static final int PARENT_DIRECTORY_INDEX_OFFSET = 32;
+    public static final int PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET = 36;
+    public static final int IS_FILE_OFFSET = 40;
+    public static final int NAME_LENGTH_OFFSET = 41;
+    public static final int NAME_OFFSET = 42;               // UTF-8 name, or its address in the name heap if it is longer
+    public static final int INLINE_NAME_CAPACITY = 22;
+}
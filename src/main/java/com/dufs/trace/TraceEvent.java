@@ -0,0 +1,75 @@
+package com.dufs.trace;
+
+import com.dufs.metrics.DufsOperation;
+
+/*
+ * one event of the trace; which fields are meaningful depends on the type
+ */
+public class TraceEvent {
+    public static final byte READ = 1;          // position, length
+    public static final byte WRITE = 2;         // position, length
+    public static final byte SET_LENGTH = 3;    // length
+    public static final byte SYNC = 4;
+    public static final byte CALL = 5;          // operation, arguments, numbers
+
+    private final byte type;
+    private final long nanos;                   // time since the start of the trace
+    private long position;
+    private long length;
+    private DufsOperation operation;
+    private String[] arguments = new String[0];
+    private long[] numbers = new long[0];
+
+    public TraceEvent(byte type, long nanos) {
+        this.type = type;
+        this.nanos = nanos;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public DufsOperation getOperation() {
+        return operation;
+    }
+
+    public String[] getArguments() {
+        return arguments;
+    }
+
+    public long[] getNumbers() {
+        return numbers;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public void setOperation(DufsOperation operation) {
+        this.operation = operation;
+    }
+
+    public void setArguments(String[] arguments) {
+        this.arguments = arguments;
+    }
+
+    public void setNumbers(long[] numbers) {
+        this.numbers = numbers;
+    }
+}
@@ -0,0 +1,9 @@
+package com.dufs.trace;
+
+/*
+ * what is recorded into the trace: calls of the public operations of Dufs, or reads and writes of the volume file
+ */
+public enum TraceLevel {
+    API,
+    VOLUME
+}
@@ -0,0 +1,98 @@
+package com.dufs.trace;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.metrics.DufsOperation;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/*
+ * reads events of the trace written by TraceRecorder one by one
+ */
+public class TraceReader implements Closeable {
+    private final DataInputStream in;
+    private final TraceLevel level;
+    private long nanos;
+
+    public TraceReader(File file) throws IOException, DufsException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != TraceRecorder.MAGIC || in.readByte() != TraceRecorder.VERSION) {
+                throw new DufsException("File is not a trace of DUFS.");
+            }
+            this.level = TraceLevel.values()[in.readByte()];
+        } catch (IOException | DufsException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public TraceLevel getLevel() {
+        return level;
+    }
+
+    /*
+     * null at the end of the trace (an event cut off by a crash is treated as the end too)
+     */
+    public TraceEvent next() throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        try {
+            nanos += readVarLong();
+            TraceEvent event = new TraceEvent((byte) type, nanos);
+            switch (event.getType()) {
+                case TraceEvent.READ, TraceEvent.WRITE -> {
+                    event.setPosition(readVarLong());
+                    event.setLength(readVarLong());
+                }
+                case TraceEvent.SET_LENGTH -> event.setLength(readVarLong());
+                case TraceEvent.SYNC -> { }
+                case TraceEvent.CALL -> {
+                    int code = in.readUnsignedByte();
+                    DufsOperation operation = DufsOperation.fromCode(code);
+                    if (operation == null) {
+                        throw new IOException("Unknown operation of trace event: " + code);
+                    }
+                    event.setOperation(operation);
+                    String[] arguments = new String[in.readUnsignedByte()];
+                    for (int i = 0; i < arguments.length; ++i) {
+                        arguments[i] = in.readUTF();
+                    }
+                    event.setArguments(arguments);
+                    long[] numbers = new long[in.readUnsignedByte()];
+                    for (int i = 0; i < numbers.length; ++i) {
+                        numbers[i] = readVarLong();
+                    }
+                    event.setNumbers(numbers);
+                }
+                default -> throw new IOException("Unknown type of trace event: " + type);
+            }
+            return event;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
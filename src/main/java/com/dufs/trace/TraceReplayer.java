@@ -0,0 +1,237 @@
+package com.dufs.trace;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import com.dufs.volume.VolumeFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/*
+ * runs the recorded trace again, at max speed or keeping the original intervals between events.
+ * API trace is replayed by a Dufs (its options are the variant being compared) against the volume in the given
+ * directory: a fresh one, mounted by the recorded mountVolume, or a copy of the original, attached by attachVolume.
+ * volume trace is replayed against a copy of the volume file (or an empty file): reads and writes are made
+ * at the recorded offsets with the recorded sizes, but written bytes are filler, so the target is scratch.
+ * usage: java -cp dufs.jar com.dufs.trace.TraceReplayer <trace> <volume directory | volume file>
+ *        [timing=original] [journal=true] [clusterCache=<bytes>] [clusterIndexCache=true]
+ */
+public class TraceReplayer {
+    public static class Result {
+        private long events;
+        private long failures;
+        private long elapsedNanos;
+
+        public long getEvents() {
+            return events;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    private final File trace;
+    private final boolean originalTiming;
+
+    public TraceReplayer(File trace, boolean originalTiming) {
+        this.trace = trace;
+        this.originalTiming = originalTiming;
+    }
+
+    public static void main(String[] args) throws IOException, DufsException {
+        if (args.length < 2) {
+            System.err.println("usage: TraceReplayer <trace> <target> [timing=original] [journal=true] "
+                    + "[clusterCache=<bytes>] [clusterIndexCache=true]");
+            return;
+        }
+        boolean originalTiming = false;
+        DufsOptions options = new DufsOptions();
+        for (String arg : Arrays.copyOfRange(args, 2, args.length)) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "timing" -> originalTiming = pair[1].equals("original");
+                case "journal" -> options.setJournalEnabled(Boolean.parseBoolean(pair[1]));
+                case "clusterCache" -> options.setClusterCacheSize(Long.parseLong(pair[1]));
+                case "clusterIndexCache" -> options.setClusterIndexCacheEnabled(Boolean.parseBoolean(pair[1]));
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        TraceReplayer replayer = new TraceReplayer(new File(args[0]), originalTiming);
+        Result result;
+        TraceLevel level;
+        try (TraceReader reader = new TraceReader(new File(args[0]))) {
+            level = reader.getLevel();
+        }
+        if (level == TraceLevel.API) {
+            Dufs dufs = new Dufs(options);
+            result = replayer.replayCalls(dufs, Path.of(args[1]));
+        } else {
+            try (VolumeFile volume = new VolumeFile(new File(args[1]), "rw")) {
+                result = replayer.replayVolume(volume);
+            }
+        }
+        System.out.println("events,failures,elapsed_ms");
+        System.out.println(result.getEvents() + "," + result.getFailures() + "," + result.getElapsedNanos() / 1_000_000);
+    }
+
+    /*
+     * replays calls of Dufs; calls which throw DufsException are counted as failures (they may have failed
+     * in the original run as well). the volume stays attached to the given Dufs
+     */
+    public Result replayCalls(Dufs dufs, Path volumeDirectory) throws IOException, DufsException {
+        Path scratch = Files.createTempDirectory("dufs-replay");
+        try (TraceReader reader = new TraceReader(trace)) {
+            if (reader.getLevel() != TraceLevel.API) {
+                throw new DufsException("Trace does not contain calls of Dufs.");
+            }
+            Result result = new Result();
+            long started = System.nanoTime();
+            TraceEvent event;
+            while ((event = reader.next()) != null) {
+                waitFor(started, event);
+                try {
+                    call(dufs, volumeDirectory, scratch, event);
+                } catch (DufsException e) {
+                    result.failures++;
+                }
+                result.events++;
+            }
+            result.elapsedNanos = System.nanoTime() - started;
+            return result;
+        } finally {
+            deleteTree(scratch);
+        }
+    }
+
+    /*
+     * replays reads and writes of the volume file (through the given file, so caches set on it take part)
+     */
+    public Result replayVolume(RandomAccessFile volume) throws IOException, DufsException {
+        try (TraceReader reader = new TraceReader(trace)) {
+            if (reader.getLevel() != TraceLevel.VOLUME) {
+                throw new DufsException("Trace does not contain I/O of the volume.");
+            }
+            Result result = new Result();
+            byte[] buffer = new byte[4096];
+            long started = System.nanoTime();
+            TraceEvent event;
+            while ((event = reader.next()) != null) {
+                waitFor(started, event);
+                if (event.getLength() > buffer.length && event.getType() != TraceEvent.SET_LENGTH) {
+                    buffer = new byte[(int) event.getLength()];
+                }
+                switch (event.getType()) {
+                    case TraceEvent.READ -> {
+                        volume.seek(event.getPosition());
+                        volume.read(buffer, 0, (int) event.getLength());
+                    }
+                    case TraceEvent.WRITE -> {
+                        volume.seek(event.getPosition());
+                        volume.write(buffer, 0, (int) event.getLength());
+                    }
+                    case TraceEvent.SET_LENGTH -> volume.setLength(event.getLength());
+                    case TraceEvent.SYNC -> {
+                        if (volume instanceof VolumeFile volumeFile) {
+                            volumeFile.sync();
+                        } else {
+                            volume.getChannel().force(false);
+                        }
+                    }
+                    default -> result.failures++;
+                }
+                result.events++;
+            }
+            result.elapsedNanos = System.nanoTime() - started;
+            return result;
+        }
+    }
+
+    private void waitFor(long started, TraceEvent event) {
+        if (!originalTiming) {
+            return;
+        }
+        long delay;
+        while ((delay = started + event.getNanos() - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    private static void call(Dufs dufs, Path volumeDirectory, Path scratch, TraceEvent event) throws IOException, DufsException {
+        String[] arguments = event.getArguments();
+        long[] numbers = event.getNumbers();
+        switch (event.getOperation()) {
+            case MOUNT_VOLUME -> dufs.mountVolume(volumeDirectory.resolve(arguments[0]).toString(), (int) numbers[0], numbers[1]);
+            case ATTACH_VOLUME -> dufs.attachVolume(volumeDirectory.resolve(arguments[0]).toString());
+            case CREATE_RECORD -> dufs.createRecord(arguments[0], arguments[1], (byte) numbers[0]);
+            case WRITE_FILE -> dufs.writeFile(arguments[0], hostFile(scratch, numbers[0]));
+            case APPEND_FILE -> dufs.appendFile(arguments[0], hostFile(scratch, numbers[0]));
+            case READ_FILE -> dufs.readFile(arguments[0], scratch.resolve("read").toFile());
+            case READ_RANGE -> dufs.readFile(arguments[0], numbers[0], new byte[(int) numbers[1]]);
+            case GROW_VOLUME -> dufs.growVolume(numbers[0]);
+            case DELETE_TREE -> dufs.deleteTree(arguments[0]);
+            case EXPORT_TREE -> {
+                Path export = scratch.resolve("export");
+                deleteTree(export);
+                dufs.exportTree(arguments[0], export);
+            }
+            case LIST_DIRECTORY -> dufs.listDirectory(arguments[0]);
+            case LIST -> dufs.list(arguments[0]).forEach(entry -> { });
+            case DELETE_RECORD -> dufs.deleteRecord(arguments[0], (byte) numbers[0]);
+            case RENAME_RECORD -> dufs.renameRecord(arguments[0], arguments[1], (byte) numbers[0]);
+            case MOVE_RECORD -> dufs.moveRecord(arguments[0], arguments[1], (byte) numbers[0]);
+            case COPY_RECORD -> dufs.copyRecord(arguments[0], arguments[1], (byte) numbers[0]);
+            case DEFRAGMENTATION -> dufs.defragmentation();
+            case BAKE -> dufs.bake();
+            case UNBAKE -> dufs.unbake();
+            case SYNC -> dufs.sync();
+            case FLUSH -> dufs.flush();
+            case CHECK_VOLUME -> dufs.checkVolume(numbers[0] != 0);
+            case CREATE_SNAPSHOT -> dufs.createSnapshot(arguments[0]);
+            case DELETE_SNAPSHOT -> dufs.deleteSnapshot(arguments[0]);
+            case WRITE_RANGE -> dufs.writeFile(arguments[0], numbers[0], new byte[(int) numbers[1]]);
+        }
+    }
+
+    /*
+     * host file of the given size with the same content in every replay
+     */
+    private static File hostFile(Path scratch, long size) throws IOException {
+        File file = scratch.resolve("host-" + size).toFile();
+        if (!file.exists()) {
+            try (RandomAccessFile host = new RandomAccessFile(file, "rw")) {
+                byte[] chunk = new byte[(int) Math.min(size, 1 << 16)];
+                for (int i = 0; i < chunk.length; ++i) {
+                    chunk[i] = (byte) i;
+                }
+                for (long written = 0; written < size; written += chunk.length) {
+                    host.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+                }
+            }
+        }
+        return file;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/*
+ * cluster chain of a record seen as one byte array: position in the chain is mapped to the cluster
+ * by its order number, so any part of the content is read or written without walking the chain again.
+ * writes beyond the last cluster grow the chain, trim() gives unused clusters back;
+ * as everywhere in DUFS, content of `size` bytes takes size / clusterSize + 1 clusters
+ */
+public class ClusterChain {
+    private final RandomAccessFile volume;
+    private final ReservedSpace reservedSpace;
+    private int[] clusters = new int[16];
+    private int length;
+
+    public ClusterChain(RandomAccessFile volume, ReservedSpace reservedSpace, int firstClusterIndex) throws IOException, DufsException {
+        this.volume = volume;
+        this.reservedSpace = reservedSpace;
+        int clusterIndex = firstClusterIndex;
+        while (clusterIndex != -1) {
+            if (length >= reservedSpace.getReservedClusters()) {
+                throw new DufsException("Given cluster chain is broken.");
+            }
+            if (length == clusters.length) {
+                clusters = Arrays.copyOf(clusters, length * 2);
+            }
+            clusters[length++] = clusterIndex;
+            clusterIndex = VolumeUtility.findNextClusterIndexInChain(volume, clusterIndex);
+        }
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getClusterIndex(int orderNumber) {
+        return clusters[orderNumber];
+    }
+
+    /*
+     * reads bytes which are inside the clusters of the chain
+     */
+    public void read(long position, byte[] b, int off, int len) throws IOException, DufsException {
+        int clusterSize = reservedSpace.getClusterSize();
+        if (position + len > (long) length * clusterSize) {
+            throw new DufsException("Given range is out of the cluster chain.");
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        while (len > 0) {
+            int orderNumber = (int) (position / clusterSize);
+            int inCluster = (int) (position % clusterSize);
+            int bytes = Math.min(len, clusterSize - inCluster);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusters[orderNumber]) + inCluster);
+            volume.readFully(b, off, bytes);
+            position += bytes;
+            off += bytes;
+            len -= bytes;
+        }
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * writes bytes, appending clusters to the chain until it covers position + len
+     */
+    public void write(long position, byte[] b, int off, int len) throws IOException, DufsException {
+        int clusterSize = reservedSpace.getClusterSize();
+        long defaultFilePointer = volume.getFilePointer();
+        while (len > 0) {
+            int orderNumber = (int) (position / clusterSize);
+            while (orderNumber >= length) {
+                grow();
+            }
+            int inCluster = (int) (position % clusterSize);
+            int bytes = Math.min(len, clusterSize - inCluster);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusters[orderNumber]) + inCluster);
+            volume.write(b, off, bytes);
+            position += bytes;
+            off += bytes;
+            len -= bytes;
+        }
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * makes the chain exactly as long as content of the given size needs: grows it or frees clusters in its end
+     */
+    public void trim(long size) throws IOException, DufsException {
+        int neededClusters = (int) (size / reservedSpace.getClusterSize()) + 1;
+        while (length < neededClusters) {
+            grow();
+        }
+        if (length == neededClusters) {
+            return;
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        byte[] emptyCluster = new byte[reservedSpace.getClusterSize()];
+        for (int i = neededClusters; i < length; ++i) {
+            VolumeIO.protectClusters(volume, reservedSpace, clusters[i], 1);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusters[i]));
+            volume.write(emptyCluster);
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusters[i]));
+            volume.write(new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4]);
+            volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
+        }
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusters[neededClusters - 1]));
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() + length - neededClusters);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        length = neededClusters;
+        volume.seek(defaultFilePointer);
+    }
+
+    private void grow() throws IOException, DufsException {
+        // the search of the next free cluster, made after the allocation, needs one more free cluster
+        if (reservedSpace.getFreeClusters() <= 1) {
+            throw new DufsException("Not enough space in the volume to write this content in file.");
+        }
+        int prevClusterIndex = (length > 1) ? clusters[length - 2] : ClusterIndexListOffsets.NO_CLUSTER;
+        int clusterIndex = VolumeUtility.updateClusterIndexChain(volume, reservedSpace, clusters[length - 1], prevClusterIndex);
+        VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        if (length == clusters.length) {
+            clusters = Arrays.copyOf(clusters, length * 2);
+        }
+        clusters[length++] = clusterIndex;
+    }
+}
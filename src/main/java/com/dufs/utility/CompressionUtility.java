@@ -0,0 +1,275 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * content of a compressed file (Record.COMPRESSED) is split into blocks of blockSize logical bytes,
+ * every block is deflated on its own, so any part of the file is read by inflating only the blocks it covers.
+ * cluster chain of the file contains:
+ *   header (HEADER_SIZE bytes): int blockSize, int blockCount, long logicalSize, long tableOffset
+ *   blocks, one after another
+ *   block table: int per block -- its length in the chain (STORED bit is set if the block did not compress)
+ * Record.size is the physical size (header + blocks + table), so the chain is handled as the one of a plain file;
+ * the logical size is in the header. an empty compressed file has no header at all.
+ */
+public class CompressionUtility {
+    public static final int HEADER_SIZE = 24;
+    private static final int STORED = 0x80000000;
+
+    private static class Header {
+        private int blockSize;
+        private int blockCount;
+        private long logicalSize;
+        private long tableOffset;
+        private int[] table;
+    }
+
+    /*
+     * size of the content of the file as it is seen by the user
+     */
+    public static long readLogicalSize(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return 0;
+        }
+        return readHeader(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()), false).logicalSize;
+    }
+
+    /*
+     * replaces content of the file with the content of the stream
+     */
+    public static void writeFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                 InputStream in, int blockSize) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        chain.trim(0);
+        Header header = new Header();
+        header.blockSize = blockSize;
+        header.table = new int[0];
+        header.tableOffset = HEADER_SIZE;
+        appendBlocks(volume, reservedSpace, recordIndex, chain, header, new byte[blockSize], 0, in);
+    }
+
+    /*
+     * appends content of the stream to the file: only the last block (if it is not full) is inflated and written again
+     */
+    public static void appendFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                  InputStream in, int blockSize) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        if (record.getSize() == 0) {
+            writeFile(volume, reservedSpace, recordIndex, in, blockSize);
+            return;
+        }
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        Header header = readHeader(chain, true);
+        byte[] block = new byte[header.blockSize];
+        int filled = (int) (header.logicalSize % header.blockSize);
+        if (filled != 0) {
+            // last block is reopened, new content continues it
+            long[] offsets = blockOffsets(header);
+            int last = header.blockCount - 1;
+            readBlock(chain, header, offsets[last], last, block, filled);
+            header.blockCount--;
+            header.logicalSize -= filled;
+            header.tableOffset = offsets[last];
+        }
+        appendBlocks(volume, reservedSpace, recordIndex, chain, header, block, filled, in);
+    }
+
+    /*
+     * writes whole content of the file into the stream
+     */
+    public static void readFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record,
+                                OutputStream out) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return;
+        }
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        Header header = readHeader(chain, true);
+        long[] offsets = blockOffsets(header);
+        byte[] block = new byte[header.blockSize];
+        for (int i = 0; i < header.blockCount; ++i) {
+            int bytes = logicalBlockLength(header, i);
+            readBlock(chain, header, offsets[i], i, block, bytes);
+            out.write(block, 0, bytes);
+        }
+    }
+
+    /*
+     * reads up to len bytes starting from the logical position, inflating only the blocks which cover them;
+     * returns number of bytes read, -1 if the position is at the end of the file
+     */
+    public static int read(RandomAccessFile volume, ReservedSpace reservedSpace, Record record, long position,
+                           byte[] b, int off, int len) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return -1;
+        }
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        Header header = readHeader(chain, true);
+        if (position >= header.logicalSize) {
+            return -1;
+        }
+        len = (int) Math.min(len, header.logicalSize - position);
+        long[] offsets = blockOffsets(header);
+        byte[] block = new byte[header.blockSize];
+        int done = 0;
+        while (done < len) {
+            int blockNumber = (int) ((position + done) / header.blockSize);
+            int inBlock = (int) ((position + done) % header.blockSize);
+            int bytes = logicalBlockLength(header, blockNumber);
+            readBlock(chain, header, offsets[blockNumber], blockNumber, block, bytes);
+            int copied = Math.min(len - done, bytes - inBlock);
+            System.arraycopy(block, inBlock, b, off + done, copied);
+            done += copied;
+        }
+        return done;
+    }
+
+    private static void appendBlocks(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                     ClusterChain chain, Header header, byte[] block, int filled,
+                                     InputStream in) throws IOException, DufsException {
+        Deflater deflater = new Deflater();
+        try {
+            byte[] compressed = new byte[header.blockSize];
+            int[] table = Arrays.copyOf(header.table, header.blockCount);
+            long dataEnd = header.tableOffset;
+            int bytes;
+            while ((bytes = in.read(block, filled, block.length - filled)) != -1 || filled > 0) {
+                filled += Math.max(bytes, 0);
+                if (filled < block.length && bytes != -1) {
+                    continue;
+                }
+                // block is full or the stream has ended
+                deflater.reset();
+                deflater.setInput(block, 0, filled);
+                deflater.finish();
+                int length = deflater.deflate(compressed);
+                int entry;
+                if (deflater.finished() && length < filled) {
+                    chain.write(dataEnd, compressed, 0, length);
+                    entry = length;
+                } else {
+                    chain.write(dataEnd, block, 0, filled);
+                    length = filled;
+                    entry = filled | STORED;
+                }
+                if (header.blockCount == table.length) {
+                    table = Arrays.copyOf(table, Math.max(16, table.length * 2));
+                }
+                table[header.blockCount++] = entry;
+                header.logicalSize += filled;
+                dataEnd += length;
+                filled = 0;
+                if (bytes == -1) {
+                    break;
+                }
+            }
+            header.table = table;
+            header.tableOffset = dataEnd;
+            writeTable(chain, header);
+            long physicalSize = header.tableOffset + 4L * header.blockCount;
+            chain.trim(physicalSize);
+            VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, physicalSize);
+            VolumeIO.updateRecordLastEdit(volume, reservedSpace, recordIndex);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeTable(ClusterChain chain, Header header) throws IOException, DufsException {
+        ByteBuffer table = ByteBuffer.allocate(4 * header.blockCount);
+        for (int i = 0; i < header.blockCount; ++i) {
+            table.putInt(header.table[i]);
+        }
+        chain.write(header.tableOffset, table.array(), 0, table.capacity());
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(header.blockSize);
+        buffer.putInt(header.blockCount);
+        buffer.putLong(header.logicalSize);
+        buffer.putLong(header.tableOffset);
+        chain.write(0, buffer.array(), 0, HEADER_SIZE);
+    }
+
+    private static Header readHeader(ClusterChain chain, boolean withTable) throws IOException, DufsException {
+        byte[] bytes = new byte[HEADER_SIZE];
+        chain.read(0, bytes, 0, HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Header header = new Header();
+        header.blockSize = buffer.getInt();
+        header.blockCount = buffer.getInt();
+        header.logicalSize = buffer.getLong();
+        header.tableOffset = buffer.getLong();
+        if (header.blockSize <= 0 || header.blockCount < 0 || header.tableOffset < HEADER_SIZE) {
+            throw new DufsException("Compressed file is damaged.");
+        }
+        if (withTable) {
+            byte[] table = new byte[4 * header.blockCount];
+            chain.read(header.tableOffset, table, 0, table.length);
+            ByteBuffer tableBuffer = ByteBuffer.wrap(table);
+            header.table = new int[header.blockCount];
+            for (int i = 0; i < header.blockCount; ++i) {
+                header.table[i] = tableBuffer.getInt();
+            }
+        }
+        return header;
+    }
+
+    /*
+     * position of every block in the chain
+     */
+    private static long[] blockOffsets(Header header) {
+        long[] offsets = new long[header.blockCount];
+        long offset = HEADER_SIZE;
+        for (int i = 0; i < header.blockCount; ++i) {
+            offsets[i] = offset;
+            offset += header.table[i] & ~STORED;
+        }
+        return offsets;
+    }
+
+    private static int logicalBlockLength(Header header, int blockNumber) {
+        return (int) Math.min(header.blockSize, header.logicalSize - (long) blockNumber * header.blockSize);
+    }
+
+    private static void readBlock(ClusterChain chain, Header header, long offset, int blockNumber,
+                                  byte[] block, int bytes) throws IOException, DufsException {
+        int entry = header.table[blockNumber];
+        int length = entry & ~STORED;
+        if ((entry & STORED) != 0) {
+            chain.read(offset, block, 0, length);
+            return;
+        }
+        byte[] compressed = new byte[length];
+        chain.read(offset, compressed, 0, length);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int done = 0;
+            while (done < bytes && !inflater.finished()) {
+                int inflated = inflater.inflate(block, done, bytes - done);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                done += inflated;
+            }
+            if (done != bytes) {
+                throw new DufsException("Compressed file is damaged.");
+            }
+        } catch (DataFormatException e) {
+            throw new DufsException("Compressed file is damaged.");
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * copies a file or a directory with everything in it inside the volume, so the content never leaves it.
+ * deduplicated and sparse files get a copy of their cluster map only, and every shared cluster of the map gets
+ * one more reference: the content is shared until one of the files is written (copy-on-write, see DedupUtility).
+ * chains of other files are copied cluster to cluster, by runs of adjacent clusters up to MAX_RUN_BYTES.
+ * directories are recreated level by level: records of the copied directory are created first,
+ * then their indexes are written into the cluster of the new directory at once
+ */
+public class CopyUtility {
+    // upper bound of bytes copied by one read and one write
+    private static final int MAX_RUN_BYTES = 1 << 20;
+
+    /*
+     * copies the record into the directory under the name; returns index of the copy
+     */
+    public static int copy(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex, int directoryIndex,
+                           String name) throws IOException, DufsException {
+        Record source = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        if (source.getType() == 0) {
+            for (int index = directoryIndex; ; index = VolumeIO.readRecordFromVolume(volume, reservedSpace, index).getParentDirectoryIndex()) {
+                if (index == recordIndex) {
+                    throw new DufsException("Directory cannot be copied into itself.");
+                }
+                if (index == 0) {
+                    break;
+                }
+            }
+        }
+        // the search of the next free cluster, made after the allocation, needs one more free cluster
+        if (countClusters(volume, reservedSpace, recordIndex, source) >= reservedSpace.getFreeClusters()) {
+            throw new DufsException("Not enough space in the volume to copy the record.");
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        int copyIndex = reservedSpace.getNextRecordIndex();
+        if (copyIndex == 0) {
+            throw new DufsException("Not enough space in the volume to copy the record.");
+        }
+        Record directory = VolumeIO.readRecordFromVolume(volume, reservedSpace, directoryIndex);
+        int orderNumber = VolumeUtility.addRecordIndexInDirectoryCluster(volume, reservedSpace, copyIndex,
+                directory.getFirstClusterIndex());
+        createCopy(volume, reservedSpace, recordIndex, source, name.toCharArray(), directoryIndex, orderNumber);
+        // pairs of the copied directory and its copy
+        Deque<int[]> directories = new ArrayDeque<>();
+        if (source.getType() == 0) {
+            directories.push(new int[] {recordIndex, copyIndex});
+        }
+        while (!directories.isEmpty()) {
+            int[] pair = directories.pop();
+            copyDirectoryContent(volume, reservedSpace, pair[0], pair[1], directories);
+        }
+        volume.seek(defaultFilePointer);
+        return copyIndex;
+    }
+
+    /*
+     * the first cluster of the new directory is filled by one write, the records which do not fit in it are added one by one
+     */
+    private static void copyDirectoryContent(RandomAccessFile volume, ReservedSpace reservedSpace, int directoryIndex,
+                                             int copyIndex, Deque<int[]> directories) throws IOException, DufsException {
+        int[] recordIndexes = VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, directoryIndex);
+        int firstClusterIndex = VolumeIO.readRecordFirstClusterIndex(volume, reservedSpace, copyIndex);
+        int inFirstCluster = Math.min(recordIndexes.length, reservedSpace.getClusterSize() / 4 - 1);
+        ByteBuffer firstCluster = ByteBuffer.allocate(4 * (inFirstCluster + 1));
+        firstCluster.putInt(inFirstCluster);
+        for (int i = 0; i < recordIndexes.length; ++i) {
+            Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndexes[i]);
+            int recordCopyIndex = reservedSpace.getNextRecordIndex();
+            if (recordCopyIndex == 0) {
+                throw new DufsException("Not enough space in the volume to copy the record.");
+            }
+            int orderNumber;
+            if (i < inFirstCluster) {
+                orderNumber = i + 1;
+                firstCluster.putInt(recordCopyIndex);
+            } else {
+                if (i == inFirstCluster) {
+                    writeFirstCluster(volume, reservedSpace, firstClusterIndex, firstCluster);
+                }
+                orderNumber = VolumeUtility.addRecordIndexInDirectoryCluster(volume, reservedSpace, recordCopyIndex, firstClusterIndex);
+            }
+            createCopy(volume, reservedSpace, recordIndexes[i], record, record.getNameString().toCharArray(), copyIndex, orderNumber);
+            if (record.getType() == 0) {
+                directories.push(new int[] {recordIndexes[i], recordCopyIndex});
+            }
+        }
+        if (recordIndexes.length <= inFirstCluster) {
+            writeFirstCluster(volume, reservedSpace, firstClusterIndex, firstCluster);
+        }
+    }
+
+    private static void writeFirstCluster(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex,
+                                          ByteBuffer content) throws IOException {
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+        volume.write(content.array());
+    }
+
+    /*
+     * creates the copy of the record at ReservedSpace.nextRecordIndex; inline and packed files, whose extension slot
+     * cannot be taken, are copied as plain files
+     */
+    private static void createCopy(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex, Record source,
+                                   char[] name, int directoryIndex, int orderNumber) throws IOException, DufsException {
+        int copyIndex = reservedSpace.getNextRecordIndex();
+        byte type = source.getIsFile();
+        boolean extended = (source.isInline() || source.isPacked())
+                && InlineUtility.reserveExtensionSlot(volume, reservedSpace, copyIndex);
+        if (!extended) {
+            type = (byte) (type & ~(Record.INLINE | Record.PACKED));
+        }
+        int firstClusterIndex = ClusterIndexListOffsets.NO_CLUSTER;
+        if (!extended || source.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+            if (reservedSpace.getFreeClusters() <= 1) {
+                throw new DufsException("Not enough space in the volume to copy the record.");
+            }
+            firstClusterIndex = reservedSpace.getNextClusterIndex();
+            VolumeUtility.createClusterIndexChain(volume, reservedSpace, firstClusterIndex, copyIndex);
+            reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+            VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        }
+        VolumeIO.writeRecordToVolume(volume, reservedSpace, copyIndex,
+                new Record(name, firstClusterIndex, directoryIndex, orderNumber, type));
+        reservedSpace.setNextRecordIndex(VolumeUtility.findNextFreeRecordIndex(volume, reservedSpace));
+        VolumeIO.updateVolumeNextRecordIndex(volume, reservedSpace.getNextRecordIndex());
+        if (source.getType() == 1) {
+            copyContent(volume, reservedSpace, recordIndex, source, copyIndex, firstClusterIndex, extended);
+        }
+    }
+
+    private static void copyContent(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex, Record source,
+                                    int copyIndex, int firstClusterIndex, boolean extended) throws IOException, DufsException {
+        if (source.isInline()) {
+            byte[] content = InlineUtility.readContent(volume, reservedSpace, source, recordIndex);
+            if (extended) {
+                InlineUtility.writeContent(volume, reservedSpace, copyIndex, content);
+                return;
+            }
+            ClusterChain chain = new ClusterChain(volume, reservedSpace, firstClusterIndex);
+            chain.write(0, content, 0, content.length);
+            chain.trim(content.length);
+            VolumeIO.updateRecordSize(volume, reservedSpace, copyIndex, content.length);
+            return;
+        }
+        if (source.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+            copyChain(volume, reservedSpace, new ClusterChain(volume, reservedSpace, source.getFirstClusterIndex()),
+                    new ClusterChain(volume, reservedSpace, firstClusterIndex));
+        }
+        if (source.isPacked()) {
+            byte[] tail = TailPackingUtility.readTail(volume, reservedSpace, recordIndex);
+            if (extended) {
+                TailPackingUtility.writeTail(volume, reservedSpace, copyIndex, tail);
+            } else {
+                ClusterChain chain = new ClusterChain(volume, reservedSpace, firstClusterIndex);
+                chain.write(source.getSize() - tail.length, tail, 0, tail.length);
+                chain.trim(source.getSize());
+            }
+        }
+        if (source.isDeduplicated()) {
+            DedupUtility.retainFile(volume, reservedSpace, source);
+        }
+        if (source.isSparse()) {
+            SparseUtility.retainFile(volume, reservedSpace, source);
+        }
+        VolumeIO.updateRecordSize(volume, reservedSpace, copyIndex, source.getSize());
+    }
+
+    /*
+     * makes the chain of the copy as long as the source one and copies the clusters by runs,
+     * which are adjacent both in the source chain and in the chain of the copy
+     */
+    private static void copyChain(RandomAccessFile volume, ReservedSpace reservedSpace, ClusterChain source,
+                                  ClusterChain copy) throws IOException, DufsException {
+        int clusterSize = reservedSpace.getClusterSize();
+        copy.trim((long) (source.getLength() - 1) * clusterSize);
+        int runClusters = Math.max(1, MAX_RUN_BYTES / clusterSize);
+        byte[] buffer = new byte[runClusters * clusterSize];
+        for (int i = 0, run; i < source.getLength(); i += run) {
+            run = 1;
+            while (i + run < source.getLength() && run < runClusters
+                    && source.getClusterIndex(i + run) == source.getClusterIndex(i) + run
+                    && copy.getClusterIndex(i + run) == copy.getClusterIndex(i) + run) {
+                run++;
+            }
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, source.getClusterIndex(i)));
+            volume.readFully(buffer, 0, run * clusterSize);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, copy.getClusterIndex(i)));
+            volume.write(buffer, 0, run * clusterSize);
+        }
+    }
+
+    /*
+     * clusters which the copy of the tree takes at most: the chains of its records,
+     * and one more for every inline or packed file, which may be copied as a plain one or put its tail into a new fragment cluster
+     */
+    private static long countClusters(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                      Record record) throws IOException, DufsException {
+        long clusters = 0;
+        Deque<Integer> records = new ArrayDeque<>();
+        records.push(recordIndex);
+        while (!records.isEmpty()) {
+            int index = records.pop();
+            Record current = (index == recordIndex) ? record : VolumeIO.readRecordFromVolume(volume, reservedSpace, index);
+            if (current.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+                clusters += new ClusterChain(volume, reservedSpace, current.getFirstClusterIndex()).getLength();
+            }
+            if (current.isInline() || current.isPacked()) {
+                clusters++;
+            }
+            if (current.getType() == 0) {
+                for (int childIndex : VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, index)) {
+                    records.push(childIndex);
+                }
+            }
+        }
+        return clusters;
+    }
+}
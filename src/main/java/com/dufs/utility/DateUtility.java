@@ -1,7 +1,10 @@
 package com.dufs.utility;
 
+import java.time.DateTimeException;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 public class DateUtility {
     private static final int REFERENCE_YEAR = 2020;
@@ -44,4 +47,29 @@ public class DateUtility {
         final int doubleSecond = (encodedTime & 0b0000000000011111) * 2;
         return new int[] { hour, minute, doubleSecond };
     }
-}
\ No newline at end of file
+
+    /*
+     * epoch timestamps (in milliseconds) of the format 2 are shown in the short encoding with the local time zone
+     */
+    public static short dateToShort(long epochMilli) {
+        return dateToShort(LocalDate.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault()));
+    }
+
+    public static short timeToShort(long epochMilli) {
+        return timeToShort(LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault()));
+    }
+
+    /*
+     * returns 0 if the encoded date is not a valid one (an empty record or an extension slot)
+     */
+    public static long toEpochMilli(short encodedDate, short encodedTime) {
+        int[] date = shortToDate(encodedDate);
+        int[] time = shortToTime(encodedTime);
+        try {
+            return LocalDateTime.of(date[0], date[1], date[2], time[0], time[1], time[2])
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.volume.DedupIndex;
+import com.dufs.volume.VolumeFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * content of a deduplicated file (Record.DEDUPLICATED) is kept in shared clusters, which any number of files reference.
+ * cluster chain of the file contains only its cluster map:
+ *   header (HEADER_SIZE bytes): long logicalSize, int clusterCount
+ *   int per cluster of the content -- index of the shared cluster
+ * element of a shared cluster in the cluster index list is (0xFFFFFFFF, reference count, SHARED_CLUSTER):
+ * it is never taken as free, and it does not belong to any chain.
+ * shared clusters are never modified: a changed cluster is written as a new one (copy-on-write)
+ * and the old one is released; it is freed when its reference count drops to zero.
+ */
+public class DedupUtility {
+    public static final int HEADER_SIZE = 12;
+    public static final int SHARED_CLUSTER = 0xFFFFFFFE;
+
+    /*
+     * cluster map of the file, which sparse files keep as well (see SparseUtility)
+     */
+    static class ClusterMap {
+        long logicalSize;
+        int clusterCount;
+        int[] clusterIndexes = new int[16];
+    }
+
+    public static boolean isSharedCluster(RandomAccessFile volume, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 8);
+        int recordIndex = volume.readInt();
+        volume.seek(defaultFilePointer);
+        return recordIndex == SHARED_CLUSTER;
+    }
+
+    public static long readLogicalSize(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return 0;
+        }
+        return readClusterMap(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex())).logicalSize;
+    }
+
+    /*
+     * replaces content of the file with the content of the stream
+     */
+    public static void writeFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                 InputStream in) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        releaseFile(volume, reservedSpace, record);
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        appendClusters(volume, reservedSpace, recordIndex, chain, new ClusterMap(),
+                new byte[reservedSpace.getClusterSize()], 0, in);
+    }
+
+    /*
+     * appends content of the stream; the last cluster, if it is not full, is copied before it is modified
+     */
+    public static void appendFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                  InputStream in) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        if (record.getSize() == 0) {
+            writeFile(volume, reservedSpace, recordIndex, in);
+            return;
+        }
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        ClusterMap map = readClusterMap(chain);
+        byte[] block = new byte[reservedSpace.getClusterSize()];
+        int filled = (int) (map.logicalSize % reservedSpace.getClusterSize());
+        if (filled != 0) {
+            int lastClusterIndex = map.clusterIndexes[--map.clusterCount];
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, lastClusterIndex, block);
+            release(volume, reservedSpace, lastClusterIndex);
+            map.logicalSize -= filled;
+        }
+        appendClusters(volume, reservedSpace, recordIndex, chain, map, block, filled, in);
+    }
+
+    public static void readFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record,
+                                OutputStream out) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return;
+        }
+        ClusterMap map = readClusterMap(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()));
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        for (int i = 0; i < map.clusterCount; ++i) {
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, map.clusterIndexes[i], cluster);
+            out.write(cluster, 0, (int) Math.min(cluster.length, map.logicalSize - (long) i * cluster.length));
+        }
+    }
+
+    /*
+     * reads up to len bytes starting from the logical position;
+     * returns number of bytes read, -1 if the position is at the end of the file
+     */
+    public static int read(RandomAccessFile volume, ReservedSpace reservedSpace, Record record, long position,
+                           byte[] b, int off, int len) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return -1;
+        }
+        ClusterMap map = readClusterMap(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()));
+        if (position >= map.logicalSize) {
+            return -1;
+        }
+        len = (int) Math.min(len, map.logicalSize - position);
+        int clusterSize = reservedSpace.getClusterSize();
+        long defaultFilePointer = volume.getFilePointer();
+        int done = 0;
+        while (done < len) {
+            int orderNumber = (int) ((position + done) / clusterSize);
+            int inCluster = (int) ((position + done) % clusterSize);
+            int bytes = Math.min(len - done, clusterSize - inCluster);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, map.clusterIndexes[orderNumber]) + inCluster);
+            volume.readFully(b, off + done, bytes);
+            done += bytes;
+        }
+        volume.seek(defaultFilePointer);
+        return done;
+    }
+
+    /*
+     * drops references of the file to its shared clusters (before the file is rewritten or deleted)
+     */
+    public static void releaseFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return;
+        }
+        ClusterMap map = readClusterMap(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()));
+        for (int i = 0; i < map.clusterCount; ++i) {
+            release(volume, reservedSpace, map.clusterIndexes[i]);
+        }
+    }
+
+    /*
+     * adds one reference to every shared cluster of the file, whose cluster map has been copied to another file
+     */
+    public static void retainFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return;
+        }
+        ClusterMap map = readClusterMap(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()));
+        for (int i = 0; i < map.clusterCount; ++i) {
+            retain(volume, map.clusterIndexes[i]);
+        }
+    }
+
+    /*
+     * references to shared clusters per shared cluster (1.0 when nothing is shared)
+     */
+    public static double readDeduplicationRatio(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        long sharedClusters = 0;
+        long references = 0;
+        long defaultFilePointer = volume.getFilePointer();
+        for (int clusterIndex = 1; clusterIndex < reservedSpace.getReservedClusters(); ++clusterIndex) {
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 4);
+            int referenceCount = volume.readInt();
+            if (volume.readInt() == SHARED_CLUSTER) {
+                sharedClusters++;
+                references += referenceCount;
+            }
+        }
+        volume.seek(defaultFilePointer);
+        return (sharedClusters == 0) ? 1.0 : (double) references / sharedClusters;
+    }
+
+    private static void appendClusters(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                       ClusterChain chain, ClusterMap map, byte[] block, int filled,
+                                       InputStream in) throws IOException, DufsException {
+        DedupIndex index = dedupIndex(volume, reservedSpace);
+        MessageDigest digest = digest();
+        int bytes;
+        while ((bytes = in.read(block, filled, block.length - filled)) != -1 || filled > 0) {
+            filled += Math.max(bytes, 0);
+            if (filled < block.length && bytes != -1) {
+                continue;
+            }
+            // cluster is full or the stream has ended
+            Arrays.fill(block, filled, block.length, (byte) 0);
+            if (map.clusterCount == map.clusterIndexes.length) {
+                map.clusterIndexes = Arrays.copyOf(map.clusterIndexes, map.clusterCount * 2);
+            }
+            map.clusterIndexes[map.clusterCount++] = store(volume, reservedSpace, index, digest, block);
+            map.logicalSize += filled;
+            filled = 0;
+            if (bytes == -1) {
+                break;
+            }
+        }
+        writeClusterMap(volume, reservedSpace, recordIndex, chain, map);
+    }
+
+    static void writeClusterMap(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                ClusterChain chain, ClusterMap map) throws IOException, DufsException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * map.clusterCount);
+        buffer.putLong(map.logicalSize);
+        buffer.putInt(map.clusterCount);
+        for (int i = 0; i < map.clusterCount; ++i) {
+            buffer.putInt(map.clusterIndexes[i]);
+        }
+        chain.write(0, buffer.array(), 0, buffer.capacity());
+        chain.trim(buffer.capacity());
+        VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, buffer.capacity());
+        VolumeIO.updateRecordLastEdit(volume, reservedSpace, recordIndex);
+    }
+
+    /*
+     * returns the shared cluster with such content: an existing one gets one more reference, otherwise it is allocated
+     */
+    private static int store(RandomAccessFile volume, ReservedSpace reservedSpace, DedupIndex index,
+                             MessageDigest digest, byte[] cluster) throws IOException, DufsException {
+        long hash = hash(digest, cluster);
+        Integer candidate = index.find(hash);
+        long defaultFilePointer = volume.getFilePointer();
+        if (candidate != null) {
+            byte[] content = new byte[cluster.length];
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, candidate, content);
+            if (Arrays.equals(content, cluster)) {
+                retain(volume, candidate);
+                return candidate;
+            }
+        }
+        // the search of the next free cluster, made after the allocation, needs one more free cluster
+        if (reservedSpace.getFreeClusters() <= 1) {
+            throw new DufsException("Not enough space in the volume to write this content in file.");
+        }
+        int clusterIndex = reservedSpace.getNextClusterIndex();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
+        volume.writeInt(1);
+        volume.writeInt(SHARED_CLUSTER);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+        volume.write(cluster);
+        reservedSpace.setNextClusterIndex(VolumeUtility.findNextFreeClusterIndex(volume, reservedSpace));
+        VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        index.add(hash, clusterIndex);
+        volume.seek(defaultFilePointer);
+        return clusterIndex;
+    }
+
+    /*
+     * adds one reference to the shared cluster
+     */
+    static void retain(RandomAccessFile volume, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        long elementPosition = VolumePointerUtility.calculateClusterIndexPosition(clusterIndex);
+        volume.seek(elementPosition + 4);
+        int referenceCount = volume.readInt();
+        volume.seek(elementPosition + 4);
+        volume.writeInt(referenceCount + 1);
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * drops one reference to the shared cluster, frees it when there are no more
+     */
+    static void release(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        long elementPosition = VolumePointerUtility.calculateClusterIndexPosition(clusterIndex);
+        volume.seek(elementPosition + 4);
+        int referenceCount = volume.readInt();
+        if (referenceCount > 1) {
+            volume.seek(elementPosition + 4);
+            volume.writeInt(referenceCount - 1);
+        } else {
+            VolumeIO.protectClusters(volume, reservedSpace, clusterIndex, 1);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+            volume.write(new byte[reservedSpace.getClusterSize()]);
+            volume.seek(elementPosition);
+            volume.write(new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4]);
+            volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
+            reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() + 1);
+            VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+            if (volume instanceof VolumeFile volumeFile && volumeFile.getDedupIndex() != null) {
+                volumeFile.getDedupIndex().remove(clusterIndex);
+            }
+        }
+        volume.seek(defaultFilePointer);
+    }
+
+    static ClusterMap readClusterMap(ClusterChain chain) throws IOException, DufsException {
+        byte[] header = new byte[HEADER_SIZE];
+        chain.read(0, header, 0, HEADER_SIZE);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        ClusterMap map = new ClusterMap();
+        map.logicalSize = headerBuffer.getLong();
+        map.clusterCount = headerBuffer.getInt();
+        if (map.clusterCount < 0 || map.logicalSize < 0) {
+            throw new DufsException("Cluster map of the file is damaged.");
+        }
+        byte[] clusterIndexes = new byte[4 * map.clusterCount];
+        chain.read(HEADER_SIZE, clusterIndexes, 0, clusterIndexes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(clusterIndexes);
+        map.clusterIndexes = new int[Math.max(16, map.clusterCount)];
+        for (int i = 0; i < map.clusterCount; ++i) {
+            map.clusterIndexes[i] = buffer.getInt();
+        }
+        return map;
+    }
+
+    /*
+     * index of the volume, which is built by hashing every shared cluster when it is needed first
+     */
+    private static DedupIndex dedupIndex(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        if (volume instanceof VolumeFile volumeFile && volumeFile.getDedupIndex() != null) {
+            return volumeFile.getDedupIndex();
+        }
+        DedupIndex index = new DedupIndex();
+        MessageDigest digest = digest();
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        for (int clusterIndex = 1; clusterIndex < reservedSpace.getReservedClusters(); ++clusterIndex) {
+            if (isSharedCluster(volume, clusterIndex)) {
+                VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+                index.add(hash(digest, cluster), clusterIndex);
+            }
+        }
+        if (volume instanceof VolumeFile volumeFile) {
+            volumeFile.setDedupIndex(index);
+        }
+        return index;
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every JVM provides SHA-256
+        }
+    }
+
+    private static long hash(MessageDigest digest, byte[] cluster) {
+        return ByteBuffer.wrap(digest.digest(cluster)).getLong();
+    }
+}
@@ -0,0 +1,212 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.volume.VolumeFile;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ExportUtility {
+    // files which take at least this many clusters are exported by the worker threads
+    private static final int PARALLEL_EXPORT_CLUSTERS_THRESHOLD = 16;
+    // upper bound of bytes read from the volume by one positional read
+    private static final int MAX_READ_SIZE = 1 << 20;
+
+    private static class ExportedFile {
+        private final Record record;
+        private final int recordIndex;
+        private final Path hostPath;
+
+        private ExportedFile(Record record, int recordIndex, Path hostPath) {
+            this.record = record;
+            this.recordIndex = recordIndex;
+            this.hostPath = hostPath;
+        }
+    }
+
+    /*
+     * exports content of the directory into hostDirectory:
+     * directory structure is walked once by record indexes, then files are exported in order of their first clusters,
+     * large files -- concurrently, using positional reads of the volume
+     */
+    public static void exportTree(RandomAccessFile volume, ReservedSpace reservedSpace, int directoryIndex,
+                                  Path hostDirectory) throws IOException, DufsException {
+        List<ExportedFile> files = new ArrayList<>();
+        collectTree(volume, reservedSpace, directoryIndex, hostDirectory, files);
+        files.sort(Comparator.comparingInt(file -> file.record.getFirstClusterIndex()));
+        FileChannel channel = (volume instanceof VolumeFile volumeFile) ? volumeFile.getReadChannel() : volume.getChannel();
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (ExportedFile file : files) {
+                if (file.record.isSparse()) {
+                    try (RandomAccessFile host = new RandomAccessFile(file.hostPath.toFile(), "rw")) {
+                        SparseUtility.readFile(volume, reservedSpace, file.record, host);
+                    }
+                } else if (file.record.isCompressed() || file.record.isDeduplicated() || file.record.isPacked()) {
+                    // read through the volume object by this thread
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.hostPath))) {
+                        if (file.record.isCompressed()) {
+                            CompressionUtility.readFile(volume, reservedSpace, file.record, out);
+                        } else if (file.record.isDeduplicated()) {
+                            DedupUtility.readFile(volume, reservedSpace, file.record, out);
+                        } else {
+                            TailPackingUtility.readFile(volume, reservedSpace, file.record, file.recordIndex, out);
+                        }
+                    }
+                } else if (VolumeHelper.howMuchClustersNeeds(reservedSpace, file.record.getSize()) >= PARALLEL_EXPORT_CLUSTERS_THRESHOLD) {
+                    futures.add(executor.submit(() -> {
+                        exportFile(channel, reservedSpace, file.record, file.hostPath);
+                        return null;
+                    }));
+                } else {
+                    exportFile(channel, reservedSpace, file.record, file.hostPath);
+                }
+            }
+            for (Future<Void> future : futures) {
+                waitFor(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * walks the directory tree without recursion, creating host directories on the way
+     */
+    private static void collectTree(RandomAccessFile volume, ReservedSpace reservedSpace, int directoryIndex,
+                                    Path hostDirectory, List<ExportedFile> files) throws IOException, DufsException {
+        Deque<Integer> directories = new ArrayDeque<>();
+        Deque<Path> hostDirectories = new ArrayDeque<>();
+        directories.push(directoryIndex);
+        hostDirectories.push(hostDirectory);
+        while (!directories.isEmpty()) {
+            int currentDirectoryIndex = directories.pop();
+            Path currentHostDirectory = hostDirectories.pop();
+            Files.createDirectories(currentHostDirectory);
+            int[] recordIndexes = VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, currentDirectoryIndex);
+            Arrays.sort(recordIndexes);     // read records in order of their position in the record list
+            for (int recordIndex : recordIndexes) {
+                Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+                Path hostPath = currentHostDirectory.resolve(new String(record.getName()).replace("\u0000", ""));
+                if (record.isInline()) {
+                    Files.write(hostPath, InlineUtility.readContent(volume, reservedSpace, record, recordIndex));
+                } else if (record.getType() == 1) {
+                    files.add(new ExportedFile(record, recordIndex, hostPath));
+                } else {
+                    directories.push(recordIndex);
+                    hostDirectories.push(hostPath);
+                }
+            }
+        }
+    }
+
+    /*
+     * reads clusters of the file in order of their position in the volume,
+     * physically and logically adjacent clusters are read and written by one call
+     */
+    public static void exportFile(FileChannel channel, ReservedSpace reservedSpace, Record record,
+                                  Path hostPath) throws IOException, DufsException {
+        final int clusterSize = reservedSpace.getClusterSize();
+        final long size = record.getSize();
+        int[] chain = readClusterChain(channel, reservedSpace, record.getFirstClusterIndex());
+        int usedClusters = Math.min(chain.length, VolumeHelper.howMuchClustersNeeds(reservedSpace, size));
+        long[] clusters = new long[usedClusters];      // physical cluster index in high bits, logical order number in low bits
+        for (int i = 0; i < usedClusters; ++i) {
+            clusters[i] = ((long) chain[i] << 32) | i;
+        }
+        Arrays.sort(clusters);
+        int maxRunLength = Math.max(1, MAX_READ_SIZE / clusterSize);
+        ByteBuffer buffer = ByteBuffer.allocate(clusterSize * Math.min(maxRunLength, Math.max(1, usedClusters)));
+        try (FileChannel hostChannel = FileChannel.open(hostPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int i = 0;
+            while (i < usedClusters) {
+                int firstClusterIndex = (int) (clusters[i] >>> 32);
+                int firstOrderNumber = (int) clusters[i];
+                int runLength = 1;
+                while (i + runLength < usedClusters && runLength < maxRunLength
+                        && (int) (clusters[i + runLength] >>> 32) == firstClusterIndex + runLength
+                        && (int) clusters[i + runLength] == firstOrderNumber + runLength) {
+                    runLength++;
+                }
+                long logicalPosition = (long) firstOrderNumber * clusterSize;
+                int bytes = (int) Math.min((long) runLength * clusterSize, size - logicalPosition);
+                buffer.clear().limit(bytes);
+                long volumePosition = VolumePointerUtility.calculateClusterPosition(reservedSpace, firstClusterIndex);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, volumePosition + buffer.position()) == -1) {
+                        throw new DufsException("Volume is shorter than the file content.");
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    hostChannel.write(buffer, logicalPosition + buffer.position());
+                }
+                i += runLength;
+            }
+        }
+    }
+
+    /*
+     * positional (thread-safe) traversal of the cluster chain
+     */
+    public static int[] readClusterChain(FileChannel channel, ReservedSpace reservedSpace,
+                                         int firstClusterIndex) throws IOException, DufsException {
+        int[] chain = new int[16];
+        int length = 0;
+        ByteBuffer element = ByteBuffer.allocate(4);
+        int clusterIndex = firstClusterIndex;
+        while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER) {
+            if ((clusterIndex == 0 && length > 0) || length >= reservedSpace.getReservedClusters()) {
+                throw new DufsException("Given cluster chain is broken.");
+            }
+            if (length == chain.length) {
+                chain = Arrays.copyOf(chain, length * 2);
+            }
+            chain[length++] = clusterIndex;
+            element.clear();
+            long position = VolumePointerUtility.calculateClusterIndexPosition(clusterIndex);
+            while (element.hasRemaining()) {
+                if (channel.read(element, position + element.position()) == -1) {
+                    throw new DufsException("Given cluster chain is broken.");
+                }
+            }
+            clusterIndex = element.getInt(0);   // ClusterIndexElement.nextClusterIndex
+        }
+        return Arrays.copyOf(chain, length);
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException, DufsException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DufsException("Export has been interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof DufsException dufsException) {
+                throw dufsException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,674 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.offsets.RecordOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
+import com.dufs.volume.IntArray;
+import com.dufs.volume.VolumeFile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * consistency check of the volume (fsck). the cluster index list and the record list are read by big positional
+ * reads of the channel of the volume, in parallel by fork/join tasks over their sequential chunks, so the check
+ * runs at about the sequential read speed of the disk; then records and clusters are checked against each other
+ * in memory (off-heap for big volumes, see IntArray), by the same tasks:
+ *   - every chain starts at Record.firstClusterIndex of its record, its elements point back to the record
+ *     and to the previous cluster (next/prev symmetry), no cluster is in two chains, no used cluster is lost
+ *   - every entry of a directory is a record of the directory at its parentDirectoryIndexOrderNumber,
+ *     and the directory counts every record, which it is the parent of
+ *   - extension slots, reference counts of shared clusters (of deduplicated and sparse files),
+ *     slot maps and free bytes of fragment clusters
+ *   - ReservedSpace.freeClusters, nextClusterIndex and nextRecordIndex
+ * the volume has to be flushed before the check. problems, which can be repaired without loss of content,
+ * are repaired through the volume on request; the others are only reported.
+ */
+public class FsckUtility {
+    // elements of the cluster index list and records read by one positional read
+    private static final int CLUSTER_CHUNK = 1 << 16;
+    private static final int RECORD_CHUNK = 1 << 13;
+    // bits of the record info besides Record.isFile
+    private static final int EXISTS = 0x100;
+    private static final int EXTENSION_SLOT = 0x200;
+
+    private interface Repair {
+        void apply(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException, DufsException;
+    }
+
+    private static class Problem {
+        private final String message;
+        private final Repair repair;
+
+        private Problem(String message, Repair repair) {
+            this.message = message;
+            this.repair = repair;
+        }
+    }
+
+    /*
+     * what one task has found; results of the tasks are merged in order of their chunks
+     */
+    private static class Result {
+        private final List<Problem> problems = new ArrayList<>();
+        private final Map<Integer, Integer> childCounts = new HashMap<>();
+        private final Map<Integer, Integer> directoryCounts = new HashMap<>();
+        private final Map<Integer, Integer> sharedReferences = new HashMap<>();
+        // fragment (cluster in high bits, offset in low bits) -> record in high bits, length in low bits
+        private final Map<Long, Long> fragments = new HashMap<>();
+        private long freeClusters;
+        private long freeRecords;
+
+        private void problem(String message) {
+            problems.add(new Problem(message, null));
+        }
+
+        private void problem(String message, Repair repair) {
+            problems.add(new Problem(message, repair));
+        }
+
+        private Result merge(Result other) {
+            problems.addAll(other.problems);
+            other.childCounts.forEach((key, value) -> childCounts.merge(key, value, Integer::sum));
+            directoryCounts.putAll(other.directoryCounts);
+            other.sharedReferences.forEach((key, value) -> sharedReferences.merge(key, value, Integer::sum));
+            for (Map.Entry<Long, Long> fragment : other.fragments.entrySet()) {
+                Long previous = fragments.put(fragment.getKey(), fragment.getValue());
+                if (previous != null) {
+                    problems.add(new Problem("Fragment " + fragmentName(fragment.getKey()) + " is referenced by records "
+                            + (int) (previous >>> 32) + " and " + (int) (fragment.getValue() >>> 32) + ".", null));
+                }
+            }
+            freeClusters += other.freeClusters;
+            freeRecords += other.freeRecords;
+            return this;
+        }
+    }
+
+    /*
+     * metadata of the volume in memory
+     */
+    private static class Metadata {
+        private final FileChannel channel;
+        private final ReservedSpace reservedSpace;
+        private final int clusters;
+        private final IntArray nextClusterIndexes;
+        private final IntArray prevClusterIndexes;
+        private final IntArray recordIndexes;
+        private final IntArray firstClusterIndexes;
+        private final IntArray parentDirectoryIndexes;
+        private final IntArray orderNumbers;
+        private final IntArray infos;
+        private final AtomicLongArray reached;
+
+        private Metadata(FileChannel channel, ReservedSpace reservedSpace) {
+            this.channel = channel;
+            this.reservedSpace = reservedSpace;
+            this.clusters = reservedSpace.getReservedClusters();
+            this.nextClusterIndexes = new IntArray(clusters);
+            this.prevClusterIndexes = new IntArray(clusters);
+            this.recordIndexes = new IntArray(clusters);
+            this.firstClusterIndexes = new IntArray(clusters);
+            this.parentDirectoryIndexes = new IntArray(clusters);
+            this.orderNumbers = new IntArray(clusters);
+            this.infos = new IntArray(clusters);
+            this.reached = new AtomicLongArray((clusters + 63) / 64);
+        }
+
+        private boolean isCluster(int clusterIndex) {
+            return clusterIndex >= 0 && clusterIndex < clusters;
+        }
+
+        private boolean isEntry(int recordIndex) {
+            return recordIndex > 0 && recordIndex < clusters
+                    && (infos.get(recordIndex) & (EXISTS | EXTENSION_SLOT)) == EXISTS;
+        }
+
+        /*
+         * false if the cluster has been reached already
+         */
+        private boolean reach(int clusterIndex) {
+            long bit = 1L << (clusterIndex & 63);
+            return (reached.getAndAccumulate(clusterIndex >>> 6, bit, (a, b) -> a | b) & bit) == 0;
+        }
+
+        private boolean isReached(int clusterIndex) {
+            return (reached.get(clusterIndex >>> 6) & (1L << (clusterIndex & 63))) != 0;
+        }
+    }
+
+    private interface ChunkCheck {
+        void check(int from, int to, Result result) throws IOException;
+    }
+
+    private static class ChunkTask extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final transient ChunkCheck check;
+
+        private ChunkTask(int from, int to, int chunk, ChunkCheck check) {
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.check = check;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from <= chunk) {
+                Result result = new Result();
+                try {
+                    check.check(from, to, result);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return result;
+            }
+            int middle = from + Math.max(1, (to - from) / chunk / 2) * chunk;
+            ChunkTask left = new ChunkTask(from, middle, chunk, check);
+            left.fork();
+            Result right = new ChunkTask(middle, to, chunk, check).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    /*
+     * returns the problems found (an empty list for a consistent volume), repairing them if `repair` is true
+     */
+    public static List<String> checkVolume(RandomAccessFile volume, ReservedSpace reservedSpace,
+                                           boolean repair) throws IOException, DufsException {
+        FileChannel channel = (volume instanceof VolumeFile volumeFile) ? volumeFile.getReadChannel() : volume.getChannel();
+        Metadata metadata = new Metadata(channel, reservedSpace);
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Problem> problems = new ArrayList<>();
+        try {
+            Result clusters = run(pool, metadata.clusters, CLUSTER_CHUNK, (from, to, result) -> loadClusters(metadata, from, to, result));
+            Result records = run(pool, metadata.clusters, RECORD_CHUNK, (from, to, result) -> loadRecords(metadata, from, to, result));
+            Result chains = run(pool, metadata.clusters, RECORD_CHUNK, (from, to, result) -> checkRecords(metadata, from, to, result));
+            Result elements = run(pool, metadata.clusters, CLUSTER_CHUNK,
+                    (from, to, result) -> checkClusters(metadata, chains.sharedReferences, records.fragments, from, to, result));
+            checkCounters(metadata, clusters.freeClusters, records.freeRecords, problems);
+            problems.addAll(clusters.problems);
+            problems.addAll(records.problems);
+            problems.addAll(chains.problems);
+            problems.addAll(elements.problems);
+            checkDirectoryCounts(chains, problems);
+            checkFragmentReferences(records.fragments, elements.fragments, problems);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (repair) {
+            for (Problem problem : problems) {
+                if (problem.repair != null) {
+                    problem.repair.apply(volume, reservedSpace);
+                }
+            }
+            if (volume instanceof VolumeFile volumeFile) {
+                // indexes are built again from the repaired list when they are needed
+                volumeFile.setDedupIndex(null);
+                volumeFile.setFragmentIndex(null);
+            }
+        }
+        List<String> messages = new ArrayList<>(problems.size());
+        for (Problem problem : problems) {
+            messages.add(problem.message);
+        }
+        return messages;
+    }
+
+    private static Result run(ForkJoinPool pool, int elements, int chunk, ChunkCheck check) throws IOException {
+        try {
+            return pool.invoke(new ChunkTask(0, elements, chunk, check));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * positional read; the part beyond the end of the volume (clusters of a baked volume) is read as zeros
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                break;
+            }
+        }
+        return buffer.clear();
+    }
+
+    private static void loadClusters(Metadata metadata, int from, int to, Result result) throws IOException {
+        ByteBuffer buffer = read(metadata.channel, VolumePointerUtility.calculateClusterIndexPosition(from),
+                ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * (to - from));
+        for (int clusterIndex = from; clusterIndex < to; ++clusterIndex) {
+            int nextClusterIndex = buffer.getInt();
+            metadata.nextClusterIndexes.set(clusterIndex, nextClusterIndex);
+            metadata.prevClusterIndexes.set(clusterIndex, buffer.getInt());
+            metadata.recordIndexes.set(clusterIndex, buffer.getInt());
+            if (nextClusterIndex == 0) {
+                result.freeClusters++;
+            }
+        }
+    }
+
+    /*
+     * the chunk is read with the record after it, which may be the extension slot of its last record
+     */
+    private static void loadRecords(Metadata metadata, int from, int to, Result result) throws IOException {
+        ReservedSpace reservedSpace = metadata.reservedSpace;
+        int recordSize = reservedSpace.getRecordSize();
+        int records = Math.min(to + 1, metadata.clusters) - from;
+        ByteBuffer buffer = read(metadata.channel, VolumePointerUtility.calculateRecordPosition(reservedSpace, from),
+                recordSize * records);
+        for (int recordIndex = from; recordIndex < to; ++recordIndex) {
+            int position = recordSize * (recordIndex - from);
+            int info = info(reservedSpace, buffer, position);
+            metadata.infos.set(recordIndex, info);
+            if ((info & EXISTS) == 0) {
+                if (recordIndex > 0) {
+                    result.freeRecords++;
+                }
+                continue;
+            }
+            if ((info & EXTENSION_SLOT) != 0) {
+                continue;
+            }
+            boolean formatV2 = reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2;
+            metadata.firstClusterIndexes.set(recordIndex, buffer.getInt(position
+                    + (formatV2 ? RecordOffsetsV2.FIRST_CLUSTER_INDEX_OFFSET : RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET)));
+            metadata.parentDirectoryIndexes.set(recordIndex, buffer.getInt(position
+                    + (formatV2 ? RecordOffsetsV2.PARENT_DIRECTORY_INDEX_OFFSET : RecordOffsets.PARENT_DIRECTORY_INDEX_OFFSET)));
+            metadata.orderNumbers.set(recordIndex, buffer.getInt(position + (formatV2
+                    ? RecordOffsetsV2.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET : RecordOffsets.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET)));
+            int nameLength = formatV2 ? buffer.get(position + RecordOffsetsV2.NAME_LENGTH_OFFSET) & 0xFF : 0;
+            if (nameLength > RecordOffsetsV2.INLINE_NAME_CAPACITY) {
+                long fragment = ((long) buffer.getInt(position + RecordOffsetsV2.NAME_OFFSET) << 32)
+                        | (buffer.getInt(position + RecordOffsetsV2.NAME_OFFSET + 4) & 0xFFFFFFFFL);
+                addFragment(result, fragment, recordIndex, nameLength);
+            }
+            int slotPosition = position + recordSize;
+            if ((info & Record.PACKED) != 0 && recordIndex + 1 < metadata.clusters
+                    && (info(reservedSpace, buffer, slotPosition) & EXTENSION_SLOT) != 0) {
+                byte[] slot = new byte[recordSize];
+                buffer.get(slotPosition, slot);
+                ByteBuffer address = ByteBuffer.wrap(InlineUtility.readExtensionSlot(reservedSpace, slot,
+                        TailPackingUtility.ADDRESS_SIZE));
+                int clusterIndex = address.getInt();
+                int offset = address.getInt();
+                int length = address.getInt();
+                if (clusterIndex != 0) {
+                    addFragment(result, ((long) clusterIndex << 32) | (offset & 0xFFFFFFFFL), recordIndex, length);
+                }
+            }
+        }
+    }
+
+    private static int info(ReservedSpace reservedSpace, ByteBuffer buffer, int position) {
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            long createTime = buffer.getLong(position + RecordOffsetsV2.CREATE_TIME_OFFSET);
+            if (createTime == 0) {
+                return 0;
+            }
+            return (createTime == InlineUtility.EXTENSION_SLOT_MARKER_V2) ? EXISTS | EXTENSION_SLOT
+                    : EXISTS | (buffer.get(position + RecordOffsetsV2.IS_FILE_OFFSET) & 0xFF);
+        }
+        short createDate = buffer.getShort(position + RecordOffsets.CREATE_DATE_OFFSET);
+        if (createDate == 0) {
+            return 0;
+        }
+        return (createDate == InlineUtility.EXTENSION_SLOT_MARKER) ? EXISTS | EXTENSION_SLOT
+                : EXISTS | (buffer.get(position + RecordOffsets.IS_FILE_OFFSET) & 0xFF);
+    }
+
+    private static void addFragment(Result result, long fragment, int recordIndex, int length) {
+        Long previous = result.fragments.put(fragment, ((long) recordIndex << 32) | (length & 0xFFFFFFFFL));
+        if (previous != null) {
+            result.problem("Fragment " + fragmentName(fragment) + " is referenced by records "
+                    + (int) (previous >>> 32) + " and " + recordIndex + ".");
+        }
+    }
+
+    private static String fragmentName(long fragment) {
+        return (int) (fragment >>> 32) + ":" + (int) fragment;
+    }
+
+    private static void checkRecords(Metadata metadata, int from, int to, Result result) throws IOException {
+        for (int recordIndex = from; recordIndex < to; ++recordIndex) {
+            int info = metadata.infos.get(recordIndex);
+            if ((info & EXISTS) == 0) {
+                if (recordIndex == 0) {
+                    result.problem("Root's record is empty.");
+                }
+                continue;
+            }
+            if ((info & EXTENSION_SLOT) != 0) {
+                checkExtensionSlot(metadata, recordIndex, result);
+                continue;
+            }
+            checkParent(metadata, recordIndex, result);
+            byte isFile = (byte) info;
+            boolean chainless = (isFile & (Record.INLINE | Record.PACKED)) != 0;
+            if (chainless && (recordIndex + 1 >= metadata.clusters
+                    || (metadata.infos.get(recordIndex + 1) & EXTENSION_SLOT) == 0)) {
+                result.problem("File " + recordIndex + " has no extension slot.");
+            }
+            int firstClusterIndex = metadata.firstClusterIndexes.get(recordIndex);
+            if (firstClusterIndex == ClusterIndexListOffsets.NO_CLUSTER) {
+                if (!chainless) {
+                    result.problem("Record " + recordIndex + " has no cluster chain.");
+                }
+                continue;
+            }
+            if ((isFile & Record.INLINE) != 0) {
+                result.problem("Inline file " + recordIndex + " has a cluster chain.");
+            }
+            int[] chain = checkChain(metadata, recordIndex, firstClusterIndex, result);
+            if ((isFile & Record.TYPE_MASK) == 0) {
+                checkDirectory(metadata, recordIndex, chain, result);
+            } else if ((isFile & (Record.DEDUPLICATED | Record.SPARSE)) != 0) {
+                checkClusterMap(metadata, recordIndex, isFile, chain, result);
+            }
+        }
+    }
+
+    private static void checkExtensionSlot(Metadata metadata, int recordIndex, Result result) {
+        int fileInfo = (recordIndex > 0) ? metadata.infos.get(recordIndex - 1) : 0;
+        if ((fileInfo & (EXISTS | EXTENSION_SLOT)) != EXISTS || (fileInfo & (Record.INLINE | Record.PACKED)) == 0) {
+            result.problem("Extension slot " + recordIndex + " belongs to no file.", (volume, reservedSpace) -> {
+                long defaultFilePointer = volume.getFilePointer();
+                volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
+                volume.write(new byte[reservedSpace.getRecordSize()]);
+                volume.seek(defaultFilePointer);
+            });
+        }
+    }
+
+    private static void checkParent(Metadata metadata, int recordIndex, Result result) {
+        int parentDirectoryIndex = metadata.parentDirectoryIndexes.get(recordIndex);
+        if (recordIndex == 0) {
+            if ((metadata.infos.get(0) & Record.TYPE_MASK) != 0) {
+                result.problem("Root's record is not a directory.");
+            }
+            return;
+        }
+        if ((parentDirectoryIndex != 0 && !metadata.isEntry(parentDirectoryIndex))
+                || (metadata.infos.get(parentDirectoryIndex) & Record.TYPE_MASK) != 0) {
+            result.problem("Parent directory " + parentDirectoryIndex + " of record " + recordIndex + " does not exist.");
+            return;
+        }
+        result.childCounts.merge(parentDirectoryIndex, 1, Integer::sum);
+    }
+
+    /*
+     * walks the chain of the record, checking its elements; returns the clusters reached
+     */
+    private static int[] checkChain(Metadata metadata, int recordIndex, int firstClusterIndex, Result result) {
+        int[] chain = new int[16];
+        int length = 0;
+        int prevClusterIndex = ClusterIndexListOffsets.NO_CLUSTER;
+        int clusterIndex = firstClusterIndex;
+        while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER) {
+            if (!metadata.isCluster(clusterIndex) || metadata.nextClusterIndexes.get(clusterIndex) == 0
+                    || metadata.recordIndexes.get(clusterIndex) == DedupUtility.SHARED_CLUSTER
+                    || metadata.recordIndexes.get(clusterIndex) == TailPackingUtility.FRAGMENT_CLUSTER) {
+                result.problem("Cluster chain of record " + recordIndex + " is broken at cluster " + clusterIndex + ".");
+                break;
+            }
+            if (!metadata.reach(clusterIndex)) {
+                result.problem("Cluster " + clusterIndex + " of record " + recordIndex + " is in another chain.");
+                break;
+            }
+            int element = clusterIndex;
+            int expectedPrevClusterIndex = prevClusterIndex;
+            if (metadata.prevClusterIndexes.get(clusterIndex) != prevClusterIndex) {
+                result.problem("Cluster " + clusterIndex + " of record " + recordIndex + " points back to cluster "
+                        + metadata.prevClusterIndexes.get(clusterIndex) + " instead of " + prevClusterIndex + ".",
+                        (volume, reservedSpace) -> writeElementField(volume, element, 4, expectedPrevClusterIndex));
+            }
+            if (metadata.recordIndexes.get(clusterIndex) != recordIndex) {
+                result.problem("Cluster " + clusterIndex + " of record " + recordIndex + " belongs to record "
+                        + metadata.recordIndexes.get(clusterIndex) + ".",
+                        (volume, reservedSpace) -> writeElementField(volume, element, 8, recordIndex));
+            }
+            if (length == chain.length) {
+                chain = Arrays.copyOf(chain, length * 2);
+            }
+            chain[length++] = clusterIndex;
+            prevClusterIndex = clusterIndex;
+            clusterIndex = metadata.nextClusterIndexes.get(clusterIndex);
+        }
+        return Arrays.copyOf(chain, length);
+    }
+
+    /*
+     * entries are read as VolumeUtility.readDirectoryRecordIndexes reads them, an entry at int `o` of the chain
+     * has order number `o`
+     */
+    private static void checkDirectory(Metadata metadata, int directoryIndex, int[] chain,
+                                       Result result) throws IOException {
+        if (chain.length == 0) {
+            return;
+        }
+        int clusterSize = metadata.reservedSpace.getClusterSize();
+        int entries = -1;
+        int found = 0;
+        for (int i = 0; i < chain.length && found != entries; ++i) {
+            ByteBuffer cluster = read(metadata.channel,
+                    VolumePointerUtility.calculateClusterPosition(metadata.reservedSpace, chain[i]), clusterSize);
+            if (i == 0) {
+                entries = cluster.getInt();
+                result.directoryCounts.put(directoryIndex, entries);
+            }
+            while (found != entries && cluster.hasRemaining()) {
+                int orderNumber = (int) (((long) i * clusterSize + cluster.position()) / 4);
+                int recordIndex = cluster.getInt();
+                if (recordIndex == 0) {
+                    break;
+                }
+                found++;
+                if (!metadata.isEntry(recordIndex) || metadata.parentDirectoryIndexes.get(recordIndex) != directoryIndex) {
+                    result.problem("Directory " + directoryIndex + " lists record " + recordIndex + ", which is not in it.");
+                } else if (metadata.orderNumbers.get(recordIndex) != orderNumber) {
+                    result.problem("Record " + recordIndex + " has order number " + metadata.orderNumbers.get(recordIndex)
+                                    + " in directory " + directoryIndex + " instead of " + orderNumber + ".",
+                            (volume, reservedSpace) -> VolumeIO.updateRecordParentDirectoryOrderNumber(volume,
+                                    reservedSpace, recordIndex, orderNumber));
+                }
+            }
+        }
+    }
+
+    private static void checkClusterMap(Metadata metadata, int recordIndex, byte isFile, int[] chain,
+                                        Result result) throws IOException {
+        String kind = ((isFile & Record.SPARSE) != 0) ? "Sparse file " : "Deduplicated file ";
+        int clusterSize = metadata.reservedSpace.getClusterSize();
+        ByteBuffer map = ByteBuffer.allocate(clusterSize * chain.length);
+        for (int clusterIndex : chain) {
+            map.put(read(metadata.channel, VolumePointerUtility.calculateClusterPosition(metadata.reservedSpace, clusterIndex),
+                    clusterSize));
+        }
+        int clusterCount = (map.capacity() >= DedupUtility.HEADER_SIZE) ? map.getInt(Long.BYTES) : -1;
+        if (clusterCount < 0 || clusterCount > (map.capacity() - DedupUtility.HEADER_SIZE) / 4) {
+            result.problem("Cluster map of " + kind.toLowerCase() + recordIndex + " is damaged.");
+            return;
+        }
+        for (int i = 0; i < clusterCount; ++i) {
+            int sharedClusterIndex = map.getInt(DedupUtility.HEADER_SIZE + 4 * i);
+            if (sharedClusterIndex == ClusterIndexListOffsets.NO_CLUSTER && (isFile & Record.SPARSE) != 0) {
+                continue;   // hole
+            }
+            if (!metadata.isCluster(sharedClusterIndex) || metadata.nextClusterIndexes.get(sharedClusterIndex) == 0
+                    || metadata.recordIndexes.get(sharedClusterIndex) != DedupUtility.SHARED_CLUSTER) {
+                result.problem(kind + recordIndex + " refers to cluster " + sharedClusterIndex
+                        + ", which is not shared.");
+                continue;
+            }
+            result.sharedReferences.merge(sharedClusterIndex, 1, Integer::sum);
+        }
+    }
+
+    private static void checkClusters(Metadata metadata, Map<Integer, Integer> sharedReferences, Map<Long, Long> references,
+                                      int from, int to, Result result) throws IOException {
+        for (int clusterIndex = from; clusterIndex < to; ++clusterIndex) {
+            if (metadata.nextClusterIndexes.get(clusterIndex) == 0) {
+                continue;
+            }
+            int recordIndex = metadata.recordIndexes.get(clusterIndex);
+            int element = clusterIndex;
+            if (recordIndex == DedupUtility.SHARED_CLUSTER) {
+                int referenceCount = sharedReferences.getOrDefault(clusterIndex, 0);
+                if (metadata.prevClusterIndexes.get(clusterIndex) != referenceCount) {
+                    result.problem("Shared cluster " + clusterIndex + " keeps " + metadata.prevClusterIndexes.get(clusterIndex)
+                            + " references instead of " + referenceCount + ".", (volume, reservedSpace) -> {
+                        if (referenceCount == 0) {
+                            freeCluster(volume, reservedSpace, element);
+                        } else {
+                            writeElementField(volume, element, 4, referenceCount);
+                        }
+                    });
+                }
+            } else if (recordIndex == TailPackingUtility.FRAGMENT_CLUSTER) {
+                checkFragmentCluster(metadata, clusterIndex, references, result);
+            } else if (!metadata.isReached(clusterIndex)) {
+                result.problem("Cluster " + clusterIndex + " is used, but no record reaches it.",
+                        (volume, reservedSpace) -> freeCluster(volume, reservedSpace, element));
+            }
+        }
+    }
+
+    private static void checkFragmentCluster(Metadata metadata, int clusterIndex, Map<Long, Long> references,
+                                             Result result) throws IOException {
+        int clusterSize = metadata.reservedSpace.getClusterSize();
+        ByteBuffer cluster = read(metadata.channel,
+                VolumePointerUtility.calculateClusterPosition(metadata.reservedSpace, clusterIndex), clusterSize);
+        int slotCount = cluster.getInt(0);
+        int mapEnd = TailPackingUtility.MAP_HEADER_SIZE + TailPackingUtility.SLOT_SIZE * slotCount;
+        if (slotCount < 0 || mapEnd > clusterSize) {
+            result.problem("Slot map of fragment cluster " + clusterIndex + " is damaged.");
+            return;
+        }
+        if (slotCount == 0) {
+            result.problem("Fragment cluster " + clusterIndex + " is empty.",
+                    (volume, reservedSpace) -> freeCluster(volume, reservedSpace, clusterIndex));
+            return;
+        }
+        int freeBytes = clusterSize - mapEnd;
+        boolean released = false;
+        for (int slot = 0; slot < slotCount; ++slot) {
+            int slotPosition = TailPackingUtility.MAP_HEADER_SIZE + TailPackingUtility.SLOT_SIZE * slot;
+            int recordIndex = cluster.getInt(slotPosition);
+            int offset = cluster.getInt(slotPosition + 4);
+            int length = cluster.getInt(slotPosition + 8);
+            long fragment = ((long) clusterIndex << 32) | (offset & 0xFFFFFFFFL);
+            if (offset < mapEnd || length < 0 || offset > clusterSize - length) {
+                result.problem("Fragment " + fragmentName(fragment) + " is out of its cluster.");
+                return;
+            }
+            freeBytes -= length;
+            result.fragments.put(fragment, ((long) recordIndex << 32) | length);
+            if (!references.containsKey(fragment)) {
+                released = true;
+                result.problem("Fragment " + fragmentName(fragment) + " of record " + recordIndex + " is referenced by no record.",
+                        (volume, reservedSpace) -> TailPackingUtility.releaseFragment(volume, reservedSpace,
+                                clusterIndex, offset, length));
+            }
+        }
+        // releasing of a fragment counts free bytes of the cluster again
+        if (!released && metadata.prevClusterIndexes.get(clusterIndex) != freeBytes) {
+            int expectedFreeBytes = freeBytes;
+            result.problem("Fragment cluster " + clusterIndex + " keeps " + metadata.prevClusterIndexes.get(clusterIndex)
+                    + " free bytes instead of " + freeBytes + ".",
+                    (volume, reservedSpace) -> writeElementField(volume, clusterIndex, 4, expectedFreeBytes));
+        }
+    }
+
+    /*
+     * repairs of the counters are applied before the others, which keep the counters up to date themselves
+     */
+    private static void checkCounters(Metadata metadata, long freeClusters, long freeRecords, List<Problem> problems) {
+        ReservedSpace reservedSpace = metadata.reservedSpace;
+        if (reservedSpace.getFreeClusters() != freeClusters) {
+            int expectedFreeClusters = (int) freeClusters;
+            problems.add(new Problem("Volume counts " + reservedSpace.getFreeClusters() + " free clusters instead of "
+                    + freeClusters + ".", (volume, space) -> {
+                space.setFreeClusters(expectedFreeClusters);
+                VolumeIO.updateVolumeFreeClusters(volume, expectedFreeClusters);
+            }));
+        }
+        int nextClusterIndex = reservedSpace.getNextClusterIndex();
+        if (freeClusters > 0 && (!metadata.isCluster(nextClusterIndex) || metadata.nextClusterIndexes.get(nextClusterIndex) != 0)) {
+            problems.add(new Problem("Next cluster " + nextClusterIndex + " is not free.", (volume, space) -> {
+                space.setNextClusterIndex(metadata.isCluster(nextClusterIndex) ? nextClusterIndex : 1);
+                space.setNextClusterIndex(VolumeUtility.findNextFreeClusterIndex(volume, space));
+                VolumeIO.updateVolumeNextClusterIndex(volume, space.getNextClusterIndex());
+            }));
+        }
+        int nextRecordIndex = reservedSpace.getNextRecordIndex();
+        boolean nextRecordIsFree = (nextRecordIndex == 0) ? freeRecords == 0
+                : metadata.isCluster(nextRecordIndex) && (metadata.infos.get(nextRecordIndex) & EXISTS) == 0;
+        if (!nextRecordIsFree) {
+            problems.add(new Problem("Next record " + nextRecordIndex + " is not free.", (volume, space) -> {
+                space.setNextRecordIndex(metadata.isCluster(nextRecordIndex) ? nextRecordIndex : 1);
+                space.setNextRecordIndex(VolumeUtility.findNextFreeRecordIndex(volume, space));
+                VolumeIO.updateVolumeNextRecordIndex(volume, space.getNextRecordIndex());
+            }));
+        }
+    }
+
+    private static void checkDirectoryCounts(Result chains, List<Problem> problems) {
+        for (Map.Entry<Integer, Integer> directory : new TreeMap<>(chains.directoryCounts).entrySet()) {
+            int children = chains.childCounts.getOrDefault(directory.getKey(), 0);
+            if (directory.getValue() != children) {
+                problems.add(new Problem("Directory " + directory.getKey() + " counts " + directory.getValue()
+                        + " records instead of " + children + ".", null));
+            }
+        }
+    }
+
+    private static void checkFragmentReferences(Map<Long, Long> references, Map<Long, Long> fragments, List<Problem> problems) {
+        for (Map.Entry<Long, Long> reference : new TreeMap<>(references).entrySet()) {
+            Long fragment = fragments.get(reference.getKey());
+            if (fragment == null) {
+                problems.add(new Problem("Record " + (int) (reference.getValue() >>> 32) + " refers to fragment "
+                        + fragmentName(reference.getKey()) + ", which does not exist.", null));
+            } else if (!fragment.equals(reference.getValue())) {
+                problems.add(new Problem("Fragment " + fragmentName(reference.getKey()) + " of record "
+                        + (int) (fragment >>> 32) + " is referenced by record " + (int) (reference.getValue() >>> 32) + ".", null));
+            }
+        }
+    }
+
+    private static void writeElementField(RandomAccessFile volume, int clusterIndex, int fieldOffset, int value) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + fieldOffset);
+        volume.writeInt(value);
+        volume.seek(defaultFilePointer);
+    }
+
+    private static void freeCluster(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        VolumeIO.protectClusters(volume, reservedSpace, clusterIndex, 1);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+        volume.write(new byte[reservedSpace.getClusterSize()]);
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+        volume.write(new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4]);
+        volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() + 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        volume.seek(defaultFilePointer);
+    }
+}
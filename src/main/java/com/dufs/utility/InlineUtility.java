@@ -0,0 +1,176 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.offsets.RecordListOffsets;
+import com.dufs.offsets.RecordOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/*
+ * content of an inline file (Record.INLINE) is kept in its extension slot -- the slot of the record list
+ * right after the record of the file, so the file takes no cluster and its content lies next to its record.
+ * extension slot keeps EXTENSION_SLOT_MARKER in place of createDate (0xFFFF is never a valid date),
+ * so it is not taken as a free record, and the content in the other INLINE_CAPACITY bytes.
+ * in the format 2 the marker is EXTENSION_SLOT_MARKER_V2 in place of the create timestamp,
+ * so the slot keeps inlineCapacity() == 56 bytes there.
+ * firstClusterIndex of an inline file is 0xFFFFFFFF, Record.size is the size of its content.
+ * a file which outgrows inlineCapacity() is moved to clusters and never becomes inline again.
+ * extension slot of a packed file keeps the address of its tail instead (see TailPackingUtility).
+ */
+public class InlineUtility {
+    public static final short EXTENSION_SLOT_MARKER = (short) 0xFFFF;
+    public static final long EXTENSION_SLOT_MARKER_V2 = 0xFFFFFFFFFFFFFFFFL;
+    public static final int INLINE_CAPACITY = RecordListOffsets.RECORD_SIZE - 2;     // of the format 1
+
+    public static int inlineCapacity(ReservedSpace reservedSpace) {
+        return reservedSpace.getRecordSize() - markerSize(reservedSpace);
+    }
+
+    public static boolean isExtensionSlot(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + markerOffset(reservedSpace));
+        boolean isExtensionSlot = (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2)
+                ? volume.readLong() == EXTENSION_SLOT_MARKER_V2 : volume.readShort() == EXTENSION_SLOT_MARKER;
+        volume.seek(defaultFilePointer);
+        return isExtensionSlot;
+    }
+
+    /*
+     * false for free slots, extension slots and files without cluster chain (inline and small packed ones)
+     */
+    public static boolean hasClusters(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        if (!VolumeHelper.recordExists(volume, reservedSpace, recordIndex) || isExtensionSlot(volume, reservedSpace, recordIndex)) {
+            return false;
+        }
+        return VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex).getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER;
+    }
+
+    /*
+     * takes the slot after the record as its extension slot; false if that slot is not free
+     */
+    public static boolean reserveExtensionSlot(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        int slotIndex = recordIndex + 1;
+        if (slotIndex >= reservedSpace.getReservedClusters() || VolumeHelper.recordExists(volume, reservedSpace, slotIndex)) {
+            return false;
+        }
+        writeExtensionSlot(volume, reservedSpace, recordIndex, new byte[0]);
+        return true;
+    }
+
+    public static byte[] readContent(RandomAccessFile volume, ReservedSpace reservedSpace, Record record,
+                                     int recordIndex) throws IOException, DufsException {
+        if (!record.isInline()) {
+            throw new DufsException("Given record is not an inline file.");
+        }
+        return readExtensionSlot(volume, reservedSpace, recordIndex, (int) record.getSize());
+    }
+
+    /*
+     * returns number of bytes read, -1 if the position is at the end of the file
+     */
+    public static int read(RandomAccessFile volume, ReservedSpace reservedSpace, Record record, int recordIndex,
+                           long position, byte[] b, int off, int len) throws IOException, DufsException {
+        if (position >= record.getSize()) {
+            return -1;
+        }
+        byte[] content = readContent(volume, reservedSpace, record, recordIndex);
+        int bytes = (int) Math.min(len, content.length - position);
+        System.arraycopy(content, (int) position, b, off, bytes);
+        return bytes;
+    }
+
+    /*
+     * replaces content of the file
+     */
+    public static void writeContent(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                    byte[] content) throws IOException, DufsException {
+        if (content.length > inlineCapacity(reservedSpace)) {
+            throw new DufsException("Given content is bigger than the inline capacity.");
+        }
+        writeExtensionSlot(volume, reservedSpace, recordIndex, content);
+        VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, content.length);
+        VolumeIO.updateRecordLastEdit(volume, reservedSpace, recordIndex);
+    }
+
+    public static void releaseExtensionSlot(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex + 1));
+        volume.write(new byte[reservedSpace.getRecordSize()]);
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * gives the file an empty cluster chain and the given type, releasing its extension slot;
+     * content is not moved, it is up to the caller to write it in the new format
+     */
+    public static Record moveToClusters(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                        byte type) throws IOException, DufsException {
+        // the search of the next free cluster, made after the allocation, needs one more free cluster
+        if (reservedSpace.getFreeClusters() <= 1) {
+            throw new DufsException("Not enough space in the volume to write this content in file.");
+        }
+        int firstClusterIndex = reservedSpace.getNextClusterIndex();
+        VolumeUtility.createClusterIndexChain(volume, reservedSpace, firstClusterIndex, recordIndex);
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        releaseExtensionSlot(volume, reservedSpace, recordIndex);
+        VolumeIO.updateRecordFirstClusterIndex(volume, reservedSpace, recordIndex, firstClusterIndex);
+        VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, 0);
+        VolumeIO.updateRecordIsFile(volume, reservedSpace, recordIndex, type);
+        return VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+    }
+
+    /*
+     * reads the first `length` bytes (up to inlineCapacity()) kept in the extension slot of the record by one read
+     */
+    public static byte[] readExtensionSlot(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                           int length) throws IOException {
+        return readExtensionSlot(reservedSpace, VolumeIO.readRecordBytes(volume, reservedSpace, recordIndex + 1), length);
+    }
+
+    /*
+     * takes the first `length` bytes kept in the bytes of an extension slot, which are read already
+     */
+    public static byte[] readExtensionSlot(ReservedSpace reservedSpace, byte[] slot, int length) {
+        int markerOffset = markerOffset(reservedSpace);
+        byte[] content = new byte[length];
+        int head = Math.min(content.length, markerOffset);
+        System.arraycopy(slot, 0, content, 0, head);
+        System.arraycopy(slot, markerOffset + markerSize(reservedSpace), content, head, content.length - head);
+        return content;
+    }
+
+    public static void writeExtensionSlot(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                          byte[] content) throws IOException {
+        int slotIndex = recordIndex + 1;
+        int markerOffset = markerOffset(reservedSpace);
+        int markerSize = markerSize(reservedSpace);
+        byte[] slot = new byte[reservedSpace.getRecordSize()];
+        int head = Math.min(content.length, markerOffset);
+        System.arraycopy(content, 0, slot, 0, head);
+        Arrays.fill(slot, markerOffset, markerOffset + markerSize, (byte) 0xFF);    // both markers are all ones
+        System.arraycopy(content, head, slot, markerOffset + markerSize, content.length - head);
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, slotIndex));
+        volume.write(slot);
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * place of the marker is the place of the create date (create timestamp in the format 2)
+     */
+    private static int markerOffset(ReservedSpace reservedSpace) {
+        return (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2)
+                ? RecordOffsetsV2.CREATE_TIME_OFFSET : RecordOffsets.CREATE_DATE_OFFSET;
+    }
+
+    private static int markerSize(ReservedSpace reservedSpace) {
+        return (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) ? Long.BYTES : Short.BYTES;
+    }
+}
@@ -0,0 +1,137 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.DirEntry;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * lazy listing of a directory: its clusters of record indexes are read one by one, as the stream is consumed,
+ * by one read per cluster. records of the indexes of a cluster are read in order of their indexes,
+ * adjacent ones (or ones with up to MAX_GAP - 1 records between them, e.g. extension slots) by one read,
+ * and the entries are given in order of the directory.
+ * the volume is read while the stream is consumed, so the directory must not be changed meanwhile
+ */
+public class ListUtility {
+    private static final int MAX_GAP = 2;
+
+    private static class EntrySpliterator extends Spliterators.AbstractSpliterator<DirEntry> {
+        private final RandomAccessFile volume;
+        private final ReservedSpace reservedSpace;
+        private final byte[] cluster;
+        private int clusterIndex;       // next cluster of the directory, NO_CLUSTER after the last one
+        private int remaining = -1;     // records which are not read yet, -1 before the first cluster is read
+        private DirEntry[] entries = new DirEntry[0];
+        private int next;
+
+        private EntrySpliterator(RandomAccessFile volume, ReservedSpace reservedSpace, int firstClusterIndex) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.volume = volume;
+            this.reservedSpace = reservedSpace;
+            this.cluster = new byte[reservedSpace.getClusterSize()];
+            this.clusterIndex = firstClusterIndex;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DirEntry> action) {
+            while (next == entries.length) {
+                if (clusterIndex == ClusterIndexListOffsets.NO_CLUSTER || remaining == 0) {
+                    return false;
+                }
+                try {
+                    readCluster();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (DufsException e) {
+                    throw new UncheckedIOException(new IOException(e.getMessage(), e));
+                }
+            }
+            action.accept(entries[next++]);
+            return true;
+        }
+
+        private void readCluster() throws IOException, DufsException {
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+            ByteBuffer buffer = ByteBuffer.wrap(cluster);
+            if (remaining == -1) {
+                remaining = Math.max(0, Math.min(buffer.getInt(), reservedSpace.getReservedClusters()));   // skip first 4 bytes of directory's cluster
+            }
+            int[] recordIndexes = new int[cluster.length / 4];
+            int count = 0;
+            while (count < remaining && buffer.hasRemaining()) {
+                int recordIndex = buffer.getInt();
+                if (recordIndex == 0) {
+                    break;
+                }
+                recordIndexes[count++] = recordIndex;
+            }
+            remaining -= count;
+            clusterIndex = VolumeUtility.findNextClusterIndexInChain(volume, clusterIndex);
+            entries = readEntries(volume, reservedSpace, Arrays.copyOf(recordIndexes, count));
+            next = 0;
+        }
+    }
+
+    public static Stream<DirEntry> list(RandomAccessFile volume, ReservedSpace reservedSpace, int directoryIndex) throws IOException {
+        int firstClusterIndex = VolumeIO.readRecordFirstClusterIndex(volume, reservedSpace, directoryIndex);
+        return StreamSupport.stream(new EntrySpliterator(volume, reservedSpace, firstClusterIndex), false);
+    }
+
+    /*
+     * entries of the records in order of the given indexes
+     */
+    private static DirEntry[] readEntries(RandomAccessFile volume, ReservedSpace reservedSpace,
+                                          int[] recordIndexes) throws IOException, DufsException {
+        int recordSize = reservedSpace.getRecordSize();
+        int[] sortedIndexes = recordIndexes.clone();
+        Arrays.sort(sortedIndexes);
+        DirEntry[] sortedEntries = new DirEntry[sortedIndexes.length];
+        for (int start = 0, end; start < sortedIndexes.length; start = end) {
+            end = start + 1;
+            while (end < sortedIndexes.length && sortedIndexes[end] - sortedIndexes[end - 1] <= MAX_GAP) {
+                end++;
+            }
+            byte[] records = VolumeIO.readRecordsBytes(volume, reservedSpace, sortedIndexes[start],
+                    sortedIndexes[end - 1] - sortedIndexes[start] + 1);
+            for (int i = start; i < end; ++i) {
+                int offset = (sortedIndexes[i] - sortedIndexes[start]) * recordSize;
+                Record record = VolumeIO.decodeRecord(volume, reservedSpace, Arrays.copyOfRange(records, offset, offset + recordSize));
+                sortedEntries[i] = new DirEntry(record.getNameString(), record.getType() == 1,
+                        readSize(volume, reservedSpace, record), record.getCreateTimestamp(), record.getLastEditTimestamp());
+            }
+        }
+        DirEntry[] entries = new DirEntry[recordIndexes.length];
+        for (int i = 0; i < recordIndexes.length; ++i) {
+            entries[i] = sortedEntries[Arrays.binarySearch(sortedIndexes, recordIndexes[i])];
+        }
+        return entries;
+    }
+
+    private static long readSize(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        if (record.getType() == 0) {
+            return 0;
+        }
+        if (record.isCompressed()) {
+            return CompressionUtility.readLogicalSize(volume, reservedSpace, record);
+        }
+        if (record.isDeduplicated()) {
+            return DedupUtility.readLogicalSize(volume, reservedSpace, record);
+        }
+        if (record.isSparse()) {
+            return SparseUtility.readLogicalSize(volume, reservedSpace, record);
+        }
+        return record.getSize();
+    }
+}
@@ -0,0 +1,97 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/*
+ * copies a volume of the format 1 into a volume of the format 2. cluster index list and clusters are copied as they are
+ * (so every chain, shared and fragment cluster keeps its index), while every record is written again in the format 2:
+ * its name is encoded in UTF-8 (a long one is put into the name heap), its dates become epoch timestamps.
+ * extension slots are copied, except the ones of inline files bigger than inlineCapacity() of the format 2,
+ * which are moved to clusters as plain files.
+ */
+public class MigrationUtility {
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+
+    public static void migrateToV2(RandomAccessFile source, RandomAccessFile target) throws IOException, DufsException {
+        ReservedSpace sourceSpace = VolumeIO.readReservedSpaceFromVolume(source);
+        if (sourceSpace.getFormatVersion() != ReservedSpace.FORMAT_V1) {
+            throw new DufsException("Volume is not in the format 1.");
+        }
+        String volumeName = new String(sourceSpace.getVolumeName()).replace("\u0000", "");
+        if (NameHeapUtility.encode(volumeName).length > RecordOffsetsV2.INLINE_NAME_CAPACITY) {
+            throw new DufsException("Volume name length has exceeded the limit.");
+        }
+        long sourceClustersArea = VolumePointerUtility.calculateClustersAreaOffset(sourceSpace);
+        long nettoVolumeSize = sourceSpace.getVolumeSize() - sourceClustersArea;
+        ReservedSpace targetSpace = new ReservedSpace(sourceSpace.getDufsNoseSignature(), sourceSpace.getVolumeName(),
+                sourceSpace.getClusterSize(),
+                VolumeHelper.calculateVolumeSize(sourceSpace.getClusterSize(), nettoVolumeSize, ReservedSpace.FORMAT_V2),
+                sourceSpace.getReservedClusters(), sourceSpace.getCreateDate(), sourceSpace.getCreateTime(),
+                sourceSpace.getLastDefragmentationDate(), sourceSpace.getLastDefragmentationTime(),
+                sourceSpace.getNextClusterIndex(), sourceSpace.getFreeClusters(), sourceSpace.getNextRecordIndex(),
+                ReservedSpace.TAIL_SIGNATURE_V2);
+        // a baked volume keeps only its used clusters, so does the migrated one
+        long clustersBytes = source.length() - sourceClustersArea;
+        target.setLength(VolumePointerUtility.calculateClustersAreaOffset(targetSpace) + clustersBytes);
+        long defaultFilePointer = target.getFilePointer();
+        target.seek(0);
+        target.write(targetSpace.serialize());
+        target.seek(defaultFilePointer);
+        copy(source, target, ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET, ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET,
+                (long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * sourceSpace.getReservedClusters());
+        copy(source, target, sourceClustersArea, VolumePointerUtility.calculateClustersAreaOffset(targetSpace), clustersBytes);
+        VolumeIO.initializeRootRecord(target, targetSpace);
+        for (int recordIndex = 1; recordIndex < sourceSpace.getReservedClusters(); ++recordIndex) {
+            if (!VolumeHelper.recordExists(source, sourceSpace, recordIndex)
+                    || InlineUtility.isExtensionSlot(source, sourceSpace, recordIndex)) {
+                continue;
+            }
+            Record record = VolumeIO.readRecordFromVolume(source, sourceSpace, recordIndex);
+            VolumeIO.writeRecordToVolume(target, targetSpace, recordIndex, record);
+            if (record.isInline()) {
+                migrateInlineFile(source, sourceSpace, target, targetSpace, record, recordIndex);
+            } else if (record.isPacked()) {
+                InlineUtility.writeExtensionSlot(target, targetSpace, recordIndex, InlineUtility.readExtensionSlot(
+                        source, sourceSpace, recordIndex, InlineUtility.inlineCapacity(targetSpace)));
+            }
+        }
+    }
+
+    private static void migrateInlineFile(RandomAccessFile source, ReservedSpace sourceSpace, RandomAccessFile target,
+                                          ReservedSpace targetSpace, Record record, int recordIndex) throws IOException, DufsException {
+        byte[] content = InlineUtility.readContent(source, sourceSpace, record, recordIndex);
+        if (content.length <= InlineUtility.inlineCapacity(targetSpace)) {
+            InlineUtility.writeExtensionSlot(target, targetSpace, recordIndex, content);
+            return;
+        }
+        Record file = InlineUtility.moveToClusters(target, targetSpace, recordIndex, (byte) (record.getIsFile() & ~Record.INLINE));
+        ClusterChain chain = new ClusterChain(target, targetSpace, file.getFirstClusterIndex());
+        chain.write(0, content, 0, content.length);
+        chain.trim(content.length);
+        VolumeIO.updateRecordSize(target, targetSpace, recordIndex, content.length);
+    }
+
+    private static void copy(RandomAccessFile source, RandomAccessFile target, long sourcePosition, long targetPosition,
+                             long length) throws IOException {
+        long sourceFilePointer = source.getFilePointer();
+        long targetFilePointer = target.getFilePointer();
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(length, 1))];
+        source.seek(sourcePosition);
+        target.seek(targetPosition);
+        while (length > 0) {
+            int bytes = (int) Math.min(buffer.length, length);
+            source.readFully(buffer, 0, bytes);
+            target.write(buffer, 0, bytes);
+            length -= bytes;
+        }
+        source.seek(sourceFilePointer);
+        target.seek(targetFilePointer);
+    }
+}
@@ -0,0 +1,120 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.RecordOffsetsV2;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * name of a record of the format 2 is kept in UTF-8: up to INLINE_NAME_CAPACITY bytes in the record itself,
+ * a longer one in the name heap -- a fragment owned by the record in a fragment cluster (see TailPackingUtility),
+ * whose address (int fragment cluster, int offset) is kept in place of the name.
+ * every record keeps FNV-1a hash of its name, so a lookup rejects other names by the record alone,
+ * without decoding them or reading the heap.
+ */
+public class NameHeapUtility {
+    public static final int MAX_NAME_LENGTH = 255;      // bytes of UTF-8, the length is kept in one byte
+
+    public static byte[] encode(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static int hash(byte[] name) {
+        int hash = 0x811C9DC5;
+        for (byte b : name) {
+            hash ^= (b & 0xFF);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /*
+     * the longest name (in bytes of UTF-8) which the volume can keep
+     */
+    public static int maxNameLength(ReservedSpace reservedSpace) {
+        return Math.min(MAX_NAME_LENGTH,
+                Math.max(RecordOffsetsV2.INLINE_NAME_CAPACITY, TailPackingUtility.maxFragment(reservedSpace)));
+    }
+
+    /*
+     * puts the hash, the length and the name (or its address in the heap) into the bytes of the record;
+     * the previous name of the record must be released before
+     */
+    public static void writeName(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                 byte[] record, byte[] name) throws IOException, DufsException {
+        if (name.length > maxNameLength(reservedSpace)) {
+            throw new DufsException("Record name length has exceeded the limit.");
+        }
+        if (name.length <= RecordOffsetsV2.INLINE_NAME_CAPACITY) {
+            writeInlineName(record, name);
+            return;
+        }
+        long address = TailPackingUtility.storeFragment(volume, reservedSpace, recordIndex, name);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        writeNameHeader(record, name);
+        buffer.putInt(RecordOffsetsV2.NAME_OFFSET, (int) (address >>> 32));
+        buffer.putInt(RecordOffsetsV2.NAME_OFFSET + 4, (int) address);
+    }
+
+    /*
+     * the name must fit in the record
+     */
+    public static void writeInlineName(byte[] record, byte[] name) {
+        writeNameHeader(record, name);
+        System.arraycopy(name, 0, record, RecordOffsetsV2.NAME_OFFSET, name.length);
+    }
+
+    public static String readName(RandomAccessFile volume, ReservedSpace reservedSpace, byte[] record) throws IOException {
+        return new String(readNameBytes(volume, reservedSpace, record), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * the heap is read only when the hash and the length of the name match
+     */
+    public static boolean nameEquals(RandomAccessFile volume, ReservedSpace reservedSpace, byte[] record,
+                                     byte[] name) throws IOException {
+        if (ByteBuffer.wrap(record).getInt(RecordOffsetsV2.NAME_HASH_OFFSET) != hash(name)
+                || (record[RecordOffsetsV2.NAME_LENGTH_OFFSET] & 0xFF) != name.length) {
+            return false;
+        }
+        return Arrays.equals(readNameBytes(volume, reservedSpace, record), name);
+    }
+
+    /*
+     * frees the fragment of the name of the record, if it is kept in the heap
+     */
+    public static void releaseName(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException, DufsException {
+        byte[] record = new byte[reservedSpace.getRecordSize()];
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
+        volume.readFully(record);
+        volume.seek(defaultFilePointer);
+        int length = record[RecordOffsetsV2.NAME_LENGTH_OFFSET] & 0xFF;
+        if (length > RecordOffsetsV2.INLINE_NAME_CAPACITY) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            TailPackingUtility.releaseFragment(volume, reservedSpace, buffer.getInt(RecordOffsetsV2.NAME_OFFSET),
+                    buffer.getInt(RecordOffsetsV2.NAME_OFFSET + 4), length);
+        }
+    }
+
+    private static void writeNameHeader(byte[] record, byte[] name) {
+        ByteBuffer.wrap(record).putInt(RecordOffsetsV2.NAME_HASH_OFFSET, hash(name));
+        record[RecordOffsetsV2.NAME_LENGTH_OFFSET] = (byte) name.length;
+        Arrays.fill(record, RecordOffsetsV2.NAME_OFFSET, RecordOffsetsV2.NAME_OFFSET + RecordOffsetsV2.INLINE_NAME_CAPACITY, (byte) 0);
+    }
+
+    private static byte[] readNameBytes(RandomAccessFile volume, ReservedSpace reservedSpace, byte[] record) throws IOException {
+        int length = record[RecordOffsetsV2.NAME_LENGTH_OFFSET] & 0xFF;
+        if (length <= RecordOffsetsV2.INLINE_NAME_CAPACITY) {
+            return Arrays.copyOfRange(record, RecordOffsetsV2.NAME_OFFSET, RecordOffsetsV2.NAME_OFFSET + length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        return TailPackingUtility.loadFragment(volume, reservedSpace, buffer.getInt(RecordOffsetsV2.NAME_OFFSET),
+                buffer.getInt(RecordOffsetsV2.NAME_OFFSET + 4), length);
+    }
+}
@@ -3,7 +3,7 @@ package com.dufs.utility;
 import com.dufs.exceptions.DufsException;
 import com.dufs.model.Record;
 import com.dufs.model.ReservedSpace;
-import com.dufs.offsets.RecordOffsets;
+import com.dufs.offsets.ClusterIndexListOffsets;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -23,8 +23,7 @@ public class PrintUtility {
 
     public static void printRecordsInDirectory(RandomAccessFile volume, ReservedSpace reservedSpace, int directoryIndex) throws IOException, DufsException {
         long defaultFilePointer = volume.getFilePointer();
-        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, directoryIndex) + RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET);
-        int firstClusterIndex = volume.readInt();
+        int firstClusterIndex = VolumeIO.readRecordFirstClusterIndex(volume, reservedSpace, directoryIndex);
         volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, firstClusterIndex));
         int recordsCount = volume.readInt();
         System.out.println("Records count: " + recordsCount);
@@ -47,7 +46,7 @@ public class PrintUtility {
     public static void printRecord(Record record) {
         String name = new String(record.getName()).replace("\u0000", "");
         System.out.print(name + ", ");
-        if (record.getIsFile() == 1) {
+        if (record.getType() == 1) {
             System.out.print("file, ");
             System.out.print(record.getSize() + " bytes, ");
         } else {
@@ -95,12 +94,12 @@ public class PrintUtility {
                 for (int i = 0; i < depth; ++i) {
                     System.out.print("|\t");
                 }
-                if (record.getIsFile() == 0) {
+                if (record.getType() == 0) {
                     System.out.println("|" + name + "\\");
                 } else {
                     System.out.println("|" + name);
                 }
-                if (record.getIsFile() == 0) {
+                if (record.getType() == 0) {
                     dfsPrintRecords(volume, reservedSpace, record.getFirstClusterIndex(), depth + 1);
                 }
                 recordIndex = volume.readInt();
@@ -115,16 +114,18 @@ public class PrintUtility {
         long defaultFilePointer = volume.getFilePointer();
         for (int i = 0; i < reservedSpace.getReservedClusters(); ++i) {
             Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, i);
-            if (VolumeHelper.recordExists(volume, reservedSpace, i)) {
+            if (VolumeHelper.recordExists(volume, reservedSpace, i) && !InlineUtility.isExtensionSlot(volume, reservedSpace, i)) {
                 System.out.print("#" + i + ", ");
-                if (record.getIsFile() == 1) {
+                if (record.getType() == 1) {
                     System.out.print("(FILE)");
                 } else {
                     System.out.print("(DIR)");
                 }
                 System.out.println(":");
                 printRecord(record);
-                printRecordClusterChain(volume, record.getFirstClusterIndex());
+                if (record.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+                    printRecordClusterChain(volume, record.getFirstClusterIndex());
+                }
             }
         }
         volume.seek(defaultFilePointer);
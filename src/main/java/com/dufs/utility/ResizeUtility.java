@@ -0,0 +1,402 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.ClusterIndexElement;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.offsets.RecordOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * resizing of the volume in place.
+ *
+ * growth. the cluster index list, the record list and the clusters area are placed
+ * by ReservedSpace.reservedClusters, so the grown metadata takes the beginning of the clusters area.
+ * the number of clusters is rounded up, so the clusters area moves by `shift` whole clusters, then:
+ *   - clusters under the grown metadata are copied behind the old end of the volume (cluster 0, the first cluster
+ *     of the root, takes the place of cluster `shift`); every other cluster stays in place and gets index i - shift
+ *   - the record list is moved behind the grown cluster index list, the cluster index list is shifted by `shift` elements
+ *   - every reference to a cluster is renumbered: chains, Record.firstClusterIndex, addresses of long names
+ *     and of packed tails, cluster maps of deduplicated and sparse files
+ * so the growth takes time of the metadata, the content of the volume is not moved.
+ * the metadata is rewritten in place, so the growth is not atomic even with the journal.
+ *
+ * shrinking (see Dufs.bake()). clusters of chains behind the used part of the volume are moved into free clusters
+ * before it, their neighbours in the chain (or their record) are pointed to the new place, the other clusters
+ * stay where they are. shared and fragment clusters are referenced by index from cluster maps and addresses,
+ * so they are not moved, and the used part ends with the last of them.
+ */
+public class ResizeUtility {
+    // elements of the cluster index list and records moved by one read and one write
+    private static final int CLUSTER_CHUNK = 1 << 16;
+    private static final int RECORD_CHUNK = 1 << 13;
+    private static final int ZERO_CHUNK = 1 << 20;
+
+    /*
+     * old cluster index -> new one (see the class comment)
+     */
+    private static class Renumbering {
+        private final int clusters;
+        private final int shift;
+        private final int relocated;    // clusters 1..relocated are copied, the others above them stay in place
+        private final int base;         // new index of cluster 1
+
+        private Renumbering(int clusters, int shift) {
+            this.clusters = clusters;
+            this.shift = shift;
+            this.relocated = Math.min(shift, clusters - 1);
+            this.base = Math.max(1, clusters - shift);
+        }
+
+        private int map(int clusterIndex) {
+            if (clusterIndex <= 0 || clusterIndex >= clusters) {
+                return clusterIndex;    // cluster 0 and the sentinels
+            }
+            return (clusterIndex <= relocated) ? base + clusterIndex - 1 : clusterIndex - shift;
+        }
+
+        /*
+         * old index of the cluster with the new index, -1 for a new cluster
+         */
+        private int source(int clusterIndex) {
+            if (clusterIndex == 0) {
+                return 0;
+            }
+            if (clusterIndex >= base && clusterIndex < base + relocated) {
+                return clusterIndex - base + 1;
+            }
+            return (clusterIndex >= 1 && clusterIndex + shift < clusters) ? clusterIndex + shift : -1;
+        }
+    }
+
+    /*
+     * the least number of clusters, which is not less than the one of `nettoVolumeSize` and moves the clusters area
+     * by whole clusters; -1 if there is no such number
+     */
+    public static int calculateGrownClusters(ReservedSpace reservedSpace, long nettoVolumeSize) {
+        long clustersAreaOffset = VolumePointerUtility.calculateClustersAreaOffset(reservedSpace);
+        long clusters = Math.max(reservedSpace.getReservedClusters() + 1L,
+                Math.ceilDiv(nettoVolumeSize, reservedSpace.getClusterSize()));
+        for (; clusters <= ClusterIndexListOffsets.MAX_CLUSTERS; ++clusters) {
+            if ((calculateClustersAreaOffset(reservedSpace, (int) clusters) - clustersAreaOffset)
+                    % reservedSpace.getClusterSize() == 0) {
+                return (int) clusters;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * grows the volume to `clusters` (see calculateGrownClusters()) and returns its new reserved space;
+     * the volume has to be flushed, and its caches and indexes are dropped, before the growth
+     */
+    public static ReservedSpace grow(RandomAccessFile volume, ReservedSpace reservedSpace,
+                                     int clusters) throws IOException, DufsException {
+        long defaultFilePointer = volume.getFilePointer();
+        int clusterSize = reservedSpace.getClusterSize();
+        int oldClusters = reservedSpace.getReservedClusters();
+        // the first cluster behind the old end is always free
+        ReservedSpace grown = new ReservedSpace(reservedSpace.getDufsNoseSignature(), reservedSpace.getVolumeName(),
+                clusterSize, VolumeHelper.calculateVolumeSize(clusterSize, (long) clusterSize * clusters,
+                reservedSpace.getFormatVersion()), clusters, reservedSpace.getCreateDate(), reservedSpace.getCreateTime(),
+                reservedSpace.getLastDefragmentationDate(), reservedSpace.getLastDefragmentationTime(), oldClusters,
+                reservedSpace.getFreeClusters() + (clusters - oldClusters), reservedSpace.getNextRecordIndex(),
+                reservedSpace.getDufsTailSignature());
+        int shift = (int) ((VolumePointerUtility.calculateClustersAreaOffset(grown)
+                - VolumePointerUtility.calculateClustersAreaOffset(reservedSpace)) / clusterSize);
+        Renumbering renumbering = new Renumbering(oldClusters, shift);
+        volume.setLength(VolumePointerUtility.calculateClusterPosition(grown, clusters));
+        relocateClusters(volume, reservedSpace, grown, renumbering);
+        List<Integer> mappedRecords = moveRecordList(volume, reservedSpace, grown, renumbering);
+        shiftClusterIndexList(volume, grown, renumbering);
+        volume.seek(0);
+        volume.write(grown.serialize());
+        for (int recordIndex : mappedRecords) {
+            renumberClusterMap(volume, grown, recordIndex, renumbering);
+        }
+        volume.seek(defaultFilePointer);
+        return grown;
+    }
+
+    /*
+     * moves clusters of chains from behind the used part of the volume into its free clusters;
+     * returns the number of clusters the volume needs, so it can be cut behind them
+     */
+    public static int relocateTail(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException, DufsException {
+        long defaultFilePointer = volume.getFilePointer();
+        final int elementSize = ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE;
+        int usedClusters = reservedSpace.getReservedClusters() - reservedSpace.getFreeClusters();
+        // only the elements behind the used part are read: the used part ends at its first unmovable cluster from the end
+        int keptClusters = usedClusters;
+        List<Integer> tail = new ArrayList<>();
+        for (int to = reservedSpace.getReservedClusters(), from; to > keptClusters; to = from) {
+            from = Math.max(keptClusters, to - CLUSTER_CHUNK);
+            ByteBuffer elements = readElements(volume, from, to);
+            for (int clusterIndex = to - 1; clusterIndex >= from; --clusterIndex) {
+                int position = elementSize * (clusterIndex - from);
+                int recordIndex = elements.getInt(position + 8);
+                if (recordIndex == DedupUtility.SHARED_CLUSTER || recordIndex == TailPackingUtility.FRAGMENT_CLUSTER) {
+                    keptClusters = clusterIndex + 1;
+                    break;
+                }
+                if (elements.getInt(position) != 0) {
+                    tail.add(clusterIndex);
+                }
+            }
+        }
+        // there are at least as many free clusters before the end of the used part as used ones behind it
+        int moved = 0;
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        for (int from = 1; moved < tail.size() && from < keptClusters; from += CLUSTER_CHUNK) {
+            int to = (int) Math.min(keptClusters, (long) from + CLUSTER_CHUNK);
+            ByteBuffer elements = readElements(volume, from, to);
+            for (int clusterIndex = from; clusterIndex < to && moved < tail.size(); ++clusterIndex) {
+                if (elements.getInt(elementSize * (clusterIndex - from)) == 0) {
+                    moveCluster(volume, reservedSpace, tail.get(moved++), clusterIndex, cluster);
+                }
+            }
+        }
+        if (moved > 0) {
+            // the next free cluster may have been taken
+            reservedSpace.setNextClusterIndex(VolumeUtility.findNextFreeClusterIndex(volume, reservedSpace));
+            VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+        }
+        volume.seek(defaultFilePointer);
+        return keptClusters;
+    }
+
+    private static ByteBuffer readElements(RandomAccessFile volume, int from, int to) throws IOException {
+        byte[] elements = new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * (to - from)];
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(from));
+        volume.readFully(elements);
+        return ByteBuffer.wrap(elements);
+    }
+
+    /*
+     * moves the cluster of a chain into the free cluster
+     */
+    private static void moveCluster(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex,
+                                    int freeClusterIndex, byte[] cluster) throws IOException, DufsException {
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+        int nextClusterIndex = volume.readInt();
+        int prevClusterIndex = volume.readInt();
+        int recordIndex = volume.readInt();
+        VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+        // the moved cluster is freed, and the free one may have been freed by the same transaction
+        VolumeIO.protectClusters(volume, reservedSpace, clusterIndex, 1);
+        VolumeIO.protectClusters(volume, reservedSpace, freeClusterIndex, 1);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, freeClusterIndex));
+        volume.write(cluster);
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(freeClusterIndex));
+        volume.writeInt(nextClusterIndex);
+        volume.writeInt(prevClusterIndex);
+        volume.writeInt(recordIndex);
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+        volume.write(new ClusterIndexElement().serialize());
+        if (prevClusterIndex == ClusterIndexListOffsets.NO_CLUSTER) {
+            VolumeIO.updateRecordFirstClusterIndex(volume, reservedSpace, recordIndex, freeClusterIndex);
+        } else {
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(prevClusterIndex));
+            volume.writeInt(freeClusterIndex);
+        }
+        if (nextClusterIndex != ClusterIndexListOffsets.NO_CLUSTER) {
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(nextClusterIndex) + 4);
+            volume.writeInt(freeClusterIndex);
+        }
+    }
+
+    private static long calculateClustersAreaOffset(ReservedSpace reservedSpace, int clusters) {
+        long nettoVolumeSize = (long) reservedSpace.getClusterSize() * clusters;
+        return VolumeHelper.calculateVolumeSize(reservedSpace.getClusterSize(), nettoVolumeSize,
+                reservedSpace.getFormatVersion()) - nettoVolumeSize;
+    }
+
+    /*
+     * copies used clusters under the grown metadata to their new places, which are behind the old end of the volume,
+     * except cluster 0, which takes the place of cluster `shift` after it has been copied
+     */
+    private static void relocateClusters(RandomAccessFile volume, ReservedSpace reservedSpace, ReservedSpace grown,
+                                         Renumbering renumbering) throws IOException {
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        long oldEnd = VolumePointerUtility.calculateClusterPosition(reservedSpace, reservedSpace.getReservedClusters());
+        for (int clusterIndex = renumbering.relocated; clusterIndex >= 0; --clusterIndex) {
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+            if (volume.readInt() == 0) {
+                continue;
+            }
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+            // only a cluster which takes the place of a copied one overwrites what the old layout refers to
+            if (VolumePointerUtility.calculateClusterPosition(grown, renumbering.map(clusterIndex)) < oldEnd) {
+                VolumeIO.protectClusters(volume, grown, renumbering.map(clusterIndex), 1);
+            }
+            volume.seek(VolumePointerUtility.calculateClusterPosition(grown, renumbering.map(clusterIndex)));
+            volume.write(cluster);
+        }
+    }
+
+    /*
+     * moves the record list to its new place by chunks from its end (it moves towards the end of the volume),
+     * renumbering the clusters the records refer to; returns records of files with cluster maps
+     */
+    private static List<Integer> moveRecordList(RandomAccessFile volume, ReservedSpace reservedSpace, ReservedSpace grown,
+                                                Renumbering renumbering) throws IOException {
+        int recordSize = reservedSpace.getRecordSize();
+        List<Integer> mappedRecords = new ArrayList<>();
+        for (int to = reservedSpace.getReservedClusters(), from; to > 0; to = from) {
+            from = Math.max(0, to - RECORD_CHUNK);
+            // the record before the chunk tells what the extension slot at its beginning keeps
+            int context = (from > 0) ? 1 : 0;
+            byte[] records = new byte[recordSize * (to - from + context)];
+            volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, from - context));
+            volume.readFully(records);
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            for (int recordIndex = from; recordIndex < to; ++recordIndex) {
+                if (renumberRecord(reservedSpace, buffer, recordSize * (recordIndex - from + context), renumbering)) {
+                    mappedRecords.add(recordIndex);
+                }
+            }
+            volume.seek(VolumePointerUtility.calculateRecordPosition(grown, from));
+            volume.write(records, recordSize * context, recordSize * (to - from));
+        }
+        // new records are empty
+        fill(volume, VolumePointerUtility.calculateRecordPosition(grown, reservedSpace.getReservedClusters()),
+                VolumePointerUtility.calculateClustersAreaOffset(grown));
+        return mappedRecords;
+    }
+
+    /*
+     * returns true if the record is a file with a cluster map (deduplicated or sparse one)
+     */
+    private static boolean renumberRecord(ReservedSpace reservedSpace, ByteBuffer buffer, int position,
+                                          Renumbering renumbering) {
+        boolean formatV2 = reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2;
+        int recordSize = reservedSpace.getRecordSize();
+        if (!exists(reservedSpace, buffer, position)) {
+            return false;
+        }
+        if (isExtensionSlot(reservedSpace, buffer, position)) {
+            int filePosition = position - recordSize;
+            // address of the tail starts the slot of a packed file in both formats
+            if (filePosition >= 0 && exists(reservedSpace, buffer, filePosition)
+                    && !isExtensionSlot(reservedSpace, buffer, filePosition)
+                    && (isFile(reservedSpace, buffer, filePosition) & Record.PACKED) != 0) {
+                buffer.putInt(position, renumbering.map(buffer.getInt(position)));
+            }
+            return false;
+        }
+        int firstClusterIndexPosition = position
+                + (formatV2 ? RecordOffsetsV2.FIRST_CLUSTER_INDEX_OFFSET : RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET);
+        buffer.putInt(firstClusterIndexPosition, renumbering.map(buffer.getInt(firstClusterIndexPosition)));
+        if (formatV2 && (buffer.get(position + RecordOffsetsV2.NAME_LENGTH_OFFSET) & 0xFF) > RecordOffsetsV2.INLINE_NAME_CAPACITY) {
+            int namePosition = position + RecordOffsetsV2.NAME_OFFSET;
+            buffer.putInt(namePosition, renumbering.map(buffer.getInt(namePosition)));
+        }
+        return (isFile(reservedSpace, buffer, position) & (Record.DEDUPLICATED | Record.SPARSE)) != 0;
+    }
+
+    private static boolean exists(ReservedSpace reservedSpace, ByteBuffer buffer, int position) {
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            return buffer.getLong(position + RecordOffsetsV2.CREATE_TIME_OFFSET) != 0;
+        }
+        return buffer.getShort(position + RecordOffsets.CREATE_DATE_OFFSET) != 0;
+    }
+
+    private static boolean isExtensionSlot(ReservedSpace reservedSpace, ByteBuffer buffer, int position) {
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            return buffer.getLong(position + RecordOffsetsV2.CREATE_TIME_OFFSET) == InlineUtility.EXTENSION_SLOT_MARKER_V2;
+        }
+        return buffer.getShort(position + RecordOffsets.CREATE_DATE_OFFSET) == InlineUtility.EXTENSION_SLOT_MARKER;
+    }
+
+    private static byte isFile(ReservedSpace reservedSpace, ByteBuffer buffer, int position) {
+        return buffer.get(position + ((reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2)
+                ? RecordOffsetsV2.IS_FILE_OFFSET : RecordOffsets.IS_FILE_OFFSET));
+    }
+
+    /*
+     * writes the grown cluster index list by chunks from its beginning: element i comes from element i + shift,
+     * which has not been overwritten yet, or from the elements of the relocated clusters, which are read first
+     */
+    private static void shiftClusterIndexList(RandomAccessFile volume, ReservedSpace grown,
+                                              Renumbering renumbering) throws IOException {
+        final int elementSize = ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE;
+        byte[] relocated = new byte[elementSize * (renumbering.relocated + 1)];
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(0));
+        volume.readFully(relocated);
+        byte[] freeElement = new ClusterIndexElement().serialize();
+        for (int from = 0; from < grown.getReservedClusters(); from += CLUSTER_CHUNK) {
+            int to = (int) Math.min(grown.getReservedClusters(), (long) from + CLUSTER_CHUNK);
+            int shiftedFrom = Math.max(from, 1) + renumbering.shift;
+            int shiftedTo = (int) Math.min(renumbering.clusters, (long) to + renumbering.shift);
+            byte[] shifted = new byte[elementSize * Math.max(0, shiftedTo - shiftedFrom)];
+            if (shifted.length > 0) {
+                volume.seek(VolumePointerUtility.calculateClusterIndexPosition(shiftedFrom));
+                volume.readFully(shifted);
+            }
+            ByteBuffer elements = ByteBuffer.allocate(elementSize * (to - from));
+            for (int clusterIndex = from; clusterIndex < to; ++clusterIndex) {
+                int source = renumbering.source(clusterIndex);
+                if (source < 0) {
+                    elements.put(freeElement);
+                } else if (source <= renumbering.relocated) {
+                    putElement(elements, ByteBuffer.wrap(relocated, elementSize * source, elementSize), renumbering);
+                } else {
+                    putElement(elements, ByteBuffer.wrap(shifted, elementSize * (source - shiftedFrom), elementSize),
+                            renumbering);
+                }
+            }
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(from));
+            volume.write(elements.array());
+        }
+        // alignment of the record list of the format 2
+        fill(volume, VolumePointerUtility.calculateClusterIndexPosition(grown.getReservedClusters()),
+                VolumePointerUtility.calculateRecordListOffset(grown));
+    }
+
+    /*
+     * next and previous clusters of free, shared and fragment clusters are not cluster indexes
+     */
+    private static void putElement(ByteBuffer elements, ByteBuffer element, Renumbering renumbering) {
+        int nextClusterIndex = element.getInt();
+        int prevClusterIndex = element.getInt();
+        int recordIndex = element.getInt();
+        if (nextClusterIndex != 0 && recordIndex != DedupUtility.SHARED_CLUSTER
+                && recordIndex != TailPackingUtility.FRAGMENT_CLUSTER) {
+            nextClusterIndex = renumbering.map(nextClusterIndex);
+            prevClusterIndex = renumbering.map(prevClusterIndex);
+        }
+        elements.putInt(nextClusterIndex);
+        elements.putInt(prevClusterIndex);
+        elements.putInt(recordIndex);
+    }
+
+    private static void renumberClusterMap(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                           Renumbering renumbering) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        if (record.getSize() == 0 || record.getFirstClusterIndex() == ClusterIndexListOffsets.NO_CLUSTER) {
+            return;
+        }
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        DedupUtility.ClusterMap map = DedupUtility.readClusterMap(chain);
+        ByteBuffer clusterIndexes = ByteBuffer.allocate(4 * map.clusterCount);
+        for (int i = 0; i < map.clusterCount; ++i) {
+            clusterIndexes.putInt(renumbering.map(map.clusterIndexes[i]));     // holes of sparse files stay holes
+        }
+        chain.write(DedupUtility.HEADER_SIZE, clusterIndexes.array(), 0, clusterIndexes.capacity());
+    }
+
+    private static void fill(RandomAccessFile volume, long from, long to) throws IOException {
+        byte[] zeros = new byte[(int) Math.min(ZERO_CHUNK, Math.max(0, to - from))];
+        volume.seek(from);
+        for (long position = from; position < to; position += zeros.length) {
+            volume.write(zeros, 0, (int) Math.min(zeros.length, to - position));
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.utility.DedupUtility.ClusterMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/*
+ * content of a sparse file (Record.SPARSE) is kept as the cluster map of a deduplicated file (see DedupUtility),
+ * in which a hole is the entry 0xFFFFFFFF: clusters of zeros and the part of the file beyond its last map entry
+ * take no clusters and are read as zeros without I/O. writes past the end of the file leave holes behind them,
+ * and a cluster which is written with zeros becomes a hole again.
+ * clusters of the content are shared clusters, so deduplicated files may reference them as well:
+ * a cluster with one reference is written in place, a cluster with more is copied before it is modified.
+ * Record.size is the size of the map, as for deduplicated files; the logical size is kept in the map.
+ */
+public class SparseUtility {
+    public static long readLogicalSize(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        return DedupUtility.readLogicalSize(volume, reservedSpace, record);
+    }
+
+    /*
+     * number of clusters which keep the content (holes are not counted)
+     */
+    public static int readAllocatedClusters(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        int clusters = 0;
+        for (int i = 0; i < map.clusterCount; ++i) {
+            if (map.clusterIndexes[i] != ClusterIndexListOffsets.NO_CLUSTER) {
+                clusters++;
+            }
+        }
+        return clusters;
+    }
+
+    /*
+     * writes the bytes at the logical position; the file grows if they end beyond its end
+     */
+    public static void write(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex, long position,
+                             byte[] b, int off, int len) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        write(volume, reservedSpace, map, position, b, off, len);
+        writeClusterMap(volume, reservedSpace, recordIndex, chain, map);
+    }
+
+    /*
+     * replaces content of the file with the content of the stream
+     */
+    public static void writeFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                 InputStream in) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        releaseFile(volume, reservedSpace, record);
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        ClusterMap map = new ClusterMap();
+        appendStream(volume, reservedSpace, map, in);
+        writeClusterMap(volume, reservedSpace, recordIndex, chain, map);
+    }
+
+    public static void appendFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                  InputStream in) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        appendStream(volume, reservedSpace, map, in);
+        writeClusterMap(volume, reservedSpace, recordIndex, chain, map);
+    }
+
+    /*
+     * writes the content into the host file skipping the holes, so the host file system may keep them as holes too
+     */
+    public static void readFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record,
+                                RandomAccessFile host) throws IOException, DufsException {
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        host.setLength(0);
+        for (int i = 0; i < map.clusterCount; ++i) {
+            if (map.clusterIndexes[i] == ClusterIndexListOffsets.NO_CLUSTER) {
+                continue;
+            }
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, map.clusterIndexes[i], cluster);
+            host.seek((long) i * cluster.length);
+            host.write(cluster, 0, (int) Math.min(cluster.length, map.logicalSize - (long) i * cluster.length));
+        }
+        host.setLength(map.logicalSize);
+    }
+
+    /*
+     * reads up to len bytes starting from the logical position;
+     * returns number of bytes read, -1 if the position is at the end of the file
+     */
+    public static int read(RandomAccessFile volume, ReservedSpace reservedSpace, Record record, long position,
+                           byte[] b, int off, int len) throws IOException, DufsException {
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        if (position >= map.logicalSize) {
+            return -1;
+        }
+        len = (int) Math.min(len, map.logicalSize - position);
+        int clusterSize = reservedSpace.getClusterSize();
+        long defaultFilePointer = volume.getFilePointer();
+        int done = 0;
+        while (done < len) {
+            long orderNumber = (position + done) / clusterSize;
+            int inCluster = (int) ((position + done) % clusterSize);
+            int bytes = Math.min(len - done, clusterSize - inCluster);
+            int clusterIndex = (orderNumber < map.clusterCount) ? map.clusterIndexes[(int) orderNumber] : ClusterIndexListOffsets.NO_CLUSTER;
+            if (clusterIndex == ClusterIndexListOffsets.NO_CLUSTER) {
+                Arrays.fill(b, off + done, off + done + bytes, (byte) 0);
+            } else {
+                volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex) + inCluster);
+                volume.readFully(b, off + done, bytes);
+            }
+            done += bytes;
+        }
+        volume.seek(defaultFilePointer);
+        return done;
+    }
+
+    /*
+     * drops references of the file to its clusters (before the file is rewritten or deleted)
+     */
+    public static void releaseFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        for (int i = 0; i < map.clusterCount; ++i) {
+            if (map.clusterIndexes[i] != ClusterIndexListOffsets.NO_CLUSTER) {
+                DedupUtility.release(volume, reservedSpace, map.clusterIndexes[i]);
+            }
+        }
+    }
+
+    /*
+     * adds one reference to every cluster of the file, whose cluster map has been copied to another file
+     */
+    public static void retainFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        ClusterMap map = readClusterMap(volume, reservedSpace, record);
+        for (int i = 0; i < map.clusterCount; ++i) {
+            if (map.clusterIndexes[i] != ClusterIndexListOffsets.NO_CLUSTER) {
+                DedupUtility.retain(volume, map.clusterIndexes[i]);
+            }
+        }
+    }
+
+    private static ClusterMap readClusterMap(RandomAccessFile volume, ReservedSpace reservedSpace, Record record) throws IOException, DufsException {
+        if (record.getSize() == 0) {
+            return new ClusterMap();
+        }
+        return DedupUtility.readClusterMap(new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()));
+    }
+
+    /*
+     * holes in the end of the map are dropped, the logical size covers them
+     */
+    private static void writeClusterMap(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                        ClusterChain chain, ClusterMap map) throws IOException, DufsException {
+        while (map.clusterCount > 0 && map.clusterIndexes[map.clusterCount - 1] == ClusterIndexListOffsets.NO_CLUSTER) {
+            map.clusterCount--;
+        }
+        DedupUtility.writeClusterMap(volume, reservedSpace, recordIndex, chain, map);
+    }
+
+    private static void appendStream(RandomAccessFile volume, ReservedSpace reservedSpace, ClusterMap map,
+                                     InputStream in) throws IOException, DufsException {
+        byte[] block = new byte[reservedSpace.getClusterSize()];
+        int bytes;
+        while ((bytes = in.readNBytes(block, 0, block.length)) > 0) {
+            write(volume, reservedSpace, map, map.logicalSize, block, 0, bytes);
+        }
+    }
+
+    private static void write(RandomAccessFile volume, ReservedSpace reservedSpace, ClusterMap map, long position,
+                              byte[] b, int off, int len) throws IOException, DufsException {
+        int clusterSize = reservedSpace.getClusterSize();
+        long end = position + len;
+        while (len > 0) {
+            long orderNumber = position / clusterSize;
+            int inCluster = (int) (position % clusterSize);
+            int bytes = Math.min(len, clusterSize - inCluster);
+            if (orderNumber >= Integer.MAX_VALUE) {
+                throw new DufsException("Sparse file has exceeded the size limit.");
+            }
+            int clusterIndex = (orderNumber < map.clusterCount) ? map.clusterIndexes[(int) orderNumber] : ClusterIndexListOffsets.NO_CLUSTER;
+            boolean zeros = isZero(b, off, bytes);
+            if (clusterIndex == ClusterIndexListOffsets.NO_CLUSTER) {
+                if (!zeros) {
+                    byte[] cluster = new byte[clusterSize];
+                    System.arraycopy(b, off, cluster, inCluster, bytes);
+                    setClusterIndex(map, (int) orderNumber, allocate(volume, reservedSpace, cluster));
+                }
+            } else if (zeros || readReferenceCount(volume, clusterIndex) > 1) {
+                byte[] cluster = new byte[clusterSize];
+                VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+                System.arraycopy(b, off, cluster, inCluster, bytes);
+                DedupUtility.release(volume, reservedSpace, clusterIndex);
+                // the cluster became a hole, or it is copied, since other files reference it
+                setClusterIndex(map, (int) orderNumber, isZero(cluster, 0, clusterSize)
+                        ? ClusterIndexListOffsets.NO_CLUSTER : allocate(volume, reservedSpace, cluster));
+            } else {
+                long defaultFilePointer = volume.getFilePointer();
+                volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex) + inCluster);
+                volume.write(b, off, bytes);
+                volume.seek(defaultFilePointer);
+            }
+            position += bytes;
+            off += bytes;
+            len -= bytes;
+        }
+        map.logicalSize = Math.max(map.logicalSize, end);
+    }
+
+    private static void setClusterIndex(ClusterMap map, int orderNumber, int clusterIndex) {
+        if (orderNumber >= map.clusterIndexes.length) {
+            map.clusterIndexes = Arrays.copyOf(map.clusterIndexes, Math.max(orderNumber + 1, map.clusterIndexes.length * 2));
+        }
+        if (orderNumber >= map.clusterCount) {
+            Arrays.fill(map.clusterIndexes, map.clusterCount, orderNumber, ClusterIndexListOffsets.NO_CLUSTER);
+            map.clusterCount = orderNumber + 1;
+        }
+        map.clusterIndexes[orderNumber] = clusterIndex;
+    }
+
+    /*
+     * takes a new cluster with one reference for the content
+     */
+    private static int allocate(RandomAccessFile volume, ReservedSpace reservedSpace, byte[] cluster) throws IOException, DufsException {
+        // the search of the next free cluster, made after the allocation, needs one more free cluster
+        if (reservedSpace.getFreeClusters() <= 1) {
+            throw new DufsException("Not enough space in the volume to write this content in file.");
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        int clusterIndex = reservedSpace.getNextClusterIndex();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
+        volume.writeInt(1);
+        volume.writeInt(DedupUtility.SHARED_CLUSTER);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+        volume.write(cluster);
+        reservedSpace.setNextClusterIndex(VolumeUtility.findNextFreeClusterIndex(volume, reservedSpace));
+        VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        volume.seek(defaultFilePointer);
+        return clusterIndex;
+    }
+
+    private static int readReferenceCount(RandomAccessFile volume, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 4);
+        int referenceCount = volume.readInt();
+        volume.seek(defaultFilePointer);
+        return referenceCount;
+    }
+
+    private static boolean isZero(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; ++i) {
+            if (b[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
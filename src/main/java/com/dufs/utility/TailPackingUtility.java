@@ -0,0 +1,465 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.volume.FragmentIndex;
+import com.dufs.volume.VolumeFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * content of a packed file (Record.PACKED) is kept in whole clusters of its chain, while its tail
+ * (the last partial cluster) is kept in a fragment cluster, which is shared by the tails of many files.
+ * fragment cluster starts with its slot map:
+ *   int slotCount
+ *   slot per fragment (SLOT_SIZE bytes): int recordIndex, int offset, int length
+ * fragments are placed from the end of the cluster towards the map. long names of records of the format 2
+ * are kept in fragments as well (see NameHeapUtility).
+ * element of a fragment cluster in the cluster index list is (0xFFFFFFFF, free bytes, FRAGMENT_CLUSTER):
+ * it is never taken as free, and it does not belong to any chain.
+ * address of the tail (fragment cluster, offset, length) is kept in the extension slot of the file (see InlineUtility),
+ * fragment cluster 0 means that the file has no tail in a fragment. a tail longer than maxPackedTail() bytes
+ * is not worth packing, so it stays in the last cluster of the chain.
+ * firstClusterIndex is 0xFFFFFFFF while the chain is empty, Record.size is the size of the whole content.
+ */
+public class TailPackingUtility {
+    public static final int FRAGMENT_CLUSTER = 0xFFFFFFFD;
+    public static final int MAP_HEADER_SIZE = 4;
+    public static final int SLOT_SIZE = 12;
+    public static final int ADDRESS_SIZE = 12;
+
+    private static class Address {
+        private int clusterIndex;
+        private int offset;
+        private int length;
+    }
+
+    public static boolean isFragmentCluster(RandomAccessFile volume, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 8);
+        int recordIndex = volume.readInt();
+        volume.seek(defaultFilePointer);
+        return recordIndex == FRAGMENT_CLUSTER;
+    }
+
+    public static int maxPackedTail(ReservedSpace reservedSpace) {
+        return Math.min(reservedSpace.getClusterSize() / 2, maxFragment(reservedSpace));
+    }
+
+    /*
+     * the longest fragment, which takes a fragment cluster alone
+     */
+    public static int maxFragment(ReservedSpace reservedSpace) {
+        return reservedSpace.getClusterSize() - MAP_HEADER_SIZE - SLOT_SIZE;
+    }
+
+    /*
+     * keeps the content in a fragment owned by the record, apart from the tail of the file (see NameHeapUtility);
+     * returns the fragment cluster in the high bits and the offset in the low bits
+     */
+    public static long storeFragment(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                     byte[] content) throws IOException, DufsException {
+        if (content.length > maxFragment(reservedSpace)) {
+            throw new DufsException("Given content is bigger than a fragment cluster.");
+        }
+        Address address = allocateFragment(volume, reservedSpace, recordIndex, content, content.length);
+        return ((long) address.clusterIndex << 32) | address.offset;
+    }
+
+    public static byte[] loadFragment(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex,
+                                      int offset, int length) throws IOException {
+        Address address = new Address();
+        address.clusterIndex = clusterIndex;
+        address.offset = offset;
+        address.length = length;
+        byte[] content = new byte[length];
+        readFragment(volume, reservedSpace, address, content);
+        return content;
+    }
+
+    public static void releaseFragment(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex,
+                                       int offset, int length) throws IOException, DufsException {
+        Address address = new Address();
+        address.clusterIndex = clusterIndex;
+        address.offset = offset;
+        address.length = length;
+        freeFragment(volume, reservedSpace, address);
+    }
+
+    /*
+     * replaces content of the file with the content of the stream
+     */
+    public static void writeFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                 InputStream in) throws IOException, DufsException {
+        releaseFile(volume, reservedSpace, recordIndex);
+        appendFile(volume, reservedSpace, recordIndex, in);
+    }
+
+    /*
+     * appends content of the stream; the tail is taken out of its fragment and written again after the new content
+     */
+    public static void appendFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                  InputStream in) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        int clusterSize = reservedSpace.getClusterSize();
+        Address address = readAddress(volume, reservedSpace, recordIndex);
+        ClusterChain chain = (record.getFirstClusterIndex() == ClusterIndexListOffsets.NO_CLUSTER) ? null
+                : new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+        long wholeClusters = record.getSize() / clusterSize;
+        byte[] block = new byte[clusterSize];
+        int filled = (int) (record.getSize() % clusterSize);
+        if (address.clusterIndex != 0) {
+            readFragment(volume, reservedSpace, address, block);
+            freeFragment(volume, reservedSpace, address);
+            address = new Address();
+        } else if (filled > 0) {
+            chain.read(wholeClusters * clusterSize, block, 0, filled);
+        }
+        long appended = 0;
+        int bytes;
+        while ((bytes = in.read(block, filled, clusterSize - filled)) != -1) {
+            filled += bytes;
+            appended += bytes;
+            if (filled == clusterSize) {
+                chain = writeCluster(volume, reservedSpace, recordIndex, chain, wholeClusters++, block);
+                filled = 0;
+            }
+        }
+        long chainLength = wholeClusters;
+        if (filled > 0 && filled <= maxPackedTail(reservedSpace)) {
+            address = allocateFragment(volume, reservedSpace, recordIndex, block, filled);
+        } else if (filled > 0) {
+            Arrays.fill(block, filled, clusterSize, (byte) 0);
+            chain = writeCluster(volume, reservedSpace, recordIndex, chain, chainLength++, block);
+        }
+        trimChain(volume, reservedSpace, recordIndex, chain, (int) chainLength);
+        writeAddress(volume, reservedSpace, recordIndex, address);
+        VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, record.getSize() + appended);
+        VolumeIO.updateRecordLastEdit(volume, reservedSpace, recordIndex);
+    }
+
+    public static void readFile(RandomAccessFile volume, ReservedSpace reservedSpace, Record record, int recordIndex,
+                                OutputStream out) throws IOException, DufsException {
+        Address address = readAddress(volume, reservedSpace, recordIndex);
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        if (record.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+            ClusterChain chain = new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex());
+            for (int i = 0; i < chain.getLength(); ++i) {
+                VolumeIO.readClusterFromVolume(volume, reservedSpace, chain.getClusterIndex(i), cluster);
+                out.write(cluster, 0, (int) Math.min(cluster.length, record.getSize() - (long) i * cluster.length));
+            }
+        }
+        if (address.clusterIndex != 0) {
+            readFragment(volume, reservedSpace, address, cluster);
+            out.write(cluster, 0, address.length);
+        }
+    }
+
+    /*
+     * reads up to len bytes starting from the position;
+     * returns number of bytes read, -1 if the position is at the end of the file
+     */
+    public static int read(RandomAccessFile volume, ReservedSpace reservedSpace, Record record, int recordIndex,
+                           long position, byte[] b, int off, int len) throws IOException, DufsException {
+        if (position >= record.getSize()) {
+            return -1;
+        }
+        len = (int) Math.min(len, record.getSize() - position);
+        Address address = readAddress(volume, reservedSpace, recordIndex);
+        long chainBytes = record.getSize() - address.length;
+        int done = 0;
+        if (position < chainBytes) {
+            done = (int) Math.min(len, chainBytes - position);
+            new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()).read(position, b, off, done);
+        }
+        if (done < len) {
+            long defaultFilePointer = volume.getFilePointer();
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, address.clusterIndex)
+                    + address.offset + (position + done - chainBytes));
+            volume.readFully(b, off + done, len - done);
+            volume.seek(defaultFilePointer);
+        }
+        return len;
+    }
+
+    /*
+     * frees the fragment and the clusters of the file (before it is rewritten or deleted)
+     */
+    public static void releaseFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException, DufsException {
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        Address address = readAddress(volume, reservedSpace, recordIndex);
+        if (address.clusterIndex != 0) {
+            freeFragment(volume, reservedSpace, address);
+        }
+        if (record.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+            trimChain(volume, reservedSpace, recordIndex,
+                    new ClusterChain(volume, reservedSpace, record.getFirstClusterIndex()), 0);
+        }
+        writeAddress(volume, reservedSpace, recordIndex, new Address());
+        VolumeIO.updateRecordSize(volume, reservedSpace, recordIndex, 0);
+    }
+
+    /*
+     * tail of the file kept in a fragment, empty if the file has no tail there
+     */
+    public static byte[] readTail(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        Address address = readAddress(volume, reservedSpace, recordIndex);
+        if (address.clusterIndex == 0) {
+            return new byte[0];
+        }
+        byte[] tail = new byte[address.length];
+        readFragment(volume, reservedSpace, address, tail);
+        return tail;
+    }
+
+    /*
+     * puts the tail into a fragment of the file, which has no tail in a fragment yet (its copy, see CopyUtility)
+     */
+    public static void writeTail(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                 byte[] tail) throws IOException, DufsException {
+        if (tail.length == 0) {
+            return;
+        }
+        writeAddress(volume, reservedSpace, recordIndex, allocateFragment(volume, reservedSpace, recordIndex, tail, tail.length));
+    }
+
+    private static Address readAddress(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(InlineUtility.readExtensionSlot(volume, reservedSpace, recordIndex, ADDRESS_SIZE));
+        Address address = new Address();
+        address.clusterIndex = buffer.getInt();
+        address.offset = buffer.getInt();
+        address.length = buffer.getInt();
+        return address;
+    }
+
+    private static void writeAddress(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                     Address address) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ADDRESS_SIZE);
+        buffer.putInt(address.clusterIndex);
+        buffer.putInt(address.offset);
+        buffer.putInt(address.length);
+        InlineUtility.writeExtensionSlot(volume, reservedSpace, recordIndex, buffer.array());
+    }
+
+    /*
+     * writes the whole cluster by its order number in the chain, the first one is allocated for the file here
+     */
+    private static ClusterChain writeCluster(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                             ClusterChain chain, long orderNumber, byte[] block) throws IOException, DufsException {
+        if (chain == null) {
+            int firstClusterIndex = allocateCluster(volume, reservedSpace);
+            VolumeUtility.createClusterIndexChain(volume, reservedSpace, firstClusterIndex, recordIndex);
+            VolumeIO.updateRecordFirstClusterIndex(volume, reservedSpace, recordIndex, firstClusterIndex);
+            chain = new ClusterChain(volume, reservedSpace, firstClusterIndex);
+        }
+        chain.write(orderNumber * block.length, block, 0, block.length);
+        return chain;
+    }
+
+    /*
+     * frees clusters in the end of the chain, so `length` clusters stay; the file has no chain after it is trimmed to 0
+     */
+    private static void trimChain(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                  ClusterChain chain, int length) throws IOException, DufsException {
+        if (chain == null) {
+            return;
+        }
+        if (length > 0) {
+            chain.trim((long) length * reservedSpace.getClusterSize() - 1);
+            return;
+        }
+        chain.trim(0);
+        freeCluster(volume, reservedSpace, chain.getClusterIndex(0));
+        VolumeIO.updateRecordFirstClusterIndex(volume, reservedSpace, recordIndex, ClusterIndexListOffsets.NO_CLUSTER);
+    }
+
+    private static void readFragment(RandomAccessFile volume, ReservedSpace reservedSpace, Address address,
+                                     byte[] buffer) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, address.clusterIndex) + address.offset);
+        volume.readFully(buffer, 0, address.length);
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * puts the tail into the first fragment cluster it fits in, a new fragment cluster is allocated if there is no such one
+     */
+    private static Address allocateFragment(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                            byte[] tail, int length) throws IOException, DufsException {
+        FragmentIndex index = fragmentIndex(volume, reservedSpace);
+        Address address = new Address();
+        address.length = length;
+        for (int clusterIndex : index.findClusters(length + SLOT_SIZE)) {
+            address.offset = place(volume, reservedSpace, index, clusterIndex, recordIndex, tail, length);
+            if (address.offset != -1) {
+                address.clusterIndex = clusterIndex;
+                return address;
+            }
+        }
+        address.clusterIndex = allocateCluster(volume, reservedSpace);
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(address.clusterIndex));
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
+        volume.writeInt(reservedSpace.getClusterSize() - MAP_HEADER_SIZE);
+        volume.writeInt(FRAGMENT_CLUSTER);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, address.clusterIndex));
+        volume.write(new byte[reservedSpace.getClusterSize()]);     // empty slot map
+        volume.seek(defaultFilePointer);
+        reservedSpace.setNextClusterIndex(VolumeUtility.findNextFreeClusterIndex(volume, reservedSpace));
+        VolumeIO.updateVolumeNextClusterIndex(volume, reservedSpace.getNextClusterIndex());
+        address.offset = place(volume, reservedSpace, index, address.clusterIndex, recordIndex, tail, length);
+        return address;
+    }
+
+    /*
+     * returns offset of the fragment in the cluster, -1 if the tail does not fit in it
+     */
+    private static int place(RandomAccessFile volume, ReservedSpace reservedSpace, FragmentIndex index, int clusterIndex,
+                             int recordIndex, byte[] tail, int length) throws IOException {
+        int clusterSize = reservedSpace.getClusterSize();
+        byte[] cluster = new byte[clusterSize];
+        VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+        ByteBuffer buffer = ByteBuffer.wrap(cluster);
+        int slotCount = buffer.getInt(0);
+        int mapEnd = MAP_HEADER_SIZE + SLOT_SIZE * (slotCount + 1);     // end of the map with one more slot
+        long[] fragments = new long[slotCount];     // offset in high bits, length in low bits
+        for (int i = 0; i < slotCount; ++i) {
+            int slotPosition = MAP_HEADER_SIZE + SLOT_SIZE * i;
+            fragments[i] = ((long) buffer.getInt(slotPosition + 4) << 32) | buffer.getInt(slotPosition + 8);
+        }
+        Arrays.sort(fragments);
+        if (slotCount > 0 && (int) (fragments[0] >>> 32) < mapEnd) {
+            return -1;  // the map cannot grow
+        }
+        // the highest gap the tail fits in is taken, so the space next to the map is left for its growth
+        int offset = -1;
+        int gapEnd = clusterSize;
+        for (int i = slotCount - 1; i >= -1; --i) {
+            int gapStart = (i >= 0) ? (int) (fragments[i] >>> 32) + (int) fragments[i] : mapEnd;
+            if (gapEnd - gapStart >= length) {
+                offset = gapEnd - length;
+                break;
+            }
+            if (i >= 0) {
+                gapEnd = (int) (fragments[i] >>> 32);
+            }
+        }
+        if (offset == -1) {
+            return -1;
+        }
+        int slotPosition = MAP_HEADER_SIZE + SLOT_SIZE * slotCount;
+        buffer.putInt(0, slotCount + 1);
+        buffer.putInt(slotPosition, recordIndex);
+        buffer.putInt(slotPosition + 4, offset);
+        buffer.putInt(slotPosition + 8, length);
+        System.arraycopy(tail, 0, cluster, offset, length);
+        writeFragmentCluster(volume, reservedSpace, index, clusterIndex, cluster);
+        return offset;
+    }
+
+    private static void freeFragment(RandomAccessFile volume, ReservedSpace reservedSpace,
+                                     Address address) throws IOException, DufsException {
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        VolumeIO.readClusterFromVolume(volume, reservedSpace, address.clusterIndex, cluster);
+        ByteBuffer buffer = ByteBuffer.wrap(cluster);
+        int slotCount = buffer.getInt(0);
+        int slot = 0;
+        while (slot < slotCount && buffer.getInt(MAP_HEADER_SIZE + SLOT_SIZE * slot + 4) != address.offset) {
+            slot++;
+        }
+        if (slot == slotCount) {
+            throw new DufsException("Fragment cluster is damaged.");
+        }
+        FragmentIndex index = fragmentIndex(volume, reservedSpace);
+        if (slotCount == 1) {
+            freeCluster(volume, reservedSpace, address.clusterIndex);
+            index.remove(address.clusterIndex);
+            return;
+        }
+        // the last slot takes place of the removed one
+        int lastSlotPosition = MAP_HEADER_SIZE + SLOT_SIZE * (slotCount - 1);
+        System.arraycopy(cluster, lastSlotPosition, cluster, MAP_HEADER_SIZE + SLOT_SIZE * slot, SLOT_SIZE);
+        Arrays.fill(cluster, lastSlotPosition, lastSlotPosition + SLOT_SIZE, (byte) 0);
+        Arrays.fill(cluster, address.offset, address.offset + address.length, (byte) 0);
+        buffer.putInt(0, slotCount - 1);
+        writeFragmentCluster(volume, reservedSpace, index, address.clusterIndex, cluster);
+    }
+
+    /*
+     * writes the fragment cluster back and updates the number of its free bytes
+     */
+    private static void writeFragmentCluster(RandomAccessFile volume, ReservedSpace reservedSpace, FragmentIndex index,
+                                             int clusterIndex, byte[] cluster) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(cluster);
+        int slotCount = buffer.getInt(0);
+        int freeBytes = cluster.length - MAP_HEADER_SIZE - SLOT_SIZE * slotCount;
+        for (int i = 0; i < slotCount; ++i) {
+            freeBytes -= buffer.getInt(MAP_HEADER_SIZE + SLOT_SIZE * i + 8);
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        // slots of other records are in the cluster, so it is never rewritten in place
+        VolumeIO.protectClusters(volume, reservedSpace, clusterIndex, 1);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+        volume.write(cluster);
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 4);
+        volume.writeInt(freeBytes);
+        volume.seek(defaultFilePointer);
+        index.update(clusterIndex, freeBytes);
+    }
+
+    /*
+     * takes the next free cluster into account as used, the caller writes its element
+     */
+    private static int allocateCluster(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException, DufsException {
+        // the search of the next free cluster, made after the allocation, needs one more free cluster
+        if (reservedSpace.getFreeClusters() <= 1) {
+            throw new DufsException("Not enough space in the volume to write this content in file.");
+        }
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() - 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        return reservedSpace.getNextClusterIndex();
+    }
+
+    private static void freeCluster(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        VolumeIO.protectClusters(volume, reservedSpace, clusterIndex, 1);
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+        volume.write(new byte[reservedSpace.getClusterSize()]);
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+        volume.write(new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4]);
+        volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() + 1);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * index of the volume, which is built from the cluster index list when it is needed first
+     */
+    private static FragmentIndex fragmentIndex(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        if (volume instanceof VolumeFile volumeFile && volumeFile.getFragmentIndex() != null) {
+            return volumeFile.getFragmentIndex();
+        }
+        FragmentIndex index = new FragmentIndex();
+        long defaultFilePointer = volume.getFilePointer();
+        for (int clusterIndex = 1; clusterIndex < reservedSpace.getReservedClusters(); ++clusterIndex) {
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 4);
+            int freeBytes = volume.readInt();
+            if (volume.readInt() == FRAGMENT_CLUSTER) {
+                index.update(clusterIndex, freeBytes);
+            }
+        }
+        volume.seek(defaultFilePointer);
+        if (volume instanceof VolumeFile volumeFile) {
+            volumeFile.setFragmentIndex(index);
+        }
+        return index;
+    }
+}
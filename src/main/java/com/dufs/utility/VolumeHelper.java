@@ -6,6 +6,7 @@ import com.dufs.model.ReservedSpace;
 import com.dufs.offsets.ClusterIndexListOffsets;
 import com.dufs.offsets.RecordListOffsets;
 import com.dufs.offsets.RecordOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
 import com.dufs.offsets.ReservedSpaceOffsets;
 
 import java.io.IOException;
@@ -27,7 +28,17 @@ public class VolumeHelper {
     }
 
     public static long calculateVolumeSize(int clusterSize, long nettoVolumeSize) {
+        return calculateVolumeSize(clusterSize, nettoVolumeSize, ReservedSpace.FORMAT_V1);
+    }
+
+    public static long calculateVolumeSize(int clusterSize, long nettoVolumeSize, int formatVersion) {
         int clustersAmount = clustersAmount(clusterSize, nettoVolumeSize);
+        if (formatVersion == ReservedSpace.FORMAT_V2) {
+            return VolumePointerUtility.alignRecordList(ReservedSpaceOffsets.RESERVED_SPACE_SIZE
+                    + ((long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * clustersAmount))
+                    + ((long) RecordListOffsets.RECORD_SIZE_V2 * clustersAmount)
+                    + nettoVolumeSize;
+        }
         return ReservedSpaceOffsets.RESERVED_SPACE_SIZE
                 + ((long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * clustersAmount)
                 + ((long) RecordListOffsets.RECORD_SIZE * clustersAmount)
@@ -35,7 +46,14 @@ public class VolumeHelper {
     }
 
     public static int clustersAmount(int clusterSize, long volumeSize) {
-        return ((int) Math.ceil((1.0 * volumeSize) / clusterSize));
+        return Math.toIntExact(Math.ceilDiv(volumeSize, clusterSize));
+    }
+
+    /*
+     * the volume is limited by the number of its clusters only, e.g. to 8TiB with 4KiB clusters
+     */
+    public static boolean isVolumeSizeOk(int clusterSize, long nettoVolumeSize) {
+        return nettoVolumeSize <= (long) ClusterIndexListOffsets.MAX_CLUSTERS * clusterSize;
     }
 
     public static boolean enoughSpace(ReservedSpace reservedSpace, long size) {
@@ -51,24 +69,63 @@ public class VolumeHelper {
     }
 
     /*
-     * checks if Record.createDate is equal to 0
+     * false if the record is of the type, but the first cluster of its chain is free;
+     * inline and packed files may have no chain at all
+     */
+    public static boolean recordExists(RandomAccessFile volume, Record record, byte type) throws IOException {
+        return record.getType() != type || record.getFirstClusterIndex() == ClusterIndexListOffsets.NO_CLUSTER
+                || recordExists(volume, record.getFirstClusterIndex());
+    }
+
+    /*
+     * checks if Record.createDate (create timestamp in the format 2) is equal to 0
      */
     public static boolean recordExists(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws  IOException {
         long defaultFilePointer = volume.getFilePointer();
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsetsV2.CREATE_TIME_OFFSET);
+            long time = volume.readLong();
+            volume.seek(defaultFilePointer);
+            return (time != 0);
+        }
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.CREATE_DATE_OFFSET);
         short date = volume.readShort();
         volume.seek(defaultFilePointer);
         return (date != 0);
     }
 
+    /*
+     * 32 chars in the format 1, up to NameHeapUtility.maxNameLength() bytes of UTF-8 in the format 2
+     */
+    public static boolean isNameLengthOk(ReservedSpace reservedSpace, String name) {
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            return NameHeapUtility.encode(name).length <= NameHeapUtility.maxNameLength(reservedSpace);
+        }
+        return name.length() <= 32;
+    }
+
+    /*
+     * a record of the format 2 is rejected by the hash of its name, so other names are neither decoded nor read from the heap
+     */
+    public static boolean hasName(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                  String name, byte isFile) throws IOException {
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            byte[] record = VolumeIO.readRecordBytes(volume, reservedSpace, recordIndex);
+            return (record[RecordOffsetsV2.IS_FILE_OFFSET] & Record.TYPE_MASK) == isFile
+                    && NameHeapUtility.nameEquals(volume, reservedSpace, record, NameHeapUtility.encode(name));
+        }
+        Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        return Arrays.equals(Arrays.copyOf(name.toCharArray(), 32), record.getName()) && record.getType() == isFile;
+    }
+
     /*
      * linear traverse through content in directory's cluster chain
      */
     public static boolean isNameUniqueInDirectory(RandomAccessFile volume, ReservedSpace reservedSpace,
                                                   int directoryIndex, char[] name, byte isFile) throws IOException, DufsException {
         long defaultFilePointer = volume.getFilePointer();
-        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, directoryIndex) + RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET);
-        int clusterIndex = volume.readInt();
+        int clusterIndex = VolumeIO.readRecordFirstClusterIndex(volume, reservedSpace, directoryIndex);
+        String nameString = new String(name).replace("\u0000", "");
         int recordIndex;
         long position = VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex) + 4;
         do {
@@ -76,8 +133,7 @@ public class VolumeHelper {
             recordIndex = volume.readInt();
             int counter = 0;
             while (recordIndex != 0 && counter < (reservedSpace.getClusterSize() / 4)) {
-                Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
-                if (Arrays.equals(Arrays.copyOf(name, 32), record.getName()) && record.getIsFile() == isFile) {
+                if (hasName(volume, reservedSpace, recordIndex, nameString, isFile)) {
                     return false;
                 }
                 recordIndex = volume.readInt();
@@ -1,40 +1,91 @@
 package com.dufs.utility;
 
 import com.dufs.exceptions.DufsException;
+import com.dufs.model.ClusterIndexElement;
 import com.dufs.model.Record;
 import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import com.dufs.offsets.RecordListOffsets;
 import com.dufs.offsets.RecordOffsets;
+import com.dufs.offsets.RecordOffsetsV2;
 import com.dufs.offsets.ReservedSpaceOffsets;
+import com.dufs.volume.VolumeFile;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 
 public class VolumeIO {
+    private static final int CLUSTER_INDEX_LIST_WRITE_ELEMENTS = 1 << 16;
+
     public static void initializeRootClusterIndexElement(RandomAccessFile volume) throws IOException {
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(0));
-        volume.writeInt(0xFFFFFFFF);    // mark root's first cluster as last cluster in chain
-        volume.writeInt(0xFFFFFFFF);    // mark root's first cluster as first cluster in chain
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);    // mark root's first cluster as last cluster in chain
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);    // mark root's first cluster as first cluster in chain
         volume.writeInt(0);             // mark root's cluster's record index as 0
         volume.seek(defaultFilePointer);
     }
 
+    /*
+     * marks every cluster as free, writing the list by parts of CLUSTER_INDEX_LIST_WRITE_ELEMENTS elements
+     */
+    public static void initializeClusterIndexList(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        byte[] element = new ClusterIndexElement().serialize();
+        int elements = Math.min(CLUSTER_INDEX_LIST_WRITE_ELEMENTS, reservedSpace.getReservedClusters());
+        byte[] buffer = new byte[element.length * elements];
+        for (int i = 0; i < elements; ++i) {
+            System.arraycopy(element, 0, buffer, i * element.length, element.length);
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(0));
+        for (int clusterIndex = 0; clusterIndex < reservedSpace.getReservedClusters(); clusterIndex += elements) {
+            volume.write(buffer, 0, element.length * Math.min(elements, reservedSpace.getReservedClusters() - clusterIndex));
+        }
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * clusters which are freed, or shared by several records, are not written in place until the transaction
+     * is durable: the journal takes every write of them (see MetadataJournal.protect())
+     */
+    public static void protectClusters(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex, int count) {
+        if (volume instanceof VolumeFile volumeFile) {
+            volumeFile.protect(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex),
+                    (long) reservedSpace.getClusterSize() * count);
+        }
+    }
+
     public static void initializeRootRecord(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, 0));
-        String rootName = new String(Arrays.copyOf(reservedSpace.getVolumeName(), 32));
-        volume.writeChars(rootName);
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            // name of the volume always fits in the record (it is checked when the volume is mounted)
+            long created = DateUtility.toEpochMilli(reservedSpace.getCreateDate(), reservedSpace.getCreateTime());
+            Record root = new Record(new char[0], created, 0, created, 0,
+                    ClusterIndexListOffsets.NO_RECORD, ClusterIndexListOffsets.NO_RECORD, (byte) 0);
+            byte[] record = encodeRecordV2(root);
+            NameHeapUtility.writeInlineName(record, NameHeapUtility.encode(
+                    new String(reservedSpace.getVolumeName()).replace("\u0000", "")));
+            volume.write(record);
+            volume.seek(defaultFilePointer);
+            return;
+        }
+        char[] rootName = Arrays.copyOf(reservedSpace.getVolumeName(), 32);
+        for (int i = 0; i < 32; ++i) {
+            volume.writeChar(rootName[i]);
+        }
         volume.writeShort(reservedSpace.getCreateDate());
         volume.writeShort(reservedSpace.getCreateTime());
         volume.writeInt(0);
         volume.writeShort(reservedSpace.getCreateDate());
         volume.writeShort(reservedSpace.getCreateTime());
         volume.writeLong(0);
-        volume.writeInt(0xFFFFFFFF);
-        volume.writeInt(0xFFFFFFFF);
+        volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
+        volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
         volume.writeByte(0);
         volume.seek(defaultFilePointer);
     }
@@ -65,6 +116,9 @@ public class VolumeIO {
     }
 
     public static Record readRecordFromVolume(RandomAccessFile volume, ReservedSpace reservedSpace, int index) throws IOException {
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            return decodeRecord(volume, reservedSpace, readRecordBytes(volume, reservedSpace, index));
+        }
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, index));
         char[] name = new char[32];
@@ -85,6 +139,32 @@ public class VolumeIO {
                 size, parentDirectoryIndex, parentDirectoryIndexOrderNumber, isFile);
     }
 
+    /*
+     * record from its bytes (see readRecordBytes()); the volume is read only for a long name of the format 2
+     */
+    public static Record decodeRecord(RandomAccessFile volume, ReservedSpace reservedSpace, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            long createTime = buffer.getLong(RecordOffsetsV2.CREATE_TIME_OFFSET);
+            // an extension slot keeps no name, but the content of its file in place of it
+            String name = (createTime == InlineUtility.EXTENSION_SLOT_MARKER_V2) ? ""
+                    : NameHeapUtility.readName(volume, reservedSpace, record);
+            return new Record(name.toCharArray(), createTime,
+                    buffer.getInt(RecordOffsetsV2.FIRST_CLUSTER_INDEX_OFFSET),
+                    buffer.getLong(RecordOffsetsV2.LAST_EDIT_TIME_OFFSET),
+                    buffer.getLong(RecordOffsetsV2.SIZE_OFFSET),
+                    buffer.getInt(RecordOffsetsV2.PARENT_DIRECTORY_INDEX_OFFSET),
+                    buffer.getInt(RecordOffsetsV2.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET),
+                    record[RecordOffsetsV2.IS_FILE_OFFSET]);
+        }
+        char[] name = new char[32];
+        for (int i = 0; i < 32; ++i) {
+            name[i] = buffer.getChar();
+        }
+        return new Record(name, buffer.getShort(), buffer.getShort(), buffer.getInt(), buffer.getShort(), buffer.getShort(),
+                buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.get());
+    }
+
     public static void readClusterFromVolume(RandomAccessFile volume, ReservedSpace reservedSpace, int index, byte[] buffer) throws IOException {
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, index));
@@ -92,8 +172,20 @@ public class VolumeIO {
         volume.seek(defaultFilePointer);
     }
 
-    public static void writeRecordToVolume(RandomAccessFile volume, ReservedSpace reservedSpace, int index, Record record) throws IOException {
+    /*
+     * a long name of the format 2 is put into the name heap, so the slot must not keep a record with such a name
+     */
+    public static void writeRecordToVolume(RandomAccessFile volume, ReservedSpace reservedSpace, int index,
+                                           Record record) throws IOException, DufsException {
         long defaultFilePointer = volume.getFilePointer();
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            byte[] bytes = encodeRecordV2(record);
+            NameHeapUtility.writeName(volume, reservedSpace, index, bytes, NameHeapUtility.encode(record.getNameString()));
+            volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, index));
+            volume.write(bytes);
+            volume.seek(defaultFilePointer);
+            return;
+        }
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, index));
         for (int i = 0; i < 32; ++i) {
             volume.writeChar(record.getName()[i]);
@@ -144,9 +236,20 @@ public class VolumeIO {
             throw new DufsException("Root's record cannot be modified.");
         }
         long defaultFilePointer = volume.getFilePointer();
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            NameHeapUtility.releaseName(volume, reservedSpace, recordIndex);
+            byte[] record = readRecordBytes(volume, reservedSpace, recordIndex);
+            NameHeapUtility.writeName(volume, reservedSpace, recordIndex, record,
+                    NameHeapUtility.encode(new String(name).replace("\u0000", "")));
+            volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
+            volume.write(record);
+            volume.seek(defaultFilePointer);
+            return;
+        }
+        char[] paddedName = Arrays.copyOf(name, 32);
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.NAME_OFFSET);
         for (int i = 0; i < 32; ++i) {
-            volume.writeChar(name[i]);
+            volume.writeChar(paddedName[i]);
         }
         volume.seek(defaultFilePointer);
     }
@@ -157,7 +260,7 @@ public class VolumeIO {
             throw new DufsException("Root's record cannot be modified.");
         }
         long defaultFilePointer = volume.getFilePointer();
-        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET);
+        volume.seek(calculateRecordFieldPosition(reservedSpace, recordIndex, RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET, RecordOffsetsV2.FIRST_CLUSTER_INDEX_OFFSET));
         volume.writeInt(firstClusterIndex);
         volume.seek(defaultFilePointer);
     }
@@ -168,7 +271,7 @@ public class VolumeIO {
             throw new DufsException("Root's record cannot be modified.");
         }
         long defaultFilePointer = volume.getFilePointer();
-        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.PARENT_DIRECTORY_INDEX_OFFSET);
+        volume.seek(calculateRecordFieldPosition(reservedSpace, recordIndex, RecordOffsets.PARENT_DIRECTORY_INDEX_OFFSET, RecordOffsetsV2.PARENT_DIRECTORY_INDEX_OFFSET));
         volume.writeInt(parentDirectoryIndex);
         volume.writeInt(parentDirectoryIndexOrderNumber);
         volume.seek(defaultFilePointer);
@@ -180,7 +283,7 @@ public class VolumeIO {
             throw new DufsException("Root's record cannot be modified.");
         }
         long defaultFilePointer = volume.getFilePointer();
-        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET);
+        volume.seek(calculateRecordFieldPosition(reservedSpace, recordIndex, RecordOffsets.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET, RecordOffsetsV2.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET));
         volume.writeInt(parentDirectoryIndexOrderNumber);
         volume.seek(defaultFilePointer);
     }
@@ -190,16 +293,32 @@ public class VolumeIO {
             throw new DufsException("Root's record cannot be modified.");
         }
         long defaultFilePointer = volume.getFilePointer();
-        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.SIZE_OFFSET);
+        volume.seek(calculateRecordFieldPosition(reservedSpace, recordIndex, RecordOffsets.SIZE_OFFSET, RecordOffsetsV2.SIZE_OFFSET));
         volume.writeLong(size);
         volume.seek(defaultFilePointer);
     }
 
+    public static void updateRecordIsFile(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex, byte isFile) throws IOException, DufsException {
+        if (recordIndex == 0) {
+            throw new DufsException("Root's record cannot be modified.");
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(calculateRecordFieldPosition(reservedSpace, recordIndex, RecordOffsets.IS_FILE_OFFSET, RecordOffsetsV2.IS_FILE_OFFSET));
+        volume.writeByte(isFile);
+        volume.seek(defaultFilePointer);
+    }
+
     public static void updateRecordLastEdit(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws DufsException, IOException {
         if (recordIndex == 0) {
             throw new DufsException("Root's record cannot be modified.");
         }
         long defaultFilePointer = volume.getFilePointer();
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsetsV2.LAST_EDIT_TIME_OFFSET);
+            volume.writeLong(System.currentTimeMillis());
+            volume.seek(defaultFilePointer);
+            return;
+        }
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex) + RecordOffsets.LAST_EDIT_DATE_OFFSET);
         volume.writeShort(DateUtility.dateToShort(LocalDate.now()));
         volume.writeShort(DateUtility.timeToShort(LocalDateTime.now()));
@@ -209,11 +328,14 @@ public class VolumeIO {
     public static void cleanFileData(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException, DufsException {
         long defaultFilePointer = volume.getFilePointer();
         Record file = readRecordFromVolume(volume, reservedSpace, recordIndex);
-        if (file.getIsFile() == 0) {
+        if (file.getType() == 0) {
             throw new DufsException("Given record is not a file.");
         }
         int clusterIndex = file.getFirstClusterIndex();
-        while (clusterIndex != 0xFFFFFFFF) {
+        while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER) {
+            if (clusterIndex != file.getFirstClusterIndex()) {
+                protectClusters(volume, reservedSpace, clusterIndex, 1);
+            }
             volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
             byte[] emptyCluster = new byte[reservedSpace.getClusterSize()];
             volume.write(emptyCluster);
@@ -223,12 +345,67 @@ public class VolumeIO {
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(prevClusterIndex));
             volume.writeInt(0);
             volume.writeInt(0);
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
         }
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(file.getFirstClusterIndex()));
-        volume.writeInt(0xFFFFFFFF);
-        volume.writeInt(0xFFFFFFFF);
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
         volume.writeInt(recordIndex);
         volume.seek(defaultFilePointer);
     }
-}
\ No newline at end of file
+
+    public static int readRecordFirstClusterIndex(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(calculateRecordFieldPosition(reservedSpace, recordIndex,
+                RecordOffsets.FIRST_CLUSTER_INDEX_OFFSET, RecordOffsetsV2.FIRST_CLUSTER_INDEX_OFFSET));
+        int firstClusterIndex = volume.readInt();
+        volume.seek(defaultFilePointer);
+        return firstClusterIndex;
+    }
+
+    /*
+     * whole record by one read
+     */
+    public static byte[] readRecordBytes(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex) throws IOException {
+        byte[] record = new byte[reservedSpace.getRecordSize()];
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
+        volume.readFully(record);
+        volume.seek(defaultFilePointer);
+        return record;
+    }
+
+    /*
+     * `count` adjacent records by one read
+     */
+    public static byte[] readRecordsBytes(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex,
+                                          int count) throws IOException {
+        byte[] records = new byte[reservedSpace.getRecordSize() * count];
+        long defaultFilePointer = volume.getFilePointer();
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
+        volume.readFully(records);
+        volume.seek(defaultFilePointer);
+        return records;
+    }
+
+    private static long calculateRecordFieldPosition(ReservedSpace reservedSpace, int recordIndex, int offset, int offsetV2) {
+        return VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex)
+                + ((reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) ? offsetV2 : offset);
+    }
+
+    /*
+     * every field of the record of the format 2 except its name
+     */
+    private static byte[] encodeRecordV2(Record record) {
+        byte[] bytes = new byte[RecordListOffsets.RECORD_SIZE_V2];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putLong(RecordOffsetsV2.CREATE_TIME_OFFSET, record.getCreateTimestamp());
+        buffer.putLong(RecordOffsetsV2.LAST_EDIT_TIME_OFFSET, record.getLastEditTimestamp());
+        buffer.putLong(RecordOffsetsV2.SIZE_OFFSET, record.getSize());
+        buffer.putInt(RecordOffsetsV2.FIRST_CLUSTER_INDEX_OFFSET, record.getFirstClusterIndex());
+        buffer.putInt(RecordOffsetsV2.PARENT_DIRECTORY_INDEX_OFFSET, record.getParentDirectoryIndex());
+        buffer.putInt(RecordOffsetsV2.PARENT_DIRECTORY_INDEX_ORDER_NUMBER_OFFSET, record.getParentDirectoryIndexOrderNumber());
+        bytes[RecordOffsetsV2.IS_FILE_OFFSET] = record.getIsFile();
+        return bytes;
+    }
+}
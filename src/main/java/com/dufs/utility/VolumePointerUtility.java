@@ -6,7 +6,7 @@ import com.dufs.offsets.RecordListOffsets;
 
 public class VolumePointerUtility {
     public static long calculateRecordPosition(ReservedSpace reservedSpace, int recordIndex) {
-        return calculateRecordListOffset(reservedSpace) + (long) RecordListOffsets.RECORD_SIZE * recordIndex;
+        return calculateRecordListOffset(reservedSpace) + (long) reservedSpace.getRecordSize() * recordIndex;
     }
 
     public static long calculateClusterIndexPosition(int clusterIndex) {
@@ -19,12 +19,21 @@ public class VolumePointerUtility {
     }
 
     public static long calculateRecordListOffset(ReservedSpace reservedSpace) {
-        return ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET
+        long offset = ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET
                 + (long) reservedSpace.getReservedClusters() * ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE;
+        return (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) ? alignRecordList(offset) : offset;
     }
 
     public static long calculateClustersAreaOffset(ReservedSpace reservedSpace) {
         return calculateRecordListOffset(reservedSpace)
-                + (long) RecordListOffsets.RECORD_SIZE * reservedSpace.getReservedClusters();
+                + (long) reservedSpace.getRecordSize() * reservedSpace.getReservedClusters();
+    }
+
+    /*
+     * records of the format 2 never straddle a 64-byte boundary (a cache line, and so a sector or a page)
+     */
+    public static long alignRecordList(long offset) {
+        long alignment = RecordListOffsets.RECORD_LIST_ALIGNMENT_V2;
+        return (offset + alignment - 1) / alignment * alignment;
     }
-}
\ No newline at end of file
+}
@@ -2,24 +2,43 @@ package com.dufs.utility;
 
 import com.dufs.exceptions.DufsException;
 import com.dufs.filesystem.Dufs;
+import com.dufs.metrics.DufsMetrics;
+import com.dufs.metrics.HotPath;
+import com.dufs.model.ClusterIndexElement;
 import com.dufs.model.Record;
 import com.dufs.model.ReservedSpace;
 import com.dufs.offsets.ClusterIndexListOffsets;
-import com.dufs.offsets.RecordListOffsets;
-import com.dufs.offsets.RecordOffsets;
 import com.dufs.offsets.ReservedSpaceOffsets;
+import com.dufs.volume.ClusterIndexCache;
+import com.dufs.volume.VolumeFile;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 
 public class VolumeUtility {
+    private static final int FREE_RUN_BYTES = 1 << 20;     // zeroed by one write when clusters are freed together
+
+    private static class ClusterList {
+        private int[] clusterIndexes = new int[64];
+        private int length;
+
+        private void add(int clusterIndex) {
+            if (length == clusterIndexes.length) {
+                clusterIndexes = Arrays.copyOf(clusterIndexes, length * 2);
+            }
+            clusterIndexes[length++] = clusterIndex;
+        }
+    }
+
     public static void createClusterIndexChain(RandomAccessFile volume, ReservedSpace reservedSpace, int clusterIndex, int recordIndex) throws IOException {
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
-        volume.writeInt(0xFFFFFFFF);    // ClusterIndexElement.nextClusterIndex
-        volume.writeInt(0xFFFFFFFF);    // ClusterIndexElement.prevClusterIndex
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);    // ClusterIndexElement.nextClusterIndex
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);    // ClusterIndexElement.prevClusterIndex
         volume.writeInt(recordIndex);
         int nextClusterIndex = findNextFreeClusterIndex(volume, reservedSpace);
         reservedSpace.setNextClusterIndex(nextClusterIndex);
@@ -37,7 +56,7 @@ public class VolumeUtility {
         volume.writeInt(prevClusterIndex);
         int recordIndex = volume.readInt();
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(nextClusterIndex));
-        volume.writeInt(0xFFFFFFFF);    // write ClusterIndexElement.nextClusterIndex as end of chain
+        volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);    // write ClusterIndexElement.nextClusterIndex as end of chain
         volume.writeInt(clusterIndex);     // write ClusterIndexElement.prevClusterIndex as index of previous cluster in chain
         volume.writeInt(recordIndex);      // write ClusterIndexElement.recordIndex as record index of previous cluster in chain
         reservedSpace.setNextClusterIndex(findNextFreeClusterIndex(volume, reservedSpace));
@@ -67,31 +86,144 @@ public class VolumeUtility {
         long defaultFilePointer = volume.getFilePointer();
         int clusterIndex = record.getFirstClusterIndex();
         int prevClusterIndex = clusterIndex;
-        // delete record from cluster index list and data in clusters
-        do {
-            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
-            volume.write(new byte[reservedSpace.getClusterSize()]); // set every value in cluster to 0
-            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
-            clusterIndex = volume.readInt();
-            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(prevClusterIndex));
-            prevClusterIndex = clusterIndex;
-            volume.write(new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4]);    // set nextClusterIndex and prevClusterIndex as 0
-            volume.writeInt(0xFFFFFFFF);                                                    // set recordIndex as 0xFFFFFFFF
-        } while (clusterIndex != 0xFFFFFFFF);
+        // delete record from cluster index list and data in clusters (inline and small packed files have no clusters)
+        if (record.getFirstClusterIndex() != ClusterIndexListOffsets.NO_CLUSTER) {
+            do {
+                VolumeIO.protectClusters(volume, reservedSpace, clusterIndex, 1);
+                volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex));
+                volume.write(new byte[reservedSpace.getClusterSize()]); // set every value in cluster to 0
+                volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+                clusterIndex = volume.readInt();
+                volume.seek(VolumePointerUtility.calculateClusterIndexPosition(prevClusterIndex));
+                prevClusterIndex = clusterIndex;
+                volume.write(new byte[ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4]);    // set nextClusterIndex and prevClusterIndex as 0
+                volume.writeInt(ClusterIndexListOffsets.NO_RECORD);                                 // set recordIndex as NO_RECORD
+            } while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER);
+        }
         // delete record index from parent directory cluster
         removeRecordIndexFromDirectoryCluster(volume, reservedSpace,
                 record.getParentDirectoryIndex(), record.getParentDirectoryIndexOrderNumber());
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            NameHeapUtility.releaseName(volume, reservedSpace, recordIndex);
+        }
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
         // delete record from record list
-        volume.write(new byte[RecordListOffsets.RECORD_SIZE]);      // set next RECORD_SIZE (93) bytes to 0
+        volume.write(new byte[reservedSpace.getRecordSize()]);      // set next RECORD_SIZE (93, or 64 in the format 2) bytes to 0
+        volume.seek(defaultFilePointer);
+    }
+
+    /*
+     * deletes the directory with everything in it. the subtree is walked once by record index, its records are cleared
+     * without compaction of their directories (only the directory itself is removed from its parent), and the clusters
+     * of all the chains are freed together, by runs of adjacent clusters, with one update of ReservedSpace.freeClusters
+     */
+    public static void deleteTree(RandomAccessFile volume, ReservedSpace reservedSpace, int directoryIndex) throws IOException, DufsException {
+        if (directoryIndex == 0) {
+            throw new DufsException("Root's record cannot be modified.");
+        }
+        long defaultFilePointer = volume.getFilePointer();
+        Record directory = VolumeIO.readRecordFromVolume(volume, reservedSpace, directoryIndex);
+        removeRecordIndexFromDirectoryCluster(volume, reservedSpace,
+                directory.getParentDirectoryIndex(), directory.getParentDirectoryIndexOrderNumber());
+        ClusterList clusters = new ClusterList();
+        Deque<Integer> directories = new ArrayDeque<>();
+        directories.push(directoryIndex);
+        while (!directories.isEmpty()) {
+            int index = directories.pop();
+            for (int recordIndex : readDirectoryRecordIndexes(volume, reservedSpace, index)) {
+                Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+                if (record.getType() == 0) {
+                    directories.push(recordIndex);
+                } else {
+                    clearRecord(volume, reservedSpace, recordIndex, record, clusters);
+                }
+            }
+            // entries of the directory have been read, its chain is freed with the others in the end
+            clearRecord(volume, reservedSpace, index, VolumeIO.readRecordFromVolume(volume, reservedSpace, index), clusters);
+        }
+        freeClusters(volume, reservedSpace, clusters);
         volume.seek(defaultFilePointer);
     }
 
+    /*
+     * releases what the record refers to besides its chain, adds the chain to `clusters` and clears the record
+     */
+    private static void clearRecord(RandomAccessFile volume, ReservedSpace reservedSpace, int recordIndex, Record record,
+                                    ClusterList clusters) throws IOException, DufsException {
+        if (record.isDeduplicated()) {
+            DedupUtility.releaseFile(volume, reservedSpace, record);
+        }
+        if (record.isSparse()) {
+            SparseUtility.releaseFile(volume, reservedSpace, record);
+        }
+        if (record.isPacked()) {
+            TailPackingUtility.releaseFile(volume, reservedSpace, recordIndex);
+            record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
+        }
+        if (record.isInline() || record.isPacked()) {
+            InlineUtility.releaseExtensionSlot(volume, reservedSpace, recordIndex);
+        }
+        if (reservedSpace.getFormatVersion() == ReservedSpace.FORMAT_V2) {
+            NameHeapUtility.releaseName(volume, reservedSpace, recordIndex);
+        }
+        int clusterIndex = record.getFirstClusterIndex();
+        while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER) {
+            clusters.add(clusterIndex);
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
+            clusterIndex = volume.readInt();
+        }
+        volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, recordIndex));
+        volume.write(new byte[reservedSpace.getRecordSize()]);
+    }
+
+    /*
+     * zeroes the clusters and their elements by runs of adjacent clusters
+     */
+    private static void freeClusters(RandomAccessFile volume, ReservedSpace reservedSpace, ClusterList clusters) throws IOException {
+        int[] clusterIndexes = Arrays.copyOf(clusters.clusterIndexes, clusters.length);
+        Arrays.sort(clusterIndexes);
+        byte[] zeros = new byte[reservedSpace.getClusterSize() * Math.max(1, FREE_RUN_BYTES / reservedSpace.getClusterSize())];
+        int runClusters = zeros.length / reservedSpace.getClusterSize();
+        byte[] element = new ClusterIndexElement().serialize();
+        for (int start = 0, end; start < clusterIndexes.length; start = end) {
+            end = start + 1;
+            while (end < clusterIndexes.length && end - start < runClusters
+                    && clusterIndexes[end] == clusterIndexes[end - 1] + 1) {
+                end++;
+            }
+            int run = end - start;
+            VolumeIO.protectClusters(volume, reservedSpace, clusterIndexes[start], run);
+            volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndexes[start]));
+            volume.write(zeros, 0, reservedSpace.getClusterSize() * run);
+            byte[] elements = new byte[element.length * run];
+            for (int i = 0; i < run; ++i) {
+                System.arraycopy(element, 0, elements, element.length * i, element.length);
+            }
+            volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndexes[start]));
+            volume.write(elements);
+        }
+        reservedSpace.setFreeClusters(reservedSpace.getFreeClusters() + clusterIndexes.length);
+        VolumeIO.updateVolumeFreeClusters(volume, reservedSpace.getFreeClusters());
+    }
+
     /*
      * currently it uses linear search, which is bad (!)
      * architecturally it could be remade on b-trees-like data structure and find record by O(logn)
     */
     public static int findDirectoryIndex(RandomAccessFile volume, ReservedSpace reservedSpace, String path) throws IOException, DufsException {
+        DufsMetrics metrics = metrics(volume);
+        if (metrics == null) {
+            return searchDirectoryIndex(volume, reservedSpace, path);
+        }
+        long started = System.nanoTime();
+        try {
+            return searchDirectoryIndex(volume, reservedSpace, path);
+        } finally {
+            metrics.recordHotPath(HotPath.FIND_DIRECTORY_INDEX, System.nanoTime() - started);
+        }
+    }
+
+    private static int searchDirectoryIndex(RandomAccessFile volume, ReservedSpace reservedSpace, String path) throws IOException, DufsException {
         long defaultFilePointer = volume.getFilePointer();
         String[] records = Parser.parsePath(path);
         // check if root name is the first directory in the given path
@@ -117,10 +249,8 @@ public class VolumeUtility {
                 recordIndex = volume.readInt();
                 int counter = 0;
                 while (recordIndex != 0 && counter < (reservedSpace.getClusterSize() / 4)) {    // iterate over record indexes in the cluster
-                    Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
-                    if (Arrays.equals(Arrays.copyOf(records[i].toCharArray(), 32), record.getName())
-                            && record.getIsFile() == 0) {
-                        clusterIndex = record.getFirstClusterIndex();
+                    if (VolumeHelper.hasName(volume, reservedSpace, recordIndex, records[i], (byte) 0)) {
+                        clusterIndex = VolumeIO.readRecordFirstClusterIndex(volume, reservedSpace, recordIndex);
                         clusterIndexPosition = VolumePointerUtility.calculateClusterPosition(reservedSpace, clusterIndex) + 4;
                         hasFound = true;
                         break;
@@ -159,9 +289,7 @@ public class VolumeUtility {
             recordIndex = volume.readInt();
             int counter = 0;
             while (recordIndex != 0 && counter < (reservedSpace.getClusterSize() / 4)) {    // iterate over record indexes in the cluster
-                Record record = VolumeIO.readRecordFromVolume(volume, reservedSpace, recordIndex);
-                if (Arrays.equals(Arrays.copyOf(fileName.toCharArray(), 32), record.getName())
-                        && record.getIsFile() == 1) {
+                if (VolumeHelper.hasName(volume, reservedSpace, recordIndex, fileName, (byte) 1)) {
                     hasFound = true;
                     break;
                 }
@@ -185,6 +313,28 @@ public class VolumeUtility {
      * runs through the cluster indexes (starting from ReservedSpace.nextClusterIndex) and returns index of first met 0;
      */
     public static int findNextFreeClusterIndex(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        DufsMetrics metrics = metrics(volume);
+        if (metrics == null) {
+            return searchNextFreeClusterIndex(volume, reservedSpace);
+        }
+        long started = System.nanoTime();
+        try {
+            return searchNextFreeClusterIndex(volume, reservedSpace);
+        } finally {
+            metrics.recordHotPath(HotPath.FIND_NEXT_FREE_CLUSTER_INDEX, System.nanoTime() - started);
+        }
+    }
+
+    private static int searchNextFreeClusterIndex(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        ClusterIndexCache clusterIndexCache = clusterIndexCache(volume);
+        if (clusterIndexCache != null) {
+            int clusterIndex = (reservedSpace.getNextClusterIndex() < reservedSpace.getReservedClusters())
+                    ? reservedSpace.getNextClusterIndex() : 1;
+            while (clusterIndexCache.getNextClusterIndex(clusterIndex) != 0) {
+                clusterIndex = (clusterIndex + 1 < reservedSpace.getReservedClusters()) ? clusterIndex + 1 : 1;
+            }
+            return clusterIndex;
+        }
         long defaultFilePointer = volume.getFilePointer();
         int currentClusterIndex = reservedSpace.getNextClusterIndex();
         long currentClusterIndexPosition = VolumePointerUtility.calculateClusterIndexPosition(currentClusterIndex);
@@ -206,30 +356,52 @@ public class VolumeUtility {
     }
 
     public static int findNextFreeRecordIndex(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
+        DufsMetrics metrics = metrics(volume);
+        if (metrics == null) {
+            return searchNextFreeRecordIndex(volume, reservedSpace);
+        }
+        long started = System.nanoTime();
+        try {
+            return searchNextFreeRecordIndex(volume, reservedSpace);
+        } finally {
+            metrics.recordHotPath(HotPath.FIND_NEXT_FREE_RECORD_INDEX, System.nanoTime() - started);
+        }
+    }
+
+    /*
+     * returns 0 (root's record, which is never free) if there are no free records
+     */
+    private static int searchNextFreeRecordIndex(RandomAccessFile volume, ReservedSpace reservedSpace) throws IOException {
         long defaultFilePointer = volume.getFilePointer();
-        int currentRecordIndex = reservedSpace.getNextRecordIndex();
-        long currentRecordPosition = VolumePointerUtility.calculateRecordPosition(reservedSpace, currentRecordIndex);
-        short recordCreateDate;
-        int nextFreeRecordIndex = currentRecordIndex - 1;
-        final long MAX_RECORD_POSITION = VolumePointerUtility.calculateRecordPosition(reservedSpace, reservedSpace.getReservedClusters()); // equal to number of clusters * Record's size in bytes
-        do {
-            volume.seek(currentRecordPosition + RecordOffsets.CREATE_DATE_OFFSET);
-            nextFreeRecordIndex++;
-            recordCreateDate = volume.readShort();  // read 2 bytes of Record.createDate, because if it is 0 -- record is empty
-            if (currentRecordPosition > MAX_RECORD_POSITION) {  // if traversal should continue from the 1st record
+        final int RECORDS = reservedSpace.getReservedClusters();    // equal to number of clusters
+        int nextFreeRecordIndex = reservedSpace.getNextRecordIndex();
+        // inline files take records without clusters, so the record list may be full before the clusters are
+        for (int checkedRecords = 0; checkedRecords < RECORDS; ++checkedRecords) {
+            if (nextFreeRecordIndex >= RECORDS) {   // if traversal should continue from the 1st record
                 nextFreeRecordIndex = 1;
-                currentRecordPosition = VolumePointerUtility.calculateRecordPosition(reservedSpace, nextFreeRecordIndex);
             }
-            currentRecordPosition += RecordListOffsets.RECORD_SIZE; // skip RECORD_SIZE (93) bytes of record till next record's createDate
-        } while (recordCreateDate != 0);
+            if (!VolumeHelper.recordExists(volume, reservedSpace, nextFreeRecordIndex)) {  // Record.createDate is 0 -- record is empty
+                volume.seek(defaultFilePointer);
+                return nextFreeRecordIndex;
+            }
+            nextFreeRecordIndex++;
+        }
         volume.seek(defaultFilePointer);
-        return nextFreeRecordIndex;
+        return 0;
     }
 
     /*
      * returns -1 if given cluster is the last in the chain
      */
     public static int findNextClusterIndexInChain(RandomAccessFile volume, int clusterIndex) throws IOException, DufsException {
+        ClusterIndexCache clusterIndexCache = clusterIndexCache(volume);
+        if (clusterIndexCache != null) {
+            int nextCluster = clusterIndexCache.getNextClusterIndex(clusterIndex);
+            if (nextCluster == 0) {
+                throw new DufsException("Given cluster chain is broken.");
+            }
+            return nextCluster;
+        }
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
         int nextCluster = volume.readInt();
@@ -241,6 +413,10 @@ public class VolumeUtility {
     }
 
     public static int findPrevClusterIndexInChain(RandomAccessFile volume, int clusterIndex) throws IOException {
+        ClusterIndexCache clusterIndexCache = clusterIndexCache(volume);
+        if (clusterIndexCache != null) {
+            return clusterIndexCache.getPrevClusterIndex(clusterIndex);
+        }
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 4);
         int prevClusterIndex = volume.readInt();
@@ -252,9 +428,20 @@ public class VolumeUtility {
         long defaultFilePointer = volume.getFilePointer();
         int prevIndex;
         int index = clusterIndex;
-        if (index == 0xFFFFFFFF) {
+        if (index == ClusterIndexListOffsets.NO_CLUSTER) {
             throw new DufsException("Given cluster index is wrong.");
         }
+        ClusterIndexCache clusterIndexCache = clusterIndexCache(volume);
+        if (clusterIndexCache != null) {
+            do {
+                prevIndex = index;
+                index = clusterIndexCache.getNextClusterIndex(index);
+                if (index == 0) {
+                    throw new DufsException("Given cluster chain is broken.");
+                }
+            } while (index != ClusterIndexListOffsets.NO_CLUSTER);
+            return prevIndex;
+        }
         do {
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(index));
             prevIndex = index;
@@ -262,7 +449,7 @@ public class VolumeUtility {
             if (index == 0) {
                 throw new DufsException("Given cluster chain is broken.");
             }
-        } while (index != 0xFFFFFFFF);
+        } while (index != ClusterIndexListOffsets.NO_CLUSTER);
         volume.seek(defaultFilePointer);
         return prevIndex;
     }
@@ -271,19 +458,31 @@ public class VolumeUtility {
         long defaultFilePointer = volume.getFilePointer();
         int prevIndex;
         int index = clusterIndex;
-        if (index == 0xFFFFFFFF) {
+        if (index == ClusterIndexListOffsets.NO_CLUSTER) {
             throw new DufsException("Given cluster index is wrong.");
         }
+        ClusterIndexCache clusterIndexCache = clusterIndexCache(volume);
+        if (clusterIndexCache != null) {
+            do {
+                prevIndex = index;
+                index = clusterIndexCache.getPrevClusterIndex(index);
+            } while (index != ClusterIndexListOffsets.NO_CLUSTER);
+            return prevIndex;
+        }
         do {
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(index) + 4);
             prevIndex = index;
             index = volume.readInt();
-        } while (index != 0xFFFFFFFF);
+        } while (index != ClusterIndexListOffsets.NO_CLUSTER);
         volume.seek(defaultFilePointer);
         return prevIndex;
     }
 
     public static int findRecordIndexOfCluster(RandomAccessFile volume, int clusterIndex) throws IOException, DufsException {
+        ClusterIndexCache clusterIndexCache = clusterIndexCache(volume);
+        if (clusterIndexCache != null) {
+            return clusterIndexCache.getRecordIndex(clusterIndex);
+        }
         long defaultFilePointer = volume.getFilePointer();
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + 8);
         int recordIndex = volume.readInt();
@@ -291,6 +490,38 @@ public class VolumeUtility {
         return recordIndex;
     }
 
+    /*
+     * reads directory's cluster chain cluster by cluster (one read per cluster)
+     * and returns indexes of records contained in the directory
+     */
+    public static int[] readDirectoryRecordIndexes(RandomAccessFile volume, ReservedSpace reservedSpace,
+                                                   int directoryIndex) throws IOException, DufsException {
+        Record directory = VolumeIO.readRecordFromVolume(volume, reservedSpace, directoryIndex);
+        int clusterIndex = directory.getFirstClusterIndex();
+        byte[] cluster = new byte[reservedSpace.getClusterSize()];
+        VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+        ByteBuffer buffer = ByteBuffer.wrap(cluster);
+        int numberOfRecords = Math.min(buffer.getInt(), reservedSpace.getReservedClusters());   // skip first 4 bytes of directory's cluster
+        int[] recordIndexes = new int[Math.max(0, numberOfRecords)];
+        int counter = 0;
+        while (counter < numberOfRecords) {
+            while (counter < numberOfRecords && buffer.hasRemaining()) {                        // iterate over record indexes in the cluster
+                int recordIndex = buffer.getInt();
+                if (recordIndex == 0) {
+                    break;
+                }
+                recordIndexes[counter++] = recordIndex;
+            }
+            clusterIndex = findNextClusterIndexInChain(volume, clusterIndex);
+            if (clusterIndex == ClusterIndexListOffsets.NO_CLUSTER) {
+                break;
+            }
+            VolumeIO.readClusterFromVolume(volume, reservedSpace, clusterIndex, cluster);
+            buffer.clear();
+        }
+        return Arrays.copyOf(recordIndexes, counter);
+    }
+
     public static int addRecordIndexInDirectoryCluster(RandomAccessFile volume, ReservedSpace reservedSpace,
                                                        int recordIndex, int parentDirectoryClusterIndex) throws IOException, DufsException {
         long defaultFilePointer = volume.getFilePointer();
@@ -345,9 +576,9 @@ public class VolumeUtility {
             clusterOrderNumber++;
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex));
             clusterIndex = volume.readInt();
-        } while (clusterIndex != 0xFFFFFFFF);
+        } while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER);
         int lastClusterIndex = volume.readInt();
-        if (lastClusterIndex != 0xFFFFFFFF) {
+        if (lastClusterIndex != ClusterIndexListOffsets.NO_CLUSTER) {
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(lastClusterIndex));  // read ClusterIndexElement.prevClusterIndex and seek to that cluster index
             lastClusterIndex = volume.readInt();                                                // read index of last cluster in chain
         } else {
@@ -363,13 +594,14 @@ public class VolumeUtility {
         volume.writeInt(0);
         // if last cluster becomes empty
         if (numberOfRecordsInDirectory % (reservedSpace.getClusterSize() / 4) == 0) {
+            VolumeIO.protectClusters(volume, reservedSpace, lastClusterIndex, 1);
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(lastClusterIndex));
             volume.writeInt(0);
             volume.writeInt(0);
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_RECORD);
             int prevClusterIndex = volume.readInt();
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(prevClusterIndex));
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
         }
         volume.seek(defaultFilePointer);
     }
@@ -382,11 +614,15 @@ public class VolumeUtility {
         int clusterIndex = record.getFirstClusterIndex();
         int clusterCounter = startClusterIndex;
         do {
+            // shared clusters of deduplicated files and fragment clusters are referenced by index, so they stay in place
+            while (DedupUtility.isSharedCluster(volume, clusterCounter) || TailPackingUtility.isFragmentCluster(volume, clusterCounter)) {
+                clusterCounter++;
+            }
             smartSwapClusters(volume, reservedSpace, clusterIndex, clusterCounter);
             volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterCounter));
             clusterIndex = volume.readInt();
             clusterCounter++;
-        } while (clusterIndex != 0xFFFFFFFF && clusterIndex != 0);
+        } while (clusterIndex != ClusterIndexListOffsets.NO_CLUSTER && clusterIndex != 0);
         volume.seek(defaultFilePointer);
         return clusterCounter;
     }
@@ -437,6 +673,9 @@ public class VolumeUtility {
         volume.seek(clusterPos2);
         byte[] cluster2 = new byte[reservedSpace.getClusterSize()];
         volume.read(cluster2);
+        // the durable metadata refers to both clusters until the transaction of the swap is durable
+        VolumeIO.protectClusters(volume, reservedSpace, clusterIndex1, 1);
+        VolumeIO.protectClusters(volume, reservedSpace, clusterIndex2, 1);
         volume.seek(clusterPos2);
         volume.write(cluster1);
         volume.seek(clusterPos1);
@@ -460,17 +699,17 @@ public class VolumeUtility {
         int clusterIndexNext2 = volume.readInt();
         int clusterIndexPrev2 = volume.readInt();
         int clusterRecordIndex2 = volume.readInt();
-        if (clusterIndexPrev1 == 0xFFFFFFFF) {
+        if (clusterIndexPrev1 == ClusterIndexListOffsets.NO_CLUSTER) {
             VolumeIO.updateRecordFirstClusterIndex(volume, reservedSpace,
                     findRecordIndexOfCluster(volume, clusterIndex1), clusterIndex2);
         }
-        if (clusterIndexPrev2 == 0xFFFFFFFF) {
+        if (clusterIndexPrev2 == ClusterIndexListOffsets.NO_CLUSTER) {
             VolumeIO.updateRecordFirstClusterIndex(volume, reservedSpace,
                     findRecordIndexOfCluster(volume, clusterIndex2), clusterIndex1);
         }
         // if one cluster is free and second is the only cluster in chain
-        if ((clusterIndexNext1 == 0 && clusterIndexPrev1 == 0 && clusterIndexNext2 == 0xFFFFFFFF && clusterIndexPrev2 == 0xFFFFFFFF)
-                || (clusterIndexNext1 == 0xFFFFFFFF && clusterIndexPrev1 == 0xFFFFFFFF && clusterIndexNext2 == 0 && clusterIndexPrev2 == 0)) {
+        if ((clusterIndexNext1 == 0 && clusterIndexPrev1 == 0 && clusterIndexNext2 == ClusterIndexListOffsets.NO_CLUSTER && clusterIndexPrev2 == ClusterIndexListOffsets.NO_CLUSTER)
+                || (clusterIndexNext1 == ClusterIndexListOffsets.NO_CLUSTER && clusterIndexPrev1 == ClusterIndexListOffsets.NO_CLUSTER && clusterIndexNext2 == 0 && clusterIndexPrev2 == 0)) {
             swapClustersContent(volume, reservedSpace, clusterIndex1, clusterIndex2);
             volume.seek(clusterIndexPos1);
             volume.writeInt(clusterIndexNext2);
@@ -484,36 +723,36 @@ public class VolumeUtility {
         }
         if (clusterIndexNext1 == clusterIndex2) {
             volume.seek(clusterIndexPos1);
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
             volume.writeInt(clusterIndex2);
             volume.writeInt(clusterRecordIndex2);
             volume.seek(clusterIndexPos2);
             volume.writeInt(clusterIndex1);
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
             volume.writeInt(clusterRecordIndex1);
         } else if (clusterIndexNext2 == clusterIndex2) {
             volume.seek(clusterIndexPos1);
             volume.writeInt(clusterIndex1);
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
             volume.writeInt(clusterRecordIndex1);
             volume.seek(clusterIndexPos2);
-            volume.writeInt(0xFFFFFFFF);
+            volume.writeInt(ClusterIndexListOffsets.NO_CLUSTER);
             volume.writeInt(clusterIndex2);
             volume.writeInt(clusterRecordIndex2);
         } else {
-            if (clusterIndexNext1 != 0xFFFFFFFF && clusterIndexNext1 != 0) {
+            if (clusterIndexNext1 != ClusterIndexListOffsets.NO_CLUSTER && clusterIndexNext1 != 0) {
                 volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndexNext1) + 4);
                 volume.writeInt(clusterIndex2);
             }
-            if (clusterIndexPrev1 != 0xFFFFFFFF && (clusterIndexPrev1 != 0 && clusterIndexNext1 != 0)) {
+            if (clusterIndexPrev1 != ClusterIndexListOffsets.NO_CLUSTER && (clusterIndexPrev1 != 0 && clusterIndexNext1 != 0)) {
                 volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndexPrev1));
                 volume.writeInt(clusterIndex2);
             }
-            if (clusterIndexNext2 != 0xFFFFFFFF && clusterIndexNext2 != 0) {
+            if (clusterIndexNext2 != ClusterIndexListOffsets.NO_CLUSTER && clusterIndexNext2 != 0) {
                 volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndexNext2) + 4);
                 volume.writeInt(clusterIndex1);
             }
-            if (clusterIndexPrev2 != 0xFFFFFFFF && (clusterIndexPrev2 != 0 && clusterIndexNext2 != 0)) {
+            if (clusterIndexPrev2 != ClusterIndexListOffsets.NO_CLUSTER && (clusterIndexPrev2 != 0 && clusterIndexNext2 != 0)) {
                 volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndexPrev2));
                 volume.writeInt(clusterIndex1);
             }
@@ -531,4 +770,18 @@ public class VolumeUtility {
         swapClustersContent(volume, reservedSpace, clusterIndex1, clusterIndex2);
         volume.seek(defaultFilePointer);
     }
-}
\ No newline at end of file
+
+    /*
+     * in-memory cluster index list of the volume, null if the volume does not keep it
+     */
+    private static ClusterIndexCache clusterIndexCache(RandomAccessFile volume) {
+        return (volume instanceof VolumeFile volumeFile) ? volumeFile.getClusterIndexCache() : null;
+    }
+
+    /*
+     * metrics of the volume, null if they are not collected
+     */
+    private static DufsMetrics metrics(RandomAccessFile volume) {
+        return (volume instanceof VolumeFile volumeFile) ? volumeFile.getMetrics() : null;
+    }
+}
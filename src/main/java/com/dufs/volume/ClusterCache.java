@@ -0,0 +1,217 @@
+package com.dufs.volume;
+
+import java.io.IOException;
+import java.util.*;
+
+/*
+ * write-back cache of the clusters area: keeps at most `capacity` clusters (least recently used one is evicted),
+ * writes are made in the cached buffers and only the dirty range of the cluster is written back
+ * (on eviction, on flush and, when the journal is enabled, on every commit).
+ * clusters which are not completely inside the volume file (e.g. after bake) are not cached.
+ */
+public class ClusterCache {
+    private static class CachedCluster {
+        private final byte[] data;
+        private int dirtyFrom = Integer.MAX_VALUE;
+        private int dirtyTo = -1;
+
+        private CachedCluster(int clusterSize) {
+            this.data = new byte[clusterSize];
+        }
+
+        private boolean isDirty() {
+            return dirtyTo >= 0;
+        }
+
+        private void markDirty(int from, int to) {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+
+        private void markClean() {
+            dirtyFrom = Integer.MAX_VALUE;
+            dirtyTo = -1;
+        }
+    }
+
+    private final VolumeFile volume;
+    private final long clustersAreaOffset;
+    private final int clusterSize;
+    private final int capacity;
+    private final LinkedHashMap<Long, CachedCluster> clusters = new LinkedHashMap<>(16, 0.75f, true);
+    private long reads;
+    private long writes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    public ClusterCache(VolumeFile volume, long clustersAreaOffset, int clusterSize, long maxMemory) {
+        this.volume = volume;
+        this.clustersAreaOffset = clustersAreaOffset;
+        this.clusterSize = clusterSize;
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxMemory / clusterSize));
+    }
+
+    public long getClustersAreaOffset() {
+        return clustersAreaOffset;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getCachedClusters() {
+        return clusters.size();
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getWriteBacks() {
+        return writeBacks;
+    }
+
+    public int getDirtyClusters() {
+        int dirtyClusters = 0;
+        for (CachedCluster cluster : clusters.values()) {
+            if (cluster.isDirty()) {
+                dirtyClusters++;
+            }
+        }
+        return dirtyClusters;
+    }
+
+    /*
+     * given range has to start in the clusters area
+     */
+    public int read(long pos, byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            long current = pos + done;
+            long clusterNumber = (current - clustersAreaOffset) / clusterSize;
+            int clusterOffset = (int) ((current - clustersAreaOffset) % clusterSize);
+            int chunk = Math.min(len - done, clusterSize - clusterOffset);
+            reads++;
+            CachedCluster cluster = getCluster(clusterNumber, true);
+            if (cluster != null) {
+                System.arraycopy(cluster.data, clusterOffset, b, off + done, chunk);
+            } else {
+                int bytes = volume.readLower(current, b, off + done, chunk);
+                if (bytes < chunk) {
+                    done += Math.max(bytes, 0);
+                    return (done == 0) ? -1 : done;
+                }
+            }
+            done += chunk;
+        }
+        return done;
+    }
+
+    /*
+     * given range has to start in the clusters area
+     */
+    public void write(long pos, byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            long current = pos + done;
+            long clusterNumber = (current - clustersAreaOffset) / clusterSize;
+            int clusterOffset = (int) ((current - clustersAreaOffset) % clusterSize);
+            int chunk = Math.min(len - done, clusterSize - clusterOffset);
+            writes++;
+            // cluster which is overwritten completely does not have to be read
+            CachedCluster cluster = getCluster(clusterNumber, chunk != clusterSize);
+            if (cluster != null) {
+                System.arraycopy(b, off + done, cluster.data, clusterOffset, chunk);
+                cluster.markDirty(clusterOffset, clusterOffset + chunk);
+            } else {
+                volume.writeLower(current, b, off + done, chunk);
+            }
+            done += chunk;
+        }
+    }
+
+    /*
+     * writes back every dirty cluster in order of their position in the volume
+     */
+    public void flush() throws IOException {
+        List<Long> dirtyClusterNumbers = new ArrayList<>();
+        for (Map.Entry<Long, CachedCluster> entry : clusters.entrySet()) {
+            if (entry.getValue().isDirty()) {
+                dirtyClusterNumbers.add(entry.getKey());
+            }
+        }
+        Collections.sort(dirtyClusterNumbers);
+        for (long clusterNumber : dirtyClusterNumbers) {
+            // LinkedHashMap in access order: iteration does not change the order, but get() does
+            writeBack(clusterNumber, clusters.get(clusterNumber));
+        }
+    }
+
+    /*
+     * writes back dirty clusters and forgets everything (e.g. when the length of the volume is changed)
+     */
+    public void invalidate() throws IOException {
+        flush();
+        clusters.clear();
+    }
+
+    private CachedCluster getCluster(long clusterNumber, boolean load) throws IOException {
+        CachedCluster cluster = clusters.get(clusterNumber);
+        if (cluster != null) {
+            hits++;
+            return cluster;
+        }
+        misses++;
+        long clusterPosition = clustersAreaOffset + clusterNumber * clusterSize;
+        if (clusterPosition + clusterSize > volume.length()) {
+            return null;
+        }
+        cluster = new CachedCluster(clusterSize);
+        if (load) {
+            int done = 0;
+            int bytes;
+            while (done < clusterSize
+                    && (bytes = volume.readLower(clusterPosition + done, cluster.data, done, clusterSize - done)) > 0) {
+                done += bytes;
+            }
+        }
+        clusters.put(clusterNumber, cluster);
+        if (clusters.size() > capacity) {
+            Iterator<Map.Entry<Long, CachedCluster>> eldest = clusters.entrySet().iterator();
+            Map.Entry<Long, CachedCluster> entry = eldest.next();
+            writeBack(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+        return cluster;
+    }
+
+    private void writeBack(long clusterNumber, CachedCluster cluster) throws IOException {
+        if (!cluster.isDirty()) {
+            return;
+        }
+        long clusterPosition = clustersAreaOffset + clusterNumber * clusterSize;
+        volume.writeLower(clusterPosition + cluster.dirtyFrom, cluster.data, cluster.dirtyFrom,
+                cluster.dirtyTo - cluster.dirtyFrom);
+        cluster.markClean();
+        writeBacks++;
+    }
+}
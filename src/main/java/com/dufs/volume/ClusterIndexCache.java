@@ -0,0 +1,163 @@
+package com.dufs.volume;
+
+import com.dufs.offsets.ClusterIndexListOffsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/*
+ * copy of the cluster index list in memory: nextClusterIndex, prevClusterIndex and recordIndex of every cluster
+ * are kept in three int arrays (off-heap for volumes with more than OFF_HEAP_THRESHOLD clusters, see IntArray),
+ * so the cache keeps up to ClusterIndexListOffsets.MAX_CLUSTERS clusters (24GiB of memory outside the Java heap).
+ * the list is loaded lazily, by parts of LOAD_PART_ELEMENTS elements read by one sequential read when they are
+ * needed first, so attaching of a big volume does not wait for the whole list. then every write of the volume
+ * which touches the list updates it (write-through), so reads of the list and traversals of the chains
+ * do not touch the file.
+ */
+public class ClusterIndexCache {
+    public static final int OFF_HEAP_THRESHOLD = IntArray.OFF_HEAP_THRESHOLD;
+    private static final int LOAD_PART_ELEMENTS = 1 << 16;
+
+    private final int clusters;
+    private final long listEnd;
+    private final IntArray nextClusterIndexes;
+    private final IntArray prevClusterIndexes;
+    private final IntArray recordIndexes;
+    private final BitSet loadedParts = new BitSet();
+    private VolumeFile volume;      // parts are read from it, null if the cache is not bound to a volume
+
+    public ClusterIndexCache(int clusters) {
+        this(clusters, IntArray.CHUNK_ELEMENTS);
+    }
+
+    /*
+     * chunkElements is a power of two
+     */
+    ClusterIndexCache(int clusters, int chunkElements) {
+        this.clusters = clusters;
+        this.listEnd = ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET
+                + (long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * clusters;
+        this.nextClusterIndexes = new IntArray(clusters, chunkElements);
+        this.prevClusterIndexes = new IntArray(clusters, chunkElements);
+        this.recordIndexes = new IntArray(clusters, chunkElements);
+    }
+
+    public int getClusters() {
+        return clusters;
+    }
+
+    public boolean isOffHeap() {
+        return nextClusterIndexes.isOffHeap();
+    }
+
+    public int getNextClusterIndex(int clusterIndex) throws IOException {
+        return get(nextClusterIndexes, clusterIndex);
+    }
+
+    public int getPrevClusterIndex(int clusterIndex) throws IOException {
+        return get(prevClusterIndexes, clusterIndex);
+    }
+
+    public int getRecordIndex(int clusterIndex) throws IOException {
+        return get(recordIndexes, clusterIndex);
+    }
+
+    /*
+     * binds the cache to the volume, its parts are read when they are needed first
+     */
+    public void load(VolumeFile volume) {
+        this.volume = volume;
+        loadedParts.clear();
+    }
+
+    private int get(IntArray field, int clusterIndex) throws IOException {
+        int part = clusterIndex / LOAD_PART_ELEMENTS;
+        if (volume != null && !loadedParts.get(part)) {
+            loadPart(part);
+        }
+        return field.get(clusterIndex);
+    }
+
+    private void loadPart(int part) throws IOException {
+        int firstClusterIndex = part * LOAD_PART_ELEMENTS;
+        int count = Math.min(LOAD_PART_ELEMENTS, clusters - firstClusterIndex);
+        int length = count * ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE;
+        byte[] buffer = new byte[length];
+        long position = ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET
+                + (long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * firstClusterIndex;
+        int done = 0;
+        while (done < length) {
+            int bytes = volume.readLower(position + done, buffer, done, length - done);
+            if (bytes <= 0) {
+                throw new IOException("Cluster index list is shorter than expected");
+            }
+            done += bytes;
+        }
+        ByteBuffer elements = ByteBuffer.wrap(buffer);
+        for (int clusterIndex = firstClusterIndex; clusterIndex < firstClusterIndex + count; ++clusterIndex) {
+            nextClusterIndexes.set(clusterIndex, elements.getInt());
+            prevClusterIndexes.set(clusterIndex, elements.getInt());
+            recordIndexes.set(clusterIndex, elements.getInt());
+        }
+        loadedParts.set(part);
+    }
+
+    /*
+     * true if the range is completely inside the list
+     */
+    public boolean contains(long pos, int len) {
+        return pos >= ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET && pos + len <= listEnd;
+    }
+
+    public boolean overlaps(long pos, int len) {
+        return pos < listEnd && pos + len > ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET;
+    }
+
+    /*
+     * serializes the range of the list (which has to be inside the list) in big-endian order, as it is in the volume
+     */
+    public int read(long pos, byte[] b, int off, int len) throws IOException {
+        for (int i = 0; i < len; ++i) {
+            b[off + i] = getByte(pos + i);
+        }
+        return len;
+    }
+
+    /*
+     * applies bytes written to the volume to the part of the list they overlap
+     */
+    public void patch(long pos, byte[] b, int off, int len) throws IOException {
+        long from = Math.max(pos, ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET);
+        long to = Math.min(pos + len, listEnd);
+        for (long current = from; current < to; ++current) {
+            setByte(current, b[(int) (off + current - pos)]);
+        }
+    }
+
+    private IntArray fieldOf(int fieldNumber) {
+        return switch (fieldNumber) {
+            case 0 -> nextClusterIndexes;
+            case 1 -> prevClusterIndexes;
+            default -> recordIndexes;
+        };
+    }
+
+    private byte getByte(long pos) throws IOException {
+        long offset = pos - ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET;
+        int clusterIndex = (int) (offset / ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE);
+        int elementOffset = (int) (offset % ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE);
+        int value = get(fieldOf(elementOffset / 4), clusterIndex);
+        return (byte) (value >>> (8 * (3 - elementOffset % 4)));
+    }
+
+    private void setByte(long pos, byte b) throws IOException {
+        long offset = pos - ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET;
+        int clusterIndex = (int) (offset / ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE);
+        int elementOffset = (int) (offset % ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE);
+        IntArray field = fieldOf(elementOffset / 4);
+        int shift = 8 * (3 - elementOffset % 4);
+        int value = get(field, clusterIndex);
+        field.set(clusterIndex, (value & ~(0xFF << shift)) | ((b & 0xFF) << shift));
+    }
+}
@@ -0,0 +1,47 @@
+package com.dufs.volume;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * content hash -> index of the shared cluster with such content.
+ * it is not stored in the volume: it is built from the shared clusters when it is needed first
+ * (or taken from the checkpoint of the volume, see VolumeCheckpoint),
+ * then kept up to date by every write and release of a shared cluster
+ */
+public class DedupIndex {
+    private final Map<Long, Integer> clusterIndexes = new HashMap<>();
+    private final Map<Integer, Long> hashes = new HashMap<>();
+
+    /*
+     * null if no shared cluster has such hash
+     */
+    public Integer find(long hash) {
+        return clusterIndexes.get(hash);
+    }
+
+    /*
+     * the first cluster with the hash stays in the index, so a collision does not hide it
+     */
+    public void add(long hash, int clusterIndex) {
+        if (clusterIndexes.putIfAbsent(hash, clusterIndex) == null) {
+            hashes.put(clusterIndex, hash);
+        }
+    }
+
+    public void remove(int clusterIndex) {
+        Long hash = hashes.remove(clusterIndex);
+        if (hash != null) {
+            clusterIndexes.remove(hash);
+        }
+    }
+
+    public Map<Long, Integer> getClusterIndexes() {
+        return Collections.unmodifiableMap(clusterIndexes);
+    }
+
+    public int size() {
+        return clusterIndexes.size();
+    }
+}
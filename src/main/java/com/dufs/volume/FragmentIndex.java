@@ -0,0 +1,41 @@
+package com.dufs.volume;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * fragment cluster -> number of its free bytes.
+ * it is not stored in the volume: it is built from the cluster index list when it is needed first
+ * (or taken from the checkpoint of the volume, see VolumeCheckpoint),
+ * then kept up to date by every allocation and release of a fragment
+ */
+public class FragmentIndex {
+    private final Map<Integer, Integer> freeBytes = new TreeMap<>();
+
+    /*
+     * fragment clusters which have at least the given number of free bytes, in order of their indexes
+     */
+    public int[] findClusters(int bytes) {
+        return freeBytes.entrySet().stream()
+                .filter(entry -> entry.getValue() >= bytes)
+                .mapToInt(Map.Entry::getKey)
+                .toArray();
+    }
+
+    public void update(int clusterIndex, int bytes) {
+        freeBytes.put(clusterIndex, bytes);
+    }
+
+    public void remove(int clusterIndex) {
+        freeBytes.remove(clusterIndex);
+    }
+
+    public Map<Integer, Integer> getFreeBytes() {
+        return Collections.unmodifiableMap(freeBytes);
+    }
+
+    public int size() {
+        return freeBytes.size();
+    }
+}
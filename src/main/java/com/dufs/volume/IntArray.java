@@ -0,0 +1,61 @@
+package com.dufs.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/*
+ * int array for per-cluster and per-record metadata kept in memory, up to Integer.MAX_VALUE elements:
+ * arrays of more than OFF_HEAP_THRESHOLD elements are kept off-heap, split into direct buffers of
+ * chunkElements ints, since one buffer cannot be bigger than 2GiB.
+ * elements written by different threads do not interfere, as long as every element has one writer.
+ */
+public class IntArray {
+    public static final int OFF_HEAP_THRESHOLD = 1 << 22;
+    public static final int CHUNK_ELEMENTS = 1 << 26;          // 256MiB per direct buffer
+
+    private final int length;
+    private final int chunkShift;
+    private final IntBuffer[] chunks;
+
+    public IntArray(int length) {
+        this(length, CHUNK_ELEMENTS);
+    }
+
+    /*
+     * chunkElements is a power of two
+     */
+    public IntArray(int length, int chunkElements) {
+        this.length = length;
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkElements);
+        if (length <= OFF_HEAP_THRESHOLD) {
+            this.chunks = new IntBuffer[] {IntBuffer.wrap(new int[length])};
+            return;
+        }
+        this.chunks = new IntBuffer[(length - 1) / chunkElements + 1];
+        for (int i = 0; i < chunks.length; ++i) {
+            int elements = Math.min(chunkElements, length - i * chunkElements);
+            chunks[i] = ByteBuffer.allocateDirect(elements * Integer.BYTES).asIntBuffer();
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isOffHeap() {
+        return chunks[0].isDirect();
+    }
+
+    public int get(int index) {
+        return (chunks.length == 1) ? chunks[0].get(index)
+                : chunks[index >>> chunkShift].get(index & ((1 << chunkShift) - 1));
+    }
+
+    public void set(int index, int value) {
+        if (chunks.length == 1) {
+            chunks[0].put(index, value);
+        } else {
+            chunks[index >>> chunkShift].put(index & ((1 << chunkShift) - 1), value);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.dufs.volume;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * redo journal of the volume, stored next to the volume in `<volume>.journal`.
+ * every write smaller than directWriteThreshold (metadata: reserved space, cluster index list, record list,
+ * directory clusters and tails of files) is appended to the current transaction and kept in memory pages
+ * instead of being written in place. whole clusters are written in place directly, before the transaction
+ * which refers to them is committed, unless they are protected: clusters which the durable metadata may still
+ * refer to (shared clusters, freed clusters) are journaled whatever the length of the write, until the
+ * transactions written so far are durable (see protect()). whole pages of zeros are journaled as zero entries.
+ * committed transactions are forced to disk in groups (one `force()` per groupCommitSize operations),
+ * and the pages are written in place lazily by a checkpoint, in order of their position in the volume.
+ *
+ * journal layout: JOURNAL_MAGIC, VERSION, then transactions:
+ * TRANSACTION_MAGIC, sequence number (8 bytes), payload length (4 bytes), payload, CRC32 of the payload (4 bytes).
+ * payload is a sequence of entries: offset in volume (8 bytes), length (4 bytes), bytes;
+ * negative length is a zero entry: -length zeros, without bytes.
+ */
+public class MetadataJournal {
+    private static final int JOURNAL_MAGIC = 0x444A524E;        // "DJRN"
+    private static final int TRANSACTION_MAGIC = 0x44545258;    // "DTRX"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int PAGE_SIZE = 4096;
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];   // shared by the pages of zero entries, never changed
+
+    private final VolumeFile volume;
+    private final File journalFile;
+    private final FileChannel journalChannel;
+    private final int directWriteThreshold;
+    private final int groupCommitSize;
+    private final long checkpointSize;
+    private final Map<Long, byte[]> pages = new HashMap<>();
+    // protected ranges of the volume: start -> end, the ranges are disjoint
+    private final TreeMap<Long, Long> protectedRanges = new TreeMap<>();
+    // entries of current transaction; adjacent writes are merged into one entry
+    private final ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+    private long entryOffset = -1;
+    // committed transactions which have not been forced to the journal yet
+    private final ByteArrayOutputStream group = new ByteArrayOutputStream();
+    private int groupedTransactions;
+    private boolean directWrites;
+    private long volumeLength;
+    private long journalSize;
+    private long sequenceNumber;
+
+    public MetadataJournal(VolumeFile volume, File journalFile, int directWriteThreshold,
+                           int groupCommitSize, long checkpointSize) throws IOException {
+        this.volume = volume;
+        this.journalFile = journalFile;
+        this.directWriteThreshold = directWriteThreshold;
+        this.groupCommitSize = Math.max(1, groupCommitSize);
+        this.checkpointSize = checkpointSize;
+        this.journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.volumeLength = volume.length();
+        resetJournal();
+    }
+
+    public int getPendingPages() {
+        return pages.size();
+    }
+
+    public long getJournalSize() {
+        return journalSize + group.size();
+    }
+
+    /*
+     * reads bytes as they are after all the journaled writes
+     */
+    public int read(long pos, byte[] b, int off, int len) throws IOException {
+        if (pages.isEmpty()) {
+            return volume.readPhysical(pos, b, off, len);
+        }
+        int done = 0;
+        while (done < len) {
+            long current = pos + done;
+            int pageOffset = (int) (current % PAGE_SIZE);
+            int chunk = Math.min(len - done, PAGE_SIZE - pageOffset);
+            byte[] page = pages.get(current / PAGE_SIZE);
+            if (page != null) {
+                System.arraycopy(page, pageOffset, b, off + done, chunk);
+                done += chunk;
+                continue;
+            }
+            // read following pages which are not in memory by the same call
+            while (done + chunk < len && !pages.containsKey((current + chunk) / PAGE_SIZE)) {
+                chunk = Math.min(len - done, chunk + PAGE_SIZE);
+            }
+            int bytes = volume.readPhysical(current, b, off + done, chunk);
+            if (bytes < chunk) {
+                done += Math.max(bytes, 0);
+                return (done == 0) ? -1 : done;
+            }
+            done += chunk;
+        }
+        return done;
+    }
+
+    public void write(long pos, byte[] b, int off, int len) throws IOException {
+        if (pos + len > volumeLength) {
+            volumeLength = volume.length();
+        }
+        // whole clusters and writes which extend the volume go in place
+        if ((len >= directWriteThreshold && !isProtected(pos, len)) || pos + len > volumeLength) {
+            volume.writePhysical(pos, b, off, len);
+            patchPages(pos, b, off, len);
+            volumeLength = Math.max(volumeLength, pos + len);
+            directWrites = true;
+            return;
+        }
+        if (len >= PAGE_SIZE && isZero(b, off, len)) {
+            writeZeros(pos, len);
+            return;
+        }
+        if (entryOffset + entry.size() != pos) {
+            closeEntry();
+            entryOffset = pos;
+        }
+        entry.write(b, off, len);
+        int done = 0;
+        while (done < len) {
+            long current = pos + done;
+            int pageOffset = (int) (current % PAGE_SIZE);
+            int chunk = Math.min(len - done, PAGE_SIZE - pageOffset);
+            System.arraycopy(b, off + done, writablePage(current / PAGE_SIZE), pageOffset, chunk);
+            done += chunk;
+        }
+    }
+
+    /*
+     * journals every following write of the range, until the transactions written so far are durable:
+     * the range must not be overwritten in place while the durable metadata may still refer to its content
+     * (clusters shared by several records, clusters freed by a transaction which is not forced yet)
+     */
+    public void protect(long pos, long len) {
+        long from = pos;
+        long to = pos + len;
+        Map.Entry<Long, Long> range = protectedRanges.floorEntry(from);
+        if (range != null && range.getValue() >= from) {
+            from = range.getKey();
+            to = Math.max(to, range.getValue());
+        }
+        // ranges which are covered or touched by the new one are merged into it
+        for (range = protectedRanges.ceilingEntry(from); range != null && range.getKey() <= to;
+             range = protectedRanges.ceilingEntry(from)) {
+            to = Math.max(to, range.getValue());
+            protectedRanges.remove(range.getKey());
+        }
+        protectedRanges.put(from, to);
+    }
+
+    /*
+     * closes current transaction; forces the journal once per groupCommitSize transactions
+     */
+    public void commit() throws IOException {
+        closeEntry();
+        if (transaction.size() == 0) {
+            return;
+        }
+        byte[] payload = transaction.toByteArray();
+        transaction.reset();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(group);
+        out.writeInt(TRANSACTION_MAGIC);
+        out.writeLong(sequenceNumber++);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+        groupedTransactions++;
+        if (groupedTransactions >= groupCommitSize) {
+            forceGroup();
+        }
+        if (getJournalSize() >= checkpointSize || (long) pages.size() * PAGE_SIZE >= checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    public void sync() throws IOException {
+        commit();
+        forceGroup();
+    }
+
+    /*
+     * writes pages in place in order of their position, then empties the journal
+     */
+    public void checkpoint() throws IOException {
+        sync();
+        if (pages.isEmpty()) {
+            return;
+        }
+        List<Long> pageNumbers = new ArrayList<>(pages.keySet());
+        Collections.sort(pageNumbers);
+        int i = 0;
+        while (i < pageNumbers.size()) {
+            int runLength = 1;
+            while (i + runLength < pageNumbers.size() && runLength < 256
+                    && pageNumbers.get(i + runLength) == pageNumbers.get(i) + runLength) {
+                runLength++;
+            }
+            byte[] run = new byte[runLength * PAGE_SIZE];
+            for (int j = 0; j < runLength; ++j) {
+                System.arraycopy(pages.get(pageNumbers.get(i + j)), 0, run, j * PAGE_SIZE, PAGE_SIZE);
+            }
+            long runPosition = pageNumbers.get(i) * PAGE_SIZE;
+            // writes beyond the end of the volume are made in place, so pages are clipped by it
+            int runBytes = (int) Math.max(0, Math.min(run.length, volume.length() - runPosition));
+            volume.writePhysical(runPosition, run, 0, runBytes);
+            i += runLength;
+        }
+        volume.getChannel().force(false);
+        pages.clear();
+        resetJournal();
+    }
+
+    /*
+     * has to be called after the length of the volume was changed (the journal is checkpointed before that)
+     */
+    public void volumeLengthChanged(long newLength) {
+        volumeLength = newLength;
+    }
+
+    public void close() throws IOException {
+        checkpoint();
+        journalChannel.close();
+        journalFile.delete();
+    }
+
+    /*
+     * applies every complete transaction of the journal to the volume and empties the journal;
+     * torn transaction in the end of the journal (crash during a group commit) is ignored
+     */
+    public static int replay(VolumeFile volume, File journalFile) throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        int transactions = 0;
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer journal = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while (journal.hasRemaining() && channel.read(journal, journal.position()) != -1) {
+                // read the whole journal
+            }
+            journal.flip();
+            // journals of version 1 are the same, without zero entries
+            if (journal.remaining() >= HEADER_SIZE && journal.getInt() == JOURNAL_MAGIC
+                    && isKnownVersion(journal.getInt())) {
+                while (journal.remaining() >= 16 && journal.getInt() == TRANSACTION_MAGIC) {
+                    journal.getLong();      // sequence number
+                    int payloadLength = journal.getInt();
+                    if (payloadLength < 0 || journal.remaining() < payloadLength + 4) {
+                        break;
+                    }
+                    byte[] payload = new byte[payloadLength];
+                    journal.get(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (journal.getInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    ByteBuffer entries = ByteBuffer.wrap(payload);
+                    while (entries.hasRemaining()) {
+                        long offset = entries.getLong();
+                        int length = entries.getInt();
+                        if (length < 0) {
+                            replayZeros(volume, offset, -length);
+                            continue;
+                        }
+                        volume.writePhysical(offset, payload, entries.position(), length);
+                        entries.position(entries.position() + length);
+                    }
+                    transactions++;
+                }
+            }
+            volume.getChannel().force(false);
+            channel.truncate(0);
+        }
+        journalFile.delete();
+        return transactions;
+    }
+
+    private static boolean isKnownVersion(int version) {
+        return version >= 1 && version <= VERSION;
+    }
+
+    private static void replayZeros(VolumeFile volume, long pos, int len) throws IOException {
+        for (int done = 0; done < len; done += PAGE_SIZE) {
+            volume.writePhysical(pos + done, ZERO_PAGE, 0, Math.min(PAGE_SIZE, len - done));
+        }
+    }
+
+    private boolean isProtected(long pos, long len) {
+        Map.Entry<Long, Long> range = protectedRanges.lowerEntry(pos + len);
+        return range != null && range.getValue() > pos;
+    }
+
+    private static boolean isZero(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; ++i) {
+            if (b[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * appends a zero entry; pages which are covered by it completely share ZERO_PAGE
+     */
+    private void writeZeros(long pos, int len) throws IOException {
+        closeEntry();
+        DataOutputStream out = new DataOutputStream(transaction);
+        out.writeLong(pos);
+        out.writeInt(-len);
+        int done = 0;
+        while (done < len) {
+            long current = pos + done;
+            int pageOffset = (int) (current % PAGE_SIZE);
+            int chunk = Math.min(len - done, PAGE_SIZE - pageOffset);
+            if (chunk == PAGE_SIZE) {
+                pages.put(current / PAGE_SIZE, ZERO_PAGE);
+            } else {
+                Arrays.fill(writablePage(current / PAGE_SIZE), pageOffset, pageOffset + chunk, (byte) 0);
+            }
+            done += chunk;
+        }
+    }
+
+    /*
+     * page which can be changed: ZERO_PAGE is replaced by its copy
+     */
+    private byte[] writablePage(long pageNumber) throws IOException {
+        byte[] page = loadPage(pageNumber);
+        if (page == ZERO_PAGE) {
+            page = new byte[PAGE_SIZE];
+            pages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    private byte[] loadPage(long pageNumber) throws IOException {
+        byte[] page = pages.get(pageNumber);
+        if (page == null) {
+            page = new byte[PAGE_SIZE];
+            int done = 0;
+            int bytes;
+            while (done < PAGE_SIZE
+                    && (bytes = volume.readPhysical(pageNumber * PAGE_SIZE + done, page, done, PAGE_SIZE - done)) > 0) {
+                done += bytes;
+            }
+            pages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    /*
+     * keeps pages up to date with the bytes written in place
+     */
+    private void patchPages(long pos, byte[] b, int off, int len) {
+        long firstPage = pos / PAGE_SIZE;
+        long lastPage = (pos + len - 1) / PAGE_SIZE;
+        for (long pageNumber = firstPage; pageNumber <= lastPage && !pages.isEmpty(); ++pageNumber) {
+            byte[] page = pages.get(pageNumber);
+            if (page == ZERO_PAGE) {
+                page = new byte[PAGE_SIZE];
+                pages.put(pageNumber, page);
+            }
+            if (page != null) {
+                long pageStart = pageNumber * PAGE_SIZE;
+                long from = Math.max(pos, pageStart);
+                long to = Math.min(pos + len, pageStart + PAGE_SIZE);
+                System.arraycopy(b, (int) (off + from - pos), page, (int) (from - pageStart), (int) (to - from));
+            }
+        }
+    }
+
+    private void closeEntry() throws IOException {
+        if (entry.size() == 0) {
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(transaction);
+        out.writeLong(entryOffset);
+        out.writeInt(entry.size());
+        entry.writeTo(out);
+        entry.reset();
+        entryOffset = -1;
+    }
+
+    private void forceGroup() throws IOException {
+        if (group.size() == 0) {
+            return;
+        }
+        // clusters written in place have to be durable before transactions referring to them
+        if (directWrites) {
+            volume.getChannel().force(false);
+            directWrites = false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(group.toByteArray());
+        while (buffer.hasRemaining()) {
+            journalSize += journalChannel.write(buffer, journalSize);
+        }
+        journalChannel.force(false);
+        group.reset();
+        groupedTransactions = 0;
+        // transactions which freed the protected clusters are durable now
+        protectedRanges.clear();
+    }
+
+    private void resetJournal() throws IOException {
+        journalChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(JOURNAL_MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        journalChannel.write(header, 0);
+        journalChannel.force(false);
+        journalSize = HEADER_SIZE;
+    }
+}
@@ -0,0 +1,207 @@
+package com.dufs.volume;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/*
+ * read-only image of the volume as it was when the snapshot was created (see VolumeSnapshot):
+ * a block is read from the snapshot if it has been preserved there, otherwise from the volume file,
+ * which has not changed the block since then. the image is readable while the volume is attached.
+ */
+public class SnapshotFile extends VolumeFile {
+    private final VolumeSnapshot snapshot;
+    private final SnapshotChannel readChannel = new SnapshotChannel();
+
+    public SnapshotFile(File file, VolumeSnapshot snapshot) throws FileNotFoundException {
+        super(file, "r");
+        this.snapshot = snapshot;
+    }
+
+    public VolumeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public long length() {
+        return snapshot.getVolumeLength();
+    }
+
+    @Override
+    public FileChannel getReadChannel() {
+        return readChannel;
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        throw new IOException("Snapshot of the volume is read-only.");
+    }
+
+    @Override
+    public void writePhysical(long pos, byte[] b, int off, int len) throws IOException {
+        throw new IOException("Snapshot of the volume is read-only.");
+    }
+
+    @Override
+    public int readPhysical(long pos, byte[] b, int off, int len) throws IOException {
+        if (pos >= snapshot.getVolumeLength()) {
+            return -1;
+        }
+        int bytes = (int) Math.min(len, snapshot.getVolumeLength() - pos);
+        int blockSize = snapshot.getBlockSize();
+        snapshot.getLock().readLock().lock();
+        try {
+            int done = 0;
+            while (done < bytes) {
+                long blockNumber = (pos + done) / blockSize;
+                int offset = (int) ((pos + done) % blockSize);
+                int chunk = Math.min(bytes - done, blockSize - offset);
+                if (!snapshot.readBlock(blockNumber, offset, b, off + done, chunk)) {
+                    // the part beyond the end of the volume file (clusters of a baked volume) is read as zeros
+                    Arrays.fill(b, off + done, off + done + chunk, (byte) 0);
+                    VolumeSnapshot.readFully(getChannel(), ByteBuffer.wrap(b, off + done, chunk), pos + done);
+                }
+                done += chunk;
+            }
+        } finally {
+            snapshot.getLock().readLock().unlock();
+        }
+        return bytes;
+    }
+
+    /*
+     * channel of the image for the utilities which read the volume by positional reads (see VolumeFile.getReadChannel)
+     */
+    private class SnapshotChannel extends FileChannel {
+        private long position;
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            byte[] bytes = new byte[dst.remaining()];
+            int read = readPhysical(position, bytes, 0, bytes.length);
+            if (read > 0) {
+                dst.put(bytes, 0, read);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                int read = read(dsts[i]);
+                if (read == -1) {
+                    return (total == 0) ? -1 : total;
+                }
+                total += read;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return snapshot.getVolumeLength();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 1 << 16));
+            long transferred = 0;
+            while (transferred < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+                int read = read(buffer, position + transferred);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                transferred += read;
+            }
+            return transferred;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Snapshot of the volume cannot be mapped.");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Snapshot of the volume cannot be locked.");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Snapshot of the volume cannot be locked.");
+        }
+
+        @Override
+        protected void implCloseChannel() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.dufs.volume;
+
+import com.dufs.model.ReservedSpace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * checkpoint of the state derived from the volume (FragmentIndex and DedupIndex, which are built otherwise
+ * by a scan of the cluster index list and of the shared clusters), stored next to the volume in `<volume>.checkpoint`.
+ * it is written when the volume is closed, and taken by attaching of the volume by one sequential read.
+ * the checkpoint is deleted when it is taken, so it exists only while the volume is closed cleanly:
+ * after a crash there is no checkpoint, and the indexes are built by a scan as before.
+ * besides, the checkpoint keeps the length and the modification time of the volume and the counters
+ * of its reserved space, so it is not taken for a volume which has been changed without it.
+ *
+ * layout: CHECKPOINT_MAGIC, VERSION, then the body and CRC32 of the body (4 bytes).
+ * body: volume length (8 bytes), volume modification time (8 bytes), reservedClusters, freeClusters,
+ * nextClusterIndex, nextRecordIndex (4 bytes each),
+ * number of fragment clusters (4 bytes, -1 if the index is not built), per cluster: index, free bytes (4 bytes each),
+ * number of shared clusters (4 bytes, -1 if the index is not built), per cluster: hash (8 bytes), index (4 bytes).
+ */
+public class VolumeCheckpoint {
+    private static final int CHECKPOINT_MAGIC = 0x44434B50;     // "DCKP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int STATE_SIZE = 32;
+
+    /*
+     * the volume must be closed already, so its modification time is final
+     */
+    public static void write(File checkpointFile, File volumeFile, ReservedSpace reservedSpace,
+                             FragmentIndex fragmentIndex, DedupIndex dedupIndex) throws IOException {
+        int fragments = (fragmentIndex != null) ? fragmentIndex.size() : 0;
+        int sharedClusters = (dedupIndex != null) ? dedupIndex.size() : 0;
+        ByteBuffer checkpoint = ByteBuffer.allocate(HEADER_SIZE + STATE_SIZE + 4 + 8 * fragments + 4 + 12 * sharedClusters + 4);
+        checkpoint.putInt(CHECKPOINT_MAGIC);
+        checkpoint.putInt(VERSION);
+        checkpoint.putLong(volumeFile.length());
+        checkpoint.putLong(volumeFile.lastModified());
+        checkpoint.putInt(reservedSpace.getReservedClusters());
+        checkpoint.putInt(reservedSpace.getFreeClusters());
+        checkpoint.putInt(reservedSpace.getNextClusterIndex());
+        checkpoint.putInt(reservedSpace.getNextRecordIndex());
+        checkpoint.putInt((fragmentIndex != null) ? fragments : -1);
+        if (fragmentIndex != null) {
+            for (Map.Entry<Integer, Integer> fragmentCluster : fragmentIndex.getFreeBytes().entrySet()) {
+                checkpoint.putInt(fragmentCluster.getKey());
+                checkpoint.putInt(fragmentCluster.getValue());
+            }
+        }
+        checkpoint.putInt((dedupIndex != null) ? sharedClusters : -1);
+        if (dedupIndex != null) {
+            for (Map.Entry<Long, Integer> sharedCluster : dedupIndex.getClusterIndexes().entrySet()) {
+                checkpoint.putLong(sharedCluster.getKey());
+                checkpoint.putInt(sharedCluster.getValue());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.array(), HEADER_SIZE, checkpoint.position() - HEADER_SIZE);
+        checkpoint.putInt((int) crc.getValue());
+        checkpoint.flip();
+        try (FileChannel channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+            channel.force(false);
+        }
+    }
+
+    /*
+     * gives the indexes of the checkpoint to the volume and deletes the checkpoint;
+     * returns false if there is no valid checkpoint of the volume in its current state
+     */
+    public static boolean load(File checkpointFile, File volumeFile, ReservedSpace reservedSpace,
+                               VolumeFile volume) throws IOException {
+        if (!checkpointFile.exists()) {
+            return false;
+        }
+        ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+        Files.delete(checkpointFile.toPath());
+        if (checkpoint.remaining() < HEADER_SIZE + STATE_SIZE + 4 || checkpoint.getInt() != CHECKPOINT_MAGIC
+                || checkpoint.getInt() != VERSION) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.array(), HEADER_SIZE, checkpoint.limit() - HEADER_SIZE - 4);
+        if (checkpoint.getInt(checkpoint.limit() - 4) != (int) crc.getValue()) {
+            return false;
+        }
+        if (checkpoint.getLong() != volumeFile.length() || checkpoint.getLong() != volumeFile.lastModified()
+                || checkpoint.getInt() != reservedSpace.getReservedClusters()
+                || checkpoint.getInt() != reservedSpace.getFreeClusters()
+                || checkpoint.getInt() != reservedSpace.getNextClusterIndex()
+                || checkpoint.getInt() != reservedSpace.getNextRecordIndex()) {
+            return false;
+        }
+        int fragments = checkpoint.getInt();
+        if (fragments >= 0) {
+            FragmentIndex fragmentIndex = new FragmentIndex();
+            for (int i = 0; i < fragments; ++i) {
+                fragmentIndex.update(checkpoint.getInt(), checkpoint.getInt());
+            }
+            volume.setFragmentIndex(fragmentIndex);
+        }
+        int sharedClusters = checkpoint.getInt();
+        if (sharedClusters >= 0) {
+            DedupIndex dedupIndex = new DedupIndex();
+            for (int i = 0; i < sharedClusters; ++i) {
+                long hash = checkpoint.getLong();
+                dedupIndex.add(hash, checkpoint.getInt());
+            }
+            volume.setDedupIndex(dedupIndex);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,386 @@
+package com.dufs.volume;
+
+import com.dufs.metrics.DufsMetrics;
+import com.dufs.metrics.IoCounters;
+import com.dufs.trace.TraceRecorder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * RandomAccessFile of the volume, which lets DUFS intercept every read and write made through the utilities.
+ * File pointer is kept in memory and the descriptor is repositioned lazily only before physical I/O,
+ * so `seek` calls which restore default file pointer cost nothing.
+ */
+public class VolumeFile extends RandomAccessFile {
+    private final byte[] singleByte = new byte[1];
+    private long position;              // file pointer as it is seen by the callers
+    private long physicalPosition;      // file pointer of the underlying file descriptor
+    private MetadataJournal journal;
+    private ClusterCache clusterCache;
+    private ClusterIndexCache clusterIndexCache;
+    private DufsMetrics metrics;
+    private IoCounters ioCounters;
+    private TraceRecorder trace;
+    private DedupIndex dedupIndex;
+    private FragmentIndex fragmentIndex;
+    private final List<VolumeSnapshot> snapshots = new CopyOnWriteArrayList<>();
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();     // see VolumeSnapshot
+
+    public VolumeFile(File file, String mode) throws FileNotFoundException {
+        super(file, mode);
+    }
+
+    public MetadataJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(MetadataJournal journal) {
+        this.journal = journal;
+    }
+
+    public ClusterCache getClusterCache() {
+        return clusterCache;
+    }
+
+    public void setClusterCache(ClusterCache clusterCache) {
+        this.clusterCache = clusterCache;
+    }
+
+    public DufsMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(DufsMetrics metrics) {
+        this.metrics = metrics;
+        this.ioCounters = (metrics != null) ? metrics.getCounters() : null;
+    }
+
+    public TraceRecorder getTrace() {
+        return trace;
+    }
+
+    public void setTrace(TraceRecorder trace) {
+        this.trace = trace;
+    }
+
+    public DedupIndex getDedupIndex() {
+        return dedupIndex;
+    }
+
+    public void setDedupIndex(DedupIndex dedupIndex) {
+        this.dedupIndex = dedupIndex;
+    }
+
+    public FragmentIndex getFragmentIndex() {
+        return fragmentIndex;
+    }
+
+    public void setFragmentIndex(FragmentIndex fragmentIndex) {
+        this.fragmentIndex = fragmentIndex;
+    }
+
+    public ClusterIndexCache getClusterIndexCache() {
+        return clusterIndexCache;
+    }
+
+    public void setClusterIndexCache(ClusterIndexCache clusterIndexCache) {
+        this.clusterIndexCache = clusterIndexCache;
+    }
+
+    public List<VolumeSnapshot> getSnapshots() {
+        return snapshots;
+    }
+
+    public ReadWriteLock getSnapshotLock() {
+        return snapshotLock;
+    }
+
+    /*
+     * channel for positional reads bypassing this object (callers flush the volume first)
+     */
+    public FileChannel getReadChannel() {
+        return getChannel();
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        if (ioCounters != null) {
+            ioCounters.seek();
+        }
+        position = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(singleByte, 0, 1) == -1) ? -1 : (singleByte[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (trace != null) {
+            trace.read(position, len);
+        }
+        int bytes;
+        long cachedPart = cachedPart(position, len);
+        if (clusterIndexCache != null && clusterIndexCache.contains(position, len)) {
+            bytes = clusterIndexCache.read(position, b, off, len);
+        } else if (cachedPart == 0) {
+            bytes = readLower(position, b, off, len);
+        } else if (cachedPart == len) {
+            bytes = clusterCache.read(position, b, off, len);
+        } else {
+            // range starts before the clusters area and ends in it
+            int uncachedPart = (int) (len - cachedPart);
+            bytes = readLower(position, b, off, uncachedPart);
+            if (bytes == uncachedPart) {
+                int cachedBytes = clusterCache.read(position + uncachedPart, b, off + uncachedPart, (int) cachedPart);
+                bytes += Math.max(cachedBytes, 0);
+            }
+        }
+        if (bytes > 0) {
+            position += bytes;
+        }
+        if (ioCounters != null) {
+            ioCounters.read(bytes);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (trace != null) {
+            trace.write(position, len);
+        }
+        long cachedPart = cachedPart(position, len);
+        int uncachedPart = (int) (len - cachedPart);
+        if (uncachedPart > 0) {
+            writeLower(position, b, off, uncachedPart);
+        }
+        if (cachedPart > 0) {
+            clusterCache.write(position + uncachedPart, b, off + uncachedPart, (int) cachedPart);
+        }
+        if (clusterIndexCache != null && clusterIndexCache.overlaps(position, len)) {
+            clusterIndexCache.patch(position, b, off, len);
+        }
+        if (ioCounters != null) {
+            ioCounters.write(len);
+        }
+        position += len;
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        if (trace != null) {
+            trace.setLength(newLength);
+        }
+        flush();
+        if (clusterCache != null) {
+            clusterCache.invalidate();
+        }
+        long length = super.length();
+        if (newLength < length && needsPreserving(newLength, length - newLength)) {
+            snapshotLock.writeLock().lock();
+            try {
+                preserve(newLength, length - newLength);
+                super.setLength(newLength);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        } else {
+            super.setLength(newLength);
+        }
+        if (journal != null) {
+            journal.volumeLengthChanged(newLength);
+        }
+        physicalPosition = super.getFilePointer();
+        position = Math.min(position, newLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (clusterCache != null) {
+            clusterCache.flush();
+            clusterCache = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        for (VolumeSnapshot snapshot : snapshots) {
+            snapshot.close();
+        }
+        snapshots.clear();
+        super.close();
+    }
+
+    /*
+     * finishes current operation, so everything it has written becomes one atomic unit
+     */
+    public void commit() throws IOException {
+        if (journal != null) {
+            // with the journal clusters are written back per operation, so the transaction contains all of its writes
+            if (clusterCache != null) {
+                clusterCache.flush();
+            }
+            journal.commit();
+        }
+    }
+
+    /*
+     * makes every committed operation durable
+     */
+    public void sync() throws IOException {
+        if (trace != null) {
+            trace.sync();
+        }
+        if (clusterCache != null) {
+            clusterCache.flush();
+        }
+        if (journal != null) {
+            journal.sync();
+        } else {
+            getChannel().force(false);
+        }
+    }
+
+    /*
+     * writes all deferred changes in place, so the volume file itself is up to date
+     * (required before the file is accessed bypassing this object, e.g. through its channel)
+     */
+    public void flush() throws IOException {
+        if (clusterCache != null) {
+            clusterCache.flush();
+        }
+        if (journal != null) {
+            journal.checkpoint();
+        }
+    }
+
+    /*
+     * journals every following write of the range, whatever its length (see MetadataJournal.protect())
+     */
+    public void protect(long pos, long len) {
+        if (journal != null) {
+            journal.protect(pos, len);
+        }
+    }
+
+    /*
+     * I/O under the cluster cache
+     */
+    int readLower(long pos, byte[] b, int off, int len) throws IOException {
+        return (journal != null) ? journal.read(pos, b, off, len) : readPhysical(pos, b, off, len);
+    }
+
+    void writeLower(long pos, byte[] b, int off, int len) throws IOException {
+        if (journal != null) {
+            journal.write(pos, b, off, len);
+        } else {
+            writePhysical(pos, b, off, len);
+        }
+    }
+
+    public int readPhysical(long pos, byte[] b, int off, int len) throws IOException {
+        if (physicalPosition != pos) {
+            super.seek(pos);
+            countSyscall();
+        }
+        countSyscall();
+        int bytes = super.read(b, off, len);
+        physicalPosition = pos + Math.max(bytes, 0);
+        return bytes;
+    }
+
+    public void writePhysical(long pos, byte[] b, int off, int len) throws IOException {
+        if (needsPreserving(pos, len)) {
+            snapshotLock.writeLock().lock();
+            try {
+                preserve(pos, len);
+                writeInPlace(pos, b, off, len);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        } else {
+            writeInPlace(pos, b, off, len);
+        }
+    }
+
+    private void writeInPlace(long pos, byte[] b, int off, int len) throws IOException {
+        if (physicalPosition != pos) {
+            super.seek(pos);
+            countSyscall();
+        }
+        countSyscall();
+        super.write(b, off, len);
+        physicalPosition = pos + len;
+    }
+
+    /*
+     * true if some snapshot keeps old content of the range, which has not been preserved yet
+     */
+    private boolean needsPreserving(long pos, long len) {
+        for (VolumeSnapshot snapshot : snapshots) {
+            if (snapshot.needsPreserving(pos, len)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void preserve(long pos, long len) throws IOException {
+        for (VolumeSnapshot snapshot : snapshots) {
+            snapshot.preserve(getChannel(), pos, len);
+        }
+    }
+
+    private void countSyscall() {
+        if (ioCounters != null) {
+            ioCounters.syscall();
+        }
+    }
+
+    /*
+     * number of bytes in the end of the range which are in the clusters area, so they go through the cache
+     */
+    private long cachedPart(long pos, int len) {
+        if (clusterCache == null) {
+            return 0;
+        }
+        return Math.max(0, Math.min(len, pos + len - clusterCache.getClustersAreaOffset()));
+    }
+}
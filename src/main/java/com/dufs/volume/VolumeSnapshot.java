@@ -0,0 +1,197 @@
+package com.dufs.volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/*
+ * point-in-time image of the volume, kept as copy-on-write of its blocks (of the cluster size) in
+ * `<volume>.snapshot.<name>`: the snapshot is created empty, and the old content of a block is appended to it
+ * when the block is overwritten (or cut off) first since the snapshot has been created. the image of the volume is
+ * the preserved blocks over the current volume file (see SnapshotFile).
+ * the header and the cluster index and record lists are blocks as well, so metadata is preserved the same way.
+ *
+ * every preserved block is forced before the volume block is overwritten, so the image survives a crash of the host.
+ * preserving and writing of the volume take the write lock of the volume, and reads of the image take its read lock,
+ * so the image is consistent while the volume is written by another thread.
+ *
+ * layout: SNAPSHOT_MAGIC, VERSION, block size (4 bytes), length of the volume at creation (8 bytes),
+ * then per preserved block: block number (8 bytes), content of the block.
+ */
+public class VolumeSnapshot {
+    private static final int SNAPSHOT_MAGIC = 0x44534E50;     // "DSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private final String name;
+    private final File file;
+    private final FileChannel store;
+    private final ReadWriteLock lock;
+    private final int blockSize;
+    private final long volumeLength;
+    private final Map<Long, Long> blockPositions = new ConcurrentHashMap<>();    // block number -> position in the store
+    private long storeLength;
+
+    private VolumeSnapshot(String name, File file, FileChannel store, ReadWriteLock lock, int blockSize, long volumeLength) {
+        this.name = name;
+        this.file = file;
+        this.store = store;
+        this.lock = lock;
+        this.blockSize = blockSize;
+        this.volumeLength = volumeLength;
+        this.storeLength = HEADER_SIZE;
+    }
+
+    /*
+     * creates an empty snapshot of the volume, which must be flushed already
+     */
+    public static VolumeSnapshot create(String name, File file, ReadWriteLock lock, int blockSize,
+                                        long volumeLength) throws IOException {
+        FileChannel store = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(SNAPSHOT_MAGIC);
+        header.putInt(VERSION);
+        header.putInt(blockSize);
+        header.putLong(volumeLength);
+        writeFully(store, header.flip(), 0);
+        store.force(true);
+        return new VolumeSnapshot(name, file, store, lock, blockSize, volumeLength);
+    }
+
+    /*
+     * opens the snapshot reading only numbers of its blocks; a block which has not been written completely
+     * (its volume block has not been overwritten either) is cut off
+     */
+    public static VolumeSnapshot open(String name, File file, ReadWriteLock lock) throws IOException {
+        FileChannel store = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(store, header, 0);
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Snapshot " + name + " is damaged.");
+            }
+            VolumeSnapshot snapshot = new VolumeSnapshot(name, file, store, lock, header.getInt(), header.getLong());
+            ByteBuffer blockNumber = ByteBuffer.allocate(8);
+            long entrySize = 8L + snapshot.blockSize;
+            while (snapshot.storeLength + entrySize <= store.size()) {
+                readFully(store, blockNumber.clear(), snapshot.storeLength);
+                snapshot.blockPositions.put(blockNumber.getLong(0), snapshot.storeLength + 8);
+                snapshot.storeLength += entrySize;
+            }
+            store.truncate(snapshot.storeLength);
+            return snapshot;
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getVolumeLength() {
+        return volumeLength;
+    }
+
+    public int getPreservedBlocks() {
+        return blockPositions.size();
+    }
+
+    public boolean isPreserved(long blockNumber) {
+        return blockPositions.containsKey(blockNumber);
+    }
+
+    /*
+     * true if some block of the range of the volume has not been preserved yet
+     */
+    public boolean needsPreserving(long pos, long len) {
+        long end = Math.min(pos + len, volumeLength);
+        for (long blockNumber = pos / blockSize; blockNumber * blockSize < end; ++blockNumber) {
+            if (!blockPositions.containsKey(blockNumber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * appends current content of the blocks of the range which are not preserved yet;
+     * the caller holds the write lock and overwrites the range after this
+     */
+    public void preserve(FileChannel volume, long pos, long len) throws IOException {
+        long end = Math.min(pos + len, volumeLength);
+        for (long blockNumber = pos / blockSize; blockNumber * blockSize < end; ++blockNumber) {
+            if (blockPositions.containsKey(blockNumber)) {
+                continue;
+            }
+            ByteBuffer entry = ByteBuffer.allocate(8 + blockSize);
+            entry.putLong(blockNumber);
+            // the part beyond the end of the volume file (clusters of a baked volume) is kept as zeros
+            readFully(volume, entry, blockNumber * blockSize);
+            writeFully(store, entry.clear(), storeLength);
+            store.force(false);
+            blockPositions.put(blockNumber, storeLength + 8);
+            storeLength += entry.capacity();
+        }
+    }
+
+    /*
+     * reads the part of the block from the snapshot; returns false if the block is not preserved
+     */
+    public boolean readBlock(long blockNumber, int offset, byte[] b, int off, int len) throws IOException {
+        Long position = blockPositions.get(blockNumber);
+        if (position == null) {
+            return false;
+        }
+        readFully(store, ByteBuffer.wrap(b, off, len), position + offset);
+        return true;
+    }
+
+    public void close() throws IOException {
+        store.close();
+    }
+
+    public void delete() throws IOException {
+        store.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /*
+     * positional read which fills the buffer, leaving the part beyond the end of the file as it is
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) == -1) {
+                break;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.dufs.filesystem;
+
+import com.dufs.exceptions.DufsException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncDufsTest {
+    private static Dufs dufs;
+    private static AsyncDufs asyncDufs;
+    private static ExecutorService executor;
+    private static File file;
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        dufs = new Dufs();
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+        executor = Executors.newFixedThreadPool(4);
+        asyncDufs = new AsyncDufs(dufs, executor);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        executor.shutdownNow();
+        dufs.closeVolume();
+        file.delete();
+    }
+
+    @Test
+    void operationsRunInOrder() throws ExecutionException, InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            futures.add(asyncDufs.createRecord("vol.DUFS", "file" + i, (byte) 1));
+        }
+        List<String> names = asyncDufs.listDirectory("vol.DUFS").get();
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+        }
+        assertEquals(50, names.size());
+        assertEquals("file0", names.get(0));
+        assertEquals("file49", names.get(49));
+    }
+
+    @Test
+    void writeFileAndReadFile() throws IOException, ExecutionException, InterruptedException {
+        String separator = FileSystems.getDefault().getSeparator();
+        File tmpFile = new File("tmp");
+        RandomAccessFile tmpRAF = new RandomAccessFile(tmpFile, "rw");
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (((i * i) ^ 22) << 3);
+        }
+        tmpRAF.write(content);
+        tmpRAF.close();
+        File readFile = new File("read");
+        asyncDufs.createRecord("vol.DUFS", "file", (byte) 1);
+        asyncDufs.writeFile("vol.DUFS" + separator + "file", tmpFile);
+        asyncDufs.readFile("vol.DUFS" + separator + "file", readFile).get();
+        assertArrayEquals(content, Files.readAllBytes(readFile.toPath()));
+        readFile.delete();
+        tmpFile.delete();
+    }
+
+    @Test
+    void deleteRecord_failure() throws InterruptedException, ExecutionException {
+        CompletableFuture<Void> future = asyncDufs.deleteRecord("vol.DUFS" + FileSystems.getDefault().getSeparator() + "file", (byte) 1);
+        ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+        assertTrue(exception.getCause() instanceof DufsException);
+        // failed operation does not stop the lane
+        asyncDufs.createRecord("vol.DUFS", "file", (byte) 1).get();
+        assertEquals(List.of("file"), asyncDufs.listDirectory("vol.DUFS").get());
+    }
+
+    @Test
+    void createRecord_error() {
+        Dufs failingDufs = new Dufs() {
+            @Override
+            public void createRecord(String path, String name, byte isFile) {
+                throw new AssertionError("failed");
+            }
+        };
+        AsyncDufs failingAsyncDufs = new AsyncDufs(failingDufs, executor);
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> failingAsyncDufs.createRecord("vol.DUFS", "file", (byte) 1).get());
+        assertTrue(exception.getCause() instanceof AssertionError);
+        // the lane is still drained after the error: the volume is not mounted in failingDufs
+        exception = assertThrows(ExecutionException.class, () -> failingAsyncDufs.listDirectory("vol.DUFS").get());
+        assertTrue(exception.getCause() instanceof DufsException);
+    }
+
+    @Test
+    void sync_rejected() throws ExecutionException, InterruptedException {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        AsyncDufs rejectingAsyncDufs = new AsyncDufs(dufs, task -> {
+            if (reject.get()) {
+                throw new RejectedExecutionException();
+            }
+            executor.execute(task);
+        });
+        assertThrows(RejectedExecutionException.class, rejectingAsyncDufs::sync);
+        reject.set(false);
+        // the rejected sync is not shared with the next call
+        rejectingAsyncDufs.sync().get();
+    }
+
+    @Test
+    void sync_coalesced() throws ExecutionException, InterruptedException {
+        ExecutorService blockedExecutor = Executors.newSingleThreadExecutor();
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        blockedExecutor.execute(gate::join);
+        AsyncDufs blockedAsyncDufs = new AsyncDufs(dufs, blockedExecutor);
+        CompletableFuture<Void> sync1 = blockedAsyncDufs.sync();
+        CompletableFuture<Void> sync2 = blockedAsyncDufs.sync();
+        blockedAsyncDufs.createRecord("vol.DUFS", "file", (byte) 1);
+        CompletableFuture<Void> sync3 = blockedAsyncDufs.sync();
+        assertSame(sync1, sync2);
+        assertNotSame(sync1, sync3);
+        gate.complete(null);
+        sync3.get();
+        assertTrue(sync1.isDone());
+        blockedExecutor.shutdownNow();
+    }
+}
@@ -1,6 +1,7 @@
 package com.dufs.filesystem;
 
 import com.dufs.exceptions.DufsException;
+import com.dufs.model.DirEntry;
 import com.dufs.model.Record;
 import com.dufs.model.ReservedSpace;
 import com.dufs.offsets.RecordListOffsets;
@@ -8,6 +9,7 @@ import com.dufs.offsets.RecordOffsets;
 import com.dufs.offsets.ReservedSpaceOffsets;
 import com.dufs.utility.DateUtility;
 import com.dufs.utility.VolumeIO;
+import com.dufs.utility.VolumeUtility;
 import com.dufs.utility.VolumePointerUtility;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -19,6 +21,7 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -118,6 +121,99 @@ class DufsTest {
         notDufsFile.delete();
     }
 
+    @Test
+    void attachVolume_journalReplay() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        DufsOptions options = new DufsOptions();
+        options.setJournalEnabled(true);
+        Dufs journaledDufs = new Dufs(options);
+        journaledDufs.mountVolume(file.getName(), 4096, 40960000);
+        journaledDufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        journaledDufs.createRecord("vol.DUFS" + FileSystems.getDefault().getSeparator() + "folder", "file", (byte) 1);
+        journaledDufs.sync();
+        // copies of the files are what would be left after the crash
+        File crashedFile = new File("crash.DUFS");
+        Files.copy(file.toPath(), crashedFile.toPath());
+        Files.copy(new File("vol.DUFS.journal").toPath(), new File("crash.DUFS.journal").toPath());
+        journaledDufs.closeVolume();
+        RandomAccessFile crashedVolume = new RandomAccessFile(crashedFile, "r");
+        ReservedSpace crashedReservedSpace = VolumeIO.readReservedSpaceFromVolume(crashedVolume);
+        assertEquals(1, crashedReservedSpace.getNextRecordIndex());     // operations are only in the journal
+        crashedVolume.close();
+        dufs.attachVolume(crashedFile.getName());
+        assertEquals(2, VolumeUtility.findFileIndex(dufs.getVolume(), VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()),
+                "vol.DUFS" + FileSystems.getDefault().getSeparator() + "folder" + FileSystems.getDefault().getSeparator() + "file"));
+        assertFalse(new File("crash.DUFS.journal").exists());
+        dufs.closeVolume();
+        crashedFile.delete();
+        file.delete();
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+    }
+
+    @Test
+    void attachVolume_tornGroup() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        DufsOptions options = new DufsOptions();
+        options.setJournalEnabled(true);
+        options.setGroupCommitSize(64);
+        options.setTailPackingEnabled(true);
+        Dufs journaledDufs = new Dufs(options);
+        // clusters of "c" are the only free ones when "d" is written
+        journaledDufs.mountVolume(file.getName(), 4096, 8 * 4096);
+        String separator = FileSystems.getDefault().getSeparator();
+        File host = new File("host.tmp");
+        byte[][] contents = new byte[4][];
+        String[] names = {"a", "b", "c", "d"};
+        int[] sizes = {4096 + 100, 150, 3 * 4096, 3 * 4096};
+        for (int i = 0; i < 4; ++i) {
+            contents[i] = new byte[sizes[i]];
+            new Random(i).nextBytes(contents[i]);
+        }
+        for (int i = 0; i < 3; ++i) {
+            journaledDufs.createRecord("vol.DUFS", names[i], (byte) 1);
+            Files.write(host.toPath(), contents[i]);
+            journaledDufs.writeFile("vol.DUFS" + separator + names[i], host);
+        }
+        journaledDufs.sync();
+        ReservedSpace journaledReservedSpace = VolumeIO.readReservedSpaceFromVolume(journaledDufs.getVolume());
+        int firstClusterOfC = VolumeIO.readRecordFromVolume(journaledDufs.getVolume(), journaledReservedSpace,
+                VolumeUtility.findFileIndex(journaledDufs.getVolume(), journaledReservedSpace, "vol.DUFS" + separator + "c"))
+                .getFirstClusterIndex();
+        // the group which is not forced: the shared fragment cluster is rewritten, clusters of "c" are freed and reused
+        byte[] newTail = Arrays.copyOf(contents[0], 4096 + 200);
+        Files.write(host.toPath(), newTail);
+        journaledDufs.writeFile("vol.DUFS" + separator + "a", host);
+        journaledDufs.deleteRecord("vol.DUFS" + separator + "c", (byte) 1);
+        journaledDufs.createRecord("vol.DUFS", "d", (byte) 1);
+        Files.write(host.toPath(), contents[3]);
+        journaledDufs.writeFile("vol.DUFS" + separator + "d", host);
+        journaledReservedSpace = VolumeIO.readReservedSpaceFromVolume(journaledDufs.getVolume());
+        int firstClusterOfD = VolumeIO.readRecordFromVolume(journaledDufs.getVolume(), journaledReservedSpace,
+                VolumeUtility.findFileIndex(journaledDufs.getVolume(), journaledReservedSpace, "vol.DUFS" + separator + "d"))
+                .getFirstClusterIndex();
+        assertEquals(firstClusterOfC, VolumeUtility.findNextClusterIndexInChain(journaledDufs.getVolume(), firstClusterOfD));
+        // copies of the files are what would be left after the crash
+        File crashedFile = new File("crash.DUFS");
+        Files.copy(file.toPath(), crashedFile.toPath());
+        Files.copy(new File("vol.DUFS.journal").toPath(), new File("crash.DUFS.journal").toPath());
+        journaledDufs.closeVolume();
+        host.delete();
+        dufs.attachVolume(crashedFile.getName());
+        assertEquals(List.of("a", "b", "c"), dufs.listDirectory("vol.DUFS"));
+        for (int i = 0; i < 3; ++i) {
+            byte[] read = new byte[sizes[i]];
+            assertEquals(sizes[i], dufs.readFile("vol.DUFS" + separator + names[i], 0, read));
+            assertArrayEquals(contents[i], read);
+        }
+        assertEquals(List.of(), dufs.checkVolume(false));
+        dufs.closeVolume();
+        crashedFile.delete();
+        file.delete();
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+    }
+
     @Test
     void createRecord_volumeNull() {
         Dufs nullVolumeDufs = new Dufs();
@@ -477,6 +573,137 @@ class DufsTest {
         tmpFile.delete();
     }
 
+    @Test
+    void readFile_range() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) ((i + 44) ^ 57);
+        }
+        File tmpFile = new File("tmp");
+        Files.write(tmpFile.toPath(), content);
+        dufs.writeFile("vol.DUFS" + FileSystems.getDefault().getSeparator() + "record", tmpFile);
+        tmpFile.delete();
+        byte[] buffer = new byte[5000];
+        assertEquals(5000, dufs.readFile("vol.DUFS" + FileSystems.getDefault().getSeparator() + "record", 4000, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 4000, 9000), buffer);
+        assertEquals(1000, dufs.readFile("vol.DUFS" + FileSystems.getDefault().getSeparator() + "record", 9000, buffer));
+        assertEquals(-1, dufs.readFile("vol.DUFS" + FileSystems.getDefault().getSeparator() + "record", 10000, buffer));
+    }
+
+    @Test
+    void readFile_negativePosition() throws IOException, DufsException {
+        String path = "vol.DUFS" + FileSystems.getDefault().getSeparator() + "record";
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        dufs.writeFile(path, 0, new byte[] {1, 2, 3});
+        assertEquals("Position is negative.",
+                assertThrows(DufsException.class, () -> dufs.readFile(path, -1, new byte[10])).getMessage());
+    }
+
+    @Test
+    void writeFile_range() throws IOException, DufsException {
+        String path = "vol.DUFS" + FileSystems.getDefault().getSeparator() + "record";
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        dufs.writeFile(path, 0, new byte[] {1, 2, 3});
+        dufs.writeFile(path, 1, new byte[] {5});
+        // part between the end of the file and the position is filled with zeros
+        dufs.writeFile(path, 9000, new byte[] {9});
+        byte[] expected = new byte[9001];
+        expected[0] = 1;
+        expected[1] = 5;
+        expected[2] = 3;
+        expected[9000] = 9;
+        byte[] buffer = new byte[10000];
+        assertEquals(9001, dufs.readFile(path, 0, buffer));
+        assertArrayEquals(expected, Arrays.copyOf(buffer, 9001));
+        assertEquals(reservedSpace.getFreeClusters() - 3, VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()).getFreeClusters());
+    }
+
+    @Test
+    void writeFile_rangeOfDeduplicatedFile() throws IOException, DufsException {
+        DufsOptions options = new DufsOptions();
+        options.setDeduplicationEnabled(true);
+        dufs.closeVolume();
+        file.delete();
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        assertEquals("File is compressed, deduplicated or packed, so it cannot be written at a position.",
+                assertThrows(DufsException.class, () -> dufs.writeFile("vol.DUFS"
+                        + FileSystems.getDefault().getSeparator() + "record", 0, new byte[1])).getMessage());
+    }
+
+    @Test
+    void exportTree_nullVolume() {
+        Dufs nullVolumeDufs = new Dufs();
+        assertEquals("Volume has not found.",
+                assertThrows(DufsException.class,
+                        () -> nullVolumeDufs.exportTree("vol.DUFS", new File("export").toPath())).getMessage());
+    }
+
+    @Test
+    void exportTree_nullDirectory() {
+        assertEquals("Given path does not exist.",
+                assertThrows(DufsException.class,
+                        () -> dufs.exportTree("vol.DUFS" + FileSystems.getDefault().getSeparator() + "folder",
+                                new File("export").toPath())).getMessage());
+    }
+
+    @Test
+    void listDirectory_volumeNull() {
+        Dufs nullVolumeDufs = new Dufs();
+        assertEquals("Volume has not found.",
+                assertThrows(DufsException.class,
+                        () -> nullVolumeDufs.listDirectory("vol.DUFS")).getMessage());
+    }
+
+    @Test
+    void listDirectory() throws IOException, DufsException {
+        String separator = FileSystems.getDefault().getSeparator();
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        dufs.createRecord("vol.DUFS" + separator + "folder", "file", (byte) 1);
+        assertEquals(List.of("folder", "file"), dufs.listDirectory("vol.DUFS"));
+        assertEquals(List.of("file"), dufs.listDirectory("vol.DUFS" + separator + "folder"));
+    }
+
+    @Test
+    void exportTree() throws IOException, DufsException {
+        String separator = FileSystems.getDefault().getSeparator();
+        File tmpFile = new File("tmp");
+        RandomAccessFile tmpRAF = new RandomAccessFile(tmpFile, "rw");
+        byte[] content1 = new byte[100000];    // exported by worker threads
+        for (int i = 0; i < content1.length; ++i) {
+            content1[i] = (byte) ((i * i) ^ 505 - i);
+        }
+        byte[] content2 = new byte[5000];
+        for (int i = 0; i < content2.length; ++i) {
+            content2[i] = (byte) (((i * i) ^ 22) << 3);
+        }
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "folder", "subfolder", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "folder", "file1", (byte) 1);
+        dufs.createRecord("vol.DUFS" + separator + "folder" + separator + "subfolder", "file2", (byte) 1);
+        dufs.createRecord("vol.DUFS" + separator + "folder" + separator + "subfolder", "empty", (byte) 1);
+        tmpRAF.write(content1);
+        dufs.writeFile("vol.DUFS" + separator + "folder" + separator + "file1", tmpFile);
+        tmpRAF.setLength(0);
+        tmpRAF.write(content2);
+        dufs.writeFile("vol.DUFS" + separator + "folder" + separator + "subfolder" + separator + "file2", tmpFile);
+        File exportDirectory = new File("export");
+        dufs.exportTree("vol.DUFS" + separator + "folder", exportDirectory.toPath());
+        assertArrayEquals(content1, Files.readAllBytes(new File(exportDirectory, "file1").toPath()));
+        assertArrayEquals(content2, Files.readAllBytes(new File(exportDirectory, "subfolder" + separator + "file2").toPath()));
+        assertEquals(0, new File(exportDirectory, "subfolder" + separator + "empty").length());
+        new File(exportDirectory, "subfolder" + separator + "file2").delete();
+        new File(exportDirectory, "subfolder" + separator + "empty").delete();
+        new File(exportDirectory, "subfolder").delete();
+        new File(exportDirectory, "file1").delete();
+        exportDirectory.delete();
+        tmpRAF.close();
+        tmpFile.delete();
+    }
+
     @Test
     void deleteRecord_nullVolume() {
         Dufs nullVolumeDufs = new Dufs();
@@ -528,6 +755,39 @@ class DufsTest {
         assertEquals(0, volume.readInt());
     }
 
+    @Test
+    void deleteTree_nullVolume() {
+        Dufs nullVolumeDufs = new Dufs();
+        assertEquals("Volume has not found.",
+                assertThrows(DufsException.class,
+                        () -> nullVolumeDufs.deleteTree("vol.DUFS")).getMessage());
+    }
+
+    @Test
+    void deleteTree_root() {
+        assertEquals("Root's record cannot be modified.",
+                assertThrows(DufsException.class,
+                        () -> dufs.deleteTree("vol.DUFS")).getMessage());
+    }
+
+    @Test
+    void deleteTree() throws IOException, DufsException {
+        String separator = FileSystems.getDefault().getSeparator();
+        int freeClusters = reservedSpace.getFreeClusters();
+        dufs.createRecord("vol.DUFS", "kept", (byte) 1);
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "folder", "file", (byte) 1);
+        dufs.createRecord("vol.DUFS" + separator + "folder", "inner", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "folder" + separator + "inner", "file", (byte) 1);
+        dufs.deleteTree("vol.DUFS" + separator + "folder");
+        assertEquals(List.of("kept"), dufs.listDirectory("vol.DUFS"));
+        assertEquals(freeClusters - 1, VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()).getFreeClusters());
+        assertEquals("Given path does not exist.",
+                assertThrows(DufsException.class,
+                        () -> dufs.listDirectory("vol.DUFS" + separator + "folder")).getMessage());
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
     @Test
     void renameRecord_nullVolume() {
         Dufs nullVolumeDufs = new Dufs();
@@ -620,6 +880,52 @@ class DufsTest {
         assertEquals(2, volume.readInt());
     }
 
+    @Test
+    void copyRecord_nullVolume() {
+        Dufs nullVolumeDufs = new Dufs();
+        assertEquals("Volume has not found.",
+                assertThrows(DufsException.class,
+                        () -> nullVolumeDufs.copyRecord("vol.DUFS", "vol.DUFS", Mockito.anyByte())).getMessage());
+    }
+
+    @Test
+    void copyRecord_duplicate() throws IOException, DufsException {
+        String separator = FileSystems.getDefault().getSeparator();
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        dufs.createRecord("vol.DUFS", "copy", (byte) 1);
+        assertEquals("Record with such name and type already contains in this path.",
+                assertThrows(DufsException.class,
+                        () -> dufs.copyRecord("vol.DUFS" + separator + "record",
+                                "vol.DUFS" + separator + "copy", (byte) 1)).getMessage());
+    }
+
+    @Test
+    void copyRecord() throws IOException, DufsException {
+        String separator = FileSystems.getDefault().getSeparator();
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "folder", "record", (byte) 1);
+        dufs.copyRecord("vol.DUFS" + separator + "folder" + separator + "record",
+                "vol.DUFS" + separator + "copy", (byte) 1);
+        assertEquals(List.of("folder", "copy"), dufs.listDirectory("vol.DUFS"));
+        assertEquals(List.of("record"), dufs.listDirectory("vol.DUFS" + separator + "folder"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void list_nullVolume() {
+        Dufs nullVolumeDufs = new Dufs();
+        assertEquals("Volume has not found.",
+                assertThrows(DufsException.class, () -> nullVolumeDufs.list("vol.DUFS")).getMessage());
+    }
+
+    @Test
+    void list() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        assertEquals(dufs.listDirectory("vol.DUFS"),
+                dufs.list("vol.DUFS").map(DirEntry::getName).collect(Collectors.toList()));
+    }
+
     @Test
     void defragmentation_nullVolume() {
         Dufs nullVolumeDufs = new Dufs();
@@ -751,4 +1057,40 @@ class DufsTest {
         tmpRAF.close();
         tmpFile.delete();
     }
+
+    @Test
+    void createRecord_modePrecedence() throws IOException, DufsException {
+        File modesFile = new File("m.DUFS");
+        DufsOptions options = new DufsOptions();
+        options.setDeduplicationEnabled(true);
+        options.setSparseEnabled(true);
+        options.setCompressionEnabled(true);
+        options.setTailPackingEnabled(true);
+        Dufs modesDufs = new Dufs(options);
+        modesDufs.mountVolume(modesFile.getName(), 4096, 4096000);
+        try {
+            // the first enabled mode of deduplication, sparse files, compression and tail packing is taken
+            modesDufs.createRecord("m.DUFS", "deduplicated", (byte) 1);
+            options.setDeduplicationEnabled(false);
+            modesDufs.createRecord("m.DUFS", "sparse", (byte) 1);
+            options.setSparseEnabled(false);
+            modesDufs.createRecord("m.DUFS", "compressed", (byte) 1);
+            options.setCompressionEnabled(false);
+            modesDufs.createRecord("m.DUFS", "packed", (byte) 1);
+            ReservedSpace modesSpace = VolumeIO.readReservedSpaceFromVolume(modesDufs.getVolume());
+            String separator = FileSystems.getDefault().getSeparator();
+            List<Record> records = new ArrayList<>();
+            for (String name : List.of("deduplicated", "sparse", "compressed", "packed")) {
+                records.add(VolumeIO.readRecordFromVolume(modesDufs.getVolume(), modesSpace,
+                        VolumeUtility.findFileIndex(modesDufs.getVolume(), modesSpace, "m.DUFS" + separator + name)));
+            }
+            assertTrue(records.get(0).isDeduplicated() && !records.get(0).isSparse() && !records.get(0).isCompressed());
+            assertTrue(records.get(1).isSparse() && !records.get(1).isCompressed());
+            assertTrue(records.get(2).isCompressed() && !records.get(2).isPacked());
+            assertTrue(records.get(3).isPacked());
+        } finally {
+            modesDufs.closeVolume();
+            modesFile.delete();
+        }
+    }
 }
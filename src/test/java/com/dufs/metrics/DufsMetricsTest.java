@@ -0,0 +1,149 @@
+package com.dufs.metrics;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import com.dufs.model.DirEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DufsMetricsTest {
+    private static Dufs dufs;
+    private static File file;
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        DufsOptions options = new DufsOptions();
+        options.setMetricsEnabled(true);
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+    }
+
+    @Test
+    void getMetrics_disabled() {
+        assertNull(new Dufs().getMetrics());
+    }
+
+    @Test
+    void counters_readByAnotherThread() throws InterruptedException {
+        IoCounters counters = new IoCounters();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1_000_000; ++i) {
+                counters.read(4096);
+            }
+        });
+        writer.start();
+        // the reader sees the counters grow while they are written
+        long previous = 0;
+        while (previous < 1_000_000) {
+            long reads = counters.getReads();
+            assertTrue(reads >= previous);
+            previous = reads;
+        }
+        writer.join();
+        assertEquals(4096L * 1_000_000, counters.getBytesRead());
+    }
+
+    @Test
+    void snapshot() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        Map<DufsOperation, OperationMetrics> snapshot = dufs.getMetrics().snapshot();
+        OperationMetrics createRecord = snapshot.get(DufsOperation.CREATE_RECORD);
+        assertEquals(2, createRecord.getCount());
+        assertTrue(createRecord.getReads() > 0);
+        assertTrue(createRecord.getWrites() > 0);
+        assertTrue(createRecord.getSeeks() > 0);
+        assertTrue(createRecord.getBytesWritten() >= 2 * 93);     // at least the records
+        assertTrue(createRecord.getTotalNanos() >= createRecord.getMaxNanos());
+        assertEquals(1, snapshot.get(DufsOperation.MOUNT_VOLUME).getCount());
+        assertNull(snapshot.get(DufsOperation.DELETE_RECORD));
+    }
+
+    @Test
+    void list_readsAreDeferred() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        Stream<DirEntry> entries = dufs.list("vol.DUFS");
+        long reads = dufs.getMetrics().snapshot().get(DufsOperation.LIST).getReads();
+        assertEquals(1, entries.count());
+        OperationMetrics list = dufs.getMetrics().snapshot().get(DufsOperation.LIST);
+        // the stream is read after the call, but still accounted to it
+        assertEquals(1, list.getCount());
+        assertTrue(list.getReads() > reads);
+    }
+
+    @Test
+    void snapshot_failedOperation() {
+        assertThrows(DufsException.class,
+                () -> dufs.deleteRecord("vol.DUFS" + FileSystems.getDefault().getSeparator() + "file", (byte) 1));
+        assertEquals(1, dufs.getMetrics().snapshot().get(DufsOperation.DELETE_RECORD).getCount());
+    }
+
+    @Test
+    void snapshot_nestedOperation() throws IOException, DufsException {
+        dufs.bake();
+        Map<DufsOperation, OperationMetrics> snapshot = dufs.getMetrics().snapshot();
+        assertEquals(1, snapshot.get(DufsOperation.BAKE).getCount());
+        assertNull(snapshot.get(DufsOperation.DEFRAGMENTATION));
+    }
+
+    @Test
+    void getHistogram() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        DufsMetrics metrics = dufs.getMetrics();
+        LatencyHistogram createRecord = metrics.getHistogram(DufsOperation.CREATE_RECORD);
+        assertEquals(2, createRecord.getCount());
+        assertTrue(createRecord.getP99() <= createRecord.getMax());
+        assertEquals(0, metrics.getHistogram(DufsOperation.DELETE_RECORD).getCount());
+        assertEquals(2, metrics.getHistogram(HotPath.FIND_DIRECTORY_INDEX).getCount());
+        assertEquals(2, metrics.getHistogram(HotPath.FIND_NEXT_FREE_RECORD_INDEX).getCount());
+        assertTrue(metrics.getHistograms().containsKey("FIND_DIRECTORY_INDEX"));
+        assertFalse(metrics.getHistograms().containsKey("DELETE_RECORD"));
+    }
+
+    @Test
+    void reset() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        dufs.getMetrics().reset();
+        assertTrue(dufs.getMetrics().snapshot().isEmpty());
+        assertTrue(dufs.getMetrics().getHistograms().isEmpty());
+        assertTrue(dufs.getMetrics().getWrites() > 0);
+    }
+
+    @Test
+    void registerMBean() throws IOException, DufsException, JMException {
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.dufs:type=DufsMetrics,volume=" + ObjectName.quote(file.getAbsolutePath()));
+        assertTrue(server.isRegistered(name));
+        assertEquals(dufs.getMetrics().getSyscalls(), (long) server.getAttribute(name, "Syscalls"));
+        TabularData operations = (TabularData) server.getAttribute(name, "Operations");
+        assertEquals(2, operations.size());
+        assertEquals(2 + HotPath.values().length, ((TabularData) server.getAttribute(name, "Histograms")).size());
+        dufs.closeVolume();
+        assertFalse(server.isRegistered(name));
+        dufs.attachVolume(file.getName());
+    }
+}
@@ -0,0 +1,57 @@
+package com.dufs.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void bucketIndex() {
+        assertEquals(0, LatencyHistogram.bucketIndex(0));
+        assertEquals(7, LatencyHistogram.bucketIndex(7));
+        assertEquals(8, LatencyHistogram.bucketIndex(8));
+        assertEquals(16, LatencyHistogram.bucketIndex(16));
+        assertEquals(16, LatencyHistogram.bucketIndex(17));
+        assertEquals(17, LatencyHistogram.bucketIndex(18));
+        assertTrue(LatencyHistogram.bucketIndex(Long.MAX_VALUE) < (64 - 3) * 8);
+    }
+
+    @Test
+    void bucketUpperBound() {
+        for (long value : new long[] {1, 9, 100, 1000, 123456789L, Long.MAX_VALUE / 3}) {
+            long upperBound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound - value <= value / 8);
+        }
+    }
+
+    @Test
+    void percentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getP50());
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean());
+        assertTrue(histogram.getP50() >= 500000 && histogram.getP50() <= 500000 * 9 / 8);
+        assertTrue(histogram.getP99() >= 990000);
+        assertEquals(1000000, histogram.getP999());
+    }
+
+    @Test
+    void snapshotAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(200);
+        LatencyHistogram interval = histogram.snapshotAndReset();
+        assertEquals(2, interval.getCount());
+        assertEquals(300, interval.getSum());
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(50);
+        assertEquals(1, histogram.snapshot().getCount());
+        assertEquals(50, histogram.getMax());
+    }
+}
@@ -0,0 +1,122 @@
+package com.dufs.trace;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.metrics.DufsOperation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceRecorderTest {
+    private static final File file = new File("trace.DUFS");
+
+    @AfterEach
+    void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    void volumeEvents() throws IOException, DufsException {
+        try (TraceRecorder recorder = new TraceRecorder(file, TraceLevel.VOLUME)) {
+            recorder.setLength(1L << 40);
+            recorder.write(60, 12);
+            recorder.read((1L << 40) - 4096, 4096);
+            recorder.sync();
+        }
+        try (TraceReader reader = new TraceReader(file)) {
+            assertEquals(TraceLevel.VOLUME, reader.getLevel());
+            TraceEvent event = reader.next();
+            assertEquals(TraceEvent.SET_LENGTH, event.getType());
+            assertEquals(1L << 40, event.getLength());
+            event = reader.next();
+            assertEquals(TraceEvent.WRITE, event.getType());
+            assertEquals(60, event.getPosition());
+            assertEquals(12, event.getLength());
+            long nanos = event.getNanos();
+            event = reader.next();
+            assertEquals(TraceEvent.READ, event.getType());
+            assertEquals((1L << 40) - 4096, event.getPosition());
+            assertEquals(4096, event.getLength());
+            assertTrue(event.getNanos() >= nanos);
+            assertEquals(TraceEvent.SYNC, reader.next().getType());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void call() throws IOException, DufsException {
+        try (TraceRecorder recorder = new TraceRecorder(file, TraceLevel.API)) {
+            recorder.call(DufsOperation.RENAME_RECORD, new long[] {1}, "vol.DUFS/file", "file2");
+            recorder.call(DufsOperation.BAKE, new long[0]);
+        }
+        try (TraceReader reader = new TraceReader(file)) {
+            TraceEvent event = reader.next();
+            assertEquals(TraceEvent.CALL, event.getType());
+            assertEquals(DufsOperation.RENAME_RECORD, event.getOperation());
+            assertArrayEquals(new String[] {"vol.DUFS/file", "file2"}, event.getArguments());
+            assertArrayEquals(new long[] {1}, event.getNumbers());
+            event = reader.next();
+            assertEquals(DufsOperation.BAKE, event.getOperation());
+            assertEquals(0, event.getArguments().length);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void operationCodes() throws IOException, DufsException {
+        // codes of the operations written into traces do not depend on the order of the enum
+        assertEquals(6, DufsOperation.EXPORT_TREE.getCode());
+        assertEquals(24, DufsOperation.READ_RANGE.getCode());
+        for (DufsOperation operation : DufsOperation.values()) {
+            assertEquals(operation, DufsOperation.fromCode(operation.getCode()));
+        }
+        assertNull(DufsOperation.fromCode(DufsOperation.values().length));
+        try (TraceRecorder recorder = new TraceRecorder(file, TraceLevel.API)) {
+            recorder.call(DufsOperation.EXPORT_TREE, new long[0], "vol.DUFS");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(7);    // header (6 bytes) and type of the event
+            while ((raf.readUnsignedByte() & 0x80) != 0) {
+                // time of the event is a varint
+            }
+            assertEquals(6, raf.readUnsignedByte());
+        }
+    }
+
+    @Test
+    void previousVersion() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(TraceRecorder.MAGIC);
+            raf.writeByte(1);
+            raf.writeByte(TraceLevel.API.ordinal());
+        }
+        assertThrows(DufsException.class, () -> new TraceReader(file));
+    }
+
+    @Test
+    void truncatedEvent() throws IOException, DufsException {
+        try (TraceRecorder recorder = new TraceRecorder(file, TraceLevel.VOLUME)) {
+            recorder.write(60, 12);
+            recorder.write(1L << 30, 4096);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        try (TraceReader reader = new TraceReader(file)) {
+            assertNotNull(reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void notTrace() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(0);
+        }
+        assertThrows(DufsException.class, () -> new TraceReader(file));
+    }
+}
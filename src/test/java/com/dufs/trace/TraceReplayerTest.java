@@ -0,0 +1,112 @@
+package com.dufs.trace;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceReplayerTest {
+    private static final String separator = FileSystems.getDefault().getSeparator();
+    private static Path directory;
+    private static File trace;
+    private static File host;
+
+    @BeforeEach
+    void init() throws IOException {
+        directory = Files.createTempDirectory("dufs-trace");
+        Files.createDirectory(directory.resolve("original"));
+        Files.createDirectory(directory.resolve("replay"));
+        trace = directory.resolve("trace").toFile();
+        host = directory.resolve("host").toFile();
+        Files.write(host.toPath(), new byte[10000]);
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static Dufs record(TraceLevel level) throws IOException, DufsException {
+        DufsOptions options = new DufsOptions();
+        options.setTraceFile(trace.getPath());
+        options.setTraceLevel(level);
+        Dufs dufs = new Dufs(options);
+        dufs.mountVolume(directory.resolve("original").resolve("vol.DUFS").toString(), 4096, 409600);
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "dir", "file", (byte) 1);
+        dufs.writeFile("vol.DUFS" + separator + "dir" + separator + "file", host);
+        assertThrows(DufsException.class, () -> dufs.deleteRecord("vol.DUFS" + separator + "none", (byte) 1));
+        dufs.bake();
+        dufs.closeVolume();
+        return dufs;
+    }
+
+    @Test
+    void replayCalls() throws IOException, DufsException {
+        record(TraceLevel.API);
+        Dufs dufs = new Dufs();
+        TraceReplayer.Result result = new TraceReplayer(trace, false).replayCalls(dufs, directory.resolve("replay"));
+        assertEquals(6, result.getEvents());     // defragmentation inside bake is not recorded
+        assertEquals(1, result.getFailures());
+        assertEquals(List.of("file"), dufs.listDirectory("vol.DUFS" + separator + "dir"));
+        File read = directory.resolve("read").toFile();
+        dufs.readFile("vol.DUFS" + separator + "dir" + separator + "file", read);
+        assertEquals(10000, read.length());
+        dufs.closeVolume();
+    }
+
+    @Test
+    void replayCalls_originalTiming() throws IOException, DufsException {
+        record(TraceLevel.API);
+        long recorded;
+        try (TraceReader reader = new TraceReader(trace)) {
+            TraceEvent event;
+            TraceEvent last = null;
+            while ((event = reader.next()) != null) {
+                last = event;
+            }
+            recorded = last.getNanos();
+        }
+        Dufs dufs = new Dufs();
+        TraceReplayer.Result result = new TraceReplayer(trace, true).replayCalls(dufs, directory.resolve("replay"));
+        assertTrue(result.getElapsedNanos() >= recorded);
+        dufs.closeVolume();
+    }
+
+    @Test
+    void replayVolume() throws IOException, DufsException {
+        record(TraceLevel.VOLUME);
+        try (RandomAccessFile volume = new RandomAccessFile(directory.resolve("replay").resolve("vol.DUFS").toFile(), "rw")) {
+            TraceReplayer.Result result = new TraceReplayer(trace, false).replayVolume(volume);
+            assertTrue(result.getEvents() > 0);
+            assertEquals(0, result.getFailures());
+            assertEquals(directory.resolve("original").resolve("vol.DUFS").toFile().length(), volume.length());
+        }
+    }
+
+    @Test
+    void replayVolume_apiTrace() throws IOException, DufsException {
+        record(TraceLevel.API);
+        try (RandomAccessFile volume = new RandomAccessFile(directory.resolve("replay").resolve("vol.DUFS").toFile(), "rw")) {
+            assertThrows(DufsException.class, () -> new TraceReplayer(trace, false).replayVolume(volume));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterChainTest {
+    private static Dufs dufs;
+    private static RandomAccessFile volume;
+    private static ReservedSpace reservedSpace;
+    private static File file;
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        dufs = new Dufs();
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+        dufs.createRecord("vol.DUFS", "file", (byte) 1);
+        volume = dufs.getVolume();
+        reservedSpace = VolumeIO.readReservedSpaceFromVolume(volume);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+    }
+
+    @Test
+    void write_growsChain() throws IOException, DufsException {
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, 1);
+        assertEquals(1, chain.getLength());
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (i * 31);
+        }
+        int freeClusters = reservedSpace.getFreeClusters();
+        chain.write(100, content, 0, content.length);
+        assertEquals(3, chain.getLength());
+        assertEquals(freeClusters - 2, reservedSpace.getFreeClusters());
+        assertEquals(freeClusters - 2, VolumeIO.readReservedSpaceFromVolume(volume).getFreeClusters());
+        ClusterChain reloaded = new ClusterChain(volume, reservedSpace, 1);
+        assertEquals(3, reloaded.getLength());
+        assertEquals(1, VolumeUtility.findRecordIndexOfCluster(volume, reloaded.getClusterIndex(2)));
+        byte[] readContent = new byte[content.length];
+        reloaded.read(100, readContent, 0, readContent.length);
+        assertArrayEquals(content, readContent);
+    }
+
+    @Test
+    void read_outOfChain() throws IOException, DufsException {
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, 1);
+        assertEquals("Given range is out of the cluster chain.",
+                assertThrows(DufsException.class, () -> chain.read(4000, new byte[100], 0, 100)).getMessage());
+    }
+
+    @Test
+    void trim() throws IOException, DufsException {
+        ClusterChain chain = new ClusterChain(volume, reservedSpace, 1);
+        int freeClusters = reservedSpace.getFreeClusters();
+        chain.write(0, new byte[5 * 4096], 0, 5 * 4096);
+        int thirdCluster = chain.getClusterIndex(2);
+        chain.trim(4096 + 10);
+        assertEquals(2, chain.getLength());
+        assertEquals(freeClusters - 1, reservedSpace.getFreeClusters());
+        assertEquals(2, new ClusterChain(volume, reservedSpace, 1).getLength());
+        assertFalse(VolumeHelper.recordExists(volume, thirdCluster));
+    }
+}
@@ -0,0 +1,149 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import com.dufs.model.Record;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionUtilityTest {
+    private static final String path = "vol.DUFS" + FileSystems.getDefault().getSeparator() + "log";
+    private static Dufs dufs;
+    private static File file;
+    private static File host;
+
+    private static byte[] text(int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < length; ++i) {
+            builder.append("2024-01-01 12:00:").append(i % 60).append(" INFO request ").append(i).append(" served\n");
+        }
+        return Arrays.copyOf(builder.toString().getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    private static Record record() throws IOException, DufsException {
+        return VolumeIO.readRecordFromVolume(dufs.getVolume(), VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()), 1);
+    }
+
+    private static byte[] read() throws IOException, DufsException {
+        File read = new File("read.tmp");
+        dufs.readFile(path, read);
+        byte[] content = Files.readAllBytes(read.toPath());
+        read.delete();
+        return content;
+    }
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        host = new File("host.tmp");
+        DufsOptions options = new DufsOptions();
+        options.setCompressionEnabled(true);
+        options.setCompressionBlockSize(8192);
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+        dufs.createRecord("vol.DUFS", "log", (byte) 1);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        host.delete();
+    }
+
+    @Test
+    void writeFile() throws IOException, DufsException {
+        byte[] content = text(100000);
+        Files.write(host.toPath(), content);
+        int freeClusters = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()).getFreeClusters();
+        dufs.writeFile(path, host);
+        Record record = record();
+        assertTrue(record.isCompressed());
+        assertEquals(1, record.getType());
+        assertTrue(record.getSize() < content.length / 4);
+        assertEquals(content.length, CompressionUtility.readLogicalSize(dufs.getVolume(),
+                VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()), record));
+        assertEquals(freeClusters - record.getSize() / 4096,
+                VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()).getFreeClusters());
+        assertArrayEquals(content, read());
+    }
+
+    @Test
+    void writeFile_rewrite() throws IOException, DufsException {
+        Files.write(host.toPath(), text(100000));
+        dufs.writeFile(path, host);
+        byte[] content = text(5000);
+        Files.write(host.toPath(), content);
+        dufs.writeFile(path, host);
+        assertArrayEquals(content, read());
+        assertTrue(record().getSize() < 4096);
+    }
+
+    @Test
+    void writeFile_incompressible() throws IOException, DufsException {
+        byte[] content = new byte[20000];
+        new Random(1).nextBytes(content);
+        Files.write(host.toPath(), content);
+        dufs.writeFile(path, host);
+        assertEquals(CompressionUtility.HEADER_SIZE + content.length + 4 * 3, record().getSize());
+        assertArrayEquals(content, read());
+    }
+
+    @Test
+    void appendFile() throws IOException, DufsException {
+        byte[] content = text(30000);
+        Files.write(host.toPath(), Arrays.copyOfRange(content, 0, 10000));
+        dufs.appendFile(path, host);
+        Files.write(host.toPath(), Arrays.copyOfRange(content, 10000, 10001));
+        dufs.appendFile(path, host);
+        Files.write(host.toPath(), Arrays.copyOfRange(content, 10001, 30000));
+        dufs.appendFile(path, host);
+        assertArrayEquals(content, read());
+    }
+
+    @Test
+    void readFile_range() throws IOException, DufsException {
+        byte[] content = text(50000);
+        Files.write(host.toPath(), content);
+        dufs.writeFile(path, host);
+        byte[] buffer = new byte[10000];
+        assertEquals(10000, dufs.readFile(path, 12345, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 12345, 22345), buffer);
+        assertEquals(5, dufs.readFile(path, 49995, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 49995, 50000), Arrays.copyOf(buffer, 5));
+        assertEquals(-1, dufs.readFile(path, 50000, buffer));
+    }
+
+    @Test
+    void readFile_empty() throws IOException, DufsException {
+        assertEquals(0, read().length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressionUtility.readFile(dufs.getVolume(), VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()), record(), out);
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void exportTree() throws IOException, DufsException {
+        byte[] content = text(40000);
+        Files.write(host.toPath(), content);
+        dufs.writeFile(path, host);
+        File export = new File("export.tmp");
+        dufs.exportTree("vol.DUFS", export.toPath());
+        assertArrayEquals(content, Files.readAllBytes(export.toPath().resolve("log")));
+        Files.delete(export.toPath().resolve("log"));
+        Files.delete(export.toPath());
+    }
+}
@@ -0,0 +1,171 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CopyUtilityTest extends VolumeFixture {
+    @BeforeEach
+    void init() {
+        content = new byte[20 * 4096 + 7];
+        new Random(17).nextBytes(content);
+    }
+
+    @Test
+    void copyRecord_plainFile() throws IOException, DufsException {
+        mount(4096, 4096000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        int freeClusters = freeClusters();
+        dufs.copyRecord(path("a"), path("b"), (byte) 1);
+        assertEquals(freeClusters - 21, freeClusters());
+        assertArrayEquals(content, read("b"));
+        assertEquals(List.of("a", "b"), dufs.listDirectory("vol.DUFS"));
+        // the copy does not share its clusters with the file
+        dufs.writeFile(path("b"), 10, new byte[] {1, 2, 3});
+        assertArrayEquals(content, read("a"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void copyRecord_deduplicatedFileSharesClusters() throws IOException, DufsException {
+        options.setDeduplicationEnabled(true);
+        mount(4096, 4096000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        double ratio = dufs.getDeduplicationRatio();
+        int freeClusters = freeClusters();
+        dufs.copyRecord(path("a"), path("b"), (byte) 1);
+        // only the cluster of the map is taken
+        assertEquals(freeClusters - 1, freeClusters());
+        assertEquals(2 * ratio, dufs.getDeduplicationRatio());
+        assertTrue(record("b").isDeduplicated());
+        assertArrayEquals(content, read("b"));
+        dufs.deleteRecord(path("a"), (byte) 1);
+        assertArrayEquals(content, read("b"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void copyRecord_sparseFileIsCopiedOnWrite() throws IOException, DufsException {
+        options.setSparseEnabled(true);
+        mount(4096, 4096000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.writeFile(path("a"), 100 * 4096, content);
+        int freeClusters = freeClusters();
+        dufs.copyRecord(path("a"), path("b"), (byte) 1);
+        assertEquals(freeClusters - 1, freeClusters());
+        dufs.writeFile(path("b"), 100 * 4096, new byte[] {1});
+        assertEquals(freeClusters - 2, freeClusters());
+        byte[] expected = new byte[100 * 4096 + content.length];
+        System.arraycopy(content, 0, expected, 100 * 4096, content.length);
+        assertArrayEquals(expected, read("a"));
+        expected[100 * 4096] = 1;
+        assertArrayEquals(expected, read("b"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void copyRecord_packedAndInlineFilesV2() throws IOException, DufsException {
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        options.setTailPackingEnabled(true);
+        mount(4096, 4096000);
+        String longName = "name-which-is-kept-in-the-name-heap";
+        dufs.createRecord("vol.DUFS", longName, (byte) 1);
+        write(longName, content);
+        options.setTailPackingEnabled(false);
+        options.setInlineEnabled(true);
+        dufs.createRecord("vol.DUFS", "inline", (byte) 1);
+        write("inline", new byte[] {4, 5, 6});
+        dufs.copyRecord(path(longName), path(longName + "-copy"), (byte) 1);
+        dufs.copyRecord(path("inline"), path("inline-copy"), (byte) 1);
+        assertTrue(record(longName + "-copy").isPacked());
+        assertTrue(record("inline-copy").isInline());
+        assertArrayEquals(content, read(longName + "-copy"));
+        assertArrayEquals(new byte[] {4, 5, 6}, read("inline-copy"));
+        dufs.deleteRecord(path(longName), (byte) 1);
+        assertArrayEquals(content, read(longName + "-copy"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void copyRecord_tree() throws IOException, DufsException {
+        mount(4096, 4096000);
+        dufs.createRecord("vol.DUFS", "tree", (byte) 0);
+        dufs.createRecord(path("tree"), "a", (byte) 1);
+        write("tree" + separator + "a", content);
+        dufs.createRecord(path("tree"), "inner", (byte) 0);
+        dufs.createRecord(path("tree", "inner"), "b", (byte) 1);
+        write("tree" + separator + "inner" + separator + "b", new byte[] {7});
+        dufs.createRecord(path("tree", "inner"), "empty", (byte) 0);
+        int freeClusters = freeClusters();
+        dufs.copyRecord(path("tree"), path("copy"), (byte) 0);
+        assertEquals(List.of("tree", "copy"), dufs.listDirectory("vol.DUFS"));
+        assertEquals(List.of("a", "inner"), dufs.listDirectory(path("copy")));
+        assertEquals(List.of("b", "empty"), dufs.listDirectory(path("copy", "inner")));
+        assertEquals(List.of(), dufs.listDirectory(path("copy", "inner", "empty")));
+        assertArrayEquals(content, read("copy" + separator + "a"));
+        assertArrayEquals(new byte[] {7}, read("copy" + separator + "inner" + separator + "b"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+        dufs.deleteTree(path("copy"));
+        assertEquals(freeClusters, freeClusters());
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void copyRecord_fullDirectoryCluster() throws IOException, DufsException {
+        // 15 record indexes fill the first cluster of a directory with the count of its records
+        mount(64, 4096000);
+        dufs.createRecord("vol.DUFS", "tree", (byte) 0);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 15; ++i) {
+            names.add("f" + i);
+            dufs.createRecord(path("tree"), "f" + i, (byte) 1);
+            write("tree" + separator + "f" + i, new byte[] {(byte) i});
+        }
+        dufs.copyRecord(path("tree"), path("copy"), (byte) 0);
+        assertEquals(names, dufs.listDirectory(path("copy")));
+        for (int i = 0; i < 15; ++i) {
+            assertArrayEquals(new byte[] {(byte) i}, read("copy" + separator + "f" + i));
+        }
+        assertTrue(dufs.checkVolume(false).isEmpty());
+        dufs.deleteRecord(path("copy", "f3"), (byte) 1);
+        names.remove("f3");
+        assertEquals(names.size(), dufs.listDirectory(path("copy")).size());
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void copyRecord_intoItself() throws IOException, DufsException {
+        mount(4096, 4096000);
+        dufs.createRecord("vol.DUFS", "tree", (byte) 0);
+        dufs.createRecord(path("tree"), "inner", (byte) 0);
+        assertEquals("Directory cannot be copied into itself.",
+                assertThrows(DufsException.class,
+                        () -> dufs.copyRecord(path("tree"), path("tree", "inner", "copy"), (byte) 0)).getMessage());
+        assertEquals(List.of("inner"), dufs.listDirectory(path("tree")));
+    }
+
+    @Test
+    void copyRecord_notEnoughSpace() throws IOException, DufsException {
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 30 * 4096);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        int freeClusters = freeClusters();
+        assertEquals("Not enough space in the volume to copy the record.",
+                assertThrows(DufsException.class,
+                        () -> dufs.copyRecord(path("a"), path("b"), (byte) 1)).getMessage());
+        assertEquals(freeClusters, freeClusters());
+        assertEquals(List.of("a"), dufs.listDirectory("vol.DUFS"));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -40,4 +41,12 @@ class DateUtilityTest {
         assertEquals(13, time[1]);
         assertEquals(14, time[2]);
     }
+
+    @Test
+    void toEpochMilli() {
+        final long epochMilli = LocalDateTime.of(2022, 3, 29, 12, 13, 14)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        assertEquals(epochMilli, DateUtility.toEpochMilli(DateUtility.dateToShort(epochMilli), DateUtility.timeToShort(epochMilli)));
+        assertEquals(0, DateUtility.toEpochMilli((short) 0, (short) 0));
+    }
 }
\ No newline at end of file
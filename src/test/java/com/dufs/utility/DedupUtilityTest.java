@@ -0,0 +1,115 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupUtilityTest extends VolumeFixture {
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        options.setDeduplicationEnabled(true);
+        mount(4096, 40960000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        content = new byte[4 * 4096 + 100];
+        new Random(7).nextBytes(content);
+    }
+
+    @Test
+    void writeFile_sharesClusters() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        write("a", content);
+        assertEquals(freeClusters - 5, freeClusters());
+        write("b", content);
+        assertEquals(freeClusters - 5, freeClusters());
+        assertEquals(2.0, dufs.getDeduplicationRatio());
+        assertArrayEquals(content, read("a"));
+        assertArrayEquals(content, read("b"));
+    }
+
+    @Test
+    void writeFile_sameClusterTwiceInFile() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        write("a", new byte[8 * 4096]);
+        assertEquals(freeClusters - 1, freeClusters());
+        assertArrayEquals(new byte[8 * 4096], read("a"));
+    }
+
+    @Test
+    void deleteRecord_freesUnreferencedClusters() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        write("a", content);
+        write("b", content);
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(freeClusters - 5 + 1, freeClusters());   // the first cluster of the record is freed
+        assertArrayEquals(content, read("b"));
+        dufs.deleteRecord("vol.DUFS" + separator + "b", (byte) 1);
+        assertEquals(freeClusters + 2, freeClusters());
+        assertEquals(1.0, dufs.getDeduplicationRatio());
+    }
+
+    @Test
+    void appendFile_copiesSharedCluster() throws IOException, DufsException {
+        write("a", content);
+        write("b", content);
+        byte[] tail = new byte[5000];
+        Arrays.fill(tail, (byte) 3);
+        Files.write(host.toPath(), tail);
+        dufs.appendFile("vol.DUFS" + separator + "a", host);
+        byte[] appended = Arrays.copyOf(content, content.length + tail.length);
+        System.arraycopy(tail, 0, appended, content.length, tail.length);
+        assertArrayEquals(appended, read("a"));
+        assertArrayEquals(content, read("b"));
+    }
+
+    @Test
+    void readFile_range() throws IOException, DufsException {
+        write("a", content);
+        byte[] buffer = new byte[5000];
+        assertEquals(5000, dufs.readFile("vol.DUFS" + separator + "a", 4000, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 4000, 9000), buffer);
+        assertEquals(-1, dufs.readFile("vol.DUFS" + separator + "a", content.length, buffer));
+    }
+
+    @Test
+    void attachVolume_indexIsRebuilt() throws IOException, DufsException {
+        write("a", content);
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        int freeClusters = freeClusters();
+        write("b", content);
+        assertEquals(freeClusters, freeClusters());
+    }
+
+    @Test
+    void defragmentation_keepsSharedClusters() throws IOException, DufsException {
+        write("a", content);
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("b", content);
+        dufs.defragmentation();
+        assertArrayEquals(content, read("a"));
+        assertArrayEquals(content, read("b"));
+        assertEquals(2.0, dufs.getDeduplicationRatio());
+    }
+
+    @Test
+    void bake_keepsSharedClusters() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("c", new byte[20 * 4096]);
+        write("a", content);
+        write("b", content);
+        dufs.deleteRecord("vol.DUFS" + separator + "c", (byte) 1);
+        dufs.bake();
+        assertArrayEquals(content, read("a"));
+        assertArrayEquals(content, read("b"));
+    }
+}
@@ -0,0 +1,75 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportUtilityTest {
+    private static Dufs dufs;
+    private static ReservedSpace reservedSpace;
+    private static File file;
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        dufs = new Dufs();
+        dufs.mountVolume(file.getName(), 4096, 40960000);
+        reservedSpace = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume());
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+    }
+
+    @Test
+    void readClusterChain() throws IOException, DufsException {
+        RandomAccessFile volume = dufs.getVolume();
+        VolumeUtility.createClusterIndexChain(volume, reservedSpace, 1, 1);
+        VolumeUtility.updateClusterIndexChain(volume, reservedSpace, 1, 0xFFFFFFFF);
+        assertArrayEquals(new int[] { 1, 2 }, ExportUtility.readClusterChain(volume.getChannel(), reservedSpace, 1));
+    }
+
+    @Test
+    void readClusterChain_brokenChain() throws IOException {
+        RandomAccessFile volume = dufs.getVolume();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(1));
+        volume.writeInt(2);     // cluster 2 is free, so chain is broken
+        assertEquals("Given cluster chain is broken.",
+                assertThrows(DufsException.class,
+                        () -> ExportUtility.readClusterChain(volume.getChannel(), reservedSpace, 1)).getMessage());
+    }
+
+    @Test
+    void exportFile() throws IOException, DufsException {
+        File tmpFile = new File("tmp");
+        RandomAccessFile tmpRAF = new RandomAccessFile(tmpFile, "rw");
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (((i * i) ^ 22) << 3);
+        }
+        tmpRAF.write(content);
+        dufs.createRecord("vol.DUFS", "record", (byte) 1);
+        dufs.writeFile("vol.DUFS" + FileSystems.getDefault().getSeparator() + "record", tmpFile);
+        Record record = VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace, 1);
+        File exportedFile = new File("exported");
+        ExportUtility.exportFile(dufs.getVolume().getChannel(), reservedSpace, record, exportedFile.toPath());
+        assertArrayEquals(content, Files.readAllBytes(exportedFile.toPath()));
+        exportedFile.delete();
+        tmpRAF.close();
+        tmpFile.delete();
+    }
+}
@@ -0,0 +1,278 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FsckUtilityTest extends VolumeFixture {
+    private static int readElementField(int clusterIndex, int fieldOffset) throws IOException {
+        RandomAccessFile volume = dufs.getVolume();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + fieldOffset);
+        return volume.readInt();
+    }
+
+    /*
+     * the last cluster whose element keeps the owner (SHARED_CLUSTER or FRAGMENT_CLUSTER) instead of a record index
+     */
+    private static int findLastClusterIndex(int owner) throws IOException {
+        for (int clusterIndex = reservedSpace().getReservedClusters() - 1; clusterIndex > 0; --clusterIndex) {
+            if (readElementField(clusterIndex, 8) == owner) {
+                return clusterIndex;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeElementField(int clusterIndex, int fieldOffset, int value) throws IOException {
+        RandomAccessFile volume = dufs.getVolume();
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(clusterIndex) + fieldOffset);
+        volume.writeInt(value);
+    }
+
+    private static void remount() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        mount(4096, 4096000);
+    }
+
+    /*
+     * checks the volume, repairs it and checks that nothing is left
+     */
+    private static List<String> repair() throws IOException, DufsException {
+        List<String> problems = dufs.checkVolume(false);
+        assertEquals(problems, dufs.checkVolume(true));
+        assertEquals(List.of(), dufs.checkVolume(false));
+        return problems;
+    }
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        mount(4096, 4096000);
+        content = new byte[3 * 4096 + 700];
+        new Random(17).nextBytes(content);
+    }
+
+    @Test
+    void checkVolume_emptyVolume() throws IOException, DufsException {
+        assertEquals(List.of(), dufs.checkVolume(false));
+    }
+
+    @Test
+    void checkVolume_tree() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "dir", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS" + separator + "dir", "b", (byte) 1);
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("dir" + separator + "a", content);
+        write("c", Arrays.copyOf(content, 100));
+        dufs.deleteRecord("vol.DUFS" + separator + "dir" + separator + "a", (byte) 1);
+        assertEquals(List.of(), dufs.checkVolume(false));
+    }
+
+    @Test
+    void checkVolume_directoryAfterDeletes() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        for (int i = 0; i < 200; ++i) {
+            dufs.createRecord("vol.DUFS" + separator + "dir", "f" + i, (byte) 1);
+        }
+        for (int i = 0; i < 200; i += 3) {
+            dufs.deleteRecord("vol.DUFS" + separator + "dir" + separator + "f" + i, (byte) 1);
+        }
+        assertEquals(List.of(), dufs.checkVolume(false));
+    }
+
+    @Test
+    void checkVolume_storageFormats() throws IOException, DufsException {
+        options.setInlineEnabled(true);
+        options.setTailPackingEnabled(true);
+        dufs.createRecord("vol.DUFS", "inline", (byte) 1);
+        dufs.createRecord("vol.DUFS", "packed", (byte) 1);
+        dufs.createRecord("vol.DUFS", "small", (byte) 1);
+        write("inline", Arrays.copyOf(content, 20));
+        write("packed", content);
+        write("small", Arrays.copyOf(content, 500));
+        assertEquals(List.of(), dufs.checkVolume(false));
+        options.setInlineEnabled(false);
+        options.setTailPackingEnabled(false);
+        options.setDeduplicationEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", content);
+        write("b", content);
+        options.setDeduplicationEnabled(false);
+        options.setCompressionEnabled(true);
+        dufs.createRecord("vol.DUFS", "compressed", (byte) 1);
+        write("compressed", new byte[20000]);
+        assertEquals(List.of(), dufs.checkVolume(false));
+    }
+
+    @Test
+    void checkVolume_formatV2() throws IOException, DufsException {
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        options.setTailPackingEnabled(true);
+        remount();
+        dufs.createRecord("vol.DUFS", "a long name, which is kept in the name heap", (byte) 1);
+        dufs.createRecord("vol.DUFS", "short", (byte) 0);
+        write("a long name, which is kept in the name heap", content);
+        assertEquals(List.of(), dufs.checkVolume(false));
+    }
+
+    @Test
+    void checkVolume_severalChunks() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 512, 512L * 70000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", new byte[512 * 66000]);
+        assertEquals(List.of(), dufs.checkVolume(false));
+        writeElementField(69000, 0, ClusterIndexListOffsets.NO_CLUSTER);
+        writeElementField(69000, 4, ClusterIndexListOffsets.NO_CLUSTER);
+        assertEquals(List.of("Volume counts " + reservedSpace().getFreeClusters() + " free clusters instead of "
+                + (reservedSpace().getFreeClusters() - 1) + ".", "Cluster 69000 is used, but no record reaches it."), repair());
+    }
+
+    @Test
+    void checkVolume_freeClusters() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        int freeClusters = reservedSpace().getFreeClusters();
+        VolumeIO.updateVolumeFreeClusters(dufs.getVolume(), freeClusters + 5);
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertEquals(List.of("Volume counts " + (freeClusters + 5) + " free clusters instead of " + freeClusters + "."), repair());
+        assertEquals(freeClusters, reservedSpace().getFreeClusters());
+    }
+
+    @Test
+    void checkVolume_brokenBackPointers() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        int firstClusterIndex = record(1).getFirstClusterIndex();
+        int secondClusterIndex = readElementField(firstClusterIndex, 0);
+        writeElementField(secondClusterIndex, 4, 7);
+        writeElementField(secondClusterIndex, 8, 3);
+        assertEquals(List.of("Cluster " + secondClusterIndex + " of record 1 points back to cluster 7 instead of " + firstClusterIndex + ".",
+                "Cluster " + secondClusterIndex + " of record 1 belongs to record 3."), repair());
+        assertEquals(firstClusterIndex, readElementField(secondClusterIndex, 4));
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void checkVolume_lostCluster() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        int firstClusterIndex = record(1).getFirstClusterIndex();
+        int secondClusterIndex = readElementField(firstClusterIndex, 0);
+        // the chain is cut after the first cluster, the rest of it is lost
+        writeElementField(firstClusterIndex, 0, ClusterIndexListOffsets.NO_CLUSTER);
+        List<String> problems = repair();
+        assertTrue(problems.contains("Cluster " + secondClusterIndex + " is used, but no record reaches it."));
+        assertEquals(0, readElementField(secondClusterIndex, 0));
+    }
+
+    @Test
+    void checkVolume_crossedChains() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", content);
+        write("b", content);
+        VolumeIO.updateRecordFirstClusterIndex(dufs.getVolume(), reservedSpace(), 2, record(1).getFirstClusterIndex());
+        List<String> problems = dufs.checkVolume(true);
+        assertTrue(problems.contains("Cluster " + record(1).getFirstClusterIndex() + " of record 2 is in another chain.")
+                || problems.contains("Cluster " + record(1).getFirstClusterIndex() + " of record 1 is in another chain."));
+        assertFalse(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void checkVolume_orderNumber() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        VolumeIO.updateRecordParentDirectoryOrderNumber(dufs.getVolume(), reservedSpace(), 2, 5);
+        assertEquals(List.of("Record 2 has order number 5 in directory 0 instead of 2."), repair());
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(List.of("b"), dufs.listDirectory("vol.DUFS"));
+    }
+
+    @Test
+    void checkVolume_lostRecord() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        VolumeIO.updateRecordParentDirectory(dufs.getVolume(), reservedSpace(), 2, 1, 2);
+        assertEquals(List.of("Directory 0 lists record 2, which is not in it.",
+                "Parent directory 1 of record 2 does not exist.",
+                "Directory 0 counts 2 records instead of 1."), dufs.checkVolume(true));
+    }
+
+    @Test
+    void checkVolume_sharedClusters() throws IOException, DufsException {
+        options.setDeduplicationEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", content);
+        write("b", content);
+        int sharedClusterIndex = findLastClusterIndex(DedupUtility.SHARED_CLUSTER);
+        writeElementField(sharedClusterIndex, 4, 7);
+        assertEquals(List.of("Shared cluster " + sharedClusterIndex + " keeps 7 references instead of 2."), repair());
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        dufs.deleteRecord("vol.DUFS" + separator + "b", (byte) 1);
+        assertEquals(-1, findLastClusterIndex(DedupUtility.SHARED_CLUSTER));
+        assertEquals(List.of(), dufs.checkVolume(false));
+    }
+
+    @Test
+    void checkVolume_fragments() throws IOException, DufsException {
+        options.setTailPackingEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", content);
+        write("b", Arrays.copyOf(content, 300));
+        int fragmentClusterIndex = findLastClusterIndex(TailPackingUtility.FRAGMENT_CLUSTER);
+        int freeBytes = readElementField(fragmentClusterIndex, 4);
+        writeElementField(fragmentClusterIndex, 4, 10);
+        assertEquals(List.of("Fragment cluster " + fragmentClusterIndex + " keeps 10 free bytes instead of " + freeBytes + "."), repair());
+        // the tail of "b" is forgotten by its file
+        InlineUtility.writeExtensionSlot(dufs.getVolume(), reservedSpace(), 3, new byte[TailPackingUtility.ADDRESS_SIZE]);
+        List<String> problems = repair();
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).endsWith("of record 3 is referenced by no record."));
+        assertEquals(freeBytes + 300 + TailPackingUtility.SLOT_SIZE, readElementField(fragmentClusterIndex, 4));
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void checkVolume_extensionSlot() throws IOException, DufsException {
+        options.setInlineEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", Arrays.copyOf(content, 10));
+        options.setInlineEnabled(false);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        InlineUtility.writeExtensionSlot(dufs.getVolume(), reservedSpace(), 3, new byte[0]);
+        assertEquals(List.of("Next record 4 is not free.", "Extension slot 4 belongs to no file."), repair());
+        assertFalse(VolumeHelper.recordExists(dufs.getVolume(), reservedSpace(), 4));
+    }
+
+    @Test
+    void checkVolume_nextRecord() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        VolumeIO.updateVolumeNextRecordIndex(dufs.getVolume(), 1);
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertEquals(List.of("Next record 1 is not free."), repair());
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        assertEquals(List.of("a", "b"), dufs.listDirectory("vol.DUFS"));
+    }
+}
@@ -0,0 +1,139 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.Record;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InlineUtilityTest extends VolumeFixture {
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        options.setInlineEnabled(true);
+        mount(64, 64000);
+        content = new byte[300];
+        new Random(11).nextBytes(content);
+    }
+
+    @Test
+    void createRecord_takesNoCluster() throws IOException, DufsException {
+        int freeClusters = reservedSpace().getFreeClusters();
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        assertEquals(freeClusters, reservedSpace().getFreeClusters());
+        assertTrue(record(1).isInline());
+        assertEquals(0xFFFFFFFF, record(1).getFirstClusterIndex());
+        assertTrue(InlineUtility.isExtensionSlot(dufs.getVolume(), reservedSpace(), 2));
+        assertTrue(record(3).isInline());
+        assertEquals(5, reservedSpace().getNextRecordIndex());
+    }
+
+    @Test
+    void createRecord_directoryIsNotInline() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        assertFalse(record(1).isInline());
+        assertFalse(InlineUtility.isExtensionSlot(dufs.getVolume(), reservedSpace(), 2));
+    }
+
+    @Test
+    void writeFile_inline() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        int freeClusters = reservedSpace().getFreeClusters();
+        byte[] small = Arrays.copyOf(content, InlineUtility.INLINE_CAPACITY);
+        write("a", small);
+        assertEquals(freeClusters, reservedSpace().getFreeClusters());
+        assertEquals(InlineUtility.INLINE_CAPACITY, record(1).getSize());
+        assertArrayEquals(small, read("a"));
+        // the marker of the extension slot is kept between the two parts of the content
+        assertTrue(InlineUtility.isExtensionSlot(dufs.getVolume(), reservedSpace(), 2));
+        write("a", Arrays.copyOf(content, 5));
+        assertArrayEquals(Arrays.copyOf(content, 5), read("a"));
+    }
+
+    @Test
+    void writeFile_movesToClusters() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        Record record = record(1);
+        assertFalse(record.isInline());
+        assertEquals(content.length, record.getSize());
+        assertFalse(InlineUtility.isExtensionSlot(dufs.getVolume(), reservedSpace(), 2));
+        assertFalse(VolumeHelper.recordExists(dufs.getVolume(), reservedSpace(), 2));
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void appendFile_inlineThenClusters() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        append("a", Arrays.copyOfRange(content, 0, 40));
+        append("a", Arrays.copyOfRange(content, 40, 80));
+        assertTrue(record(1).isInline());
+        assertArrayEquals(Arrays.copyOf(content, 80), read("a"));
+        append("a", Arrays.copyOfRange(content, 80, 300));
+        assertFalse(record(1).isInline());
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void appendFile_movesToCompressedFile() throws IOException, DufsException {
+        options.setCompressionEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        append("a", Arrays.copyOfRange(content, 0, 50));
+        append("a", Arrays.copyOfRange(content, 50, 300));
+        assertTrue(record(1).isCompressed());
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void readFile_range() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", Arrays.copyOf(content, 80));
+        byte[] buffer = new byte[30];
+        assertEquals(30, dufs.readFile("vol.DUFS" + separator + "a", 40, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 40, 70), buffer);
+        assertEquals(20, dufs.readFile("vol.DUFS" + separator + "a", 60, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 60, 80), Arrays.copyOf(buffer, 20));
+        assertEquals(-1, dufs.readFile("vol.DUFS" + separator + "a", 80, buffer));
+    }
+
+    @Test
+    void deleteRecord_releasesSlots() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", Arrays.copyOf(content, 10));
+        int freeClusters = reservedSpace().getFreeClusters();
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(freeClusters, reservedSpace().getFreeClusters());
+        assertFalse(VolumeHelper.recordExists(dufs.getVolume(), reservedSpace(), 1));
+        assertFalse(VolumeHelper.recordExists(dufs.getVolume(), reservedSpace(), 2));
+    }
+
+    @Test
+    void createRecord_recordListIsFull() throws IOException, DufsException {
+        // 1000 records: the root, 499 inline files with their extension slots
+        // and a file in the last record, which has no slot after it, so it takes a cluster
+        for (int i = 1; i <= 500; ++i) {
+            dufs.createRecord("vol.DUFS", "f" + i, (byte) 1);
+        }
+        assertEquals("Not enough space in the volume to create new File.",
+                assertThrows(DufsException.class,
+                        () -> dufs.createRecord("vol.DUFS", "last", (byte) 1)).getMessage());
+        assertFalse(record(999).isInline());
+    }
+
+    @Test
+    void defragmentation_skipsInlineFiles() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", Arrays.copyOf(content, 20));
+        write("b", content);
+        dufs.defragmentation();
+        assertArrayEquals(Arrays.copyOf(content, 20), read("a"));
+        assertArrayEquals(content, read("b"));
+    }
+}
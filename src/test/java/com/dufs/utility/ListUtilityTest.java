@@ -0,0 +1,117 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.model.DirEntry;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListUtilityTest extends VolumeFixture {
+    private static void createFile(String name, int size) throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", name, (byte) 1);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            bytes[i] = (byte) (i % 7 + 1);
+        }
+        write(name, bytes);
+    }
+
+    @Test
+    void list_emptyDirectory() throws IOException, DufsException {
+        mount(4096, 4096000);
+        assertEquals(0, dufs.list("vol.DUFS").count());
+    }
+
+    @Test
+    void list_entries() throws IOException, DufsException {
+        mount(4096, 4096000);
+        createFile("a", 5000);
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        createFile("b", 10);
+        List<DirEntry> entries = dufs.list("vol.DUFS").collect(Collectors.toList());
+        assertEquals(dufs.listDirectory("vol.DUFS"), entries.stream().map(DirEntry::getName).collect(Collectors.toList()));
+        assertTrue(entries.get(0).isFile());
+        assertEquals(5000, entries.get(0).getSize());
+        assertTrue(entries.get(1).isDirectory());
+        assertEquals(0, entries.get(1).getSize());
+        assertEquals(10, entries.get(2).getSize());
+        ReservedSpace reservedSpace = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume());
+        Record record = VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace,
+                VolumeUtility.findFileIndex(dufs.getVolume(), reservedSpace, "vol.DUFS" + separator + "a"));
+        assertEquals(record.getCreateTimestamp(), entries.get(0).getCreateTimestamp());
+        assertEquals(record.getLastEditTimestamp(), entries.get(0).getLastEditTimestamp());
+    }
+
+    @Test
+    void list_logicalSizes() throws IOException, DufsException {
+        options.setCompressionEnabled(true);
+        mount(4096, 4096000);
+        createFile("compressed", 20000);
+        options.setCompressionEnabled(false);
+        options.setDeduplicationEnabled(true);
+        createFile("deduplicated", 20000);
+        options.setDeduplicationEnabled(false);
+        options.setSparseEnabled(true);
+        dufs.createRecord("vol.DUFS", "sparse", (byte) 1);
+        dufs.writeFile("vol.DUFS" + separator + "sparse", 100 * 4096, new byte[] {1});
+        assertEquals(List.of(20000L, 20000L, 100L * 4096 + 1),
+                dufs.list("vol.DUFS").map(DirEntry::getSize).collect(Collectors.toList()));
+    }
+
+    @Test
+    void list_inlineFilesAndLongNamesV2() throws IOException, DufsException {
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        options.setInlineEnabled(true);
+        mount(4096, 4096000);
+        String longName = "name-which-is-kept-in-the-name-heap";
+        // extension slots of inline files lie between the records, which are read together
+        createFile("c", 20);
+        createFile(longName, 30);
+        createFile("a", 40);
+        dufs.deleteRecord("vol.DUFS" + separator + "c", (byte) 1);
+        createFile("b", 5000);
+        List<DirEntry> entries = dufs.list("vol.DUFS").collect(Collectors.toList());
+        assertEquals(dufs.listDirectory("vol.DUFS"), entries.stream().map(DirEntry::getName).collect(Collectors.toList()));
+        assertEquals(List.of(30L, 40L, 5000L),
+                entries.stream().map(DirEntry::getSize).sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    void list_isLazy() throws IOException, DufsException {
+        mount(4096, 4096000);
+        createFile("a", 10);
+        createFile("b", 10);
+        // the stream reads the volume when it is consumed, so the file deleted before that is not listed
+        List<String> names = dufs.list("vol.DUFS").map(DirEntry::getName).collect(Collectors.toList());
+        assertEquals(List.of("a", "b"), names);
+        Stream<DirEntry> entries = dufs.list("vol.DUFS");
+        dufs.deleteRecord("vol.DUFS" + separator + "b", (byte) 1);
+        assertEquals(List.of("a"), entries.map(DirEntry::getName).collect(Collectors.toList()));
+    }
+
+    @Test
+    void list_closedVolume() throws IOException, DufsException {
+        mount(4096, 4096000);
+        createFile("a", 10);
+        Stream<DirEntry> entries = dufs.list("vol.DUFS");
+        dufs.closeVolume();
+        dufs = null;
+        assertEquals("Volume has not found.",
+                assertThrows(UncheckedIOException.class, () -> entries.count()).getCause().getMessage());
+    }
+
+    @Test
+    void list_notDirectory() throws IOException, DufsException {
+        mount(4096, 4096000);
+        assertEquals("Given path does not exist.",
+                assertThrows(DufsException.class, () -> dufs.list("vol.DUFS" + separator + "dir")).getMessage());
+    }
+}
@@ -0,0 +1,126 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MigrationUtilityTest extends VolumeFixture {
+    private static void migrate() throws IOException, DufsException {
+        dufs.closeVolume();
+        Dufs.migrateVolume(file.getName());
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+    }
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        mount(4096, 4096000);
+        content = new byte[3 * 4096 + 700];
+        new Random(13).nextBytes(content);
+    }
+
+    @Test
+    void migrateVolume_treeIsPreserved() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + "dir", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("dir" + separator + "a", content);
+        write("b", Arrays.copyOf(content, 10));
+        int freeClusters = reservedSpace().getFreeClusters();
+        migrate();
+        assertEquals(ReservedSpace.FORMAT_V2, reservedSpace().getFormatVersion());
+        assertEquals(freeClusters, reservedSpace().getFreeClusters());
+        assertEquals("vol.DUFS", record(0).getNameString());
+        assertEquals(List.of("dir", "b"), dufs.listDirectory("vol.DUFS"));
+        assertEquals(List.of("a"), dufs.listDirectory("vol.DUFS" + separator + "dir"));
+        assertArrayEquals(content, read("dir" + separator + "a"));
+        assertArrayEquals(Arrays.copyOf(content, 10), read("b"));
+        assertFalse(new File(file.getName() + ".migrating").exists());
+    }
+
+    @Test
+    void migrateVolume_volumeIsWritable() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        migrate();
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("b", Arrays.copyOf(content, 5000));
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(List.of("b"), dufs.listDirectory("vol.DUFS"));
+        assertArrayEquals(Arrays.copyOf(content, 5000), read("b"));
+    }
+
+    @Test
+    void migrateVolume_datesArePreserved() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        Record before = record(1);
+        migrate();
+        Record after = record(1);
+        assertEquals(DateUtility.toEpochMilli(before.getCreateDate(), before.getCreateTime()), after.getCreateTimestamp());
+        assertEquals(DateUtility.toEpochMilli(before.getLastEditDate(), before.getLastEditTime()), after.getLastEditTimestamp());
+    }
+
+    @Test
+    void migrateVolume_inlineFiles() throws IOException, DufsException {
+        options.setInlineEnabled(true);
+        dufs.createRecord("vol.DUFS", "small", (byte) 1);
+        dufs.createRecord("vol.DUFS", "big", (byte) 1);
+        write("small", Arrays.copyOf(content, 50));
+        write("big", Arrays.copyOf(content, 80));
+        migrate();
+        assertTrue(record(1).isInline());
+        assertFalse(record(3).isInline());
+        assertFalse(InlineUtility.isExtensionSlot(dufs.getVolume(), reservedSpace(), 4));
+        assertArrayEquals(Arrays.copyOf(content, 50), read("small"));
+        assertArrayEquals(Arrays.copyOf(content, 80), read("big"));
+    }
+
+    @Test
+    void migrateVolume_packedFiles() throws IOException, DufsException {
+        options.setTailPackingEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", content);
+        write("b", Arrays.copyOf(content, 300));
+        migrate();
+        assertTrue(record(1).isPacked());
+        assertArrayEquals(content, read("a"));
+        assertArrayEquals(Arrays.copyOf(content, 300), read("b"));
+    }
+
+    @Test
+    void migrateVolume_bakedVolume() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        dufs.bake();
+        long bakedClusters = file.length() - VolumePointerUtility.calculateClustersAreaOffset(reservedSpace());
+        migrate();
+        assertEquals(bakedClusters, file.length() - VolumePointerUtility.calculateClustersAreaOffset(reservedSpace()));
+        dufs.unbake();
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void migrateVolume_formatV2IsRefused() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 4096000);
+        dufs.closeVolume();
+        assertEquals("Volume signature does not match.",
+                assertThrows(DufsException.class, () -> Dufs.migrateVolume(file.getName())).getMessage());
+        dufs.attachVolume(file.getName());
+    }
+}
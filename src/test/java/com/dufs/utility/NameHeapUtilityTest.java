@@ -0,0 +1,151 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NameHeapUtilityTest extends VolumeFixture {
+    // 38 chars, 66 bytes of UTF-8
+    private static final String longName = "\u0434\u043b\u0438\u043d\u043d\u043e\u0435 \u0438\u043c\u044f "
+            + "\u0444\u0430\u0439\u043b\u0430 \u0432 \u043a\u0443\u0447\u0435 \u0438\u043c\u0451\u043d "
+            + "\u0442\u043e\u043c\u0430.txt";
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        mount(4096, 4096000);
+    }
+
+    @Test
+    void mountVolume_formatV2() throws IOException {
+        ReservedSpace reservedSpace = reservedSpace();
+        assertEquals(ReservedSpace.FORMAT_V2, reservedSpace.getFormatVersion());
+        assertEquals(ReservedSpace.TAIL_SIGNATURE_V2, reservedSpace.getDufsTailSignature());
+        assertEquals(64, reservedSpace.getRecordSize());
+        assertEquals(0, VolumePointerUtility.calculateRecordListOffset(reservedSpace) % 64);
+        assertEquals("vol.DUFS", record(0).getNameString());
+        assertNotEquals(0, record(0).getCreateTimestamp());
+    }
+
+    @Test
+    void createRecord_shortNameIsInline() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        dufs.createRecord("vol.DUFS", "exactly22bytes_name.md", (byte) 1);
+        // the cluster of the file only
+        assertEquals(freeClusters - 1, freeClusters());
+        assertEquals("exactly22bytes_name.md", record(1).getNameString());
+    }
+
+    @Test
+    void createRecord_longNamesShareHeapCluster() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        for (int i = 0; i < 10; ++i) {
+            dufs.createRecord("vol.DUFS", i + longName, (byte) 1);
+        }
+        // clusters of the files and one fragment cluster for all the names
+        assertEquals(freeClusters - 11, freeClusters());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i + longName, record(i + 1).getNameString());
+        }
+        List<String> names = dufs.listDirectory("vol.DUFS");
+        assertEquals(10, names.size());
+        assertTrue(names.contains(9 + longName));
+    }
+
+    @Test
+    void createRecord_namesWithCommonPrefix() throws IOException, DufsException {
+        byte[] a = new byte[100];
+        byte[] b = new byte[200];
+        new Random(3).nextBytes(a);
+        new Random(4).nextBytes(b);
+        dufs.createRecord("vol.DUFS", longName + "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", longName + "b", (byte) 1);
+        write(longName + "a", a);
+        write(longName + "b", b);
+        assertArrayEquals(a, read(longName + "a"));
+        assertArrayEquals(b, read(longName + "b"));
+        assertEquals("File with such name already contains in this path.",
+                assertThrows(DufsException.class, () -> dufs.createRecord("vol.DUFS", longName + "a", (byte) 1)).getMessage());
+    }
+
+    @Test
+    void createRecord_nameLengthLimit() throws IOException, DufsException {
+        char[] name = new char[NameHeapUtility.MAX_NAME_LENGTH];
+        Arrays.fill(name, 'n');
+        dufs.createRecord("vol.DUFS", new String(name), (byte) 0);
+        assertEquals(new String(name), record(1).getNameString());
+        assertEquals("File name length has exceeded the limit.",
+                assertThrows(DufsException.class, () -> dufs.createRecord("vol.DUFS", new String(name) + "n", (byte) 1)).getMessage());
+    }
+
+    @Test
+    void nameEquals_hashRejectsOtherName() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", longName, (byte) 1);
+        byte[] record = VolumeIO.readRecordBytes(dufs.getVolume(), reservedSpace(), 1);
+        assertTrue(NameHeapUtility.nameEquals(dufs.getVolume(), reservedSpace(), record, NameHeapUtility.encode(longName)));
+        assertFalse(NameHeapUtility.nameEquals(dufs.getVolume(), reservedSpace(), record, NameHeapUtility.encode(longName + " ")));
+        assertNotEquals(NameHeapUtility.hash(NameHeapUtility.encode("a")), NameHeapUtility.hash(NameHeapUtility.encode("b")));
+    }
+
+    @Test
+    void renameRecord_releasesHeapName() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        int freeClusters = freeClusters();
+        dufs.renameRecord("vol.DUFS" + separator + "dir", longName, (byte) 0);
+        assertEquals(freeClusters - 1, freeClusters());
+        assertEquals(List.of(longName), dufs.listDirectory("vol.DUFS"));
+        dufs.renameRecord("vol.DUFS" + separator + longName, "dir", (byte) 0);
+        assertEquals(freeClusters, freeClusters());
+        assertEquals("dir", record(1).getNameString());
+    }
+
+    @Test
+    void deleteRecord_releasesHeapName() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        dufs.createRecord("vol.DUFS", longName, (byte) 0);
+        dufs.createRecord("vol.DUFS" + separator + longName, longName, (byte) 1);
+        dufs.deleteRecord("vol.DUFS" + separator + longName + separator + longName, (byte) 1);
+        dufs.deleteRecord("vol.DUFS" + separator + longName, (byte) 0);
+        assertEquals(freeClusters, freeClusters());
+        assertFalse(TailPackingUtility.isFragmentCluster(dufs.getVolume(), 1));
+    }
+
+    @Test
+    void attachVolume() throws IOException, DufsException {
+        byte[] content = new byte[5000];
+        new Random(7).nextBytes(content);
+        dufs.createRecord("vol.DUFS", longName, (byte) 1);
+        write(longName, content);
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertEquals(List.of(longName), dufs.listDirectory("vol.DUFS"));
+        assertArrayEquals(content, read(longName));
+    }
+
+    @Test
+    void inlineFile_formatV2() throws IOException, DufsException {
+        options.setInlineEnabled(true);
+        byte[] content = new byte[100];
+        new Random(9).nextBytes(content);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", Arrays.copyOf(content, InlineUtility.inlineCapacity(reservedSpace())));
+        assertTrue(record(1).isInline());
+        assertTrue(InlineUtility.isExtensionSlot(dufs.getVolume(), reservedSpace(), 2));
+        assertEquals(List.of("a"), dufs.listDirectory("vol.DUFS"));
+        assertArrayEquals(Arrays.copyOf(content, 56), read("a"));
+        write("a", content);
+        assertFalse(record(1).isInline());
+        assertArrayEquals(content, read("a"));
+    }
+}
@@ -0,0 +1,227 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResizeUtilityTest extends VolumeFixture {
+    private static byte[] big;
+    private static byte[] small;
+
+    private static void mount(long nettoVolumeSize) throws IOException, DufsException {
+        mount(4096, nettoVolumeSize);
+        dufs.createRecord("vol.DUFS", "dir", (byte) 0);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS" + separator + "dir", "b", (byte) 1);
+        write("a", big);
+        write("dir" + separator + "b", small);
+    }
+
+    private static void assertContent(String... names) throws IOException, DufsException {
+        assertArrayEquals(big, read("a"));
+        assertArrayEquals(small, read("dir" + separator + "b"));
+        List<String> rootNames = new ArrayList<>(List.of("dir", "a"));
+        rootNames.addAll(List.of(names));
+        assertEquals(rootNames, dufs.listDirectory("vol.DUFS"));
+        assertEquals(List.of("b"), dufs.listDirectory("vol.DUFS" + separator + "dir"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @BeforeEach
+    void init() {
+        Random random = new Random(21);
+        big = new byte[300 * 4096 + 10];
+        small = new byte[5000];
+        random.nextBytes(big);
+        random.nextBytes(small);
+    }
+
+    @Test
+    void calculateGrownClusters() {
+        ReservedSpace reservedSpace = new ReservedSpace("vol".toCharArray(), 4096, 4096000);
+        // 105 bytes of metadata per cluster, so the clusters area moves by 105 clusters per 4096 of them
+        assertEquals(1000 + 4096, ResizeUtility.calculateGrownClusters(reservedSpace, 4096 * 2000));
+        ReservedSpace reservedSpaceV2 = new ReservedSpace("vol".toCharArray(), 4096, 4096000, ReservedSpace.FORMAT_V2);
+        // the record list of the format 2 is aligned, so its padding makes up for the growth as well
+        assertEquals(1054, ResizeUtility.calculateGrownClusters(reservedSpaceV2, 4096 * 1001));
+    }
+
+    @Test
+    void growVolume_keepsContent() throws IOException, DufsException {
+        mount(4096000);
+        int freeClusters = reservedSpace().getFreeClusters();
+        dufs.growVolume(4096 * 2000);
+        ReservedSpace reservedSpace = reservedSpace();
+        assertEquals(5096, reservedSpace.getReservedClusters());
+        assertEquals(freeClusters + 4096, reservedSpace.getFreeClusters());
+        assertEquals(VolumeHelper.calculateVolumeSize(4096, 5096L * 4096), file.length());
+        assertEquals(file.length(), reservedSpace.getVolumeSize());
+        assertContent();
+        // clusters, which the volume has not had, are taken
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        byte[] bigger = new byte[2000 * 4096];
+        new Random(5).nextBytes(bigger);
+        write("c", bigger);
+        assertArrayEquals(bigger, read("c"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void growVolume_doesNotMoveContent() throws IOException, DufsException {
+        mount(4096000);
+        ReservedSpace reservedSpace = reservedSpace();
+        ClusterChain chain = new ClusterChain(dufs.getVolume(), reservedSpace, record("a").getFirstClusterIndex());
+        long position = VolumePointerUtility.calculateClusterPosition(reservedSpace, chain.getClusterIndex(200));
+        dufs.growVolume(4096 * 2000);
+        ReservedSpace grown = reservedSpace();
+        chain = new ClusterChain(dufs.getVolume(), grown, record("a").getFirstClusterIndex());
+        assertEquals(position, VolumePointerUtility.calculateClusterPosition(grown, chain.getClusterIndex(200)));
+        try (RandomAccessFile raw = new RandomAccessFile(file, "r")) {
+            byte[] cluster = new byte[4096];
+            raw.seek(position);
+            raw.readFully(cluster);
+            assertArrayEquals(Arrays.copyOfRange(big, 200 * 4096, 201 * 4096), cluster);
+        }
+    }
+
+    @Test
+    void growVolume_metadataOverWholeVolume() throws IOException, DufsException {
+        // the clusters area moves by more clusters than the volume has, so every cluster is copied
+        big = new byte[20 * 4096];
+        new Random(3).nextBytes(big);
+        mount(40 * 4096);
+        dufs.growVolume(41 * 4096);
+        assertEquals(40 + 4096, reservedSpace().getReservedClusters());
+        assertContent();
+    }
+
+    @Test
+    void growVolume_mappedAndPackedFilesV2() throws IOException, DufsException {
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        options.setTailPackingEnabled(true);
+        mount(4096000);
+        String longName = "name-which-is-kept-in-the-name-heap";
+        dufs.createRecord("vol.DUFS", longName, (byte) 1);
+        write(longName, small);
+        options.setTailPackingEnabled(false);
+        options.setDeduplicationEnabled(true);
+        dufs.createRecord("vol.DUFS", "dedup", (byte) 1);
+        write("dedup", big);
+        options.setDeduplicationEnabled(false);
+        options.setSparseEnabled(true);
+        dufs.createRecord("vol.DUFS", "sparse", (byte) 1);
+        dufs.writeFile("vol.DUFS" + separator + "sparse", 100 * 4096, small);
+        int clusters = ResizeUtility.calculateGrownClusters(reservedSpace(), 4096 * 3000);
+        dufs.growVolume(4096 * 3000);
+        assertEquals(clusters, reservedSpace().getReservedClusters());
+        assertContent(longName, "dedup", "sparse");
+        assertArrayEquals(small, read(longName));
+        assertArrayEquals(big, read("dedup"));
+        byte[] sparse = new byte[100 * 4096 + small.length];
+        System.arraycopy(small, 0, sparse, 100 * 4096, small.length);
+        assertArrayEquals(sparse, read("sparse"));
+        assertTrue(record(longName).isPacked());
+        assertTrue(record("dedup").isDeduplicated());
+    }
+
+    @Test
+    void growVolume_journalAndAttach() throws IOException, DufsException {
+        options.setJournalEnabled(true);
+        options.setClusterCacheSize(16 * 4096);
+        options.setClusterIndexCacheEnabled(true);
+        mount(4096000);
+        dufs.growVolume(4096 * 2000);
+        assertContent();
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertEquals(5096, reservedSpace().getReservedClusters());
+        assertContent();
+    }
+
+    @Test
+    void growVolume_smallerSize() throws IOException, DufsException {
+        mount(4096000);
+        assertEquals("New volume size is not bigger than the current one.",
+                assertThrows(DufsException.class, () -> dufs.growVolume(4096000)).getMessage());
+        assertContent();
+    }
+
+    @Test
+    void relocateTail_movesOnlyTail() throws IOException, DufsException {
+        mount(4096000);
+        byte[] tail = new byte[20 * 4096 + 1];
+        new Random(8).nextBytes(tail);
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("c", new byte[50 * 4096 + 7]);
+        dufs.createRecord("vol.DUFS", "d", (byte) 1);
+        write("d", tail);
+        dufs.deleteRecord("vol.DUFS" + separator + "c", (byte) 1);
+        int firstClusterIndex = record("a").getFirstClusterIndex();
+        int lastClusterIndex = new ClusterChain(dufs.getVolume(), reservedSpace(), record("d").getFirstClusterIndex())
+                .getClusterIndex(20);
+        ReservedSpace reservedSpace = reservedSpace();
+        int usedClusters = reservedSpace.getReservedClusters() - reservedSpace.getFreeClusters();
+        assertTrue(lastClusterIndex >= usedClusters);
+        assertEquals(usedClusters, ResizeUtility.relocateTail(dufs.getVolume(), reservedSpace));
+        assertEquals(firstClusterIndex, record("a").getFirstClusterIndex());
+        ClusterChain chain = new ClusterChain(dufs.getVolume(), reservedSpace(), record("d").getFirstClusterIndex());
+        for (int i = 0; i < chain.getLength(); ++i) {
+            assertTrue(chain.getClusterIndex(i) < usedClusters);
+        }
+        assertArrayEquals(tail, read("d"));
+        assertContent("d");
+    }
+
+    @Test
+    void bake_relocatesTail() throws IOException, DufsException {
+        options.setJournalEnabled(true);
+        options.setClusterIndexCacheEnabled(true);
+        mount(4096000);
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("c", new byte[50 * 4096 + 7]);
+        dufs.createRecord("vol.DUFS", "d", (byte) 1);
+        write("d", small);
+        dufs.deleteRecord("vol.DUFS" + separator + "c", (byte) 1);
+        ReservedSpace reservedSpace = reservedSpace();
+        int usedClusters = reservedSpace.getReservedClusters() - reservedSpace.getFreeClusters();
+        dufs.bake();
+        assertEquals(VolumePointerUtility.calculateClusterPosition(reservedSpace, usedClusters), file.length());
+        assertArrayEquals(small, read("d"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+        dufs.unbake();
+        dufs.createRecord("vol.DUFS", "e", (byte) 1);
+        write("e", big);
+        assertArrayEquals(big, read("e"));
+        assertArrayEquals(small, read("d"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void relocateTail_keepsSharedClusters() throws IOException, DufsException {
+        mount(4096000);
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("c", new byte[50 * 4096 + 7]);
+        options.setDeduplicationEnabled(true);
+        dufs.createRecord("vol.DUFS", "d", (byte) 1);
+        write("d", small);
+        dufs.deleteRecord("vol.DUFS" + separator + "c", (byte) 1);
+        ReservedSpace reservedSpace = reservedSpace();
+        int usedClusters = ResizeUtility.relocateTail(dufs.getVolume(), reservedSpace);
+        // shared clusters are not moved, so the used part ends with one of them
+        assertTrue(DedupUtility.isSharedCluster(dufs.getVolume(), usedClusters - 1));
+        assertArrayEquals(small, read("d"));
+        assertContent("d");
+    }
+}
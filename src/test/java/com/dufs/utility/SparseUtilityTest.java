@@ -0,0 +1,149 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SparseUtilityTest extends VolumeFixture {
+    private static int allocatedClusters(String name) throws IOException, DufsException {
+        return SparseUtility.readAllocatedClusters(dufs.getVolume(), reservedSpace(), record(name));
+    }
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        options.setSparseEnabled(true);
+        mount(4096, 4096000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        content = new byte[4096 + 100];
+        new Random(11).nextBytes(content);
+    }
+
+    @Test
+    void createRecord_sparse() throws IOException, DufsException {
+        assertTrue(record("a").isSparse());
+        assertArrayEquals(new byte[0], read("a"));
+    }
+
+    @Test
+    void write_pastEndLeavesHole() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        long position = 1000L * 4096 + 5;
+        dufs.writeFile("vol.DUFS" + separator + "a", position, content);
+        // only the two clusters of the content are taken, the map fits into the first cluster of the file
+        assertEquals(freeClusters - 2, freeClusters());
+        assertEquals(2, allocatedClusters("a"));
+        assertEquals(position + content.length, SparseUtility.readLogicalSize(dufs.getVolume(),
+                VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()), record("a")));
+        byte[] buffer = new byte[200];
+        assertEquals(200, dufs.readFile("vol.DUFS" + separator + "a", position - 100, buffer));
+        assertArrayEquals(new byte[100], Arrays.copyOf(buffer, 100));
+        assertArrayEquals(Arrays.copyOf(content, 100), Arrays.copyOfRange(buffer, 100, 200));
+        assertEquals(-1, dufs.readFile("vol.DUFS" + separator + "a", position + content.length, buffer));
+    }
+
+    @Test
+    void writeFile_zeroClustersAreHoles() throws IOException, DufsException {
+        byte[] image = new byte[6 * 4096];
+        System.arraycopy(content, 0, image, 4096, 100);
+        System.arraycopy(content, 0, image, 5 * 4096 + 10, 100);
+        int freeClusters = freeClusters();
+        write("a", image);
+        assertEquals(2, allocatedClusters("a"));
+        assertEquals(freeClusters - 2, freeClusters());
+        assertArrayEquals(image, read("a"));
+    }
+
+    @Test
+    void write_zerosMakeHole() throws IOException, DufsException {
+        write("a", content);
+        assertEquals(2, allocatedClusters("a"));
+        dufs.writeFile("vol.DUFS" + separator + "a", 0, new byte[4096]);
+        assertEquals(1, allocatedClusters("a"));
+        byte[] expected = new byte[content.length];
+        System.arraycopy(content, 4096, expected, 4096, 100);
+        assertArrayEquals(expected, read("a"));
+    }
+
+    @Test
+    void write_inPlace() throws IOException, DufsException {
+        write("a", content);
+        int freeClusters = freeClusters();
+        dufs.writeFile("vol.DUFS" + separator + "a", 10, new byte[] {1, 2, 3});
+        assertEquals(freeClusters, freeClusters());
+        content[10] = 1;
+        content[11] = 2;
+        content[12] = 3;
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void appendFile_afterHole() throws IOException, DufsException {
+        dufs.writeFile("vol.DUFS" + separator + "a", 3 * 4096, new byte[] {7});
+        Files.write(host.toPath(), content);
+        dufs.appendFile("vol.DUFS" + separator + "a", host);
+        byte[] expected = new byte[3 * 4096 + 1 + content.length];
+        expected[3 * 4096] = 7;
+        System.arraycopy(content, 0, expected, 3 * 4096 + 1, content.length);
+        assertArrayEquals(expected, read("a"));
+        assertEquals(2, allocatedClusters("a"));
+    }
+
+    @Test
+    void deleteRecord_freesClusters() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        dufs.writeFile("vol.DUFS" + separator + "a", 50 * 4096, content);
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(freeClusters + 1, freeClusters());
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void checkVolume_sparseFile() throws IOException, DufsException {
+        dufs.writeFile("vol.DUFS" + separator + "a", 7 * 4096, content);
+        dufs.writeFile("vol.DUFS" + separator + "a", 1, content);
+        assertEquals(4, allocatedClusters("a"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void write_sharedClusterIsCopied() throws IOException, DufsException {
+        write("a", content);
+        options.setSparseEnabled(false);
+        options.setDeduplicationEnabled(true);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        // clusters of the sparse file are shared clusters, so the deduplicated file references them
+        int freeClusters = freeClusters();
+        write("b", content);
+        assertEquals(freeClusters, freeClusters());
+        dufs.writeFile("vol.DUFS" + separator + "a", 0, new byte[] {1});
+        assertEquals(freeClusters - 1, freeClusters());
+        byte[] changed = content.clone();
+        changed[0] = 1;
+        assertArrayEquals(changed, read("a"));
+        assertArrayEquals(content, read("b"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+    }
+
+    @Test
+    void exportTree_sparseHostFile() throws IOException, DufsException {
+        dufs.writeFile("vol.DUFS" + separator + "a", 100 * 4096, content);
+        File export = Files.createTempDirectory("sparse").toFile();
+        try {
+            dufs.exportTree("vol.DUFS", export.toPath());
+            byte[] expected = new byte[100 * 4096 + content.length];
+            System.arraycopy(content, 0, expected, 100 * 4096, content.length);
+            assertArrayEquals(expected, Files.readAllBytes(new File(export, "a").toPath()));
+        } finally {
+            new File(export, "a").delete();
+            export.delete();
+        }
+    }
+}
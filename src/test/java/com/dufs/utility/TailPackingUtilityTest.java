@@ -0,0 +1,172 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TailPackingUtilityTest extends VolumeFixture {
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        options.setTailPackingEnabled(true);
+        mount(4096, 4096000);
+        content = new byte[3 * 4096 + 700];
+        new Random(5).nextBytes(content);
+    }
+
+    @Test
+    void writeFile_smallFilesShareCluster() throws IOException, DufsException {
+        int freeClusters = freeClusters();
+        for (int i = 0; i < 10; ++i) {
+            dufs.createRecord("vol.DUFS", "f" + i, (byte) 1);
+            write("f" + i, Arrays.copyOfRange(content, i * 100, i * 100 + 100));
+        }
+        assertEquals(freeClusters - 1, freeClusters());
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(record(2 * i + 1).isPacked());
+            assertEquals(0xFFFFFFFF, record(2 * i + 1).getFirstClusterIndex());
+            assertArrayEquals(Arrays.copyOfRange(content, i * 100, i * 100 + 100), read("f" + i));
+        }
+    }
+
+    @Test
+    void writeFile_tailIsPacked() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        int freeClusters = freeClusters();
+        write("a", content);
+        // 3 whole clusters and the fragment cluster
+        assertEquals(freeClusters - 4, freeClusters());
+        assertEquals(content.length, record(1).getSize());
+        assertArrayEquals(content, read("a"));
+        write("a", Arrays.copyOf(content, 10));
+        assertEquals(freeClusters - 1, freeClusters());
+        assertEquals(0xFFFFFFFF, record(1).getFirstClusterIndex());
+        assertArrayEquals(Arrays.copyOf(content, 10), read("a"));
+    }
+
+    @Test
+    void writeFile_longTailStaysInChain() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        int freeClusters = freeClusters();
+        byte[] longTail = Arrays.copyOf(content, 4096 + 3000);
+        write("a", longTail);
+        assertEquals(freeClusters - 2, freeClusters());
+        assertArrayEquals(longTail, read("a"));
+    }
+
+    @Test
+    void appendFile() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        append("a", Arrays.copyOfRange(content, 0, 100));
+        append("a", Arrays.copyOfRange(content, 100, 5000));
+        append("a", Arrays.copyOfRange(content, 5000, 8192));
+        append("a", Arrays.copyOfRange(content, 8192, content.length));
+        assertArrayEquals(content, read("a"));
+        int freeClusters = freeClusters();
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(freeClusters + 4, freeClusters());
+    }
+
+    @Test
+    void readFile_range() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        byte[] buffer = new byte[1000];
+        assertEquals(1000, dufs.readFile("vol.DUFS" + separator + "a", 3 * 4096 - 500, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, 3 * 4096 - 500, 3 * 4096 + 500), buffer);
+        assertEquals(200, dufs.readFile("vol.DUFS" + separator + "a", content.length - 200, buffer));
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 200, content.length), Arrays.copyOf(buffer, 200));
+        assertEquals(-1, dufs.readFile("vol.DUFS" + separator + "a", content.length, buffer));
+    }
+
+    @Test
+    void deleteRecord_freesFragmentCluster() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        int freeClusters = freeClusters();
+        write("a", Arrays.copyOf(content, 100));
+        write("b", Arrays.copyOf(content, 200));
+        assertEquals(freeClusters - 1, freeClusters());
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        assertEquals(freeClusters - 1, freeClusters());
+        assertArrayEquals(Arrays.copyOf(content, 200), read("b"));
+        dufs.deleteRecord("vol.DUFS" + separator + "b", (byte) 1);
+        assertEquals(freeClusters, freeClusters());
+        assertFalse(TailPackingUtility.isFragmentCluster(dufs.getVolume(), 1));
+    }
+
+    @Test
+    void writeFile_freedFragmentIsReused() throws IOException, DufsException {
+        for (int i = 0; i < 3; ++i) {
+            dufs.createRecord("vol.DUFS", "f" + i, (byte) 1);
+            write("f" + i, Arrays.copyOf(content, 1300));
+        }
+        int freeClusters = freeClusters();
+        // the fragment cluster is full, a new tail takes the place of the released one
+        write("f1", Arrays.copyOf(content, 1200));
+        assertEquals(freeClusters, freeClusters());
+        for (int i = 0; i < 3; ++i) {
+            assertArrayEquals(Arrays.copyOf(content, (i == 1) ? 1200 : 1300), read("f" + i));
+        }
+    }
+
+    @Test
+    void attachVolume_indexIsRebuilt() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", Arrays.copyOf(content, 100));
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        int freeClusters = freeClusters();
+        write("b", Arrays.copyOf(content, 100));
+        assertEquals(freeClusters, freeClusters());
+        assertArrayEquals(Arrays.copyOf(content, 100), read("a"));
+        assertArrayEquals(Arrays.copyOf(content, 100), read("b"));
+    }
+
+    @Test
+    void defragmentation_keepsFragmentClusters() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", Arrays.copyOf(content, 100));
+        write("b", content);
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("c", Arrays.copyOf(content, 300));
+        dufs.defragmentation();
+        assertArrayEquals(content, read("b"));
+        assertArrayEquals(Arrays.copyOf(content, 300), read("c"));
+    }
+
+    @Test
+    void exportTree() throws IOException, DufsException {
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write("a", content);
+        Path exported = Files.createTempDirectory("export");
+        dufs.exportTree("vol.DUFS", exported);
+        assertArrayEquals(content, Files.readAllBytes(exported.resolve("a")));
+        Files.delete(exported.resolve("a"));
+        Files.delete(exported);
+    }
+
+    @Test
+    void inlineFileMovesToPackedFile() throws IOException, DufsException {
+        options.setInlineEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        append("a", Arrays.copyOf(content, 50));
+        assertTrue(record(1).isInline());
+        append("a", Arrays.copyOfRange(content, 50, 500));
+        assertTrue(record(1).isPacked());
+        assertFalse(record(1).isInline());
+        assertArrayEquals(Arrays.copyOf(content, 500), read("a"));
+    }
+}
@@ -0,0 +1,91 @@
+package com.dufs.utility;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import com.dufs.model.Record;
+import com.dufs.model.ReservedSpace;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+
+/*
+ * volume "vol.DUFS" and the host file of the tests of utilities: the tests set up `options` and mount the volume,
+ * the fixture closes and deletes it. names of records are given relative to the root of the volume
+ */
+abstract class VolumeFixture {
+    static final String separator = FileSystems.getDefault().getSeparator();
+    static DufsOptions options;
+    static Dufs dufs;
+    static File file;
+    static File host;
+    static byte[] content;
+
+    static String path(String... names) {
+        return "vol.DUFS" + separator + String.join(separator, names);
+    }
+
+    static void mount(int clusterSize, long nettoVolumeSize) throws IOException, DufsException {
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), clusterSize, nettoVolumeSize);
+    }
+
+    static ReservedSpace reservedSpace() throws IOException {
+        return VolumeIO.readReservedSpaceFromVolume(dufs.getVolume());
+    }
+
+    static int freeClusters() throws IOException {
+        return reservedSpace().getFreeClusters();
+    }
+
+    static Record record(int recordIndex) throws IOException {
+        return VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace(), recordIndex);
+    }
+
+    static Record record(String name) throws IOException, DufsException {
+        ReservedSpace reservedSpace = reservedSpace();
+        return VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace,
+                VolumeUtility.findFileIndex(dufs.getVolume(), reservedSpace, path(name)));
+    }
+
+    static byte[] read(String name) throws IOException, DufsException {
+        File read = new File("read.tmp");
+        dufs.readFile(path(name), read);
+        byte[] readContent = Files.readAllBytes(read.toPath());
+        read.delete();
+        return readContent;
+    }
+
+    static void write(String name, byte[] bytes) throws IOException, DufsException {
+        Files.write(host.toPath(), bytes);
+        dufs.writeFile(path(name), host);
+    }
+
+    static void append(String name, byte[] bytes) throws IOException, DufsException {
+        Files.write(host.toPath(), bytes);
+        dufs.appendFile(path(name), host);
+    }
+
+    @BeforeEach
+    void createFixture() {
+        file = new File("vol.DUFS");
+        host = new File("host.tmp");
+        options = new DufsOptions();
+        dufs = null;
+        content = null;
+    }
+
+    @AfterEach
+    void deleteFixture() throws IOException, DufsException {
+        if (dufs != null) {
+            dufs.closeVolume();
+        }
+        file.delete();
+        host.delete();
+        new File("vol.DUFS.journal").delete();
+    }
+}
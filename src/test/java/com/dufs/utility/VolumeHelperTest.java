@@ -2,7 +2,9 @@ package com.dufs.utility;
 
 import com.dufs.exceptions.DufsException;
 import com.dufs.filesystem.Dufs;
+import com.dufs.model.Record;
 import com.dufs.model.ReservedSpace;
+import com.dufs.offsets.ClusterIndexListOffsets;
 import org.junit.jupiter.api.*;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -56,6 +58,30 @@ class VolumeHelperTest {
         assertEquals(1000, clustersAmount);
     }
 
+    @Test
+    void clustersAmount_largeVolume() {
+        assertEquals((1 << 30) + 1, VolumeHelper.clustersAmount(4096, (1L << 42) + 1));
+        assertEquals(ClusterIndexListOffsets.MAX_CLUSTERS,
+                VolumeHelper.clustersAmount(4096, (long) ClusterIndexListOffsets.MAX_CLUSTERS * 4096));
+        assertThrows(ArithmeticException.class,
+                () -> VolumeHelper.clustersAmount(4096, (long) ClusterIndexListOffsets.MAX_CLUSTERS * 4096 + 1));
+    }
+
+    @Test
+    void isVolumeSizeOk() {
+        assertTrue(VolumeHelper.isVolumeSizeOk(4096, 5L << 40));
+        assertTrue(VolumeHelper.isVolumeSizeOk(4096, (long) ClusterIndexListOffsets.MAX_CLUSTERS * 4096));
+        assertFalse(VolumeHelper.isVolumeSizeOk(4096, (long) ClusterIndexListOffsets.MAX_CLUSTERS * 4096 + 1));
+        assertTrue(VolumeHelper.isVolumeSizeOk(65536, 100L << 40));
+    }
+
+    @Test
+    void calculateVolumeSize_largeVolume() {
+        long nettoVolumeSize = 5L << 40;
+        long clusters = nettoVolumeSize / 4096;
+        assertEquals(60 + 12 * clusters + 93 * clusters + nettoVolumeSize, VolumeHelper.calculateVolumeSize(4096, nettoVolumeSize));
+    }
+
     @Test
     void enoughSpace_true() {
         long okSize = 4096000 - reservedSpace.getClusterSize();
@@ -88,6 +114,18 @@ class VolumeHelperTest {
         assertFalse(VolumeHelper.recordExists(dufs.getVolume(), reservedSpace,Mockito.anyInt() + 1)); // not 0th
     }
 
+    @Test
+    void recordExists_byRecord() throws IOException {
+        Record freeChain = new Record("file".toCharArray(), 5, 0, 1, (byte) 1);
+        assertFalse(VolumeHelper.recordExists(dufs.getVolume(), freeChain, (byte) 1));
+        assertTrue(VolumeHelper.recordExists(dufs.getVolume(), freeChain, (byte) 0));
+        // inline and packed files have no chain
+        Record noChain = new Record("file".toCharArray(), ClusterIndexListOffsets.NO_CLUSTER, 0, 1, (byte) 1);
+        assertTrue(VolumeHelper.recordExists(dufs.getVolume(), noChain, (byte) 1));
+        Record root = VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace, 0);
+        assertTrue(VolumeHelper.recordExists(dufs.getVolume(), root, (byte) 0));
+    }
+
     @Test
     void isNameUniqueInDirectory_true() throws IOException, DufsException {
         assertTrue(VolumeHelper.isNameUniqueInDirectory(dufs.getVolume(), reservedSpace, 0,
@@ -125,7 +125,7 @@ class VolumeIOTest {
     }
 
     @Test
-    void writeRecordToVolume() throws IOException {
+    void writeRecordToVolume() throws IOException, DufsException {
         Record record = new Record("new record".toCharArray(), 1, 0, 0, (byte) 1);
         VolumeIO.writeRecordToVolume(dufs.getVolume(), reservedSpace, 1, record);
         Record writtenRecord = VolumeIO.readRecordFromVolume(dufs.getVolume(), reservedSpace, 1);
@@ -55,4 +55,13 @@ class VolumePointerUtilityTest {
         long clusterAreaOffset = VolumePointerUtility.calculateClustersAreaOffset(reservedSpace);
         assertEquals(105060, clusterAreaOffset);
     }
+
+    @Test
+    void calculateOffsets_formatV2() {
+        ReservedSpace reservedSpaceV2 = new ReservedSpace(Arrays.copyOf("vol.DUFS".toCharArray(), 8), 4096, 4096000,
+                ReservedSpace.FORMAT_V2);
+        assertEquals(12096, VolumePointerUtility.calculateRecordListOffset(reservedSpaceV2));
+        assertEquals(12096 + 64 * 777, VolumePointerUtility.calculateRecordPosition(reservedSpaceV2, 777));
+        assertEquals(76096, VolumePointerUtility.calculateClustersAreaOffset(reservedSpaceV2));
+    }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.dufs.utility;
 
 import com.dufs.exceptions.DufsException;
 import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
 import com.dufs.model.Record;
 import com.dufs.model.ReservedSpace;
 import com.dufs.offsets.ClusterIndexListOffsets;
@@ -12,7 +13,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -296,7 +300,7 @@ class VolumeUtilityTest {
     }
 
     @Test
-    void findNextFreeRecordIndex() throws IOException {
+    void findNextFreeRecordIndex() throws IOException, DufsException {
         RandomAccessFile volume = dufs.getVolume();
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, 1));
         // overwrite 3 records
@@ -314,7 +318,7 @@ class VolumeUtilityTest {
     }
 
     @Test
-    void findNextFreeRecordIndex_rightBounds() throws IOException {
+    void findNextFreeRecordIndex_rightBounds() throws IOException, DufsException {
         RandomAccessFile volume = dufs.getVolume();
         volume.seek(VolumePointerUtility.calculateRecordPosition(reservedSpace, 1));
         VolumeIO.updateVolumeNextRecordIndex(volume, 997);
@@ -416,6 +420,23 @@ class VolumeUtilityTest {
         assertEquals(1, recordIndex);
     }
 
+    @Test
+    void findLastClusterIndexInChain_clusterIndexCache() throws IOException, DufsException {
+        dufs.closeVolume();
+        DufsOptions options = new DufsOptions();
+        options.setClusterIndexCacheEnabled(true);
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        RandomAccessFile volume = dufs.getVolume();
+        VolumeUtility.createClusterIndexChain(volume, reservedSpace, 5, 1);
+        reservedSpace.setNextClusterIndex(6);
+        VolumeUtility.updateClusterIndexChain(volume, reservedSpace, 5, 0xFFFFFFFF);
+        assertEquals(6, VolumeUtility.findLastClusterIndexInChain(volume, 5));
+        assertEquals(5, VolumeUtility.findFirstClusterIndexInChain(volume, 6));
+        assertEquals(1, VolumeUtility.findRecordIndexOfCluster(volume, 6));
+        assertEquals(7, VolumeUtility.findNextFreeClusterIndex(volume, reservedSpace));
+    }
+
     @Test
     void findLastClusterIndexInChain_startFromMiddle() throws IOException, DufsException {
         RandomAccessFile volume = dufs.getVolume();
@@ -432,6 +453,33 @@ class VolumeUtilityTest {
         assertEquals(115, nextClusterIndex);
     }
 
+    @Test
+    void readDirectoryRecordIndexes() throws IOException, DufsException {
+        RandomAccessFile volume = dufs.getVolume();
+        dufs.createRecord("vol.DUFS", "file1", (byte) 1);
+        dufs.createRecord("vol.DUFS", "folder", (byte) 0);
+        dufs.createRecord("vol.DUFS", "file2", (byte) 1);
+        assertArrayEquals(new int[] { 1, 2, 3 }, VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, 0));
+        assertArrayEquals(new int[0], VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, 2));
+    }
+
+    @Test
+    void readDirectoryRecordIndexes_moreThanOneClusterInChain() throws IOException, DufsException {
+        RandomAccessFile volume = dufs.getVolume();
+        // crutch to create 1200 records in root directory, which "allocates" 1 new cluster
+        volume.seek(VolumePointerUtility.calculateClusterPosition(reservedSpace, 0));
+        volume.writeInt(1200);
+        for (int i = 1; i < 1201; ++i) {
+            volume.writeInt(i);
+        }
+        volume.seek(VolumePointerUtility.calculateClusterIndexPosition(0));
+        volume.writeInt(1);
+        volume.skipBytes(ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE - 4);
+        volume.writeInt(0xFFFFFFFF);
+        volume.writeInt(0);
+        assertArrayEquals(IntStream.range(1, 1201).toArray(), VolumeUtility.readDirectoryRecordIndexes(volume, reservedSpace, 0));
+    }
+
     @Test
     void addRecordIndexInDirectoryCluster_emptyParentCluster() {
         assertEquals("Parent directory cluster is empty.",
@@ -745,4 +793,54 @@ class VolumeUtilityTest {
         volume.seek(VolumePointerUtility.calculateClusterIndexPosition(9) + 4);
         assertEquals(5, volume.readInt());
     }
-}
\ No newline at end of file
+
+    @Test
+    void deleteTree_mappedAndPackedFilesV2() throws IOException, DufsException {
+        String separator = FileSystems.getDefault().getSeparator();
+        dufs.closeVolume();
+        file.delete();
+        DufsOptions options = new DufsOptions();
+        options.setRecordFormat(ReservedSpace.FORMAT_V2);
+        options.setInlineEnabled(true);
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 4096000);
+        int freeClusters = VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()).getFreeClusters();
+        File host = new File("host.tmp");
+        File tail = new File("tail.tmp");
+        Files.write(tail.toPath(), new byte[700]);
+        byte[] content = new byte[20 * 4096 + 7];
+        new Random(4).nextBytes(content);
+        Files.write(host.toPath(), content);
+        String tree = "vol.DUFS" + separator + "tree";
+        dufs.createRecord("vol.DUFS", "tree", (byte) 0);
+        dufs.createRecord(tree, "inline", (byte) 1);
+        dufs.writeFile(tree + separator + "inline", 0, new byte[] {1, 2, 3});
+        for (int i = 0; i < 3; ++i) {
+            dufs.createRecord(tree, "directory-with-a-long-name" + i, (byte) 0);
+            String directory = tree + separator + "directory-with-a-long-name" + i;
+            dufs.createRecord(directory, "plain", (byte) 1);
+            dufs.writeFile(directory + separator + "plain", host);
+            options.setDeduplicationEnabled(true);
+            dufs.createRecord(directory, "dedup", (byte) 1);
+            dufs.writeFile(directory + separator + "dedup", host);
+            options.setDeduplicationEnabled(false);
+            options.setTailPackingEnabled(true);
+            dufs.createRecord(directory, "packed", (byte) 1);
+            dufs.writeFile(directory + separator + "packed", tail);
+            options.setTailPackingEnabled(false);
+        }
+        dufs.createRecord("vol.DUFS", "kept", (byte) 1);
+        dufs.writeFile("vol.DUFS" + separator + "kept", host);
+        host.delete();
+        tail.delete();
+        dufs.deleteTree(tree);
+        assertEquals(List.of("kept"), dufs.listDirectory("vol.DUFS"));
+        assertTrue(dufs.checkVolume(false).isEmpty());
+        // only the clusters of the kept file are taken
+        assertEquals(freeClusters - 21, VolumeIO.readReservedSpaceFromVolume(dufs.getVolume()).getFreeClusters());
+        File read = new File("read.tmp");
+        dufs.readFile("vol.DUFS" + separator + "kept", read);
+        assertArrayEquals(content, Files.readAllBytes(read.toPath()));
+        read.delete();
+    }
+}
@@ -0,0 +1,152 @@
+package com.dufs.volume;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterCacheTest {
+    private static VolumeFile volume;
+    private static ClusterCache clusterCache;
+    private static File file;
+
+    @BeforeEach
+    void init() throws IOException {
+        file = new File("vol.DUFS");
+        volume = new VolumeFile(file, "rw");
+        volume.setLength(1000 + 16 * 1024);
+        // clusters area starts at 1000, clusters are 1024 bytes long, at most 4 clusters are cached
+        clusterCache = new ClusterCache(volume, 1000, 1024, 4096);
+        volume.setClusterCache(clusterCache);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        volume.close();
+        file.delete();
+    }
+
+    private static int readIntFromFile(long pos) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(pos);
+            return raf.readInt();
+        }
+    }
+
+    @Test
+    void getCapacity() {
+        assertEquals(4, clusterCache.getCapacity());
+    }
+
+    @Test
+    void write_isDeferred() throws IOException {
+        volume.seek(1000 + 1024 + 8);
+        volume.writeInt(0x01020304);
+        assertEquals(0, readIntFromFile(1000 + 1024 + 8));
+        assertEquals(1, clusterCache.getDirtyClusters());
+        volume.seek(1000 + 1024 + 8);
+        assertEquals(0x01020304, volume.readInt());
+        volume.flush();
+        assertEquals(0x01020304, readIntFromFile(1000 + 1024 + 8));
+        assertEquals(0, clusterCache.getDirtyClusters());
+        assertEquals(1, clusterCache.getWriteBacks());
+    }
+
+    @Test
+    void write_beforeClustersArea() throws IOException {
+        volume.seek(996);
+        volume.writeLong(0x1122334455667788L);
+        assertEquals(0x11223344, readIntFromFile(996));
+        assertEquals(0, readIntFromFile(1000));
+        volume.seek(996);
+        assertEquals(0x1122334455667788L, volume.readLong());
+        volume.flush();
+        assertEquals(0x55667788, readIntFromFile(1000));
+    }
+
+    @Test
+    void read_hitsAndMisses() throws IOException {
+        byte[] buffer = new byte[4];
+        volume.seek(1000);
+        volume.read(buffer);
+        volume.read(buffer);
+        volume.seek(1000 + 1024);
+        volume.read(buffer);
+        assertEquals(3, clusterCache.getReads());
+        assertEquals(2, clusterCache.getMisses());
+        assertEquals(1, clusterCache.getHits());
+    }
+
+    @Test
+    void eviction_writesBack() throws IOException {
+        for (int i = 0; i < 5; ++i) {
+            volume.seek(1000 + 1024L * i);
+            volume.writeInt(i + 1);
+        }
+        assertEquals(4, clusterCache.getCachedClusters());
+        assertEquals(1, clusterCache.getEvictions());
+        assertEquals(1, readIntFromFile(1000));
+        assertEquals(0, readIntFromFile(1000 + 1024 * 4));
+        volume.seek(1000);
+        assertEquals(1, volume.readInt());
+    }
+
+    @Test
+    void write_wholeClusters() throws IOException {
+        byte[] content = new byte[3000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (((i * i) ^ 22) << 3);
+        }
+        volume.seek(1000 + 512);
+        volume.write(content);
+        byte[] contentRead = new byte[3000];
+        volume.seek(1000 + 512);
+        volume.readFully(contentRead);
+        assertArrayEquals(content, contentRead);
+        volume.close();
+        volume = new VolumeFile(file, "rw");
+        volume.seek(1000 + 512);
+        volume.readFully(contentRead);
+        assertArrayEquals(content, contentRead);
+    }
+
+    @Test
+    void setLength() throws IOException {
+        volume.seek(1000 + 1024 * 15);
+        volume.writeInt(7);
+        volume.setLength(1000 + 1024 * 10);
+        assertEquals(0, clusterCache.getCachedClusters());
+        volume.setLength(1000 + 1024 * 16);
+        volume.seek(1000 + 1024 * 15);
+        assertEquals(0, volume.readInt());
+    }
+
+    @Test
+    void read_clusterBeyondEndOfFile() throws IOException {
+        volume.setLength(1000 + 1024 * 15 + 2);
+        volume.seek(1000 + 1024 * 15);
+        assertEquals(0, volume.readShort());
+        assertEquals(-1, volume.read());
+        assertEquals(0, clusterCache.getCachedClusters());
+    }
+
+    @Test
+    void commit_withJournal() throws IOException {
+        File journalFile = new File("vol.DUFS.journal");
+        volume.setJournal(new MetadataJournal(volume, journalFile, 1024, 1, 1 << 20));
+        volume.seek(1000 + 8);
+        volume.writeInt(5);
+        volume.commit();
+        assertEquals(0, clusterCache.getDirtyClusters());
+        assertEquals(1, volume.getJournal().getPendingPages());
+        assertEquals(0, readIntFromFile(1000 + 8));
+        volume.close();
+        assertEquals(5, readIntFromFile(1000 + 8));
+        assertFalse(journalFile.exists());
+    }
+}
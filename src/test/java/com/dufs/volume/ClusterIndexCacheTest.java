@@ -0,0 +1,122 @@
+package com.dufs.volume;
+
+import com.dufs.offsets.ClusterIndexListOffsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterIndexCacheTest {
+    private static VolumeFile volume;
+    private static ClusterIndexCache clusterIndexCache;
+    private static File file;
+
+    private static long elementPosition(int clusterIndex) {
+        return ClusterIndexListOffsets.CLUSTER_INDEX_LIST_OFFSET
+                + (long) ClusterIndexListOffsets.CLUSTER_INDEX_ELEMENT_SIZE * clusterIndex;
+    }
+
+    @BeforeEach
+    void init() throws IOException {
+        file = new File("vol.DUFS");
+        volume = new VolumeFile(file, "rw");
+        volume.setLength(elementPosition(100) + 4096);
+        volume.seek(elementPosition(3));
+        volume.writeInt(0xFFFFFFFF);
+        volume.writeInt(2);
+        volume.writeInt(7);
+        clusterIndexCache = new ClusterIndexCache(100);
+        clusterIndexCache.load(volume);
+        volume.setClusterIndexCache(clusterIndexCache);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        volume.close();
+        file.delete();
+    }
+
+    @Test
+    void load() throws IOException {
+        assertEquals(100, clusterIndexCache.getClusters());
+        assertFalse(clusterIndexCache.isOffHeap());
+        assertEquals(0xFFFFFFFF, clusterIndexCache.getNextClusterIndex(3));
+        assertEquals(2, clusterIndexCache.getPrevClusterIndex(3));
+        assertEquals(7, clusterIndexCache.getRecordIndex(3));
+        assertEquals(0, clusterIndexCache.getNextClusterIndex(4));
+    }
+
+    @Test
+    void load_isLazy() throws IOException {
+        // the list is changed bypassing the volume after the cache has been bound to it, but before it is read
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(elementPosition(9) + 8);
+        raf.writeInt(5);
+        raf.close();
+        assertEquals(5, clusterIndexCache.getRecordIndex(9));
+    }
+
+    @Test
+    void write_isWrittenThrough() throws IOException {
+        volume.seek(elementPosition(5) + 4);
+        volume.writeInt(0x01020304);
+        assertEquals(0x01020304, clusterIndexCache.getPrevClusterIndex(5));
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(elementPosition(5) + 4);
+        assertEquals(0x01020304, raf.readInt());
+        raf.close();
+    }
+
+    @Test
+    void write_partiallyOverlapping() throws IOException {
+        volume.seek(elementPosition(99) + 10);
+        volume.writeInt(0x0A0B0C0D);
+        assertEquals(0x0A0B, clusterIndexCache.getRecordIndex(99));
+        volume.seek(elementPosition(0) - 2);
+        volume.writeInt(0x11223344);
+        assertEquals(0x33440000, clusterIndexCache.getNextClusterIndex(0));
+    }
+
+    @Test
+    void read() throws IOException {
+        volume.seek(elementPosition(3) + 2);
+        assertEquals(0xFFFF0000, volume.readInt());
+        assertEquals(0x00020000, volume.readInt());
+        assertEquals(0x0007, volume.readShort());
+    }
+
+    @Test
+    void contains() {
+        assertTrue(clusterIndexCache.contains(elementPosition(0), 12 * 100));
+        assertFalse(clusterIndexCache.contains(elementPosition(0) - 1, 4));
+        assertFalse(clusterIndexCache.contains(elementPosition(99) + 10, 4));
+        assertTrue(clusterIndexCache.overlaps(elementPosition(99) + 10, 4));
+        assertFalse(clusterIndexCache.overlaps(elementPosition(100), 4));
+    }
+
+    @Test
+    void offHeapChunks() throws IOException {
+        int clusters = ClusterIndexCache.OFF_HEAP_THRESHOLD + 5;
+        ClusterIndexCache chunked = new ClusterIndexCache(clusters, 1 << 20);
+        assertTrue(chunked.isOffHeap());
+        byte[] element = {0, 0, 0, 9, 0, 0, 0, 8, 0, 0, 0, 7};
+        for (int clusterIndex : new int[] {0, (1 << 20) - 1, 1 << 20, 3 << 20, clusters - 1}) {
+            element[3] = (byte) clusterIndex;
+            chunked.patch(elementPosition(clusterIndex), element, 0, element.length);
+            assertEquals(clusterIndex & 0xFF, chunked.getNextClusterIndex(clusterIndex));
+            assertEquals(8, chunked.getPrevClusterIndex(clusterIndex));
+            assertEquals(7, chunked.getRecordIndex(clusterIndex));
+        }
+        // elements on both sides of a chunk boundary are read by one call
+        byte[] read = new byte[24];
+        chunked.read(elementPosition((1 << 20) - 1), read, 0, read.length);
+        assertEquals(7, read[11]);
+        assertEquals(0, read[15]);
+        assertEquals(8, read[19]);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.dufs.volume;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntArrayTest {
+    @Test
+    void heapArray() {
+        IntArray array = new IntArray(100);
+        assertFalse(array.isOffHeap());
+        assertEquals(100, array.length());
+        array.set(99, -7);
+        assertEquals(-7, array.get(99));
+        assertEquals(0, array.get(0));
+    }
+
+    @Test
+    void offHeapChunks() {
+        int length = IntArray.OFF_HEAP_THRESHOLD + 5;
+        IntArray array = new IntArray(length, 1 << 20);
+        assertTrue(array.isOffHeap());
+        for (int index = 0; index < length; index += (1 << 20) - 1) {
+            array.set(index, index);
+        }
+        array.set(length - 1, 42);
+        for (int index = 0; index < length - 1; index += (1 << 20) - 1) {
+            assertEquals(index, array.get(index));
+        }
+        assertEquals(42, array.get(length - 1));
+        assertEquals(0, array.get(1 << 20));
+    }
+}
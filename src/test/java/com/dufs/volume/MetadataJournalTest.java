@@ -0,0 +1,217 @@
+package com.dufs.volume;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataJournalTest {
+    private static VolumeFile volume;
+    private static MetadataJournal journal;
+    private static File file;
+    private static File journalFile;
+
+    @BeforeEach
+    void init() throws IOException {
+        file = new File("vol.DUFS");
+        journalFile = new File("vol.DUFS.journal");
+        volume = new VolumeFile(file, "rw");
+        volume.setLength(65536);
+        journal = new MetadataJournal(volume, journalFile, 4096, 4, 1 << 20);
+        volume.setJournal(journal);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        volume.close();
+        file.delete();
+        journalFile.delete();
+    }
+
+    private static int readPhysicalInt(File volumeFile, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(volumeFile, "r");
+        raf.seek(position);
+        int value = raf.readInt();
+        raf.close();
+        return value;
+    }
+
+    @Test
+    void write_deferred() throws IOException {
+        volume.seek(100);
+        volume.writeInt(404);
+        volume.commit();
+        assertEquals(0, readPhysicalInt(file, 100));
+        volume.seek(100);
+        assertEquals(404, volume.readInt());
+        assertEquals(1, journal.getPendingPages());
+    }
+
+    @Test
+    void write_wholeClusterInPlace() throws IOException {
+        byte[] cluster = new byte[4096];
+        cluster[0] = 7;
+        volume.seek(8192);
+        volume.write(cluster);
+        assertEquals(0x07000000, readPhysicalInt(file, 8192));
+        assertEquals(0, journal.getPendingPages());
+    }
+
+    @Test
+    void write_protectedCluster() throws IOException {
+        byte[] cluster = new byte[4096];
+        cluster[0] = 7;
+        volume.protect(8192, 4096);
+        volume.seek(8192);
+        volume.write(cluster);
+        volume.commit();
+        assertEquals(0, readPhysicalInt(file, 8192));
+        volume.seek(8192);
+        assertEquals(0x07000000, volume.readInt());
+        // the transaction which protected the cluster is durable
+        volume.sync();
+        cluster[0] = 8;
+        volume.seek(8192);
+        volume.write(cluster);
+        assertEquals(0x08000000, readPhysicalInt(file, 8192));
+    }
+
+    @Test
+    void write_zeroEntry() throws IOException {
+        byte[] cluster = new byte[8192];
+        Arrays.fill(cluster, (byte) 1);
+        volume.seek(8192);
+        volume.write(cluster);
+        volume.sync();
+        long journalSize = journal.getJournalSize();
+        volume.protect(8192, 8192);
+        volume.seek(8190);
+        volume.write(new byte[8194]);
+        volume.sync();
+        // one entry without bytes
+        assertEquals(journalSize + 16 + 12 + 4, journal.getJournalSize());
+        volume.seek(8192);
+        assertEquals(0, volume.readInt());
+        volume.seek(8188);
+        volume.writeInt(0x01020304);
+        volume.commit();
+        volume.seek(8188);
+        assertEquals(0x01020304, volume.readInt());
+        assertEquals(0, volume.readInt());
+        File crashedFile = new File("crashed.DUFS");
+        File crashedJournalFile = new File("crashed.DUFS.journal");
+        Files.copy(file.toPath(), crashedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(journalFile.toPath(), crashedJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        VolumeFile crashedVolume = new VolumeFile(crashedFile, "rw");
+        assertEquals(1, MetadataJournal.replay(crashedVolume, crashedJournalFile));
+        crashedVolume.close();
+        assertEquals(0, readPhysicalInt(crashedFile, 8192));
+        assertEquals(0, readPhysicalInt(crashedFile, 16380));
+        crashedFile.delete();
+    }
+
+    @Test
+    void write_patchesPages() throws IOException {
+        volume.seek(8190);
+        volume.writeShort(0x0102);
+        byte[] cluster = new byte[4096];
+        volume.seek(8188);
+        volume.write(cluster);
+        volume.commit();
+        volume.seek(8188);
+        assertEquals(0, volume.readInt());
+        volume.flush();
+        assertEquals(0, readPhysicalInt(file, 8188));
+    }
+
+    @Test
+    void groupCommit() throws IOException {
+        long emptyJournalSize = Files.size(journalFile.toPath());
+        for (int i = 0; i < 3; ++i) {
+            volume.seek(i * 4L);
+            volume.writeInt(i);
+            volume.commit();
+        }
+        assertEquals(emptyJournalSize, Files.size(journalFile.toPath()));     // not forced yet
+        volume.seek(12);
+        volume.writeInt(3);
+        volume.commit();
+        assertTrue(Files.size(journalFile.toPath()) > emptyJournalSize);
+    }
+
+    @Test
+    void checkpoint() throws IOException {
+        volume.seek(100);
+        volume.writeInt(404);
+        volume.seek(60000);
+        volume.writeInt(505);
+        volume.flush();
+        assertEquals(404, readPhysicalInt(file, 100));
+        assertEquals(505, readPhysicalInt(file, 60000));
+        assertEquals(0, journal.getPendingPages());
+        assertEquals(8, journal.getJournalSize());
+        assertEquals(65536, volume.length());
+    }
+
+    @Test
+    void replay() throws IOException {
+        volume.seek(100);
+        volume.writeInt(404);
+        volume.commit();
+        volume.seek(200);
+        volume.writeInt(505);
+        volume.sync();
+        volume.seek(300);
+        volume.writeInt(606);   // not committed
+        // copies of the files are what would be left after the crash
+        File crashedFile = new File("crashed.DUFS");
+        File crashedJournalFile = new File("crashed.DUFS.journal");
+        Files.copy(file.toPath(), crashedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(journalFile.toPath(), crashedJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        VolumeFile crashedVolume = new VolumeFile(crashedFile, "rw");
+        assertEquals(2, MetadataJournal.replay(crashedVolume, crashedJournalFile));
+        crashedVolume.close();
+        assertEquals(404, readPhysicalInt(crashedFile, 100));
+        assertEquals(505, readPhysicalInt(crashedFile, 200));
+        assertEquals(0, readPhysicalInt(crashedFile, 300));
+        assertFalse(crashedJournalFile.exists());
+        crashedFile.delete();
+    }
+
+    @Test
+    void replay_tornTransaction() throws IOException {
+        volume.seek(100);
+        volume.writeInt(404);
+        volume.sync();
+        File crashedFile = new File("crashed.DUFS");
+        File crashedJournalFile = new File("crashed.DUFS.journal");
+        Files.copy(file.toPath(), crashedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(journalFile.toPath(), crashedJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // half of the next transaction has been written
+        Files.write(crashedJournalFile.toPath(), new byte[] { 0x44, 0x54, 0x52, 0x58, 0, 0, 0 }, StandardOpenOption.APPEND);
+        VolumeFile crashedVolume = new VolumeFile(crashedFile, "rw");
+        assertEquals(1, MetadataJournal.replay(crashedVolume, crashedJournalFile));
+        crashedVolume.close();
+        assertEquals(404, readPhysicalInt(crashedFile, 100));
+        crashedFile.delete();
+    }
+
+    @Test
+    void close() throws IOException {
+        volume.seek(100);
+        volume.writeInt(404);
+        volume.close();
+        assertEquals(404, readPhysicalInt(file, 100));
+        assertFalse(journalFile.exists());
+        volume = new VolumeFile(file, "rw");
+    }
+}
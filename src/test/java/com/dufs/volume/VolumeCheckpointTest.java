@@ -0,0 +1,161 @@
+package com.dufs.volume;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VolumeCheckpointTest {
+    private static final String separator = FileSystems.getDefault().getSeparator();
+    private static DufsOptions options;
+    private static Dufs dufs;
+    private static File file;
+    private static File checkpoint;
+    private static File host;
+    private static byte[] content;
+
+    private static VolumeFile volume() {
+        return (VolumeFile) dufs.getVolume();
+    }
+
+    private static void write(String name, byte[] bytes) throws IOException, DufsException {
+        Files.write(host.toPath(), bytes);
+        dufs.writeFile("vol.DUFS" + separator + name, host);
+    }
+
+    private static byte[] read(String name) throws IOException, DufsException {
+        File read = new File("read.tmp");
+        dufs.readFile("vol.DUFS" + separator + name, read);
+        byte[] readContent = Files.readAllBytes(read.toPath());
+        read.delete();
+        return readContent;
+    }
+
+    private static void reattach() throws IOException, DufsException {
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+    }
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        checkpoint = new File("vol.DUFS.checkpoint");
+        host = new File("host.tmp");
+        options = new DufsOptions();
+        options.setCheckpointEnabled(true);
+        options.setTailPackingEnabled(true);
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 4096000);
+        content = new byte[2 * 4096 + 300];
+        new Random(5).nextBytes(content);
+        dufs.createRecord("vol.DUFS", "packed", (byte) 1);
+        write("packed", content);
+        options.setTailPackingEnabled(false);
+        options.setDeduplicationEnabled(true);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write("a", content);
+        write("b", content);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        checkpoint.delete();
+        host.delete();
+    }
+
+    @Test
+    void attachVolume_takesCheckpoint() throws IOException, DufsException {
+        int fragmentClusters = volume().getFragmentIndex().size();
+        int sharedClusters = volume().getDedupIndex().size();
+        dufs.closeVolume();
+        assertTrue(checkpoint.exists());
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        // the checkpoint is valid only till the volume is closed cleanly again
+        assertFalse(checkpoint.exists());
+        assertEquals(fragmentClusters, volume().getFragmentIndex().size());
+        assertEquals(sharedClusters, volume().getDedupIndex().size());
+        dufs.createRecord("vol.DUFS", "c", (byte) 1);
+        write("c", content);
+        assertEquals(sharedClusters, volume().getDedupIndex().size());
+        assertArrayEquals(content, read("c"));
+        assertArrayEquals(content, read("packed"));
+    }
+
+    @Test
+    void attachVolume_indexIsNotBuilt() throws IOException, DufsException {
+        reattach();
+        reattach();
+        assertNotNull(volume().getFragmentIndex());
+        assertNotNull(volume().getDedupIndex());
+        volume().setDedupIndex(null);
+        reattach();
+        assertNotNull(volume().getFragmentIndex());
+        assertNull(volume().getDedupIndex());
+    }
+
+    @Test
+    void attachVolume_uncleanShutdown() throws IOException, DufsException {
+        reattach();
+        // the volume is copied while it is attached, as a crash would leave it
+        File copy = new File("copy.DUFS");
+        Files.copy(file.toPath(), copy.toPath());
+        dufs.closeVolume();
+        file.delete();
+        checkpoint.delete();
+        assertTrue(copy.renameTo(file));
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertNull(volume().getFragmentIndex());
+        assertNull(volume().getDedupIndex());
+        assertArrayEquals(content, read("a"));
+    }
+
+    @Test
+    void attachVolume_changedVolume() throws IOException, DufsException {
+        dufs.closeVolume();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() + 4096);
+        }
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertFalse(checkpoint.exists());
+        assertNull(volume().getFragmentIndex());
+    }
+
+    @Test
+    void attachVolume_damagedCheckpoint() throws IOException, DufsException {
+        dufs.closeVolume();
+        byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+        bytes[bytes.length - 8] ^= 1;
+        Files.write(checkpoint.toPath(), bytes);
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertNull(volume().getFragmentIndex());
+        assertNull(volume().getDedupIndex());
+    }
+
+    @Test
+    void closeVolume_checkpointDisabled() throws IOException, DufsException {
+        options.setCheckpointEnabled(false);
+        reattach();
+        assertFalse(checkpoint.exists());
+        assertNull(volume().getDedupIndex());
+        assertArrayEquals(content, read("b"));
+    }
+}
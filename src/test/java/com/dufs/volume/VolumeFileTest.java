@@ -0,0 +1,93 @@
+package com.dufs.volume;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VolumeFileTest {
+    private static VolumeFile volume;
+    private static File file;
+
+    @BeforeEach
+    void init() throws IOException {
+        file = new File("vol.DUFS");
+        volume = new VolumeFile(file, "rw");
+        volume.setLength(65536);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        volume.close();
+        file.delete();
+    }
+
+    @Test
+    void seek() throws IOException {
+        volume.seek(1000);
+        assertEquals(1000, volume.getFilePointer());
+        volume.writeInt(0x01020304);
+        assertEquals(1004, volume.getFilePointer());
+        volume.seek(1002);
+        assertEquals(0x0304, volume.readShort());
+        assertEquals(1004, volume.getFilePointer());
+    }
+
+    @Test
+    void seek_negativeOffset() {
+        assertThrows(IOException.class, () -> volume.seek(-1));
+    }
+
+    @Test
+    void writeAndRead() throws IOException {
+        byte[] content = new byte[5000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (((i * i) ^ 22) << 3);
+        }
+        volume.seek(4000);
+        volume.write(content);
+        volume.writeLong(0x1122334455667788L);
+        volume.writeChar('d');
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(4000);
+        byte[] contentRead = new byte[5000];
+        raf.readFully(contentRead);
+        assertArrayEquals(content, contentRead);
+        assertEquals(0x1122334455667788L, raf.readLong());
+        assertEquals('d', raf.readChar());
+        raf.close();
+        volume.seek(4000);
+        volume.readFully(contentRead);
+        assertArrayEquals(content, contentRead);
+        assertEquals(0x1122334455667788L, volume.readLong());
+        assertEquals('d', volume.readChar());
+    }
+
+    @Test
+    void read_endOfFile() throws IOException {
+        volume.seek(65535);
+        assertEquals(0, volume.read());
+        assertEquals(-1, volume.read());
+        assertEquals(-1, volume.read(new byte[10]));
+    }
+
+    @Test
+    void skipBytes() throws IOException {
+        volume.seek(65530);
+        assertEquals(6, volume.skipBytes(100));
+        assertEquals(65536, volume.getFilePointer());
+    }
+
+    @Test
+    void setLength() throws IOException {
+        volume.seek(60000);
+        volume.setLength(50000);
+        assertEquals(50000, volume.length());
+        assertEquals(50000, volume.getFilePointer());
+    }
+}
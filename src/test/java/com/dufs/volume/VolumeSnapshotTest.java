@@ -0,0 +1,234 @@
+package com.dufs.volume;
+
+import com.dufs.exceptions.DufsException;
+import com.dufs.filesystem.Dufs;
+import com.dufs.filesystem.DufsOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VolumeSnapshotTest {
+    private static final String separator = FileSystems.getDefault().getSeparator();
+    private static DufsOptions options;
+    private static Dufs dufs;
+    private static Dufs image;
+    private static File file;
+    private static File snapshot;
+    private static File host;
+    private static byte[] original;
+    private static byte[] changed;
+
+    private static void write(Dufs dufs, String name, byte[] bytes) throws IOException, DufsException {
+        Files.write(host.toPath(), bytes);
+        dufs.writeFile("vol.DUFS" + separator + name, host);
+    }
+
+    private static void replace(Dufs dufs, String name, byte[] bytes) throws IOException, DufsException {
+        dufs.deleteRecord("vol.DUFS" + separator + name, (byte) 1);
+        dufs.createRecord("vol.DUFS", name, (byte) 1);
+        write(dufs, name, bytes);
+    }
+
+    private static byte[] read(Dufs dufs, String name) throws IOException, DufsException {
+        File read = new File("read.tmp");
+        dufs.readFile("vol.DUFS" + separator + name, read);
+        byte[] readContent = Files.readAllBytes(read.toPath());
+        read.delete();
+        return readContent;
+    }
+
+    private static void mount() throws IOException, DufsException {
+        dufs = new Dufs(options);
+        dufs.mountVolume(file.getName(), 4096, 4096000);
+        dufs.createRecord("vol.DUFS", "a", (byte) 1);
+        write(dufs, "a", original);
+    }
+
+    @BeforeEach
+    void init() throws IOException, DufsException {
+        file = new File("vol.DUFS");
+        snapshot = new File("vol.DUFS.snapshot.s1");
+        host = new File("host.tmp");
+        options = new DufsOptions();
+        Random random = new Random(9);
+        original = new byte[3 * 4096 + 100];
+        changed = new byte[5 * 4096 + 7];
+        random.nextBytes(original);
+        random.nextBytes(changed);
+        image = null;
+        mount();
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException, DufsException {
+        if (image != null) {
+            image.closeVolume();
+        }
+        dufs.closeVolume();
+        file.delete();
+        snapshot.delete();
+        host.delete();
+    }
+
+    @Test
+    void createSnapshot_keepsImage() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        assertTrue(snapshot.exists());
+        replace(dufs, "a", changed);
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write(dufs, "b", changed);
+        image = dufs.openSnapshot("s1");
+        assertArrayEquals(original, read(image, "a"));
+        assertEquals(List.of("a"), image.listDirectory("vol.DUFS"));
+        assertTrue(image.checkVolume(false).isEmpty());
+        assertArrayEquals(changed, read(dufs, "a"));
+        assertEquals(List.of("a", "b"), dufs.listDirectory("vol.DUFS"));
+    }
+
+    @Test
+    void createSnapshot_isEmpty() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        VolumeSnapshot volumeSnapshot = ((VolumeFile) dufs.getVolume()).getSnapshots().get(0);
+        assertEquals(0, volumeSnapshot.getPreservedBlocks());
+        dufs.renameRecord("vol.DUFS" + separator + "a", "c", (byte) 1);
+        // the record list takes one block, it is preserved once
+        int preservedBlocks = volumeSnapshot.getPreservedBlocks();
+        assertTrue(preservedBlocks > 0);
+        dufs.renameRecord("vol.DUFS" + separator + "c", "d", (byte) 1);
+        assertEquals(preservedBlocks, volumeSnapshot.getPreservedBlocks());
+    }
+
+    @Test
+    void createSnapshot_sameName() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        assertEquals("Snapshot with such name already exists.",
+                assertThrows(DufsException.class, () -> dufs.createSnapshot("s1")).getMessage());
+        assertEquals("Snapshot name contains prohibited symbols.",
+                assertThrows(DufsException.class, () -> dufs.createSnapshot("s*")).getMessage());
+    }
+
+    @Test
+    void openSnapshot_isReadOnly() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        image = dufs.openSnapshot("s1");
+        assertThrows(IOException.class, () -> image.createRecord("vol.DUFS", "b", (byte) 1));
+        assertThrows(IOException.class, () -> image.bake());
+        assertEquals("Snapshot of the volume is read-only.",
+                assertThrows(DufsException.class, () -> image.createSnapshot("s2")).getMessage());
+        assertArrayEquals(original, read(image, "a"));
+    }
+
+    @Test
+    void openSnapshot_afterAttach() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        replace(dufs, "a", changed);
+        dufs.closeVolume();
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+        assertEquals(List.of("s1"), dufs.listSnapshots());
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        image = dufs.openSnapshot("s1");
+        assertArrayEquals(original, read(image, "a"));
+    }
+
+    @Test
+    void openSnapshot_bakedVolume() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        dufs.deleteRecord("vol.DUFS" + separator + "a", (byte) 1);
+        dufs.bake();
+        image = dufs.openSnapshot("s1");
+        assertArrayEquals(original, read(image, "a"));
+        dufs.unbake();
+        dufs.createRecord("vol.DUFS", "b", (byte) 1);
+        write(dufs, "b", changed);
+        assertArrayEquals(original, read(image, "a"));
+    }
+
+    @Test
+    void openSnapshot_journal() throws IOException, DufsException {
+        dufs.closeVolume();
+        file.delete();
+        options.setJournalEnabled(true);
+        options.setClusterCacheSize(16 * 4096);
+        mount();
+        dufs.createSnapshot("s1");
+        replace(dufs, "a", changed);
+        dufs.flush();
+        image = dufs.openSnapshot("s1");
+        assertArrayEquals(original, read(image, "a"));
+        assertArrayEquals(changed, read(dufs, "a"));
+        new File("vol.DUFS.journal").delete();
+    }
+
+    @Test
+    void exportTree_snapshot() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        replace(dufs, "a", changed);
+        image = dufs.openSnapshot("s1");
+        Path export = Files.createTempDirectory("snapshot");
+        try {
+            image.exportTree("vol.DUFS", export);
+            assertArrayEquals(original, Files.readAllBytes(export.resolve("a")));
+        } finally {
+            try (Stream<Path> paths = Files.walk(export)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    void deleteSnapshot() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        dufs.deleteSnapshot("s1");
+        assertFalse(snapshot.exists());
+        assertTrue(dufs.listSnapshots().isEmpty());
+        replace(dufs, "a", changed);
+        assertEquals("There is no snapshot with such name.",
+                assertThrows(DufsException.class, () -> dufs.openSnapshot("s1")).getMessage());
+    }
+
+    @Test
+    void migrateVolume_snapshots() throws IOException, DufsException {
+        dufs.createSnapshot("s1");
+        dufs.closeVolume();
+        assertEquals("Volume with snapshots cannot be migrated.",
+                assertThrows(DufsException.class, () -> Dufs.migrateVolume(file.getName())).getMessage());
+        dufs = new Dufs(options);
+        dufs.attachVolume(file.getName());
+    }
+
+    @Test
+    void open_cutsIncompleteBlock() throws IOException {
+        File store = new File("store.tmp");
+        try {
+            VolumeSnapshot created = VolumeSnapshot.create("s", store, new ReentrantReadWriteLock(), 8, 64);
+            created.close();
+            Files.write(store.toPath(), new byte[] {0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 3, 4, 5, 6, 7, 8, 0, 0, 0},
+                    StandardOpenOption.APPEND);
+            VolumeSnapshot opened = VolumeSnapshot.open("s", store, created.getLock());
+            assertEquals(1, opened.getPreservedBlocks());
+            assertTrue(opened.isPreserved(1));
+            byte[] block = new byte[3];
+            assertTrue(opened.readBlock(1, 2, block, 0, 3));
+            assertArrayEquals(new byte[] {3, 4, 5}, block);
+            assertEquals(20 + 16, store.length());
+            opened.close();
+        } finally {
+            store.delete();
+        }
+    }
+}